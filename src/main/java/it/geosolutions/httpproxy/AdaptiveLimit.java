@@ -0,0 +1,114 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+/**
+ * Concurrency limit of an upstream server following its measured latency, in the manner of the
+ * gradient algorithms of TCP congestion control: the limit grows while the time to the response
+ * head stays close to its long term average, and shrinks in proportion when it rises above it,
+ * the requests then queueing on the server. Failures (I/O errors, 502, 503, 504) shrink the limit
+ * by a constant factor.
+ * <p>
+ * Not thread safe, guarded by the lock of its {@link Bulkhead.Compartment}.
+ */
+final class AdaptiveLimit {
+
+    /**
+     * Weight of a sample in the smoothed limit
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Number of samples averaged by the long term latency
+     */
+    private static final int LONG_WINDOW = 100;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double tolerance;
+
+    private final double backoff;
+
+    private double limit;
+
+    private double longRtt;
+
+    /**
+     * @param initialLimit the limit before any sample
+     * @param minLimit the lowest limit
+     * @param maxLimit the highest limit
+     * @param tolerance the ratio of the latency to its long term average tolerated before shrinking
+     *        the limit, at least 1
+     * @param backoff the factor applied to the limit on failures, between 0 and 1
+     */
+    AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, double tolerance, double backoff) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.tolerance = Math.max(1, tolerance);
+        this.backoff = Math.min(1, Math.max(0.1, backoff));
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * @return the current limit
+     */
+    int get() {
+        return (int) limit;
+    }
+
+    /**
+     * Updates the limit with the outcome of a request.
+     *
+     * @param rttNanos the time (ns) to the response head
+     * @param inFlight the number of requests in flight when the request completed, itself included
+     * @param dropped true if the request failed or timed out
+     * @return true if the limit grew
+     */
+    boolean sample(long rttNanos, int inFlight, boolean dropped) {
+        int previous = get();
+        if (dropped) {
+            limit = Math.max(minLimit, limit * backoff);
+            return false;
+        }
+
+        double rtt = Math.max(1, rttNanos);
+        if (longRtt == 0) {
+            longRtt = rtt;
+        } else {
+            longRtt += (rtt - longRtt) / LONG_WINDOW;
+            // the latency dropped for good, forget the slower past sooner
+            if (longRtt > 2 * rtt) {
+                longRtt *= 0.95;
+            }
+        }
+
+        // the server keeps up: below 1 only once the latency exceeds the tolerated ratio
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRtt / rtt));
+        double target = limit * gradient + Math.sqrt(limit);
+        if (target > limit && inFlight < limit / 2) {
+            // not using the limit, so the sample says nothing about a higher one
+            return false;
+        }
+        limit = Math.min(maxLimit, Math.max(minLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+        return get() > previous;
+    }
+}
@@ -0,0 +1,592 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A proxied request served in asynchronous mode: consumes the upstream response on the I/O
+ * reactor and relays it to the client through a {@link WriteListener}, so that no thread is held
+ * while waiting for either side.
+ * <p>
+ * The upstream connection is read only as fast as the client accepts the data: at most
+ * <code>window</code> bytes are buffered, further input is suspended until the buffered data has
+ * been written.
+ */
+final class AsyncProxyExchange implements AsyncResponseConsumer<Void>, FutureCallback<Void>, WriteListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncProxyExchange.class);
+
+    private final HTTPProxy proxy;
+
+    private final URL url;
+
+    /**
+     * The key of the failures of the resource, null if they are not remembered
+     */
+    private final String negativeKey;
+
+    /**
+     * The permit of the circuit breaker of the upstream server, can be null
+     */
+    private final CircuitBreaker.Permit circuitPermit;
+
+    /**
+     * The place of the request among the ones in flight to the host, can be null
+     */
+    private final Bulkhead.Lease bulkheadLease;
+
+    private final HttpUriRequestBase proxyRequest;
+
+    private final AsyncContext asyncContext;
+
+    private final HttpServletRequest httpServletRequest;
+
+    private final HttpServletResponse httpServletResponse;
+
+    private final BufferPool bufferPool;
+
+    private final int chunkSize;
+
+    private final int window;
+
+    private final int compressionLevel;
+
+    /**
+     * Records the response for the cache, can be null
+     */
+    private final CacheExchange cacheExchange;
+
+    /**
+     * Shares the response with the coalesced followers, can be null
+     */
+    private final RequestCoalescer.Flight flight;
+
+    /**
+     * The response chunks waiting to be written to the client, pooled buffers filled up to their
+     * position, guarded by this
+     */
+    private final Deque<ByteBuffer> chunks = new ArrayDeque<>();
+
+    /**
+     * The buffer of the last write, which the container may still be reading until it reports
+     * the output as ready again
+     */
+    private byte[] writing;
+
+    private int buffered;
+
+    private ServletOutputStream out;
+
+    /**
+     * Compresses the response body into the chunks when the proxy applies a content coding
+     */
+    private DeflaterOutputStream encoder;
+
+    private boolean streamEnded;
+
+    /**
+     * Set when the response body is not relayed (redirects, 304, denied responses)
+     */
+    private volatile boolean discard;
+
+    private volatile CapacityChannel capacityChannel;
+
+    private volatile FutureCallback<Void> resultCallback;
+
+    private volatile Future<Void> future;
+
+    private volatile Deadline deadline;
+
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    /**
+     * @param proxy the servlet, providing the callbacks and the response head handling
+     * @param url the URL of the proxied resource
+     * @param negativeKey the key of the failures of the resource, null if they are not remembered
+     * @param circuitPermit the permit of the circuit breaker of the upstream server, can be null
+     * @param bulkheadLease the place of the request among the ones in flight to the host, can be null
+     * @param proxyRequest the request sent upstream
+     * @param asyncContext the context of the client request, already started
+     * @param bufferPool the pool providing the response chunks
+     * @param chunkSize the size of the response chunks
+     * @param window the maximum amount of response bytes buffered in memory
+     * @param compressionLevel the deflate level of the responses compressed by the proxy
+     * @param cacheExchange the interaction with the response cache, can be null
+     * @param flight the flight led by the request, can be null
+     */
+    AsyncProxyExchange(HTTPProxy proxy, URL url, String negativeKey, CircuitBreaker.Permit circuitPermit,
+                       Bulkhead.Lease bulkheadLease, HttpUriRequestBase proxyRequest, AsyncContext asyncContext,
+                       BufferPool bufferPool, int chunkSize, int window, int compressionLevel,
+                       CacheExchange cacheExchange, RequestCoalescer.Flight flight) {
+        this.proxy = proxy;
+        this.url = url;
+        this.negativeKey = negativeKey;
+        this.circuitPermit = circuitPermit;
+        this.bulkheadLease = bulkheadLease;
+        this.proxyRequest = proxyRequest;
+        this.asyncContext = asyncContext;
+        this.httpServletRequest = (HttpServletRequest) asyncContext.getRequest();
+        this.httpServletResponse = (HttpServletResponse) asyncContext.getResponse();
+        this.bufferPool = bufferPool;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.compressionLevel = compressionLevel;
+        this.cacheExchange = cacheExchange;
+        this.flight = flight;
+    }
+
+    /**
+     * Binds the exchange to the upstream execution.
+     *
+     * @param future the upstream execution, cancelled if the client goes away
+     * @param deadline the total timeout of the exchange
+     */
+    void start(Future<Void> future, Deadline deadline) {
+        this.future = future;
+        this.deadline = deadline;
+        if (finished.get()) {
+            deadline.cancel();
+        }
+    }
+
+    // ////////////////////////////////////////////
+    // Upstream response
+    // ////////////////////////////////////////////
+
+    @Override
+    public void consumeResponse(HttpResponse response, EntityDetails entityDetails, HttpContext context,
+                                FutureCallback<Void> resultCallback) throws IOException {
+        this.resultCallback = resultCallback;
+
+        boolean body;
+        String contentCoding = null;
+        CacheBody replay = null;
+        try {
+            if (circuitPermit != null) {
+                circuitPermit.complete(CircuitBreaker.isFailure(response.getCode()));
+            }
+            if (bulkheadLease != null) {
+                bulkheadLease.complete(CircuitBreaker.isFailure(response.getCode()));
+            }
+            proxy.recordFailure(url, negativeKey, response.getCode());
+            proxy.onRemoteResponse(proxyRequest);
+            HttpResponse head = response;
+            if (cacheExchange != null) {
+                head = cacheExchange.onResponse(response);
+                replay = cacheExchange.getReplayBody();
+            }
+            if (flight != null) {
+                flight.publishHead(head);
+            }
+            if (entityDetails != null || replay != null) {
+                contentCoding = proxy.selectContentCoding(head, httpServletRequest);
+            }
+            body = proxy.sendResponseHead(head, httpServletRequest, httpServletResponse, contentCoding);
+            if (body && cacheExchange != null) {
+                httpServletResponse.setHeader(HTTPProxy.X_CACHE_HEADER, cacheExchange.getStatus());
+            }
+        } catch (HttpErrorException ex) {
+            proxy.recordFailure(url, negativeKey, ex);
+            httpServletResponse.sendError(ex.getCode(), ex.getMessage());
+            body = false;
+        }
+
+        if (flight != null && (!body || replay != null || entityDetails == null)) {
+            if (replay != null) {
+                for (ByteBuffer buffer : replay.buffers()) {
+                    flight.publish(buffer);
+                }
+            }
+            flight.complete();
+        }
+
+        if (body && replay != null) {
+            // a 304 answered the revalidation, the stored body is sent instead
+            resultCallback.completed(null);
+            ServletOutputStream stream = httpServletResponse.getOutputStream();
+            synchronized (this) {
+                if (contentCoding != null) {
+                    encoder = ResponseCompression.wrap(new ChunkOutputStream(), contentCoding, compressionLevel,
+                            chunkSize);
+                    byte[] scratch = bufferPool.acquire(chunkSize);
+                    try {
+                        replay.writeTo(encoder, scratch);
+                    } finally {
+                        bufferPool.release(scratch);
+                    }
+                    encoder.close();
+                } else {
+                    for (ByteBuffer buffer : replay.buffers()) {
+                        append(buffer);
+                    }
+                }
+                streamEnded = true;
+                out = stream;
+            }
+            stream.setWriteListener(this);
+        } else if (entityDetails == null) {
+            if (body && cacheExchange != null) {
+                cacheExchange.complete();
+            }
+            resultCallback.completed(null);
+            finish();
+        } else if (!body) {
+            discard = true;
+        } else {
+            ServletOutputStream stream = httpServletResponse.getOutputStream();
+            synchronized (this) {
+                if (contentCoding != null) {
+                    encoder = ResponseCompression.wrap(new ChunkOutputStream(), contentCoding, compressionLevel,
+                            chunkSize);
+                }
+                out = stream;
+            }
+            stream.setWriteListener(this);
+        }
+    }
+
+    @Override
+    public void informationResponse(HttpResponse response, HttpContext context) {
+    }
+
+    @Override
+    public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+        int increment;
+        synchronized (this) {
+            this.capacityChannel = capacityChannel;
+            increment = discard ? Integer.MAX_VALUE : window - buffered;
+        }
+        if (increment > 0) {
+            capacityChannel.update(increment);
+        }
+    }
+
+    @Override
+    public void consume(ByteBuffer src) throws IOException {
+        if (discard) {
+            src.position(src.limit());
+            return;
+        }
+
+        if (cacheExchange != null) {
+            cacheExchange.write(src);
+        }
+        if (flight != null) {
+            flight.publish(src);
+        }
+
+        int saved = 0;
+        synchronized (this) {
+            if (encoder == null) {
+                append(src);
+            } else {
+                // the window counts the compressed bytes, the upstream gets back what compression saved
+                int consumed = src.remaining();
+                int before = buffered;
+                if (src.hasArray()) {
+                    encoder.write(src.array(), src.arrayOffset() + src.position(), consumed);
+                    src.position(src.limit());
+                } else {
+                    byte[] bytes = new byte[consumed];
+                    src.get(bytes);
+                    encoder.write(bytes);
+                }
+                saved = consumed - (buffered - before);
+            }
+        }
+        CapacityChannel channel = capacityChannel;
+        if (saved > 0 && channel != null) {
+            channel.update(saved);
+        }
+        drain();
+    }
+
+    /**
+     * Copies the given bytes at the end of the chunks, guarded by this.
+     */
+    private void append(ByteBuffer src) {
+        buffered += src.remaining();
+        while (src.hasRemaining()) {
+            ByteBuffer chunk = chunks.peekLast();
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = ByteBuffer.wrap(bufferPool.acquire(chunkSize));
+                chunks.add(chunk);
+            }
+            int length = Math.min(chunk.remaining(), src.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + length);
+            chunk.put(src);
+            src.limit(limit);
+        }
+    }
+
+    @Override
+    public void streamEnd(List<? extends Header> trailers) {
+        synchronized (this) {
+            streamEnded = true;
+            if (encoder != null) {
+                try {
+                    encoder.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Error compressing the response", e);
+                }
+            }
+        }
+        resultCallback.completed(null);
+        if (discard) {
+            finish();
+        } else {
+            if (cacheExchange != null) {
+                cacheExchange.complete();
+            }
+            if (flight != null) {
+                flight.complete();
+            }
+            drain();
+        }
+    }
+
+    // ////////////////////////////////////////////
+    // Client response
+    // ////////////////////////////////////////////
+
+    @Override
+    public void onWritePossible() {
+        drain();
+    }
+
+    /**
+     * Writes the buffered chunks as long as the client accepts them without blocking, then gives
+     * the written amount back to the upstream connection.
+     */
+    private void drain() {
+        int written = 0;
+        boolean done = false;
+        try {
+            synchronized (this) {
+                if (out == null) {
+                    return;
+                }
+                while (out.isReady()) {
+                    bufferPool.release(writing);
+                    writing = null;
+
+                    ByteBuffer chunk = chunks.poll();
+                    if (chunk == null) {
+                        done = streamEnded;
+                        break;
+                    }
+                    out.write(chunk.array(), 0, chunk.position());
+                    written += chunk.position();
+                    writing = chunk.array();
+                }
+                buffered -= written;
+            }
+        } catch (IOException e) {
+            onError(e);
+            return;
+        }
+
+        if (done) {
+            finish();
+        } else if (written > 0) {
+            CapacityChannel channel = capacityChannel;
+            if (channel != null) {
+                try {
+                    channel.update(written);
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        LOGGER.debug("Error writing the response to the client", t);
+        Future<Void> current = future;
+        if (current != null) {
+            current.cancel(true);
+        }
+        finish();
+    }
+
+    // ////////////////////////////////////////////
+    // Completion
+    // ////////////////////////////////////////////
+
+    @Override
+    public void completed(Void result) {
+        // the exchange is over once the client has received the whole body
+    }
+
+    @Override
+    public void failed(Exception ex) {
+        if (finished.get()) {
+            return;
+        }
+        LOGGER.error("Error executing HTTP method", ex);
+        if (circuitPermit != null) {
+            circuitPermit.complete(true);
+        }
+        if (bulkheadLease != null) {
+            bulkheadLease.complete(true);
+        }
+        proxy.recordFailure(url, negativeKey, ex);
+        if (httpServletResponse.isCommitted()
+                || !proxy.sendStaleIfError(cacheExchange, httpServletRequest, httpServletResponse)) {
+            sendFailure(ex);
+        }
+        finish();
+    }
+
+    @Override
+    public void cancelled() {
+        Deadline current = deadline;
+        if (current != null && current.isExpired()) {
+            if (circuitPermit != null) {
+                circuitPermit.complete(true);
+            }
+            if (bulkheadLease != null) {
+                bulkheadLease.complete(true);
+            }
+        }
+        sendFailure(null);
+        finish();
+    }
+
+    private void sendFailure(Exception ex) {
+        Deadline current = deadline;
+        boolean expired = current != null && current.isExpired();
+        if (httpServletResponse.isCommitted()) {
+            return;
+        }
+        try {
+            if (expired || ex instanceof InterruptedIOException) {
+                httpServletResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT,
+                        "Timeout waiting for " + url.getHost());
+            } else if (NegativeCache.isHostFailure(ex)) {
+                httpServletResponse.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Cannot reach " + url.getHost());
+            }
+        } catch (IOException | IllegalStateException e) {
+            LOGGER.debug("Cannot send the error", e);
+        }
+    }
+
+    /**
+     * Completes the client request and runs the finish callbacks, once.
+     */
+    private void finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+
+        Deadline current = deadline;
+        if (current != null) {
+            current.cancel();
+        }
+
+        if (circuitPermit != null) {
+            circuitPermit.cancel();
+        }
+
+        if (bulkheadLease != null) {
+            bulkheadLease.release();
+        }
+
+        if (flight != null) {
+            flight.finish();
+        }
+
+        if (cacheExchange != null) {
+            cacheExchange.close();
+        }
+
+        synchronized (this) {
+            if (encoder != null) {
+                // releases the native memory of an interrupted compression
+                try {
+                    encoder.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Error closing the response compression", e);
+                }
+            }
+        }
+
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException e) {
+            LOGGER.debug("The client request is already completed", e);
+        }
+
+        try {
+            proxy.onFinish();
+        } catch (IOException e) {
+            LOGGER.warn("Error running the finish callbacks", e);
+        }
+    }
+
+    @Override
+    public void releaseResources() {
+    }
+
+    /**
+     * Receives the output of the encoder, appending it to the chunks.
+     */
+    private final class ChunkOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            append(ByteBuffer.wrap(b, off, len));
+        }
+    }
+}
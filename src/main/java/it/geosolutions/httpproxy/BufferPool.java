@@ -0,0 +1,153 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of the byte arrays used to stream the bodies, so that proxying a response does not
+ * allocate a new buffer every time.
+ * <p>
+ * Buffers come in power of two size classes, from {@link #MIN_SIZE} to {@link #MAX_SIZE}. Each
+ * class is split in stripes picked by thread, to keep contention low, and the pool retains at most
+ * a configurable amount of memory: buffers released beyond it are left to the garbage collector.
+ */
+final class BufferPool {
+
+    static final int MIN_SIZE = 1024;
+
+    static final int MAX_SIZE = 1024 * 1024;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+    private final Queue<byte[]>[][] stripes;
+
+    private final int stripeMask;
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    private volatile long maxPooledBytes;
+
+    /**
+     * @param maxPooledBytes the maximum amount of memory retained by the pool
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        this.stripeMask = count - 1;
+        this.stripes = new Queue[CLASSES][count];
+        for (int c = 0; c < CLASSES; c++) {
+            for (int s = 0; s < count; s++) {
+                stripes[c][s] = new ConcurrentLinkedQueue<>();
+            }
+        }
+    }
+
+    /**
+     * @param maxPooledBytes the maximum amount of memory retained by the pool
+     */
+    void setMaxPooledBytes(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * @return the amount of memory currently retained by the pool
+     */
+    long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Returns a buffer of at least the requested size, rounded up to its size class.
+     *
+     * @param size the minimum size
+     * @return byte[]
+     */
+    byte[] acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            return new byte[size];
+        }
+
+        Queue<byte[]>[] queues = stripes[sizeClass];
+        int stripe = stripe();
+        for (int i = 0; i < queues.length; i++) {
+            byte[] buffer = queues[(stripe + i) & stripeMask].poll();
+            if (buffer != null) {
+                pooledBytes.addAndGet(-buffer.length);
+                return buffer;
+            }
+        }
+        return new byte[MIN_SIZE << sizeClass];
+    }
+
+    /**
+     * Gives a buffer back to the pool, the caller must not use it anymore.
+     *
+     * @param buffer a buffer obtained from {@link #acquire(int)}, can be null
+     */
+    void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int sizeClass = sizeClass(buffer.length);
+        if (sizeClass < 0 || MIN_SIZE << sizeClass != buffer.length) {
+            return;
+        }
+        if (pooledBytes.addAndGet(buffer.length) > maxPooledBytes) {
+            pooledBytes.addAndGet(-buffer.length);
+            return;
+        }
+        stripes[sizeClass][stripe()].offer(buffer);
+    }
+
+    /**
+     * Picks the buffer size for a body: the configured default when the length is unknown,
+     * otherwise just enough to hold the body, between the default and the maximum size.
+     *
+     * @param contentLength the body length, negative if unknown
+     * @param defaultSize the configured default buffer size
+     * @param maxSize the configured maximum buffer size
+     * @return int
+     */
+    static int bufferSize(long contentLength, int defaultSize, int maxSize) {
+        if (contentLength < 0 || contentLength <= defaultSize) {
+            return defaultSize;
+        }
+        return (int) Math.min(contentLength, Math.max(defaultSize, maxSize));
+    }
+
+    private static int sizeClass(int size) {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_SIZE);
+    }
+
+    private int stripe() {
+        return (int) Thread.currentThread().getId() & stripeMask;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Isolates the upstream servers from each other: the requests in flight to a host, or to the
+ * hosts matching a pattern, are limited by <code>route.maxInFlight.&lt;host&gt;</code>, so that
+ * a slow server cannot take all the servlet threads and pooled connections.
+ * <p>
+ * The requests beyond the limit wait in a bounded queue, first come first served, until a request
+ * completes or their timeout expires. The requests finding the queue full are rejected at once.
+ * <p>
+ * With <code>route.adaptiveConcurrency.&lt;host&gt;</code> the limit of a compartment is an
+ * {@link AdaptiveLimit} following the latency of the host, bounded by the static limit if any.
+ */
+final class Bulkhead {
+
+    private final ConcurrentMap<String, Compartment> compartments = new ConcurrentHashMap<>();
+
+    private final ProxyMetrics metrics;
+
+    /**
+     * @param metrics the metrics receiving the per compartment statistics
+     */
+    Bulkhead(ProxyMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param url the URL of the proxied resource
+     * @param config the configuration snapshot
+     * @return the compartment of the host, shared by the hosts of its pattern, or null if the
+     *         requests to the host are not limited
+     */
+    Compartment compartment(URL url, ProxyConfig config) {
+        String host = url.getHost();
+        boolean adaptive = config.isAdaptiveConcurrency(host);
+        String key = config.getMaxInFlightKey(host);
+        if (key == null || config.getMaxInFlight(host) <= 0) {
+            if (!adaptive) {
+                return null;
+            }
+            key = host.toLowerCase(Locale.ROOT);
+        }
+        Compartment compartment = compartments.get(key);
+        if (compartment != null && compartment.isAdaptive() == adaptive) {
+            return compartment;
+        }
+        // created, or replaced after a reload switching the adaptive limit
+        return compartments.compute(key, (k, current) -> current != null && current.isAdaptive() == adaptive
+                ? current : new Compartment(k, adaptive ? adaptiveLimit(config, host) : null, metrics));
+    }
+
+    private static AdaptiveLimit adaptiveLimit(ProxyConfig config, String host) {
+        return new AdaptiveLimit(config.getAdaptiveConcurrencyInitialLimit(host),
+                config.getAdaptiveConcurrencyMinLimit(), config.getAdaptiveConcurrencyMaxLimit(),
+                config.getAdaptiveConcurrencyTolerance() / 100.0, config.getAdaptiveConcurrencyBackoff() / 100.0);
+    }
+
+    /**
+     * The requests in flight to a host or a host pattern.
+     */
+    static final class Compartment {
+
+        private final String key;
+
+        private final ProxyMetrics metrics;
+
+        /**
+         * The limit following the latency of the host, null for the static limit
+         */
+        private final AdaptiveLimit adaptiveLimit;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition released = lock.newCondition();
+
+        private int inFlight;
+
+        private int waiting;
+
+        Compartment(String key, AdaptiveLimit adaptiveLimit, ProxyMetrics metrics) {
+            this.key = key;
+            this.adaptiveLimit = adaptiveLimit;
+            this.metrics = metrics;
+            if (adaptiveLimit != null) {
+                metrics.set("bulkhead.limit", key, adaptiveLimit.get());
+            }
+        }
+
+        /**
+         * @return the configured host or host pattern, or the host of an adaptive limit
+         */
+        String getKey() {
+            return key;
+        }
+
+        /**
+         * @return true if the limit follows the latency of the host
+         */
+        boolean isAdaptive() {
+            return adaptiveLimit != null;
+        }
+
+        private int limit(int maxInFlight) {
+            if (adaptiveLimit == null) {
+                return maxInFlight;
+            }
+            return maxInFlight > 0 ? Math.min(maxInFlight, adaptiveLimit.get()) : adaptiveLimit.get();
+        }
+
+        /**
+         * Enters the compartment, waiting in its queue if it is full.
+         *
+         * @param maxInFlight the maximum number of requests in flight, bounding the adaptive limit
+         * @param maxQueued the maximum number of requests waiting
+         * @param timeout the maximum wait (ms)
+         * @return the lease of the request, or null if it is rejected
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        Lease acquire(int maxInFlight, int maxQueued, long timeout) throws InterruptedException {
+            lock.lock();
+            try {
+                if (inFlight < limit(maxInFlight) && waiting == 0) {
+                    return enter();
+                }
+                if (waiting >= maxQueued) {
+                    metrics.increment("bulkhead.rejected", key);
+                    return null;
+                }
+                waiting++;
+                metrics.set("bulkhead.queued", key, waiting);
+                try {
+                    long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+                    while (inFlight >= limit(maxInFlight)) {
+                        if (nanos <= 0) {
+                            metrics.increment("bulkhead.timeout", key);
+                            return null;
+                        }
+                        nanos = released.awaitNanos(nanos);
+                    }
+                } catch (InterruptedException e) {
+                    // the signal may have been meant for this thread
+                    released.signal();
+                    throw e;
+                } finally {
+                    waiting--;
+                    metrics.set("bulkhead.queued", key, waiting);
+                }
+                return enter();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Lease enter() {
+            inFlight++;
+            metrics.set("bulkhead.inFlight", key, inFlight);
+            return new Lease(this);
+        }
+
+        private void sample(long rttNanos, boolean dropped) {
+            lock.lock();
+            try {
+                if (adaptiveLimit.sample(rttNanos, inFlight, dropped)) {
+                    released.signalAll();
+                }
+                metrics.set("bulkhead.limit", key, adaptiveLimit.get());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void release() {
+            lock.lock();
+            try {
+                inFlight--;
+                metrics.set("bulkhead.inFlight", key, inFlight);
+                released.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The place of a request in a compartment, released once.
+     */
+    static final class Lease {
+
+        private final Compartment compartment;
+
+        private final long start = System.nanoTime();
+
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(Compartment compartment) {
+            this.compartment = compartment;
+        }
+
+        /**
+         * Reports the outcome of the request, when the response head is received or the request
+         * failed, to the adaptive limit of the compartment. Further calls are ignored.
+         *
+         * @param dropped true if the request failed, false if it got a response
+         */
+        void complete(boolean dropped) {
+            if (compartment.adaptiveLimit != null && !released.get() && completed.compareAndSet(false, true)) {
+                compartment.sample(System.nanoTime() - start, dropped);
+            }
+        }
+
+        /**
+         * Leaves the compartment, letting the next waiting request in. Further calls are ignored.
+         */
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                compartment.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
+/**
+ * The body of a cached response, kept on the heap or off heap by the {@link SlabStore}.
+ * <p>
+ * The off heap bodies are reference counted: the cache holds a reference while the entry is
+ * stored, and every request serving the body holds one until it is sent, so that the memory is
+ * never reused while it is being read.
+ */
+interface CacheBody {
+
+    /**
+     * @return the body length (bytes)
+     */
+    int length();
+
+    /**
+     * @return the memory (bytes) taken by the body
+     */
+    int allocatedSize();
+
+    /**
+     * @return read only views of the content, in order
+     */
+    ByteBuffer[] buffers();
+
+    /**
+     * Acquires a reference to the body.
+     *
+     * @return false if the body has already been released
+     */
+    boolean retain();
+
+    /**
+     * Releases a reference to the body, its memory is reused once the last one is released.
+     */
+    void release();
+
+    /**
+     * Writes the whole body, the off heap content being copied through the scratch buffer unless
+     * the stream can write it directly.
+     *
+     * @param out the stream receiving the body
+     * @param scratch a buffer for the copies
+     * @throws IOException on write failure
+     */
+    default void writeTo(OutputStream out, byte[] scratch) throws IOException {
+        for (ByteBuffer buffer : buffers()) {
+            write(buffer, out, scratch);
+        }
+    }
+
+    /**
+     * @return a heap copy of the content
+     */
+    default byte[] toByteArray() {
+        byte[] bytes = new byte[length()];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers()) {
+            int length = buffer.remaining();
+            buffer.get(bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @param body the content
+     * @return a heap body, not reference counted
+     */
+    static CacheBody of(byte[] body) {
+        return new HeapBody(body);
+    }
+
+    /**
+     * Writes a buffer to a stream, without copying it when the stream accepts buffers (servlet 6.1
+     * containers and Jetty).
+     */
+    private static void write(ByteBuffer buffer, OutputStream out, byte[] scratch) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        MethodHandle writeBuffer = BufferWriter.METHODS.get(out.getClass());
+        if (writeBuffer != null) {
+            try {
+                writeBuffer.invoke(out, buffer);
+                return;
+            } catch (IOException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IOException(e);
+            }
+        }
+        while (buffer.hasRemaining()) {
+            int length = Math.min(scratch.length, buffer.remaining());
+            buffer.get(scratch, 0, length);
+            out.write(scratch, 0, length);
+        }
+    }
+
+    /**
+     * Finds the public write(ByteBuffer) method of the output streams.
+     */
+    final class BufferWriter {
+
+        static final ClassValue<MethodHandle> METHODS = new ClassValue<>() {
+            @Override
+            protected MethodHandle computeValue(Class<?> type) {
+                try {
+                    return MethodHandles.publicLookup().findVirtual(type, "write",
+                            MethodType.methodType(void.class, ByteBuffer.class));
+                } catch (NoSuchMethodException | IllegalAccessException e) {
+                    return null;
+                }
+            }
+        };
+
+        private BufferWriter() {
+        }
+    }
+
+    /**
+     * A body on the heap, released by the garbage collector.
+     */
+    final class HeapBody implements CacheBody {
+
+        private final byte[] body;
+
+        private HeapBody(byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        public int length() {
+            return body.length;
+        }
+
+        @Override
+        public int allocatedSize() {
+            return body.length;
+        }
+
+        @Override
+        public ByteBuffer[] buffers() {
+            return new ByteBuffer[] {ByteBuffer.wrap(body).asReadOnlyBuffer()};
+        }
+
+        @Override
+        public boolean retain() {
+            return true;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void writeTo(OutputStream out, byte[] scratch) throws IOException {
+            out.write(body);
+        }
+
+        @Override
+        public byte[] toByteArray() {
+            return body.clone();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.MessageHeaders;
+
+import java.util.Iterator;
+
+/**
+ * The directives of the Cache-Control headers of a request or a response (RFC 9111, section 5.2).
+ * The delta-seconds are -1 when the directive is missing.
+ */
+final class CacheControl {
+
+    static final String HEADER_NAME = "Cache-Control";
+
+    static final CacheControl EMPTY = new CacheControl();
+
+    boolean noStore;
+
+    boolean noCache;
+
+    boolean privateResponse;
+
+    boolean publicResponse;
+
+    boolean mustRevalidate;
+
+    boolean onlyIfCached;
+
+    long maxAge = -1;
+
+    long sMaxAge = -1;
+
+    long maxStale = -1;
+
+    long minFresh = -1;
+
+    long staleWhileRevalidate = -1;
+
+    long staleIfError = -1;
+
+    private CacheControl() {
+    }
+
+    /**
+     * @param message the request or the response
+     * @return the parsed directives of all its Cache-Control headers
+     */
+    static CacheControl parse(MessageHeaders message) {
+        CacheControl cacheControl = null;
+        Iterator<Header> it = message.headerIterator(HEADER_NAME);
+        while (it.hasNext()) {
+            if (cacheControl == null) {
+                cacheControl = new CacheControl();
+            }
+            cacheControl.parse(it.next().getValue());
+        }
+
+        // HTTP/1.0 caches only knew about Pragma
+        if (cacheControl == null) {
+            Header pragma = message.getFirstHeader("Pragma");
+            if (pragma != null && pragma.getValue().toLowerCase().contains("no-cache")) {
+                cacheControl = new CacheControl();
+                cacheControl.noCache = true;
+            }
+        }
+        return cacheControl != null ? cacheControl : EMPTY;
+    }
+
+    private void parse(String value) {
+        for (String directive : value.split(",")) {
+            int eq = directive.indexOf('=');
+            String name = (eq < 0 ? directive : directive.substring(0, eq)).trim().toLowerCase();
+            String argument = eq < 0 ? null : directive.substring(eq + 1).trim().replace("\"", "");
+            switch (name) {
+                case "no-store" -> noStore = true;
+                // a no-cache listing header names is handled as a plain no-cache
+                case "no-cache" -> noCache = true;
+                case "private" -> privateResponse = true;
+                case "public" -> publicResponse = true;
+                case "must-revalidate", "proxy-revalidate" -> mustRevalidate = true;
+                case "only-if-cached" -> onlyIfCached = true;
+                case "max-age" -> maxAge = seconds(argument);
+                case "s-maxage" -> sMaxAge = seconds(argument);
+                // a max-stale without value accepts any staleness
+                case "max-stale" -> maxStale = argument == null ? Long.MAX_VALUE : seconds(argument);
+                case "min-fresh" -> minFresh = seconds(argument);
+                // RFC 5861
+                case "stale-while-revalidate" -> staleWhileRevalidate = seconds(argument);
+                case "stale-if-error" -> staleIfError = seconds(argument);
+                default -> {
+                    // extensions are ignored
+                }
+            }
+        }
+    }
+
+    private static long seconds(String argument) {
+        if (argument == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(argument));
+        } catch (NumberFormatException e) {
+            // overflowing values mean "forever", invalid ones make the response stale
+            return argument.matches("\\d+") ? Integer.MAX_VALUE : 0;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.client5.http.utils.DateUtils;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.message.BasicHeader;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A response stored by the {@link ResponseCache}: the status, the end to end headers and the body
+ * of an upstream response, with the times needed to compute its age and freshness (RFC 9111,
+ * section 4.2).
+ */
+final class CacheEntry {
+
+    /**
+     * The heuristic freshness of the responses with a Last-Modified only, as a fraction of their
+     * age when received, is capped to a day
+     */
+    static final long MAX_HEURISTIC_LIFETIME = 24 * 3600 * 1000L;
+
+    /**
+     * The headers describing a connection rather than the response, and the Age recomputed when
+     * the entry is served, never stored
+     */
+    private static final Set<String> NOT_STORED = Set.of("connection", "keep-alive", "proxy-authenticate",
+            "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade", "age");
+
+    /**
+     * The headers sent along a 304 (RFC 9110, section 15.4.5)
+     */
+    static final List<String> NOT_MODIFIED_HEADERS = List.of("Cache-Control", "Content-Location", "Date", "ETag",
+            "Expires", "Vary", "Age");
+
+    private final String key;
+
+    private final String host;
+
+    private final int status;
+
+    private final Header[] headers;
+
+    private final CacheBody body;
+
+    private final long requestTime;
+
+    private final long responseTime;
+
+    private final long correctedInitialAge;
+
+    private final long freshnessLifetime;
+
+    private final CacheControl cacheControl;
+
+    /**
+     * @param key the key of the stored variant
+     * @param host the upstream host, for the statistics
+     * @param response the upstream response
+     * @param body the whole response body
+     * @param requestTime the time (ms) the request was sent upstream
+     * @param responseTime the time (ms) the response was received
+     */
+    CacheEntry(String key, String host, HttpResponse response, byte[] body, long requestTime, long responseTime) {
+        this(key, host, response, CacheBody.of(body), requestTime, responseTime);
+    }
+
+    /**
+     * @param key the key of the stored variant
+     * @param host the upstream host, for the statistics
+     * @param response the upstream response
+     * @param body the whole response body
+     * @param requestTime the time (ms) the request was sent upstream
+     * @param responseTime the time (ms) the response was received
+     */
+    CacheEntry(String key, String host, HttpResponse response, CacheBody body, long requestTime,
+               long responseTime) {
+        this(key, host, response.getCode(), endToEndHeaders(response.getHeaders()), body, requestTime,
+                responseTime, response.getFirstHeader("Age"));
+    }
+
+    private CacheEntry(String key, String host, int status, Header[] headers, CacheBody body, long requestTime,
+                       long responseTime, Header age) {
+        this.key = key;
+        this.host = host;
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+
+        BasicHttpResponse head = new BasicHttpResponse(status);
+        head.setHeaders(headers);
+        this.cacheControl = CacheControl.parse(head);
+
+        // ////////////////////////////////////////////
+        // Age and freshness, RFC 9111 sections 4.2.1-3
+        // ////////////////////////////////////////////
+
+        long date = time(head, "Date", responseTime);
+        long apparentAge = Math.max(0, responseTime - date);
+        long ageValue = 0;
+        if (age != null) {
+            try {
+                ageValue = Math.max(0, Long.parseLong(age.getValue().trim())) * 1000;
+            } catch (NumberFormatException e) {
+                // ignored as the RFC requires
+            }
+        }
+        this.correctedInitialAge = Math.max(apparentAge, ageValue + (responseTime - requestTime));
+
+        long lifetime;
+        if (cacheControl.sMaxAge >= 0) {
+            lifetime = cacheControl.sMaxAge * 1000;
+        } else if (cacheControl.maxAge >= 0) {
+            lifetime = cacheControl.maxAge * 1000;
+        } else if (head.containsHeader("Expires")) {
+            // an invalid Expires, such as 0, means already expired
+            lifetime = Math.max(0, time(head, "Expires", date) - date);
+        } else if (head.containsHeader("Last-Modified")) {
+            lifetime = Math.min(MAX_HEURISTIC_LIFETIME,
+                    Math.max(0, date - time(head, "Last-Modified", date)) / 10);
+        } else {
+            lifetime = 0;
+        }
+        this.freshnessLifetime = lifetime;
+    }
+
+    private static long time(BasicHttpResponse head, String name, long defaultValue) {
+        Header header = head.getFirstHeader(name);
+        if (header == null) {
+            return defaultValue;
+        }
+        Instant instant = DateUtils.parseStandardDate(header.getValue());
+        return instant != null ? instant.toEpochMilli() : "Expires".equals(name) ? 0 : defaultValue;
+    }
+
+    private static Header[] endToEndHeaders(Header[] headers) {
+        List<Header> stored = new ArrayList<>(headers.length);
+        for (Header header : headers) {
+            if (!NOT_STORED.contains(header.getName().toLowerCase(Locale.ROOT))) {
+                stored.add(new BasicHeader(header.getName(), header.getValue()));
+            }
+        }
+        return stored.toArray(new Header[0]);
+    }
+
+    /**
+     * Returns a copy of this entry updated with the headers of a 304 answering its revalidation
+     * (RFC 9111, section 4.3.4).
+     *
+     * @param notModified the 304 response
+     * @param requestTime the time (ms) the revalidation was sent
+     * @param responseTime the time (ms) the 304 was received
+     * @return CacheEntry
+     */
+    CacheEntry freshen(HttpResponse notModified, long requestTime, long responseTime) {
+        List<Header> updated = new ArrayList<>();
+        for (Header header : headers) {
+            String name = header.getName();
+            if (!notModified.containsHeader(name) || name.equalsIgnoreCase(Utils.CONTENT_LENGTH_HEADER_NAME)
+                    || name.equalsIgnoreCase(Utils.HTTP_HEADER_CONTENT_ENCODING)) {
+                updated.add(header);
+            }
+        }
+        for (Header header : endToEndHeaders(notModified.getHeaders())) {
+            String name = header.getName();
+            if (!name.equalsIgnoreCase(Utils.CONTENT_LENGTH_HEADER_NAME)
+                    && !name.equalsIgnoreCase(Utils.HTTP_HEADER_CONTENT_ENCODING)) {
+                updated.add(header);
+            }
+        }
+        return new CacheEntry(key, host, status, updated.toArray(new Header[0]), body, requestTime, responseTime,
+                notModified.getFirstHeader("Age"));
+    }
+
+    /**
+     * Rebuilds an entry persisted by the {@link DiskCache}.
+     *
+     * @param key the key of the stored variant
+     * @param host the upstream host
+     * @param status the response status
+     * @param headers the stored headers
+     * @param body the body
+     * @param responseTime the time (ms) the response was received
+     * @param correctedInitialAge the age (ms) of the response when received
+     * @return CacheEntry
+     */
+    static CacheEntry restore(String key, String host, int status, Header[] headers, CacheBody body,
+                              long responseTime, long correctedInitialAge) {
+        // with a null response delay the Age header alone gives the corrected initial age back
+        return new CacheEntry(key, host, status, headers, body, responseTime, responseTime,
+                new BasicHeader("Age", Long.toString(correctedInitialAge / 1000)));
+    }
+
+    /**
+     * Returns a copy of this entry with its body moved to another storage.
+     *
+     * @param stored the body, with the same content
+     * @return CacheEntry
+     */
+    CacheEntry withBody(CacheBody stored) {
+        return new CacheEntry(this, stored);
+    }
+
+    private CacheEntry(CacheEntry source, CacheBody body) {
+        this.key = source.key;
+        this.host = source.host;
+        this.status = source.status;
+        this.headers = source.headers;
+        this.body = body;
+        this.requestTime = source.requestTime;
+        this.responseTime = source.responseTime;
+        this.correctedInitialAge = source.correctedInitialAge;
+        this.freshnessLifetime = source.freshnessLifetime;
+        this.cacheControl = source.cacheControl;
+    }
+
+    /**
+     * Acquires a reference to the body, see {@link CacheBody}.
+     *
+     * @return false if the body has already been released
+     */
+    boolean retain() {
+        return body.retain();
+    }
+
+    /**
+     * Releases a reference to the body.
+     */
+    void release() {
+        body.release();
+    }
+
+    /**
+     * @param now the current time (ms)
+     * @return the current age (ms) of the response
+     */
+    long age(long now) {
+        return correctedInitialAge + Math.max(0, now - responseTime);
+    }
+
+    /**
+     * Whether the entry can be served without revalidation to a request carrying the given
+     * directives.
+     *
+     * @param now the current time (ms)
+     * @param request the Cache-Control directives of the request
+     * @return boolean
+     */
+    boolean isFresh(long now, CacheControl request) {
+        if (cacheControl.noCache || request.noCache) {
+            return false;
+        }
+        long lifetime = freshnessLifetime;
+        if (request.maxAge >= 0) {
+            lifetime = Math.min(lifetime, request.maxAge * 1000);
+        }
+        long age = age(now);
+        if (request.minFresh >= 0) {
+            age += request.minFresh * 1000;
+        }
+        if (age < lifetime) {
+            return true;
+        }
+
+        // the client can accept a stale response, unless the server forbids it
+        return request.maxStale >= 0 && !cacheControl.mustRevalidate
+                && age - lifetime <= Math.min(request.maxStale, Long.MAX_VALUE / 1000) * 1000;
+    }
+
+    /**
+     * Whether the stale entry can be served while it is refreshed in the background (RFC 5861,
+     * section 3). Clients asking for a fresh or revalidated response are not served stale.
+     *
+     * @param now the current time (ms)
+     * @param request the Cache-Control directives of the request
+     * @param defaultWindow the window (s) used when the response has no stale-while-revalidate
+     * @return boolean
+     */
+    boolean canServeStaleWhileRevalidate(long now, CacheControl request, long defaultWindow) {
+        if (request.noCache || request.maxAge >= 0 || request.minFresh >= 0) {
+            return false;
+        }
+        long window = cacheControl.staleWhileRevalidate >= 0 ? cacheControl.staleWhileRevalidate : defaultWindow;
+        return isServableStale(now, window);
+    }
+
+    /**
+     * Whether the stale entry can be served in place of an error of the upstream server (RFC 5861,
+     * section 4), the client can ask for a window of its own.
+     *
+     * @param now the current time (ms)
+     * @param request the Cache-Control directives of the request
+     * @param defaultWindow the window (s) used when the response has no stale-if-error
+     * @return boolean
+     */
+    boolean canServeStaleIfError(long now, CacheControl request, long defaultWindow) {
+        long window = request.staleIfError >= 0 ? request.staleIfError
+                : cacheControl.staleIfError >= 0 ? cacheControl.staleIfError : defaultWindow;
+        return isServableStale(now, window);
+    }
+
+    private boolean isServableStale(long now, long window) {
+        if (window <= 0 || cacheControl.noCache || cacheControl.mustRevalidate) {
+            return false;
+        }
+        return age(now) - freshnessLifetime <= Math.min(window, Long.MAX_VALUE / 1000) * 1000;
+    }
+
+    /**
+     * @return true if the entry can be revalidated with a conditional request
+     */
+    boolean hasValidator() {
+        return getFirstHeader("ETag") != null || getFirstHeader("Last-Modified") != null;
+    }
+
+    /**
+     * Evaluates the conditional headers of a client request against the stored validators
+     * (RFC 9110, section 13.2.2): If-None-Match, compared weakly, takes precedence over
+     * If-Modified-Since.
+     *
+     * @param ifNoneMatch the If-None-Match header of the client, can be null
+     * @param ifModifiedSince the If-Modified-Since header of the client, can be null
+     * @return true if the client copy is still valid and a 304 can be sent
+     */
+    boolean matches(String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            return matchesETag(ifNoneMatch, getFirstHeader("ETag"));
+        }
+
+        String lastModified = getFirstHeader("Last-Modified");
+        if (ifModifiedSince == null || lastModified == null) {
+            return false;
+        }
+        Instant modified = DateUtils.parseStandardDate(lastModified);
+        Instant since = DateUtils.parseStandardDate(ifModifiedSince);
+        return modified != null && since != null && !modified.isAfter(since);
+    }
+
+    /**
+     * Compares an If-None-Match header with an entity tag, weakly.
+     *
+     * @param ifNoneMatch the If-None-Match header of the client
+     * @param etag the entity tag of the response, can be null
+     * @return true if one of the tags of the client matches
+     */
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (etag == null) {
+            return false;
+        }
+        String opaque = opaqueTag(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || opaqueTag(tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Builds the head of the response served from this entry.
+     *
+     * @param now the current time (ms)
+     * @return HttpResponse
+     */
+    HttpResponse toResponse(long now) {
+        BasicHttpResponse response = new BasicHttpResponse(status);
+        response.setHeaders(headers);
+        response.setHeader("Age", Long.toString(age(now) / 1000));
+        return response;
+    }
+
+    /**
+     * @param name the header name
+     * @return the value of the first stored header with the given name, or null
+     */
+    String getFirstHeader(String name) {
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the memory (bytes) taken by the entry, approximately
+     */
+    int weight() {
+        int weight = body.allocatedSize() + key.length() + 64;
+        for (Header header : headers) {
+            weight += header.getName().length() + header.getValue().length() + 32;
+        }
+        return weight;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    CacheBody getBody() {
+        return body;
+    }
+
+    Header[] getHeaders() {
+        return headers.clone();
+    }
+
+    long getResponseTime() {
+        return responseTime;
+    }
+
+    long getCorrectedInitialAge() {
+        return correctedInitialAge;
+    }
+
+    long getFreshnessLifetime() {
+        return freshnessLifetime;
+    }
+}
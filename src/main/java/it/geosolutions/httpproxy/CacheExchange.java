@@ -0,0 +1,531 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.MessageHeaders;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The interaction of one proxied GET with the {@link ResponseCache}: looks up the stored response,
+ * turns a stale one into a conditional request, then records the upstream response while it is
+ * relayed to the client and stores it once complete. A stale response can also be served while it
+ * is refreshed, or when the upstream server fails (RFC 5861).
+ * <p>
+ * The POST queries buffered on the routes opted in are handled as GET requests, identified by
+ * their URL and body, except that they are never revalidated: a conditional POST is not answered
+ * by a 304.
+ * <p>
+ * The responses without validators of the hosts opted in are stored with a {@link ContentTag}
+ * computed while recording, so that the conditional requests of the clients are answered from the
+ * stored response.
+ * <p>
+ * The exchange holds a reference to the body of the stored response it looked up, released by
+ * {@link #close()}.
+ */
+final class CacheExchange {
+
+    /**
+     * The status codes cacheable by default (RFC 9110, section 15.1)
+     */
+    private static final Set<Integer> CACHEABLE_STATUS = Set.of(200, 203, 204, 300, 301, 308, 404, 405, 410,
+            414, 501);
+
+    private final ResponseCache cache;
+
+    private final String url;
+
+    private final String host;
+
+    private final HttpRequest request;
+
+    private final CacheControl requestCacheControl;
+
+    private final long staleWhileRevalidate;
+
+    private final long staleIfError;
+
+    /**
+     * The max-age (s) given to the responses to POST queries without explicit freshness, 0 for the
+     * GET requests
+     */
+    private final long queryMaxAge;
+
+    private final boolean query;
+
+    /**
+     * Whether the responses without validators are given a {@link ContentTag}
+     */
+    private final boolean contentTagging;
+
+    private CacheEntry entry;
+
+    private CacheEntry revalidated;
+
+    /**
+     * The stored response sent instead of the upstream one, if any
+     */
+    private CacheEntry replay;
+
+    private String status = "MISS";
+
+    private boolean closed;
+
+    private long requestTime;
+
+    private HttpResponse response;
+
+    private String[] varyNames;
+
+    /**
+     * The upstream body, spilled to the directory of the disk tier past the memory entry size
+     */
+    private DeferredFileOutputStream recording;
+
+    /**
+     * The tag computed over the recorded body, if the upstream server sent no validator
+     */
+    private ContentTag contentTag;
+
+    /**
+     * @param cache the response cache
+     * @param url the normalized URL of the resource
+     * @param host the upstream host, for the statistics
+     * @param request the request sent upstream
+     * @param staleWhileRevalidate the default stale-while-revalidate (s) of the responses
+     * @param staleIfError the default stale-if-error (s) of the responses
+     * @param query whether the request is a buffered POST query
+     * @param queryMaxAge the max-age (s) of the responses to POST queries without explicit freshness
+     * @param contentTagging whether the responses without validators are given a content tag
+     */
+    private CacheExchange(ResponseCache cache, String url, String host, HttpRequest request,
+                          long staleWhileRevalidate, long staleIfError, boolean query, long queryMaxAge,
+                          boolean contentTagging) {
+        this.cache = cache;
+        this.url = url;
+        this.host = host;
+        this.request = request;
+        this.requestCacheControl = CacheControl.parse(request);
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.staleIfError = staleIfError;
+        this.query = query;
+        this.queryMaxAge = query ? queryMaxAge : 0;
+        this.contentTagging = contentTagging;
+    }
+
+    /**
+     * Starts the cache interaction of a request, if it can be answered by the cache.
+     *
+     * @param cache the response cache
+     * @param url the normalized URL of the resource
+     * @param host the upstream host
+     * @param request the request about to be sent upstream
+     * @param authenticated whether the request carries credentials
+     * @param staleWhileRevalidate the default stale-while-revalidate (s) of the responses
+     * @param staleIfError the default stale-if-error (s) of the responses
+     * @param contentTagging whether the responses without validators are given a {@link ContentTag}
+     * @return the exchange, or null if the cache must be bypassed
+     */
+    static CacheExchange open(ResponseCache cache, String url, String host, HttpRequest request,
+                              boolean authenticated, long staleWhileRevalidate, long staleIfError,
+                              boolean contentTagging) {
+        if (!"GET".equalsIgnoreCase(request.getMethod()) || authenticated || request.containsHeader("Authorization")
+                || CacheControl.parse(request).noStore) {
+            return null;
+        }
+        return new CacheExchange(cache, url, host, request, staleWhileRevalidate, staleIfError, false, 0,
+                contentTagging);
+    }
+
+    /**
+     * Starts the cache interaction of a buffered POST query.
+     *
+     * @param cache the response cache
+     * @param key the normalized URL followed by the key of the body, see {@link QueryBody#key}
+     * @param host the upstream host
+     * @param request the request about to be sent upstream
+     * @param authenticated whether the request carries credentials
+     * @param staleWhileRevalidate the default stale-while-revalidate (s) of the responses
+     * @param staleIfError the default stale-if-error (s) of the responses
+     * @param maxAge the max-age (s) of the responses without explicit freshness, 0 to store only
+     *        the responses with one
+     * @param contentTagging whether the responses without validators are given a {@link ContentTag}
+     * @return the exchange, or null if the cache must be bypassed
+     */
+    static CacheExchange openQuery(ResponseCache cache, String key, String host, HttpRequest request,
+                                   boolean authenticated, long staleWhileRevalidate, long staleIfError,
+                                   long maxAge, boolean contentTagging) {
+        if (authenticated || request.containsHeader("Authorization") || CacheControl.parse(request).noStore) {
+            return null;
+        }
+        return new CacheExchange(cache, key, host, request, staleWhileRevalidate, staleIfError, true, maxAge,
+                contentTagging);
+    }
+
+    /**
+     * Looks up the stored response.
+     *
+     * @param now the current time (ms)
+     * @return the stored response if it can be served as is, otherwise null
+     */
+    CacheEntry lookup(long now) {
+        entry = cache.get(url, request);
+        if (entry != null && entry.isFresh(now, requestCacheControl)) {
+            cache.getMetrics().increment("cache.hit", host);
+            return entry;
+        }
+        cache.getMetrics().increment("cache.miss", host);
+        return null;
+    }
+
+    /**
+     * Called when {@link #lookup(long)} found no fresh response.
+     *
+     * @param now the current time (ms)
+     * @return the stale response to serve while it is refreshed in the background, or null
+     */
+    CacheEntry staleWhileRevalidate(long now) {
+        if (entry == null || !entry.canServeStaleWhileRevalidate(now, requestCacheControl, staleWhileRevalidate)) {
+            return null;
+        }
+        cache.getMetrics().increment("cache.stale.revalidate", host);
+        return entry;
+    }
+
+    /**
+     * Called when the upstream server could not be reached, or answered with an error.
+     *
+     * @param now the current time (ms)
+     * @return the stale response to serve instead, or null
+     */
+    CacheEntry staleIfError(long now) {
+        if (entry == null || !entry.canServeStaleIfError(now, requestCacheControl, staleIfError)) {
+            return null;
+        }
+        cache.getMetrics().increment("cache.stale.error", host);
+        return entry;
+    }
+
+    /**
+     * Creates the exchange refreshing the stale response of this one in the background.
+     *
+     * @param refresh the request to send upstream, without the conditional headers of the client
+     * @return CacheExchange
+     */
+    CacheExchange forRefresh(HttpRequest refresh) {
+        CacheExchange exchange = new CacheExchange(cache, url, host, refresh, staleWhileRevalidate, 0, query,
+                queryMaxAge, contentTagging);
+        exchange.entry = entry != null && entry.retain() ? entry : null;
+        return exchange;
+    }
+
+    /**
+     * @return true if the client only accepts a stored response
+     */
+    boolean isOnlyIfCached() {
+        return requestCacheControl.onlyIfCached;
+    }
+
+    /**
+     * Turns the request into a conditional one when a stale response with validators is stored,
+     * unless the client made it conditional itself. The content tags are unknown upstream.
+     */
+    void prepareRevalidation() {
+        if (query || entry == null || !entry.hasValidator() || request.containsHeader("If-None-Match")
+                || request.containsHeader("If-Modified-Since")) {
+            return;
+        }
+        String etag = entry.getFirstHeader("ETag");
+        if (etag != null && ContentTag.isContentTag(etag)) {
+            etag = null;
+        }
+        String lastModified = entry.getFirstHeader("Last-Modified");
+        if (etag == null && lastModified == null) {
+            return;
+        }
+        if (etag != null) {
+            request.setHeader("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.setHeader("If-Modified-Since", lastModified);
+        }
+        revalidated = entry;
+    }
+
+    /**
+     * Marks the time the request is sent upstream.
+     */
+    void sent() {
+        requestTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Handles the head of the upstream response: a 304 answering the revalidation freshens the
+     * stored response, which is then sent instead, as is a stale one allowed to replace a server
+     * error. Any other storable response starts being recorded.
+     *
+     * @param upstream the upstream response
+     * @return the head of the response to send to the client
+     */
+    HttpResponse onResponse(HttpResponse upstream) {
+        long now = System.currentTimeMillis();
+        if (requestTime == 0) {
+            requestTime = now;
+        }
+
+        if (revalidated != null && upstream.getCode() == 304) {
+            CacheEntry freshened = revalidated.freshen(upstream, requestTime, now);
+            cache.put(url, varyNames(revalidated, upstream), freshened);
+            cache.getMetrics().increment("cache.revalidated", host);
+            entry = freshened;
+            replay = freshened;
+            status = "REVALIDATED";
+            return freshened.toResponse(now);
+        }
+        revalidated = null;
+
+        if (upstream.getCode() >= 500 && staleIfError(now) != null) {
+            replay = entry;
+            status = "STALE";
+            return entry.toResponse(now);
+        }
+
+        contentTag = contentTagging && ContentTag.applies(upstream) ? new ContentTag() : null;
+        varyNames = isStorable(upstream) ? varyNames(null, upstream) : null;
+        if (varyNames != null) {
+            response = upstream;
+            Header contentLength = upstream.getFirstHeader(Utils.CONTENT_LENGTH_HEADER_NAME);
+            long length = contentLength != null ? parseLength(contentLength.getValue()) : -1;
+            int maxEntrySize = cache.getMaxEntrySize();
+            if (length <= cache.getMaxRecordSize()) {
+                recording = DeferredFileOutputStream.builder()
+                        .setThreshold(maxEntrySize)
+                        .setBufferSize(length >= 0 && length <= maxEntrySize ? (int) length : 8192)
+                        .setPrefix("http-proxy-")
+                        .setSuffix(".tmp")
+                        .setDirectory(cache.getDiskDirectory() != null ? cache.getDiskDirectory().toFile() : null)
+                        .get();
+            }
+        }
+        return upstream;
+    }
+
+    /**
+     * @return the stored body to send instead of the upstream one after a successful revalidation,
+     *         otherwise null
+     */
+    CacheBody getReplayBody() {
+        return replay != null ? replay.getBody() : null;
+    }
+
+    /**
+     * @return the X-Cache value of the response: MISS, REVALIDATED or STALE
+     */
+    String getStatus() {
+        return status;
+    }
+
+    /**
+     * Records a part of the upstream body.
+     */
+    void write(byte[] b, int off, int len) {
+        if (recording == null) {
+            return;
+        }
+        if (recording.getByteCount() + len > cache.getMaxRecordSize()) {
+            discard();
+            return;
+        }
+        try {
+            recording.write(b, off, len);
+            if (contentTag != null) {
+                contentTag.update(b, off, len);
+            }
+        } catch (IOException e) {
+            // the disk is full, the response is relayed without being stored
+            discard();
+        }
+    }
+
+    /**
+     * Records a part of the upstream body, leaving the buffer position unchanged.
+     */
+    void write(ByteBuffer src) {
+        if (recording == null) {
+            return;
+        }
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+        } else {
+            byte[] bytes = new byte[src.remaining()];
+            src.duplicate().get(bytes);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Stores the recorded response, once the whole body has been received.
+     */
+    void complete() {
+        if (recording == null) {
+            return;
+        }
+        String key = ResponseCache.variantKey(url, varyNames, request);
+        HttpResponse stored = response;
+        boolean assignFreshness = queryMaxAge > 0 && response.getCode() == 200
+                && !hasExplicitFreshness(CacheControl.parse(response), response);
+        if (assignFreshness || contentTag != null) {
+            // a copy of the head, the upstream one has already been relayed
+            stored = new BasicHttpResponse(response.getCode());
+            stored.setHeaders(response.getHeaders());
+            if (assignFreshness) {
+                stored.addHeader(CacheControl.HEADER_NAME, "max-age=" + queryMaxAge);
+            }
+            if (contentTag != null) {
+                stored.setHeader("ETag", contentTag.value());
+            }
+        }
+        try {
+            recording.close();
+            CacheBody body = recording.isInMemory() ? CacheBody.of(recording.getData())
+                    : DiskCache.map(recording.getPath());
+            cache.put(url, varyNames, new CacheEntry(key, host, stored, body, requestTime,
+                    System.currentTimeMillis()));
+        } catch (IOException e) {
+            // not stored
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Releases the stored response looked up, once the exchange is over.
+     */
+    synchronized void close() {
+        if (!closed && entry != null) {
+            // a freshened entry shares the body of the one looked up
+            entry.release();
+        }
+        closed = true;
+        discard();
+    }
+
+    /**
+     * Drops the recording, deleting the file it spilled to.
+     */
+    private synchronized void discard() {
+        DeferredFileOutputStream dropped = recording;
+        recording = null;
+        if (dropped == null) {
+            return;
+        }
+        try {
+            dropped.close();
+            if (!dropped.isInMemory()) {
+                Files.deleteIfExists(dropped.getPath());
+            }
+        } catch (IOException e) {
+            // the temporary file is deleted on the next restart
+        }
+    }
+
+    /**
+     * Whether the response can be stored by a shared cache (RFC 9111, section 3).
+     */
+    private boolean isStorable(HttpResponse upstream) {
+        if (requestCacheControl.noStore || upstream.containsHeader("Set-Cookie")
+                || upstream.containsHeader("Content-Range")) {
+            return false;
+        }
+        CacheControl cacheControl = CacheControl.parse(upstream);
+        if (cacheControl.noStore || cacheControl.privateResponse) {
+            return false;
+        }
+        for (String name : varyNames(null, upstream)) {
+            if (name.equals("*")) {
+                return false;
+            }
+        }
+        boolean explicit = hasExplicitFreshness(cacheControl, upstream) || cacheControl.publicResponse
+                || (queryMaxAge > 0 && upstream.getCode() == 200);
+        if (!explicit && !CACHEABLE_STATUS.contains(upstream.getCode())) {
+            return false;
+        }
+        // a response without freshness nor validators would never be served
+        return explicit || cacheControl.noCache || upstream.containsHeader("ETag")
+                || upstream.containsHeader("Last-Modified") || contentTag != null;
+    }
+
+    private static boolean hasExplicitFreshness(CacheControl cacheControl, HttpResponse upstream) {
+        return cacheControl.sMaxAge >= 0 || cacheControl.maxAge >= 0 || upstream.containsHeader("Expires");
+    }
+
+    /**
+     * The request headers selecting the variant: the ones listed by Vary, plus Accept-Encoding
+     * when an encoded response does not declare it.
+     */
+    private static String[] varyNames(CacheEntry stored, MessageHeaders response) {
+        Set<String> names = new LinkedHashSet<>();
+        Iterator<Header> it = response.headerIterator("Vary");
+        if (!it.hasNext() && stored != null && stored.getFirstHeader("Vary") != null) {
+            addNames(names, stored.getFirstHeader("Vary"));
+        }
+        while (it.hasNext()) {
+            addNames(names, it.next().getValue());
+        }
+        Header contentEncoding = response.getFirstHeader(Utils.HTTP_HEADER_CONTENT_ENCODING);
+        if (contentEncoding != null || (stored != null
+                && stored.getFirstHeader(Utils.HTTP_HEADER_CONTENT_ENCODING) != null)) {
+            names.add(Utils.HTTP_HEADER_ACCEPT_ENCODING);
+        }
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static void addNames(Set<String> names, String vary) {
+        for (String name : vary.split(",")) {
+            if (!name.isBlank()) {
+                names.add(name.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    private static long parseLength(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
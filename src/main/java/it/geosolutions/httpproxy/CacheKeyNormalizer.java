@@ -0,0 +1,39 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.net.URL;
+import java.util.Set;
+
+/**
+ * A pluggable normalization of the proxied URLs into the keys identifying the same resource, shared
+ * by the response cache and the request coalescing. The implementation is selected by the
+ * <code>cacheKeyNormalizer</code> property and needs a public no argument constructor.
+ */
+public interface CacheKeyNormalizer {
+
+    /**
+     * @param url the URL of the proxied resource, as built by {@link Utils#buildURL(String)}
+     * @param ignoredParams the query parameters, lower case, left out of the keys (the
+     *        <code>cacheKeyIgnoredParams</code> property)
+     * @return the key of the resource, equal for the URLs returning the same response
+     */
+    String normalize(URL url, Set<String> ignoredParams);
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Refreshes the stale cached responses served under stale-while-revalidate, on a bounded pool of
+ * background threads: a response is refreshed once at a time, and the refreshes exceeding the
+ * queue are dropped, the next request for the response trying again.
+ */
+final class CacheRefresher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheRefresher.class);
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The keys of the responses being refreshed
+     */
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    private final ProxyMetrics metrics;
+
+    /**
+     * @param threads the number of refresh threads
+     * @param queueSize the maximum number of refreshes waiting for a thread
+     * @param metrics the metrics receiving the per host statistics
+     */
+    CacheRefresher(int threads, int queueSize, ProxyMetrics metrics) {
+        this.metrics = metrics;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+                    Thread t = new Thread(r, "http-proxy-cache-refresh-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param threads the number of refresh threads
+     */
+    void setThreads(int threads) {
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Schedules the refresh of a response, unless it is already being refreshed.
+     *
+     * @param key the key of the cached response
+     * @param host the upstream host, for the statistics
+     * @param task the refresh
+     * @return true if the refresh has been scheduled
+     */
+    boolean refresh(String key, String host, Runnable task) {
+        if (!refreshing.add(key)) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Error refreshing the cached response of {}", host, e);
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+            metrics.increment("cache.refresh.rejected", host);
+            return false;
+        }
+        metrics.increment("cache.refresh", host);
+        return true;
+    }
+
+    /**
+     * Stops the refresh threads, dropping the waiting refreshes.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
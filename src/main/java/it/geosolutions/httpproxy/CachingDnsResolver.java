@@ -0,0 +1,339 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.client5.http.SystemDefaultDnsResolver;
+import org.apache.hc.core5.net.InetAddressUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the upstream host names for the connection managers, caching the lookups so that
+ * a cold connection does not wait for the name server.
+ * <p>
+ * The addresses are kept for <code>dnsCacheTtl</code> seconds, the unknown hosts for
+ * <code>dnsNegativeTtl</code> seconds. An entry used during its last
+ * <code>dnsRefreshBefore</code> seconds is looked up again in the background, so that the hosts
+ * in use never expire on the request path. The addresses of a host are returned in turn, the
+ * connections being spread over them. The hosts of the <code>dnsHostsFile</code> and the
+ * <code>dnsAddress.&lt;host&gt;</code> properties are resolved without any lookup.
+ */
+final class CachingDnsResolver implements DnsResolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingDnsResolver.class);
+
+    /**
+     * The number of cached hosts beyond which the expired entries are purged
+     */
+    static final int MAX_ENTRIES = 4096;
+
+    private final ProxyConfigLoader configLoader;
+
+    private final DnsResolver delegate;
+
+    private final ProxyMetrics metrics;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor refresher;
+
+    /**
+     * Spreads the lookups of the hosts resolved statically
+     */
+    private final AtomicInteger staticTurn = new AtomicInteger();
+
+    /**
+     * @param configLoader the configuration loader, providing the TTLs and the static addresses
+     * @param metrics the metrics receiving the per host statistics
+     */
+    CachingDnsResolver(ProxyConfigLoader configLoader, ProxyMetrics metrics) {
+        this(configLoader, SystemDefaultDnsResolver.INSTANCE, metrics);
+    }
+
+    /**
+     * @param configLoader the configuration loader, providing the TTLs and the static addresses
+     * @param delegate the resolver performing the actual lookups
+     * @param metrics the metrics receiving the per host statistics
+     */
+    CachingDnsResolver(ProxyConfigLoader configLoader, DnsResolver delegate, ProxyMetrics metrics) {
+        this.configLoader = configLoader;
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.refresher = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(64), r -> {
+            Thread t = new Thread(r, "http-proxy-dns-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        this.refresher.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        String name = host.toLowerCase(Locale.ROOT);
+        ProxyConfig config = configLoader.getConfig();
+
+        InetAddress[] addresses = config.getDnsStaticAddresses().get(name);
+        if (addresses != null) {
+            metrics.increment("dns.static", name);
+            return rotate(addresses, staticTurn.getAndIncrement());
+        }
+        if (InetAddressUtils.isIPv4(host) || InetAddressUtils.isIPv6(host)
+                || InetAddressUtils.isIPv6URLBracketed(host)) {
+            return delegate.resolve(host);
+        }
+        if (config.getDnsCacheTtl() <= 0) {
+            return lookup(name).get();
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(name);
+        if (entry == null || entry.expires <= now) {
+            entry = lookup(name);
+            store(name, entry, now);
+        } else {
+            metrics.increment("dns.hit", name);
+            if (entry.failure == null && entry.expires - now <= config.getDnsRefreshBefore() * 1000L) {
+                refresh(name, entry);
+            }
+        }
+        return entry.get();
+    }
+
+    @Override
+    public String resolveCanonicalHostname(String host) throws UnknownHostException {
+        if (configLoader.getConfig().getDnsStaticAddresses().containsKey(host.toLowerCase(Locale.ROOT))) {
+            return host;
+        }
+        return delegate.resolveCanonicalHostname(host);
+    }
+
+    /**
+     * Looks a host up with the delegate resolver.
+     *
+     * @param name the lower case host name
+     * @return the entry of the host, with its addresses or the lookup failure
+     */
+    private Entry lookup(String name) {
+        long start = System.nanoTime();
+        Entry entry;
+        try {
+            InetAddress[] addresses = delegate.resolve(name);
+            if (addresses == null || addresses.length == 0) {
+                throw new UnknownHostException(name);
+            }
+            entry = new Entry(addresses, null);
+        } catch (UnknownHostException e) {
+            metrics.increment("dns.failure", name);
+            entry = new Entry(null, e);
+        }
+        metrics.increment("dns.lookup", name);
+        metrics.add("dns.lookup.micros", name, (System.nanoTime() - start) / 1000);
+        return entry;
+    }
+
+    /**
+     * Caches the entry of a host for the TTL matching its outcome.
+     */
+    private void store(String name, Entry entry, long now) {
+        ProxyConfig config = configLoader.getConfig();
+        int ttl = entry.failure == null ? config.getDnsCacheTtl() : config.getDnsNegativeTtl();
+        if (ttl <= 0) {
+            return;
+        }
+        entry.expires = now + ttl * 1000L;
+        if (entries.size() >= MAX_ENTRIES && !entries.containsKey(name)) {
+            purge(now);
+            if (entries.size() >= MAX_ENTRIES) {
+                return;
+            }
+        }
+        entries.put(name, entry);
+    }
+
+    private void purge(long now) {
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+            if (i.next().expires <= now) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Looks a host up again in the background, once per entry. A failed refresh keeps the
+     * current addresses until they expire.
+     */
+    private void refresh(String name, Entry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refresher.execute(() -> {
+                Entry fresh = lookup(name);
+                if (fresh.failure == null) {
+                    fresh.turn.set(entry.turn.get());
+                    store(name, fresh, System.currentTimeMillis());
+                }
+            });
+            metrics.increment("dns.refresh", name);
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    /**
+     * @param addresses the addresses of a host, the preferred address family first
+     * @param turn the number of lookups of the host so far
+     * @return a copy of the addresses, the ones of the preferred family rotated by the turn
+     */
+    static InetAddress[] rotate(InetAddress[] addresses, int turn) {
+        Class<?> family = addresses[0].getClass();
+        int preferred = 0;
+        while (preferred < addresses.length && addresses[preferred].getClass() == family) {
+            preferred++;
+        }
+        InetAddress[] rotated = addresses.clone();
+        int shift = Math.floorMod(turn, preferred);
+        for (int i = 0; i < preferred; i++) {
+            rotated[i] = addresses[(i + shift) % preferred];
+        }
+        return rotated;
+    }
+
+    /**
+     * Parses the static addresses of a host.
+     *
+     * @param host the host name
+     * @param literals the IPv4 or IPv6 addresses
+     * @return the addresses bound to the host name, or null if none is valid
+     */
+    static InetAddress[] parseAddresses(String host, List<String> literals) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (String literal : literals) {
+            String address = literal.trim();
+            if (!InetAddressUtils.isIPv4(address) && !InetAddressUtils.isIPv6(address)) {
+                LOGGER.warn("Invalid address {} for the host {}", address, host);
+                continue;
+            }
+            try {
+                // a literal address is parsed without any lookup
+                addresses.add(InetAddress.getByAddress(host, InetAddress.getByName(address).getAddress()));
+            } catch (UnknownHostException e) {
+                LOGGER.warn("Invalid address {} for the host {}", address, host);
+            }
+        }
+        return addresses.isEmpty() ? null : addresses.toArray(new InetAddress[0]);
+    }
+
+    /**
+     * Reads a file in the hosts format: an address followed by its host names on each line,
+     * <code>#</code> starting a comment. The addresses of a name given on several lines are
+     * merged.
+     *
+     * @param file the hosts file
+     * @param hosts the map receiving the addresses, by lower case host name
+     */
+    static void parseHostsFile(Path file, Map<String, InetAddress[]> hosts) {
+        Map<String, List<String>> literals = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                String[] fields = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+                for (int i = 1; i < fields.length; i++) {
+                    literals.computeIfAbsent(fields[i].toLowerCase(Locale.ROOT), k -> new ArrayList<>())
+                            .add(fields[0]);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Cannot read the hosts file {}", file, e);
+            return;
+        }
+        literals.forEach((host, addresses) -> {
+            InetAddress[] parsed = parseAddresses(host, addresses);
+            if (parsed != null) {
+                hosts.put(host, parsed);
+            }
+        });
+    }
+
+    /**
+     * Stops the background refreshes.
+     */
+    void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * The outcome of the lookup of a host.
+     */
+    private static final class Entry {
+
+        private final InetAddress[] addresses;
+
+        private final UnknownHostException failure;
+
+        private final AtomicInteger turn = new AtomicInteger();
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private volatile long expires;
+
+        Entry(InetAddress[] addresses, UnknownHostException failure) {
+            this.addresses = addresses;
+            this.failure = failure;
+        }
+
+        /**
+         * @return the addresses, in turn
+         * @throws UnknownHostException if the host is unknown
+         */
+        InetAddress[] get() throws UnknownHostException {
+            if (failure != null) {
+                UnknownHostException e = new UnknownHostException(failure.getMessage());
+                e.initCause(failure);
+                throw e;
+            }
+            return rotate(addresses, turn.getAndIncrement());
+        }
+    }
+}
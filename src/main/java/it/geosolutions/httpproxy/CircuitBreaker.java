@@ -0,0 +1,303 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.core5.http.HttpStatus;
+
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The circuit breakers of the upstream servers, one per host and port: a server failing or
+ * answering slowly is no longer sent requests for a while, which fail at once instead of holding
+ * a servlet thread and a pooled connection until their timeouts.
+ * <p>
+ * A closed circuit lets the requests through and keeps the outcomes of the last ones in a sliding
+ * window. When enough of them failed (I/O errors, 502, 503 and 504 responses) or were slow to get
+ * the response head, the circuit opens and rejects the requests. Once the open duration is over it
+ * is half open: a few trial requests are let through, the circuit closes if all of them succeed
+ * and opens again as soon as one fails.
+ * <p>
+ * The circuits are keyed on the host and port of the proxied URL, so a pool of backends
+ * ({@link UpstreamPools}) has one circuit for all of them, on purpose: it opens when the pool as a
+ * whole fails. The circuit is checked before the backend is picked, and a single failing backend
+ * is handled by the passive outlier ejection of the pool, which leaves it out after a few
+ * failures in a row while the other backends keep the circuit closed.
+ * <p>
+ * The state of each circuit is published as the <code>circuit.state</code> gauge: 0 closed,
+ * 1 open, 2 half open.
+ */
+final class CircuitBreaker {
+
+    /**
+     * The states of a circuit, their ordinal being the value of the state gauge
+     */
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private final ProxyMetrics metrics;
+
+    /**
+     * @param metrics the metrics receiving the per upstream statistics
+     */
+    CircuitBreaker(ProxyMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param status the status code of an upstream response
+     * @return true if the status tells the upstream server is failing
+     */
+    static boolean isFailure(int status) {
+        return status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+                || status == HttpStatus.SC_GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * @param url the URL of the proxied resource
+     * @param config the configuration snapshot
+     * @return the circuit of the upstream server, or null if the host has no circuit breaker
+     */
+    Circuit circuit(URL url, ProxyConfig config) {
+        if (!config.isCircuitBreaking(url.getHost())) {
+            return null;
+        }
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = url.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+        return circuits.computeIfAbsent(key, k -> new Circuit(k, metrics));
+    }
+
+    /**
+     * The circuit of an upstream server.
+     */
+    static final class Circuit {
+
+        private static final byte FAILED = 1;
+
+        private static final byte SLOW = 2;
+
+        private final String key;
+
+        private final ProxyMetrics metrics;
+
+        private State state = State.CLOSED;
+
+        /**
+         * The outcomes of the last calls, a ring of {@link #FAILED} and {@link #SLOW} flags
+         */
+        private byte[] window = new byte[0];
+
+        private int next;
+
+        private int calls;
+
+        private int failures;
+
+        private int slowCalls;
+
+        /**
+         * The time (ms) the open circuit turns half open
+         */
+        private long openUntil;
+
+        private int trials;
+
+        private int trialSuccesses;
+
+        /**
+         * Incremented on every state change, the permits of a previous state being ignored
+         */
+        private long generation;
+
+        Circuit(String key, ProxyMetrics metrics) {
+            this.key = key;
+            this.metrics = metrics;
+            metrics.set("circuit.state", key, State.CLOSED.ordinal());
+        }
+
+        /**
+         * @param config the configuration snapshot, providing the thresholds
+         * @param now the current time (ms)
+         * @return the permit of the call, or null if the circuit rejects it
+         */
+        synchronized Permit tryAcquire(ProxyConfig config, long now) {
+            if (state == State.OPEN) {
+                if (now < openUntil) {
+                    metrics.increment("circuit.rejected", key);
+                    return null;
+                }
+                transition(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN) {
+                if (trials >= config.getCircuitBreakerHalfOpenCalls()) {
+                    metrics.increment("circuit.rejected", key);
+                    return null;
+                }
+                trials++;
+            }
+            return new Permit(this, generation, config, now);
+        }
+
+        /**
+         * @param now the current time (ms)
+         * @return the seconds left before the circuit lets trial calls through, rounded up
+         */
+        synchronized long getRetryAfter(long now) {
+            return Math.max(1, (openUntil - now + 999) / 1000);
+        }
+
+        /**
+         * @return the current state
+         */
+        synchronized State getState() {
+            return state;
+        }
+
+        private synchronized void onComplete(Permit permit, boolean failed, long now) {
+            if (permit.generation != generation) {
+                return;
+            }
+            ProxyConfig config = permit.config;
+            long duration = now - permit.start;
+            boolean slow = duration >= config.getCircuitBreakerSlowCallDuration();
+            if (failed) {
+                metrics.increment("circuit.failure", key);
+            }
+            if (slow) {
+                metrics.increment("circuit.slow", key);
+            }
+
+            if (state == State.HALF_OPEN) {
+                if (failed || slow) {
+                    open(config, now);
+                } else if (++trialSuccesses >= config.getCircuitBreakerHalfOpenCalls()) {
+                    transition(State.CLOSED);
+                }
+                return;
+            }
+
+            int size = Math.max(1, config.getCircuitBreakerWindow());
+            if (window.length != size) {
+                reset(size);
+            }
+            if (calls == size) {
+                byte evicted = window[next];
+                failures -= evicted & FAILED;
+                slowCalls -= (evicted & SLOW) >> 1;
+            } else {
+                calls++;
+            }
+            byte outcome = (byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0));
+            window[next] = outcome;
+            next = (next + 1) % size;
+            failures += failed ? 1 : 0;
+            slowCalls += slow ? 1 : 0;
+
+            if (calls >= config.getCircuitBreakerMinCalls()
+                    && (failures * 100 >= config.getCircuitBreakerFailureRate() * calls
+                    || slowCalls * 100 >= config.getCircuitBreakerSlowCallRate() * calls)) {
+                open(config, now);
+            }
+        }
+
+        private synchronized void onCancel(Permit permit) {
+            if (permit.generation == generation && state == State.HALF_OPEN) {
+                trials--;
+            }
+        }
+
+        private void open(ProxyConfig config, long now) {
+            openUntil = now + config.getCircuitBreakerOpenDuration();
+            transition(State.OPEN);
+            metrics.increment("circuit.open", key);
+        }
+
+        private void transition(State target) {
+            state = target;
+            generation++;
+            trials = 0;
+            trialSuccesses = 0;
+            reset(window.length);
+            metrics.set("circuit.state", key, target.ordinal());
+        }
+
+        private void reset(int size) {
+            window = new byte[size];
+            next = 0;
+            calls = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+    }
+
+    /**
+     * The permission of a single call through a circuit, whose outcome is reported once.
+     */
+    static final class Permit {
+
+        private final Circuit circuit;
+
+        private final long generation;
+
+        /**
+         * The configuration snapshot providing the thresholds
+         */
+        private final ProxyConfig config;
+
+        private final long start;
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Permit(Circuit circuit, long generation, ProxyConfig config, long start) {
+            this.circuit = circuit;
+            this.generation = generation;
+            this.config = config;
+            this.start = start;
+        }
+
+        /**
+         * Reports the outcome of the call, once the upstream response head has been received or
+         * the call failed. Further reports are ignored.
+         *
+         * @param failed whether the call failed
+         */
+        void complete(boolean failed) {
+            if (done.compareAndSet(false, true)) {
+                circuit.onComplete(this, failed, System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * Gives the permit back without any outcome, when the call ended for reasons not related
+         * to the upstream server. Ignored after {@link #complete}.
+         */
+        void cancel() {
+            if (done.compareAndSet(false, true)) {
+                circuit.onCancel(this);
+            }
+        }
+    }
+}
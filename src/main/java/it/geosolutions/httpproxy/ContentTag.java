@@ -0,0 +1,83 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.commons.codec.digest.XXHash32;
+import org.apache.hc.core5.http.HttpResponse;
+
+/**
+ * A weak entity tag computed by the proxy out of the bytes of a response body, for the upstream
+ * servers sending no validator (ETag or Last-Modified): a fast non cryptographic hash (xxHash32)
+ * together with the body length.
+ * <p>
+ * The tag is a pure function of the body: the proxy answers a matching If-None-Match with a 304
+ * once it has seen the body again, or served it from the response cache. The tags are never sent
+ * to the upstream servers, which do not know them.
+ */
+final class ContentTag {
+
+    private static final String PREFIX = "W/\"px-";
+
+    private final XXHash32 hash = new XXHash32();
+
+    private long length;
+
+    /**
+     * @param response the upstream response
+     * @return true if the response is a 200 without any validator
+     */
+    static boolean applies(HttpResponse response) {
+        return response.getCode() == 200 && !response.containsHeader("ETag")
+                && !response.containsHeader("Last-Modified");
+    }
+
+    /**
+     * @param etag an entity tag
+     * @return true if the tag has been computed by the proxy
+     */
+    static boolean isContentTag(String etag) {
+        return etag.startsWith(PREFIX);
+    }
+
+    /**
+     * @param body a whole body
+     * @return the tag of the body
+     */
+    static String of(byte[] body) {
+        ContentTag tag = new ContentTag();
+        tag.update(body, 0, body.length);
+        return tag.value();
+    }
+
+    /**
+     * Adds a part of the body.
+     */
+    void update(byte[] b, int off, int len) {
+        hash.update(b, off, len);
+        length += len;
+    }
+
+    /**
+     * @return the tag of the bytes added so far
+     */
+    String value() {
+        return PREFIX + Long.toHexString(length) + "-" + Long.toHexString(hash.getValue()) + "\"";
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.core5.concurrent.Cancellable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aborts a proxied request when it exceeds its total timeout, covering the pool lease, the
+ * connection, the upstream response and the streaming of the body back to the client.
+ */
+final class Deadline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Deadline.class);
+
+    private static final Deadline NONE = new Deadline();
+
+    private volatile boolean expired;
+
+    private ScheduledFuture<?> future;
+
+    private Deadline() {
+    }
+
+    /**
+     * @param scheduler the scheduler running the abort, can be null
+     * @param request the request to abort
+     * @param timeout the total timeout (ms), 0 or negative means no limit
+     * @return Deadline
+     */
+    static Deadline schedule(ScheduledExecutorService scheduler, Cancellable request, int timeout) {
+        if (scheduler == null || timeout <= 0) {
+            return NONE;
+        }
+
+        Deadline deadline = new Deadline();
+        deadline.future = scheduler.schedule(() -> {
+            deadline.expired = true;
+            LOGGER.warn("Aborting the request after its total timeout of {} ms", timeout);
+            request.cancel();
+        }, timeout, TimeUnit.MILLISECONDS);
+        return deadline;
+    }
+
+    /**
+     * @return true if the request has been aborted
+     */
+    boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * Cancels the deadline, to be called once the request completed.
+     */
+    void cancel() {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
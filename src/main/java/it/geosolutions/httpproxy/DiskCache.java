@@ -0,0 +1,836 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.MessageHeaders;
+import org.apache.hc.core5.http.message.BasicHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * The second tier of the {@link ResponseCache}: the responses persisted on the local disk, so that
+ * a restarted proxy does not start with a cold cache, and the large ones (rasters, PDF) do not
+ * take memory.
+ * <p>
+ * The responses are appended to a log of memory mapped segment files, preallocated to the segment
+ * size. A record holds the metadata of the response, checksummed, followed by its body, and its
+ * magic number is written last, when complete. The index kept in memory only maps the variant keys
+ * to the records, it is rebuilt at startup by scanning the segments in order, the latest record of
+ * a key winning and the tombstones left by the invalidations removing the previous ones.
+ * <p>
+ * When the log exceeds its size cap the oldest segment is dropped with its entries. With the
+ * <code>lru</code> policy the entries read since they were written are appended again first, so
+ * that only the ones not requested for a whole log rotation go away (<code>fifo</code> drops them
+ * all). The bodies are served straight from the mapped segments, a segment being deleted once the
+ * requests reading it are over.
+ */
+final class DiskCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskCache.class);
+
+    private static final int MAGIC = 0x48505243;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final String PREFIX = "cache-";
+
+    private static final String SUFFIX = ".seg";
+
+    private final Path directory;
+
+    private final long maxSize;
+
+    private final int segmentSize;
+
+    private final int maxEntrySize;
+
+    private final boolean lru;
+
+    private final ProxyMetrics metrics;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    /**
+     * The committed records, by variant key
+     */
+    private final Map<String, Location> index = new HashMap<>();
+
+    /**
+     * The variants of each URL and the request headers selecting them
+     */
+    private final Map<String, Variants> variants = new HashMap<>();
+
+    /**
+     * The POST queries of each URL, invalidated with it
+     */
+    private final Map<String, Set<String>> queries = new HashMap<>();
+
+    private Segment current;
+
+    /**
+     * @param directory the directory of the segment files
+     * @param maxSize the maximum size (bytes) of the segments
+     * @param segmentSize the size (bytes) of a segment
+     * @param maxEntrySize the maximum length (bytes) of a stored body
+     * @param lru true to keep the entries read recently when a segment is dropped
+     * @param metrics the metrics receiving the per host statistics
+     */
+    private DiskCache(Path directory, long maxSize, int segmentSize, int maxEntrySize, boolean lru,
+                      ProxyMetrics metrics) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = Math.max(maxSize, 2L * segmentSize);
+        this.maxEntrySize = Math.min(maxEntrySize, segmentSize - HEADER_SIZE - 64 * 1024);
+        this.lru = lru;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Opens the cache in the given directory, loading the segments left by a previous run.
+     *
+     * @param directory the directory of the segment files, created if missing
+     * @param maxSize the maximum size (bytes) of the segments
+     * @param segmentSize the size (bytes) of a segment
+     * @param maxEntrySize the maximum length (bytes) of a stored body
+     * @param lru true to keep the entries read recently when a segment is dropped
+     * @param metrics the metrics receiving the per host statistics
+     * @return DiskCache
+     * @throws IOException if the directory cannot be used
+     */
+    static DiskCache open(Path directory, long maxSize, int segmentSize, int maxEntrySize, boolean lru,
+                          ProxyMetrics metrics) throws IOException {
+        Files.createDirectories(directory);
+        DiskCache cache = new DiskCache(directory, maxSize, segmentSize, maxEntrySize, lru, metrics);
+        cache.load();
+        return cache;
+    }
+
+    /**
+     * Maps a file as a body, to store a response recorded on the disk without reading it in memory.
+     *
+     * @param path the file, which can be deleted once the body is stored
+     * @return CacheBody
+     * @throws IOException if the file cannot be mapped
+     */
+    static CacheBody map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new FileBody(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return the maximum length (bytes) of a stored body
+     */
+    int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * @return the directory of the segment files
+     */
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of stored entries
+     */
+    synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @param url the normalized URL
+     * @return the request headers selecting the variants of the URL, or null
+     */
+    synchronized String[] getVaryNames(String url) {
+        Variants urlVariants = variants.get(url);
+        return urlVariants != null ? urlVariants.varyNames : null;
+    }
+
+    /**
+     * Looks up the variant of a URL selected by the given request.
+     *
+     * @param url the normalized URL
+     * @param request the request providing the headers listed by Vary
+     * @return the stored entry, holding a reference to its body, or null
+     */
+    CacheEntry get(String url, MessageHeaders request) {
+        Location location;
+        synchronized (this) {
+            Variants urlVariants = variants.get(url);
+            String key = ResponseCache.variantKey(url, urlVariants != null ? urlVariants.varyNames : null, request);
+            location = index.get(key);
+            if (location == null || !location.segment.retain()) {
+                return null;
+            }
+            location.accessed = true;
+        }
+
+        // committed records never change, they are read outside of the lock
+        Record record = Record.read(location.segment.buffer, location.offset);
+        CacheBody body = new DiskBody(location.segment, location.offset + HEADER_SIZE + record.metaLength,
+                record.bodyLength);
+        return CacheEntry.restore(record.key, record.host, record.status, record.headers, body,
+                record.responseTime, record.correctedInitialAge);
+    }
+
+    /**
+     * Appends a response to the log, replacing the previous one of the same variant.
+     *
+     * @param url the normalized URL
+     * @param varyNames the request headers selecting the variant
+     * @param entry the entry
+     */
+    void put(String url, String[] varyNames, CacheEntry entry) {
+        CacheBody body = entry.getBody();
+        if (body.length() > maxEntrySize) {
+            return;
+        }
+        byte[] meta = Record.encode(url, entry.getKey(), entry.getHost(), varyNames, entry.getStatus(),
+                entry.getHeaders(), entry.getResponseTime(), entry.getCorrectedInitialAge());
+
+        Location location;
+        try {
+            location = reserve(meta, body.length());
+        } catch (IOException e) {
+            LOGGER.warn("Cannot extend the disk cache in {}", directory, e);
+            return;
+        }
+
+        ByteBuffer target = location.segment.buffer.duplicate();
+        target.position(location.offset + HEADER_SIZE + meta.length);
+        for (ByteBuffer source : body.buffers()) {
+            target.put(source);
+        }
+
+        synchronized (this) {
+            location.segment.buffer.putInt(location.offset, MAGIC);
+            location.segment.pending--;
+            if (location.segment.dropped) {
+                return;
+            }
+            Variants urlVariants = variants.get(url);
+            if (urlVariants != null && !Arrays.equals(urlVariants.varyNames, varyNames)) {
+                remove(url);
+            }
+            index(url, varyNames, entry.getKey(), location);
+        }
+        metrics.increment("cache.disk.store", entry.getHost());
+    }
+
+    /**
+     * Removes all the variants of a URL, leaving a tombstone in the log for the next startup.
+     *
+     * @param url the normalized URL
+     */
+    void invalidate(String url) {
+        synchronized (this) {
+            if (!variants.containsKey(url) && !queries.containsKey(url)) {
+                return;
+            }
+            removeWithQueries(url);
+        }
+        byte[] meta = Record.encode(url, "", "", null, 0, new Header[0], 0, 0);
+        try {
+            Location location = reserve(meta, -1);
+            synchronized (this) {
+                location.segment.buffer.putInt(location.offset, MAGIC);
+                location.segment.pending--;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot extend the disk cache in {}", directory, e);
+        }
+    }
+
+    /**
+     * Flushes the segments to the disk and releases them.
+     */
+    synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            segment.release();
+        }
+        segments.clear();
+        index.clear();
+        variants.clear();
+        current = null;
+    }
+
+    // ////////////////////////////////////////////
+    // Log
+    // ////////////////////////////////////////////
+
+    /**
+     * Reserves the space of a record at the end of the log and writes its header, except for the
+     * magic number written when the record is complete.
+     */
+    private synchronized Location reserve(byte[] meta, int bodyLength) throws IOException {
+        int size = align(HEADER_SIZE + meta.length + Math.max(0, bodyLength));
+        if (size > segmentSize) {
+            throw new IOException("Record of " + size + " bytes larger than a segment");
+        }
+        if (current == null || current.writePosition + size > current.buffer.capacity()) {
+            roll();
+            while ((long) segments.size() * segmentSize > maxSize && drop()) {
+                // dropped the oldest segment
+            }
+        }
+        Location location = new Location(current, current.writePosition);
+        current.writePosition += size;
+        current.pending++;
+
+        CRC32 crc = new CRC32();
+        crc.update(meta);
+        ByteBuffer buffer = current.buffer;
+        buffer.putInt(location.offset + 4, meta.length);
+        buffer.putInt(location.offset + 8, bodyLength);
+        buffer.putInt(location.offset + 12, (int) crc.getValue());
+        buffer.put(location.offset + HEADER_SIZE, meta);
+        return location;
+    }
+
+    /**
+     * Starts a new segment, guarded by this.
+     */
+    private void roll() throws IOException {
+        long id = current != null ? current.id + 1 : 0;
+        Path path = directory.resolve(String.format("%s%016d%s", PREFIX, id, SUFFIX));
+        current = Segment.map(id, path, segmentSize);
+        segments.add(current);
+    }
+
+    /**
+     * Drops the oldest segment, appending again the entries read recently under the lru policy,
+     * guarded by this.
+     *
+     * @return false if no segment can be dropped
+     */
+    private boolean drop() {
+        Segment oldest = segments.peekFirst();
+        if (oldest == null || oldest == current || oldest.pending > 0) {
+            return false;
+        }
+        segments.removeFirst();
+        oldest.dropped = true;
+
+        int offset = 0;
+        while (true) {
+            Record record = Record.scan(oldest.buffer, offset);
+            if (record == null) {
+                break;
+            }
+            Location location = record.key.isEmpty() ? null : index.get(record.key);
+            if (location != null && location.segment == oldest && location.offset == offset) {
+                Location moved = lru && location.accessed ? copy(oldest, offset, record) : null;
+                if (moved != null) {
+                    index.put(record.key, moved);
+                    metrics.increment("cache.disk.retained", record.host);
+                } else {
+                    removeKey(record.url, record.key);
+                    metrics.increment("cache.disk.eviction", record.host);
+                }
+            }
+            offset += record.size;
+        }
+        oldest.release();
+        return true;
+    }
+
+    /**
+     * Copies a committed record at the end of the log, guarded by this.
+     *
+     * @return the new location, or null if it does not fit in the current segment
+     */
+    private Location copy(Segment segment, int offset, Record record) {
+        if (current.writePosition + record.size > current.buffer.capacity()) {
+            return null;
+        }
+        Location location = new Location(current, current.writePosition);
+        ByteBuffer source = segment.buffer.duplicate();
+        source.position(offset).limit(offset + record.size);
+        ByteBuffer target = current.buffer.duplicate();
+        target.position(location.offset);
+        target.put(source);
+        current.writePosition += record.size;
+        return location;
+    }
+
+    /**
+     * Loads the segments of a previous run, guarded by the caller.
+     */
+    private void load() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        paths.sort(null);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "http-proxy-*.tmp")) {
+            for (Path path : stream) {
+                // a response being recorded when the proxy stopped
+                Files.deleteIfExists(path);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long id;
+            try {
+                id = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = Segment.map(id, path, (int) Math.min(Integer.MAX_VALUE, Files.size(path)));
+            segments.add(segment);
+            current = segment;
+
+            int offset = 0;
+            while (true) {
+                Record record = Record.scan(segment.buffer, offset);
+                if (record == null) {
+                    break;
+                }
+                if (record.valid) {
+                    if (record.bodyLength < 0) {
+                        removeWithQueries(record.url);
+                    } else {
+                        index(record.url, record.varyNames, record.key, new Location(segment, offset));
+                    }
+                }
+                offset += record.size;
+            }
+            segment.writePosition = offset;
+        }
+        while ((long) segments.size() * segmentSize > maxSize && drop()) {
+            // the size cap may have been lowered
+        }
+        LOGGER.info("Loaded {} cached responses from {} in {} ms", index.size(), directory,
+                System.currentTimeMillis() - start);
+    }
+
+    // ////////////////////////////////////////////
+    // Index, guarded by this
+    // ////////////////////////////////////////////
+
+    private void index(String url, String[] varyNames, String key, Location location) {
+        Variants urlVariants = variants.get(url);
+        if (urlVariants == null || !Arrays.equals(urlVariants.varyNames, varyNames)) {
+            remove(url);
+            urlVariants = new Variants(varyNames);
+            variants.put(url, urlVariants);
+            String urlKey = QueryBody.urlKey(url);
+            if (urlKey != null) {
+                queries.computeIfAbsent(urlKey, k -> new HashSet<>()).add(url);
+            }
+        }
+        urlVariants.keys.add(key);
+        index.put(key, location);
+    }
+
+    private void removeWithQueries(String url) {
+        remove(url);
+        Set<String> urlQueries = queries.remove(url);
+        if (urlQueries != null) {
+            for (String query : urlQueries) {
+                remove(query);
+            }
+        }
+    }
+
+    private void remove(String url) {
+        Variants urlVariants = variants.remove(url);
+        if (urlVariants != null) {
+            unindexQuery(url);
+            for (String key : urlVariants.keys) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private void unindexQuery(String url) {
+        String urlKey = QueryBody.urlKey(url);
+        Set<String> urlQueries = urlKey != null ? queries.get(urlKey) : null;
+        if (urlQueries != null) {
+            urlQueries.remove(url);
+            if (urlQueries.isEmpty()) {
+                queries.remove(urlKey);
+            }
+        }
+    }
+
+    private void removeKey(String url, String key) {
+        index.remove(key);
+        Variants urlVariants = variants.get(url);
+        if (urlVariants != null) {
+            urlVariants.keys.remove(key);
+            if (urlVariants.keys.isEmpty()) {
+                variants.remove(url);
+                unindexQuery(url);
+            }
+        }
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    // ////////////////////////////////////////////
+    // Storage
+    // ////////////////////////////////////////////
+
+    /**
+     * A segment file, mapped in memory, deleted once dropped and no more read.
+     */
+    private static final class Segment {
+
+        final long id;
+
+        final Path path;
+
+        final MappedByteBuffer buffer;
+
+        final AtomicInteger references = new AtomicInteger(1);
+
+        int writePosition;
+
+        /**
+         * The records reserved and not yet committed
+         */
+        int pending;
+
+        boolean dropped;
+
+        private Segment(long id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        static Segment map(long id, Path path, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                if (channel.size() < size) {
+                    // sparse on most file systems, the blocks are allocated when written
+                    channel.write(ByteBuffer.allocate(1), size - 1);
+                }
+                // the mapping stays valid once the channel is closed
+                return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0 && dropped) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    LOGGER.warn("Cannot delete the cache segment {}", path, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A body served from its mapped segment.
+     */
+    private static final class DiskBody implements CacheBody {
+
+        private final Segment segment;
+
+        private final int offset;
+
+        private final int length;
+
+        DiskBody(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public int allocatedSize() {
+            return length;
+        }
+
+        @Override
+        public ByteBuffer[] buffers() {
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset).limit(offset + length);
+            return new ByteBuffer[] {buffer.slice().asReadOnlyBuffer()};
+        }
+
+        @Override
+        public boolean retain() {
+            return segment.retain();
+        }
+
+        @Override
+        public void release() {
+            segment.release();
+        }
+    }
+
+    /**
+     * A body mapped from a file, released by the garbage collector.
+     */
+    private static final class FileBody implements CacheBody {
+
+        private final MappedByteBuffer buffer;
+
+        FileBody(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int length() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public int allocatedSize() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public ByteBuffer[] buffers() {
+            return new ByteBuffer[] {buffer.asReadOnlyBuffer()};
+        }
+
+        @Override
+        public boolean retain() {
+            return true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private static final class Location {
+
+        final Segment segment;
+
+        final int offset;
+
+        /**
+         * Read since written, kept by the lru policy
+         */
+        boolean accessed;
+
+        Location(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static final class Variants {
+
+        final String[] varyNames;
+
+        final Set<String> keys = new LinkedHashSet<>();
+
+        Variants(String[] varyNames) {
+            this.varyNames = varyNames;
+        }
+    }
+
+    /**
+     * The metadata of a record: magic, metadata length, body length (-1 for the tombstones),
+     * metadata checksum, then the metadata and the body.
+     */
+    private static final class Record {
+
+        int size;
+
+        boolean valid;
+
+        int metaLength;
+
+        int bodyLength;
+
+        String url;
+
+        String key;
+
+        String host;
+
+        String[] varyNames;
+
+        int status;
+
+        Header[] headers;
+
+        long responseTime;
+
+        long correctedInitialAge;
+
+        static byte[] encode(String url, String key, String host, String[] varyNames, int status,
+                             Header[] headers, long responseTime, long correctedInitialAge) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                writeString(out, url);
+                writeString(out, key);
+                writeString(out, host);
+                out.writeInt(varyNames != null ? varyNames.length : -1);
+                if (varyNames != null) {
+                    for (String name : varyNames) {
+                        writeString(out, name);
+                    }
+                }
+                out.writeInt(status);
+                out.writeInt(headers.length);
+                for (Header header : headers) {
+                    writeString(out, header.getName());
+                    writeString(out, header.getValue());
+                }
+                out.writeLong(responseTime);
+                out.writeLong(correctedInitialAge);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * Reads the record at the given offset, checking its header only.
+         *
+         * @return the record, or null at the end of the segment
+         */
+        static Record scan(ByteBuffer buffer, int offset) {
+            if (offset + HEADER_SIZE > buffer.capacity()) {
+                return null;
+            }
+            int magic = buffer.getInt(offset);
+            int metaLength = buffer.getInt(offset + 4);
+            int bodyLength = buffer.getInt(offset + 8);
+            int size = align(HEADER_SIZE + Math.max(0, metaLength) + Math.max(0, bodyLength));
+            if (metaLength <= 0 || offset + (long) size > buffer.capacity()) {
+                // the end of the log, or a record truncated by a crash
+                return null;
+            }
+
+            Record record = new Record();
+            record.size = size;
+            if (magic != MAGIC) {
+                // reserved but never completed
+                return record;
+            }
+            byte[] meta = new byte[metaLength];
+            buffer.get(offset + HEADER_SIZE, meta);
+            CRC32 crc = new CRC32();
+            crc.update(meta);
+            if ((int) crc.getValue() != buffer.getInt(offset + 12)) {
+                return record;
+            }
+            record.decode(meta, bodyLength);
+            return record;
+        }
+
+        /**
+         * Reads a committed record.
+         */
+        static Record read(ByteBuffer buffer, int offset) {
+            int metaLength = buffer.getInt(offset + 4);
+            byte[] meta = new byte[metaLength];
+            buffer.get(offset + HEADER_SIZE, meta);
+            Record record = new Record();
+            record.decode(meta, buffer.getInt(offset + 8));
+            return record;
+        }
+
+        private void decode(byte[] meta, int bodyLength) {
+            ByteBuffer in = ByteBuffer.wrap(meta);
+            this.metaLength = meta.length;
+            this.bodyLength = bodyLength;
+            this.url = readString(in);
+            this.key = readString(in);
+            this.host = readString(in);
+            int count = in.getInt();
+            if (count >= 0) {
+                varyNames = new String[count];
+                for (int i = 0; i < count; i++) {
+                    varyNames[i] = readString(in);
+                }
+            }
+            this.status = in.getInt();
+            this.headers = new Header[in.getInt()];
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = new BasicHeader(readString(in), readString(in));
+            }
+            this.responseTime = in.getLong();
+            this.correctedInitialAge = in.getLong();
+            this.valid = true;
+        }
+
+        private static String readString(ByteBuffer in) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
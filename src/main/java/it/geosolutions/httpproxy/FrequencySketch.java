@@ -0,0 +1,99 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+/**
+ * An approximate count of the recent accesses of each key, used by the {@link ResponseCache} to
+ * admit new entries only when they are more popular than the ones they would evict (TinyLFU).
+ * <p>
+ * A count-min sketch of counters saturating at 15: each key increments one counter in each of the
+ * 4 rows and its frequency is the smallest of them. All the counters are halved once the number of increments
+ * reaches 10 times the width, so that the counts follow the recent popularity.
+ */
+final class FrequencySketch {
+
+    private static final int ROWS = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    private static final int[] SEEDS = {0x97cb3127, 0xb3f4a9f1, 0x5a0b2c35, 0x1f8d6a7d};
+
+    private final byte[] table;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private int increments;
+
+    /**
+     * @param expectedEntries the expected number of entries, the width is the next power of two
+     */
+    FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(64, expectedEntries) * 2 - 1);
+        this.table = new byte[ROWS * width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * @param hash the hash code of the key
+     * @return the estimated recent frequency of the key, from 0 to 15
+     */
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++) {
+            frequency = Math.min(frequency, table[index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access to the key.
+     *
+     * @param hash the hash code of the key
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++) {
+            int index = index(hash, row);
+            if (table[index] < MAX_COUNT) {
+                table[index]++;
+                added = true;
+            }
+        }
+        if (added && ++increments >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] >>= 1;
+        }
+        increments /= 2;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+        h ^= h >>> 15;
+        return row * (mask + 1) + (h & mask);
+    }
+}
@@ -19,10 +19,10 @@
  */
 package it.geosolutions.httpproxy;
 
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletException;
-import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -30,45 +30,76 @@ import org.apache.commons.fileupload2.core.DiskFileItemFactory;
 import org.apache.commons.fileupload2.core.FileItem;
 import org.apache.commons.fileupload2.core.FileUploadException;
 import org.apache.commons.fileupload2.jakarta.servlet6.JakartaServletFileUpload;
+import org.apache.hc.client5.http.HttpRequestRetryStrategy;
 import org.apache.hc.client5.http.HttpRoute;
 import org.apache.hc.client5.http.auth.AuthScope;
 import org.apache.hc.client5.http.auth.Credentials;
 import org.apache.hc.client5.http.auth.UsernamePasswordCredentials;
 import org.apache.hc.client5.http.classic.methods.HttpDelete;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.classic.methods.HttpPut;
 import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
-import org.apache.hc.client5.http.entity.mime.ContentBody;
 import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
+import org.apache.hc.client5.http.impl.DefaultHttpRequestRetryStrategy;
+import org.apache.hc.client5.http.impl.DefaultSchemePortResolver;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
 import org.apache.hc.client5.http.impl.auth.BasicCredentialsProvider;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
 import org.apache.hc.client5.http.routing.HttpRoutePlanner;
+import org.apache.hc.client5.http.routing.RoutingSupport;
 import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.HttpException;
 import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
 import org.apache.hc.core5.http.io.entity.InputStreamEntity;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
 import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * HTTPProxy class.
@@ -86,6 +117,23 @@ public class HTTPProxy extends HttpServlet {
 
     private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(HTTPProxy.class);
 
+    /**
+     * The response header telling how the response cache answered: HIT, MISS or REVALIDATED.
+     */
+    static final String X_CACHE_HEADER = "X-Cache";
+
+    /**
+     * Retries the idempotent requests failing on I/O only: the 503 and 429 responses are relayed at
+     * once, so that they reach the circuit breakers and the clients instead of stalling the request
+     * for their Retry-After.
+     */
+    private static final HttpRequestRetryStrategy RETRY_STRATEGY = new DefaultHttpRequestRetryStrategy() {
+        @Override
+        public boolean retryRequest(HttpResponse response, int execCount, HttpContext context) {
+            return false;
+        }
+    };
+
 
     /**
      * An Apache commons HTTP client backed by a multithreaded connection manager that allows to reuse connections to the backing server and to limit
@@ -93,24 +141,117 @@ public class HTTPProxy extends HttpServlet {
      */
     private PoolingHttpClientConnectionManager connectionManager;
 
+    /**
+     * Resolves the upstream host names for both connection managers.
+     */
+    private CachingDnsResolver dnsResolver;
+
+    /**
+     * The routes whose maximum connections differ from the default, with the applied limit.
+     */
+    private final Map<HttpRoute, Integer> tunedRoutes = new ConcurrentHashMap<>();
+
+    /**
+     * Aborts the proxied requests exceeding their total timeout.
+     */
+    private ScheduledExecutorService deadlineScheduler;
+
     HttpClientBuilder clientBuilder = HttpClientBuilder.create();
     /**
      * An HTTP "user-agent", containing an HTTP state and one or more HTTP connections, to which HTTP methods can be applied.
      */
     private CloseableHttpClient httpClient;
 
+    /**
+     * The connection manager of the asynchronous client, created along with it.
+     */
+    private volatile PoolingAsyncClientConnectionManager asyncConnectionManager;
+
+    /**
+     * The non blocking client serving the requests when <code>asyncEnabled</code> is set,
+     * created the first time it is needed.
+     */
+    private volatile CloseableHttpAsyncClient httpAsyncClient;
+
+    /**
+     * The route planner shared by the blocking and the asynchronous clients.
+     */
+    private HttpRoutePlanner routePlanner;
+
+    /**
+     * The proxy configuration loader, holding the current configuration snapshot.
+     */
+    private ProxyConfigLoader configLoader;
+
+    /**
+     * The buffers streaming the request and response bodies.
+     */
+    private BufferPool bufferPool;
+
+    /**
+     * The counters of the proxy, published through JMX.
+     */
+    private ProxyMetrics metrics;
+
+    /**
+     * The cached upstream responses.
+     */
+    private ResponseCache responseCache;
+
+    /**
+     * Refreshes the stale responses served while they are revalidated.
+     */
+    private CacheRefresher cacheRefresher;
+
+    /**
+     * Builds the keys of the cached and coalesced requests.
+     */
+    private CacheKeyNormalizer cacheKeyNormalizer;
+
+    /**
+     * The responses cached on the local disk, null if disabled.
+     */
+    private DiskCache diskCache;
+
+    /**
+     * The identical GET requests in flight.
+     */
+    private RequestCoalescer coalescer;
+
+    /**
+     * The recent upstream failures, answered without contacting the upstream servers.
+     */
+    private NegativeCache negativeCache;
+
+    /**
+     * The circuit breakers of the upstream servers.
+     */
+    private CircuitBreaker circuitBreaker;
+
+    /**
+     * Limits the requests in flight per upstream host.
+     */
+    private Bulkhead bulkhead;
+
+    /**
+     * Spreads the requests to the logical upstream hosts over their backends.
+     */
+    private UpstreamPools upstreamPools;
 
     /**
-     * The proxy configuration.
+     * Probes the upstream servers and keeps connections open to them.
      */
-    private ProxyConfig proxyConfig;
+    private HealthChecker healthChecker;
 
     /**
      * The proxy collbacks to provide checks.
      */
     private List<ProxyCallback> callbacks;
 
-    private BasicCredentialsProvider credsProvider = null;
+    /**
+     * Matches the route targets against the http.nonProxyHosts system property.
+     */
+    private final NonProxyHostMatcher nonProxyHostMatcher = new NonProxyHostMatcher();
 
     /**
      * Initialize the <code>ProxyServlet</code>
@@ -124,14 +265,61 @@ public class HTTPProxy extends HttpServlet {
         ServletContext context = getServletContext();
         String proxyPropPath = context.getInitParameter("proxyPropPath");
 
-        proxyConfig = new ProxyConfig(getServletContext(), proxyPropPath);
-
-        connectionManager = new PoolingHttpClientConnectionManager();
-
-        connectionManager.setMaxTotal(6);
-        connectionManager.setDefaultMaxPerRoute(6);
+        configLoader = new ProxyConfigLoader(proxyPropPath);
+        configLoader.start();
+
+        metrics = new ProxyMetrics();
+        metrics.register(servletConfig.getServletName() != null ? servletConfig.getServletName() : "HTTPProxy");
+
+        dnsResolver = new CachingDnsResolver(configLoader, metrics);
+        upstreamPools = new UpstreamPools(configLoader, metrics);
+        connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setDnsResolver(dnsResolver)
+                .setConnectionConfigResolver(this::resolveConnectionConfig)
+                .build();
+        configureConnectionManager(configLoader.getConfig());
+        configLoader.addListener(this::configureConnectionManager);
+
+        bufferPool = new BufferPool(configLoader.getConfig().getBufferPoolSize());
+        configLoader.addListener(config -> bufferPool.setMaxPooledBytes(config.getBufferPoolSize()));
+
+        ProxyConfig config = configLoader.getConfig();
+        if (config.getCacheDiskPath() != null) {
+            try {
+                diskCache = DiskCache.open(Paths.get(config.getCacheDiskPath()), config.getCacheDiskMaxSize(),
+                        config.getCacheDiskSegmentSize(), config.getCacheDiskMaxEntrySize(), config.isCacheDiskLru(),
+                        metrics);
+            } catch (IOException e) {
+                LOGGER.error("Cannot open the disk cache in {}, the responses are cached in memory only",
+                        config.getCacheDiskPath(), e);
+            }
+        }
+        responseCache = new ResponseCache(config.getCacheMaxSize(), config.getCacheMaxEntrySize(),
+                config.isCacheOffHeap() ? new SlabStore(config.getCacheMaxSize()) : null, diskCache, metrics);
+        configLoader.addListener(c -> responseCache.setLimits(c.getCacheMaxSize(), c.getCacheMaxEntrySize()));
+        cacheRefresher = new CacheRefresher(config.getCacheRefreshThreads(), config.getCacheRefreshQueueSize(),
+                metrics);
+        configLoader.addListener(c -> cacheRefresher.setThreads(c.getCacheRefreshThreads()));
+
+        cacheKeyNormalizer = createCacheKeyNormalizer(config.getCacheKeyNormalizer());
+        coalescer = new RequestCoalescer(metrics);
+        negativeCache = new NegativeCache(config.getNegativeCacheMaxEntries(), metrics);
+        configLoader.addListener(c -> negativeCache.setMaxEntries(c.getNegativeCacheMaxEntries()));
+        circuitBreaker = new CircuitBreaker(metrics);
+        bulkhead = new Bulkhead(metrics);
 
         httpClient = createHttpClient();
+        healthChecker = new HealthChecker(configLoader, upstreamPools, httpClient, connectionManager,
+                getRoutePlanner(), metrics);
+        healthChecker.start();
+
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "http-proxy-deadline");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        deadlineScheduler = scheduler;
 
         // //////////////////////////////////////////
         // Setup the callbacks (in the future this
@@ -139,11 +327,76 @@ public class HTTPProxy extends HttpServlet {
         // //////////////////////////////////////////
 
         callbacks = new ArrayList<>();
-        callbacks.add(new MimeTypeChecker(proxyConfig));
-        callbacks.add(new HostNameChecker(proxyConfig));
-        callbacks.add(new RequestTypeChecker(proxyConfig));
-        callbacks.add(new MethodsChecker(proxyConfig));
-        callbacks.add(new HostChecker(proxyConfig));
+        callbacks.add(new MimeTypeChecker(configLoader));
+        callbacks.add(new HostNameChecker(configLoader));
+        callbacks.add(new RequestTypeChecker(configLoader));
+        callbacks.add(new MethodsChecker(configLoader));
+        callbacks.add(new HostChecker(configLoader));
+    }
+
+    /**
+     * Stops the configuration reload and releases the pooled connections.
+     */
+    @Override
+    public void destroy() {
+        if (configLoader != null) {
+            configLoader.stop();
+        }
+
+        if (deadlineScheduler != null) {
+            deadlineScheduler.shutdownNow();
+        }
+
+        if (cacheRefresher != null) {
+            cacheRefresher.shutdown();
+        }
+
+        if (healthChecker != null) {
+            healthChecker.shutdown();
+        }
+
+        if (dnsResolver != null) {
+            dnsResolver.shutdown();
+        }
+
+        if (diskCache != null) {
+            diskCache.close();
+        }
+
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                LOGGER.warn("Error closing the HTTP client", e);
+            }
+        }
+
+        if (httpAsyncClient != null) {
+            httpAsyncClient.close(CloseMode.GRACEFUL);
+        }
+
+        if (metrics != null) {
+            metrics.unregister();
+        }
+
+        super.destroy();
+    }
+
+    /**
+     * Instantiates the configured {@link CacheKeyNormalizer}, the default one if it cannot be
+     * created.
+     *
+     * @param className the class name of the normalizer
+     * @return CacheKeyNormalizer
+     */
+    private static CacheKeyNormalizer createCacheKeyNormalizer(String className) {
+        try {
+            return Class.forName(className).asSubclass(CacheKeyNormalizer.class).getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            LOGGER.error("Cannot create the cache key normalizer " + className + ", using the default one", e);
+            return new OgcCacheKeyNormalizer();
+        }
     }
 
     /**
@@ -154,21 +407,153 @@ public class HTTPProxy extends HttpServlet {
         if (httpClient != null)
             return httpClient;
 
-        final HttpHost httpHost = getHost("http.proxyHost", "http.proxyPort");
-        LOGGER.debug("HTTP proxy host: {}", httpHost);
-        final HttpHost httpsHost = getHost("https.proxyHost", "https.proxyPort");
-        LOGGER.debug("HTTPS proxy host: {}", httpsHost);
-
-        HttpRoutePlanner routePlanner = getRoutePlanner(httpHost, httpsHost);
-
-        clientBuilder.setRoutePlanner(routePlanner);
+        clientBuilder.setRoutePlanner(getRoutePlanner());
         clientBuilder.useSystemProperties();
         clientBuilder.setConnectionManager(connectionManager);
+        clientBuilder.setRetryStrategy(RETRY_STRATEGY);
+        if (upstreamPools != null) {
+            clientBuilder.addExecInterceptorFirst(UpstreamPools.NAME, upstreamPools);
+        }
+
+        int idleConnectionTimeout = configLoader.getConfig().getIdleConnectionTimeout();
+        if (idleConnectionTimeout > 0) {
+            clientBuilder.evictExpiredConnections();
+            clientBuilder.evictIdleConnections(TimeValue.ofMilliseconds(idleConnectionTimeout));
+        }
 
         LOGGER.info("HTTP Client created");
         return clientBuilder.build();
     }
 
+    /**
+     * Returns the asynchronous HttpClient, creating and starting it on first use. It has its own
+     * connection pool, sized and tuned like the blocking one.
+     *
+     * @return CloseableHttpAsyncClient
+     */
+    CloseableHttpAsyncClient getHttpAsyncClient() {
+        CloseableHttpAsyncClient client = httpAsyncClient;
+        if (client == null) {
+            synchronized (this) {
+                client = httpAsyncClient;
+                if (client == null) {
+                    PoolingAsyncClientConnectionManager manager = PoolingAsyncClientConnectionManagerBuilder.create()
+                            .setDnsResolver(dnsResolver)
+                            .setConnectionConfigResolver(this::resolveConnectionConfig)
+                            .build();
+                    asyncConnectionManager = manager;
+                    configureConnectionManager(configLoader.getConfig());
+
+                    HttpAsyncClientBuilder builder = HttpAsyncClientBuilder.create()
+                            .setRoutePlanner(getRoutePlanner())
+                            .useSystemProperties()
+                            .setConnectionManager(manager)
+                            .setRetryStrategy(RETRY_STRATEGY);
+                    if (upstreamPools != null) {
+                        builder.addExecInterceptorFirst(UpstreamPools.NAME, upstreamPools);
+                    }
+
+                    int idleConnectionTimeout = configLoader.getConfig().getIdleConnectionTimeout();
+                    if (idleConnectionTimeout > 0) {
+                        builder.evictExpiredConnections();
+                        builder.evictIdleConnections(TimeValue.ofMilliseconds(idleConnectionTimeout));
+                    }
+
+                    client = builder.build();
+                    client.start();
+                    httpAsyncClient = client;
+                    LOGGER.info("HTTP async Client created");
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Applies the pool limits of the given configuration to the connection managers.
+     * Called at startup and every time the configuration is reloaded.
+     *
+     * @param config the configuration snapshot
+     */
+    private void configureConnectionManager(ProxyConfig config) {
+        connectionManager.setMaxTotal(config.getMaxTotalConnections());
+        connectionManager.setDefaultMaxPerRoute(config.getDefaultMaxConnectionsPerHost());
+
+        PoolingAsyncClientConnectionManager asyncManager = asyncConnectionManager;
+        if (asyncManager != null) {
+            asyncManager.setMaxTotal(config.getMaxTotalConnections());
+            asyncManager.setDefaultMaxPerRoute(config.getDefaultMaxConnectionsPerHost());
+        }
+
+        for (HttpRoute route : tunedRoutes.keySet()) {
+            tuneRoute(route, config);
+        }
+        if (asyncManager != null) {
+            tunedRoutes.forEach(asyncManager::setMaxPerRoute);
+        }
+    }
+
+    /**
+     * Applies the per host connection limit (<code>route.maxConnections.&lt;host&gt;</code>) to the route,
+     * if one is configured.
+     *
+     * @param route the route about to be used
+     * @param config the configuration snapshot
+     * @return the route
+     */
+    private HttpRoute tuneRoute(HttpRoute route, ProxyConfig config) {
+        int maxConnections = config.getMaxConnectionsPerHost(route.getTargetHost().getHostName());
+        Integer current = tunedRoutes.get(route);
+        if (current == null && maxConnections == config.getDefaultMaxConnectionsPerHost()) {
+            return route;
+        }
+        if (current == null || current != maxConnections) {
+            tunedRoutes.put(route, maxConnections);
+            connectionManager.setMaxPerRoute(route, maxConnections);
+            PoolingAsyncClientConnectionManager asyncManager = asyncConnectionManager;
+            if (asyncManager != null) {
+                asyncManager.setMaxPerRoute(route, maxConnections);
+            }
+            LOGGER.debug("Maximum connections for route {} set to {}", route, maxConnections);
+        }
+        return route;
+    }
+
+    /**
+     * Resolves the settings of the connections opened for the given route, using the current
+     * configuration so that reloads apply to new connections.
+     *
+     * @param route the route
+     * @return ConnectionConfig
+     */
+    private ConnectionConfig resolveConnectionConfig(HttpRoute route) {
+        ProxyConfig config = configLoader.getConfig();
+        String host = route.getTargetHost().getHostName();
+
+        int timeToLive = config.getConnectionTimeToLive();
+        return ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(config.getConnectionTimeout(host)))
+                .setSocketTimeout(Timeout.ofMilliseconds(config.getSoTimeout(host)))
+                .setTimeToLive(timeToLive > 0 ? TimeValue.ofMilliseconds(timeToLive) : null)
+                .setValidateAfterInactivity(TimeValue.ofMilliseconds(config.getValidateAfterInactivity()))
+                .build();
+    }
+
+    /**
+     * Builds the settings of a single proxied request to the given host.
+     *
+     * @param config the configuration snapshot
+     * @param host the target host
+     * @return RequestConfig
+     */
+    private RequestConfig createRequestConfig(ProxyConfig config, String host) {
+        return RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(config.getConnectionRequestTimeout(host)))
+                .setResponseTimeout(Timeout.ofMilliseconds(config.getSoTimeout(host)))
+                .setContentCompressionEnabled(!config.isCompressionPassThrough())
+                .build();
+    }
+
     private HttpHost getHost(String proxyHostKey, String proxyPortKey) {
         HttpHost httpHost = null;
         String proxyHost = System.getProperty(proxyHostKey);
@@ -181,6 +566,24 @@ public class HTTPProxy extends HttpServlet {
         return httpHost;
     }
 
+    /**
+     * Returns the HttpRoutePlanner honoring the http(s).proxyHost system properties, created once
+     * and shared by the clients.
+     *
+     * @return HttpRoutePlanner
+     */
+    private synchronized HttpRoutePlanner getRoutePlanner() {
+        if (routePlanner == null) {
+            final HttpHost httpHost = getHost("http.proxyHost", "http.proxyPort");
+            LOGGER.debug("HTTP proxy host: {}", httpHost);
+            final HttpHost httpsHost = getHost("https.proxyHost", "https.proxyPort");
+            LOGGER.debug("HTTPS proxy host: {}", httpsHost);
+
+            routePlanner = getRoutePlanner(httpHost, httpsHost);
+        }
+        return routePlanner;
+    }
+
     /**
      * Returns the HttpRoutePlanner based on the target host http scheme
      * @param httpHost
@@ -192,16 +595,22 @@ public class HTTPProxy extends HttpServlet {
             public HttpRoute determineRoute(
                     HttpHost target,
                     HttpContext context) throws HttpException {
-                LOGGER.info("HTTP proxy target host: {}", target);
+                // redirect targets may come without an explicit port
+                target = RoutingSupport.normalize(target, DefaultSchemePortResolver.INSTANCE);
+                if (upstreamPools != null) {
+                    // a logical host is sent to one of its backends
+                    target = upstreamPools.select(target, context);
+                }
+                LOGGER.debug("HTTP proxy target host: {}", target);
                 if (isNonProxyHost(target.getHostName())) {
-                    LOGGER.info("Returning direct route");
+                    LOGGER.debug("Returning direct route");
                     // Return direct route
-                    return new HttpRoute(target);
+                    return tuneRoute(new HttpRoute(target), configLoader.getConfig());
                 } else {
                     // Return the proxy route
-                    LOGGER.info("Returning proxy route");
+                    LOGGER.debug("Returning proxy route");
 
-                    return getProxyRoute(target);
+                    return tuneRoute(getProxyRoute(target), configLoader.getConfig());
                 }
             }
 
@@ -226,29 +635,7 @@ public class HTTPProxy extends HttpServlet {
     }
 
     private boolean isNonProxyHost(String host) {
-        boolean isNonProxyHost = false;
-        String nonProxyHostProp = System.getProperty("http.nonProxyHosts");
-        if (nonProxyHostProp != null) {
-            if (nonProxyHostProp.startsWith("\"")) {
-                nonProxyHostProp = nonProxyHostProp.substring(1);
-            }
-            if (nonProxyHostProp.endsWith("\"")) {
-                nonProxyHostProp = nonProxyHostProp.substring(0, nonProxyHostProp.length() - 1);
-            }
-            LOGGER.info("http.nonProxyHosts value: {}", nonProxyHostProp);
-            for (String token : nonProxyHostProp.split("\\|")) {
-                String str = token.trim();
-                str = str.replace("*", "[\\w-]*");
-                Pattern pattern = Pattern.compile(str);
-                Matcher matcher = pattern.matcher(host);
-                if (matcher.matches()) {
-                    LOGGER.info("Non proxy host matched for: {}", str);
-                    isNonProxyHost = true;
-                    break;
-                }
-            }
-        }
-        return isNonProxyHost;
+        return nonProxyHostMatcher.isNonProxyHost(host);
     }
 
     /**
@@ -291,6 +678,8 @@ public class HTTPProxy extends HttpServlet {
     @Override
     public void doGet(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
             throws IOException, ServletException {
+        // asynchronous requests run the finish callbacks on completion
+        boolean async = false;
 
         try {
 
@@ -333,14 +722,16 @@ public class HTTPProxy extends HttpServlet {
                 // Execute the proxy request
                 // //////////////////////////////
 
-                this.executeProxyRequest(getMethodProxyRequest, httpServletRequest,
+                async = this.executeProxyRequest(url, getMethodProxyRequest, httpServletRequest,
                         httpServletResponse, user, password);
             }
 
         } catch (HttpErrorException ex) {
             httpServletResponse.sendError(ex.getCode(), ex.getMessage());
         } finally {
-            onFinish();
+            if (!async) {
+                onFinish();
+            }
         }
     }
 
@@ -357,6 +748,9 @@ public class HTTPProxy extends HttpServlet {
     @Override
     public void doPost(HttpServletRequest httpServletRequest,
                        HttpServletResponse httpServletResponse) throws IOException, ServletException {
+        // asynchronous requests run the finish callbacks on completion
+        boolean async = false;
+
         try {
 
             URL url = null;
@@ -398,10 +792,14 @@ public class HTTPProxy extends HttpServlet {
 
                 // //////////////////////////////////////////////////
                 // Check if this is a mulitpart (file upload) POST
+                // to be parsed, otherwise the body is streamed as is
                 // //////////////////////////////////////////////////
 
-                if (JakartaServletFileUpload.isMultipartContent(httpServletRequest)) {
+                String bodyKey = null;
+                if (isParsedMultipart(httpServletRequest)) {
                     this.handleMultipart(postMethodProxyRequest, httpServletRequest);
+                } else if (isBufferedQuery(url, httpServletRequest)) {
+                    bodyKey = this.handleQuery(postMethodProxyRequest, httpServletRequest);
                 } else {
                     this.handleStandard(postMethodProxyRequest, httpServletRequest);
                 }
@@ -409,15 +807,17 @@ public class HTTPProxy extends HttpServlet {
                 // ///////////////////////////////
                 // Execute the proxy request
                 // ///////////////////////////////
-                this.executeProxyRequest(postMethodProxyRequest, httpServletRequest,
-                        httpServletResponse, user, password);
+                async = this.executeProxyRequest(url, postMethodProxyRequest, httpServletRequest,
+                        httpServletResponse, user, password, bodyKey);
 
             }
 
         } catch (HttpErrorException ex) {
             httpServletResponse.sendError(ex.getCode(), ex.getMessage());
         } finally {
-            onFinish();
+            if (!async) {
+                onFinish();
+            }
         }
     }
 
@@ -434,6 +834,8 @@ public class HTTPProxy extends HttpServlet {
     @Override
     public void doPut(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
             throws IOException, ServletException {
+        // asynchronous requests run the finish callbacks on completion
+        boolean async = false;
 
         try {
 
@@ -474,9 +876,10 @@ public class HTTPProxy extends HttpServlet {
 
                 // //////////////////////////////////////////////////
                 // Check if this is a mulitpart (file upload) PUT
+                // to be parsed, otherwise the body is streamed as is
                 // //////////////////////////////////////////////////
 
-                if (JakartaServletFileUpload.isMultipartContent(httpServletRequest)) {
+                if (isParsedMultipart(httpServletRequest)) {
                     this.handleMultipart(putMethodProxyRequest, httpServletRequest);
                 } else {
                     this.handleStandard(putMethodProxyRequest, httpServletRequest);
@@ -486,7 +889,7 @@ public class HTTPProxy extends HttpServlet {
                 // Execute the proxy request
                 // ////////////////////////////////
 
-                this.executeProxyRequest(putMethodProxyRequest, httpServletRequest,
+                async = this.executeProxyRequest(url, putMethodProxyRequest, httpServletRequest,
                         httpServletResponse, user, password);
 
             }
@@ -494,7 +897,9 @@ public class HTTPProxy extends HttpServlet {
         } catch (HttpErrorException ex) {
             httpServletResponse.sendError(ex.getCode(), ex.getMessage());
         } finally {
-            onFinish();
+            if (!async) {
+                onFinish();
+            }
         }
 
     }
@@ -508,6 +913,8 @@ public class HTTPProxy extends HttpServlet {
     @Override
     public void doDelete(HttpServletRequest httpServletRequest,
                          HttpServletResponse httpServletResponse) throws IOException, ServletException {
+        // asynchronous requests run the finish callbacks on completion
+        boolean async = false;
 
         try {
             URL url = null;
@@ -550,7 +957,7 @@ public class HTTPProxy extends HttpServlet {
                 // Execute the proxy request
                 // ////////////////////////////////
 
-                this.executeProxyRequest(deleteMethodProxyRequest, httpServletRequest,
+                async = this.executeProxyRequest(url, deleteMethodProxyRequest, httpServletRequest,
                         httpServletResponse, user, password);
 
             }
@@ -558,10 +965,25 @@ public class HTTPProxy extends HttpServlet {
         } catch (HttpErrorException ex) {
             httpServletResponse.sendError(ex.getCode(), ex.getMessage());
         } finally {
-            onFinish();
+            if (!async) {
+                onFinish();
+            }
         }
     }
 
+    /**
+     * Whether the request is a multipart upload to be parsed and rebuilt before being forwarded.
+     * By default multipart bodies are streamed as they are, with their original boundary, without
+     * spooling the parts to disk.
+     *
+     * @param httpServletRequest the client request
+     * @return boolean
+     */
+    private boolean isParsedMultipart(HttpServletRequest httpServletRequest) {
+        return !configLoader.getConfig().isMultipartStreaming()
+                && JakartaServletFileUpload.isMultipartContent(httpServletRequest);
+    }
+
     /**
      * Sets up the given {@link HttpUriRequestBase} to send the same multipart POST data as was sent in the given {@link HttpServletRequest}
      *
@@ -616,7 +1038,11 @@ public class HTTPProxy extends HttpServlet {
 
                 } else {
                     // If the current Item is file upload
-                    multipartEntityBuilder = multipartEntityBuilder.addPart("file", (ContentBody) fileItemCurrent);
+                    String itemContentType = fileItemCurrent.getContentType();
+                    multipartEntityBuilder = multipartEntityBuilder.addBinaryBody(fileItemCurrent.getFieldName(),
+                            fileItemCurrent.getInputStream(),
+                            itemContentType != null ? ContentType.parse(itemContentType) : ContentType.DEFAULT_BINARY,
+                            fileItemCurrent.getName());
                 }
             }
 
@@ -650,7 +1076,41 @@ public class HTTPProxy extends HttpServlet {
     }
 
     /**
-     * Sets up the given {@link PostMethod} to send the same standard POST data as was sent in the given {@link HttpServletRequest}
+     * Whether the body of a POST request is a query small enough to be buffered, so that its
+     * response can be cached and shared.
+     *
+     * @param url the URL of the proxied resource
+     * @param httpServletRequest the client request
+     * @return boolean
+     */
+    private boolean isBufferedQuery(URL url, HttpServletRequest httpServletRequest) {
+        ProxyConfig config = configLoader.getConfig();
+        long contentLength = httpServletRequest.getContentLengthLong();
+        return config.isCachingPost(url.getHost()) && contentLength >= 0
+                && contentLength <= config.getCachePostMaxBodySize();
+    }
+
+    /**
+     * Buffers the body of a POST query, forwarded as it is.
+     *
+     * @param postMethodProxyRequest the proxy request
+     * @param httpServletRequest the client request, with a known content length
+     * @return the key of the body, or null if it must not be cached
+     * @throws IOException if the body cannot be read
+     */
+    private String handleQuery(HttpPost postMethodProxyRequest, HttpServletRequest httpServletRequest)
+            throws IOException {
+        String incomingCT = httpServletRequest.getContentType();
+        int contentLength = (int) httpServletRequest.getContentLengthLong();
+        byte[] body = httpServletRequest.getInputStream().readNBytes(contentLength);
+        postMethodProxyRequest.setEntity(new ByteArrayEntity(body,
+                incomingCT != null ? ContentType.parse(incomingCT) : ContentType.DEFAULT_BINARY));
+        return QueryBody.key(incomingCT, body);
+    }
+
+    /**
+     * Sets up the given {@link PostMethod} to send the same standard POST data as was sent in the given {@link HttpServletRequest}.
+     * The body is streamed as is, with its original content type (and multipart boundary) and length.
      *
      * @param postMethodProxyRequest The {@link PostMethod} that we are configuring to send a standard POST request
      * @param httpServletRequest     The {@link HttpServletRequest} that contains the POST data to be sent via the {@link PostMethod}
@@ -663,141 +1123,1081 @@ public class HTTPProxy extends HttpServlet {
                 ? ContentType.parse(incomingCT)
                 : ContentType.DEFAULT_BINARY;
 
+        long contentLength = httpServletRequest.getContentLengthLong();
+
         if (methodProxyRequest instanceof HttpPost httpPost) {
-            httpPost.setEntity(new InputStreamEntity(httpServletRequest.getInputStream(), contentType));
+            httpPost.setEntity(new InputStreamEntity(httpServletRequest.getInputStream(), contentLength, contentType));
         } else if (methodProxyRequest instanceof HttpPut httpPut) {
-            httpPut.setEntity(new InputStreamEntity(httpServletRequest.getInputStream(), contentType));
+            httpPut.setEntity(new InputStreamEntity(httpServletRequest.getInputStream(), contentLength, contentType));
         }
     }
 
     /**
      * Executes the {@link HttpMethod} passed in and sends the proxy response back to the client via the given {@link HttpServletResponse}
      *
+     * @param url                    The URL of the proxied resource
      * @param httpMethodProxyRequest An object representing the proxy request to be made
      * @param httpServletResponse    An object by which we can send the proxied response back to the client
-     * @param digest
+     * @return true if the request continues asynchronously, the finish callbacks running on its completion
      */
-    private void executeProxyRequest(HttpUriRequestBase httpMethodProxyRequest,
-                                     HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
-                                     String user, String password) {
+    private boolean executeProxyRequest(URL url, HttpUriRequestBase httpMethodProxyRequest,
+                                        HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+                                        String user, String password) throws IOException {
+        return executeProxyRequest(url, httpMethodProxyRequest, httpServletRequest, httpServletResponse, user,
+                password, null);
+    }
 
+    /**
+     * Executes the proxy request, with the body of a buffered POST query identified by the given key.
+     *
+     * @param bodyKey the key of the buffered query body, see {@link QueryBody#key}, null if the
+     *        request is not a query
+     * @return true if the request continues asynchronously, the finish callbacks running on its completion
+     */
+    private boolean executeProxyRequest(URL url, HttpUriRequestBase httpMethodProxyRequest,
+                                        HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+                                        String user, String password, String bodyKey) throws IOException {
+
+        // ///////////////////////////////////////////
+        // Apply the timeouts configured for the host
+        // ///////////////////////////////////////////
+
+        ProxyConfig config = configLoader.getConfig();
+        httpMethodProxyRequest.setConfig(createRequestConfig(config, url.getHost()));
+
+        // ////////////////////////////////////////////////
+        // Credentials are bound to this request only, the
+        // shared client and its pool are left untouched
+        // ////////////////////////////////////////////////
+
+        HttpClientContext context = null;
         if (user != null && password != null) {
-            Credentials credentials = new UsernamePasswordCredentials(user, password.toCharArray());
-            credsProvider = new BasicCredentialsProvider();
-            credsProvider.setCredentials(new AuthScope(null, -1), credentials);
-            clientBuilder.setDefaultCredentialsProvider(credsProvider);
-            httpClient = null;
-            httpClient = createHttpClient();
+            context = createAuthenticationContext(url, user, password);
         }
 
-        try {
-            httpClient.execute(httpMethodProxyRequest, response -> {
+        // ///////////////////////////////////////////
+        // Answer from the response cache if possible,
+        // the unsafe methods invalidate the cached URL
+        // ///////////////////////////////////////////
 
-                onRemoteResponse(httpMethodProxyRequest);
+        String cacheKey = cacheKeyNormalizer.normalize(url, config.getCacheKeyIgnoredParams());
+        boolean query = bodyKey != null;
+        if (query) {
+            cacheKey += bodyKey;
+        }
+        CacheExchange cacheExchange = openCacheExchange(config, url, cacheKey, query, httpMethodProxyRequest,
+                context != null);
+        boolean async = false;
+        try {
+            async = executeProxyRequest(url, cacheKey, query, httpMethodProxyRequest, httpServletRequest,
+                    httpServletResponse, context, config, cacheExchange);
+            return async;
+        } finally {
+            // the asynchronous exchange closes it on completion
+            if (cacheExchange != null && !async) {
+                cacheExchange.close();
+            }
+        }
+    }
 
-                // ////////////////////////////////////////////////////////////////////////////////
-                // Check if the proxy response is a redirect
-                // The following code is adapted from
-                // org.tigris.noodle.filters.CheckForRedirect
-                // Hooray for open source software
-                // ////////////////////////////////////////////////////////////////////////////////
-
-                int statusCode = getStatusCode(response);
-                if ((statusCode >= HttpServletResponse.SC_MULTIPLE_CHOICES /* 300 */
-                        && statusCode <= HttpServletResponse.SC_SEE_OTHER /* 303 */)
-                        || statusCode == HttpServletResponse.SC_TEMPORARY_REDIRECT /* 307 */
-                        || statusCode == 308 /* Permanent Redirect (no servlet-api constant) */) {
-
-                    String stringStatusCode = Integer.toString(statusCode);
-                    var locationHeader = response.getFirstHeader(Utils.LOCATION_HEADER);
-                    String stringLocation = locationHeader != null ? locationHeader.getValue() : null;
-
-                    if (stringLocation == null) {
-                        throw new IOException("Received status code: " + stringStatusCode
-                                + " but no " + Utils.LOCATION_HEADER
-                                + " header was found in the response");
-                    }
+    /**
+     * Executes the proxy request, once the cache interaction is open.
+     *
+     * @param cacheKey the normalized URL identifying the resource
+     * @param query whether the request is a buffered POST query
+     * @param cacheExchange the interaction with the response cache, can be null
+     * @return true if the request continues asynchronously
+     */
+    private boolean executeProxyRequest(URL url, String cacheKey, boolean query,
+                                        HttpUriRequestBase httpMethodProxyRequest,
+                                        HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+                                        HttpClientContext context, ProxyConfig config,
+                                        CacheExchange cacheExchange) throws IOException {
+        String negativeKey = negativeKey(url, cacheKey, query, httpMethodProxyRequest, context != null);
+        if (cacheExchange != null) {
+            long now = System.currentTimeMillis();
+            CacheEntry entry = cacheExchange.lookup(now);
+            if (entry != null) {
+                sendCachedResponse(entry, now, httpServletRequest, httpServletResponse, "HIT");
+                return false;
+            }
+            entry = cacheExchange.staleWhileRevalidate(now);
+            if (entry != null) {
+                refreshInBackground(url, cacheKey, negativeKey, httpMethodProxyRequest, cacheExchange);
+                sendCachedResponse(entry, now, httpServletRequest, httpServletResponse, "STALE");
+                return false;
+            }
+            if (cacheExchange.isOnlyIfCached()) {
+                httpServletResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT,
+                        "Not cached: " + url.getHost());
+                return false;
+            }
+        }
 
-                    // /////////////////////////////////////////////
-                    // Modify the redirect to go to this proxy
-                    // servlet rather that the proxied host
-                    // /////////////////////////////////////////////
+        // ///////////////////////////////////////////
+        // Fail fast on a recent failure of the same
+        // resource or of its host
+        // ///////////////////////////////////////////
 
-                    String redirectURL = httpServletRequest.getRequestURL() + "?url=" + URLEncoder.encode(stringLocation, StandardCharsets.UTF_8);
-                    httpServletResponse.sendRedirect(redirectURL);
-                    LOGGER.info("redirected to: {}", redirectURL);
-                    return null;
-
-                } else if (statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
+        if (sendNegativeResponse(config, url, negativeKey, cacheExchange, httpServletRequest,
+                httpServletResponse)) {
+            return false;
+        }
 
-                    // ///////////////////////////////////////////////////////////////
-                    // 304 needs special handling. See:
-                    // http://www.ics.uci.edu/pub/ietf/http/rfc1945.html#Code304
-                    // We get a 304 whenever passed an 'If-Modified-Since'
-                    // header and the data on disk has not changed; server
-                    // responds w/ a 304 saying I'm not going to send the
-                    // body because the file has not changed.
-                    // ///////////////////////////////////////////////////////////////
+        // ///////////////////////////////////////////
+        // Coalesce the identical requests in flight:
+        // the followers wait for the leader response
+        // ///////////////////////////////////////////
+
+        RequestCoalescer.Flight flight = null;
+        String coalesceKey = coalesceKey(config, url, cacheKey, query, httpMethodProxyRequest, context != null);
+        if (coalesceKey != null) {
+            RequestCoalescer.Flight candidate = coalescer.newFlight(coalesceKey, url.getHost(),
+                    config.getCoalesceMaxFollowers(), config.getCoalesceMaxBufferSize());
+            RequestCoalescer.Flight.Reader reader = coalescer.join(candidate);
+            if (reader == null) {
+                flight = candidate;
+            } else if (followFlight(reader, url, httpMethodProxyRequest, httpServletRequest, httpServletResponse,
+                    config)) {
+                return false;
+            }
+        }
 
-                    httpServletResponse.setIntHeader(Utils.CONTENT_LENGTH_HEADER_NAME, 0);
-                    httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-                    return null;
+        // ///////////////////////////////////////////
+        // Wait for a place among the requests in
+        // flight to the host, when they are limited
+        // ///////////////////////////////////////////
+
+        Bulkhead.Compartment compartment = bulkhead.compartment(url, config);
+        Bulkhead.Lease lease = null;
+        if (compartment != null) {
+            String host = url.getHost();
+            try {
+                lease = compartment.acquire(config.getMaxInFlight(host), config.getBulkheadMaxQueued(host),
+                        config.getBulkheadQueueTimeout(host));
+            } catch (InterruptedException e) {
+                if (flight != null) {
+                    flight.finish();
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + host);
+            }
+            if (lease == null) {
+                if (flight != null) {
+                    flight.finish();
                 }
+                if (!sendStaleIfError(cacheExchange, httpServletRequest, httpServletResponse)) {
+                    httpServletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            "Too many requests to " + compartment.getKey());
+                }
+                return false;
+            }
+        }
+        final Bulkhead.Lease bulkheadLease = lease;
+
+        // ///////////////////////////////////////////
+        // Fail fast while the circuit of the upstream
+        // server is open
+        // ///////////////////////////////////////////
+
+        CircuitBreaker.Circuit circuit = circuitBreaker.circuit(url, config);
+        CircuitBreaker.Permit permit = null;
+        if (circuit != null) {
+            long now = System.currentTimeMillis();
+            permit = circuit.tryAcquire(config, now);
+            if (permit == null) {
+                if (flight != null) {
+                    flight.finish();
+                }
+                if (bulkheadLease != null) {
+                    bulkheadLease.release();
+                }
+                if (!sendStaleIfError(cacheExchange, httpServletRequest, httpServletResponse)) {
+                    httpServletResponse.setHeader("Retry-After", Long.toString(circuit.getRetryAfter(now)));
+                    httpServletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            "Circuit open for " + url.getHost());
+                }
+                return false;
+            }
+        }
+        final CircuitBreaker.Permit circuitPermit = permit;
+        final RequestCoalescer.Flight leaderFlight = flight;
 
-                // /////////////////////////////////////////////
-                // Pass the response code back to the client
-                // /////////////////////////////////////////////
+        if (cacheExchange != null) {
+            cacheExchange.prepareRevalidation();
+            cacheExchange.sent();
+        }
 
-                httpServletResponse.setStatus(statusCode);
+        if (isAsyncRequest(config, url, httpMethodProxyRequest, httpServletRequest)) {
+            executeAsyncProxyRequest(url, negativeKey, circuitPermit, bulkheadLease, httpMethodProxyRequest,
+                    httpServletRequest, httpServletResponse, context, config, cacheExchange, leaderFlight);
+            return true;
+        }
 
-                // /////////////////////////////////////////////
-                // Pass response headers back to the client
-                // /////////////////////////////////////////////
+        Deadline deadline = Deadline.schedule(deadlineScheduler, httpMethodProxyRequest,
+                config.getTotalTimeout(url.getHost()));
 
-                var headerIt = response.headerIterator();
-                while (headerIt.hasNext()) {
-                    var header = headerIt.next();
+        try {
+            HttpClientResponseHandler<Void> responseHandler = response -> {
 
-                    // /////////////////////////
-                    // Skip GZIP Responses
-                    // /////////////////////////
+                if (circuitPermit != null) {
+                    circuitPermit.complete(CircuitBreaker.isFailure(response.getCode()));
+                }
+                if (bulkheadLease != null) {
+                    bulkheadLease.complete(CircuitBreaker.isFailure(response.getCode()));
+                }
+                recordFailure(url, negativeKey, response.getCode());
+                onRemoteResponse(httpMethodProxyRequest);
 
-                    if (header.getName().equalsIgnoreCase(Utils.HTTP_HEADER_ACCEPT_ENCODING)
-                            && header.getValue().toLowerCase().contains("gzip"))
-                        continue;
-                    else if (header.getName().equalsIgnoreCase(Utils.HTTP_HEADER_CONTENT_ENCODING)
-                            && header.getValue().toLowerCase().contains("gzip"))
-                        continue;
-                    else if (header.getName().equalsIgnoreCase(Utils.HTTP_HEADER_TRANSFER_ENCODING))
-                        continue;
-                    else
-                        httpServletResponse.setHeader(header.getName(), header.getValue());
+                // ///////////////////////////////////////////
+                // Tag the small bodies sent without validator
+                // ///////////////////////////////////////////
+
+                byte[] taggedBody = readTaggedBody(url, httpMethodProxyRequest, response);
+
+                HttpResponse head = cacheExchange != null ? cacheExchange.onResponse(response) : response;
+                if (taggedBody != null && head == response && CacheEntry.matchesETag(
+                        Objects.toString(httpServletRequest.getHeader("If-None-Match"), ""),
+                        response.getFirstHeader("ETag").getValue())) {
+                    // the client copy is still the same, it is not sent again
+                    if (cacheExchange != null) {
+                        cacheExchange.write(taggedBody, 0, taggedBody.length);
+                        cacheExchange.complete();
+                        httpServletResponse.setHeader(X_CACHE_HEADER, cacheExchange.getStatus());
+                    }
+                    HttpResponse notModified = notModified(response);
+                    if (leaderFlight != null) {
+                        leaderFlight.publishHead(notModified);
+                        leaderFlight.complete();
+                    }
+                    metrics.increment("etag.notModified", url.getHost());
+                    sendNotModified(notModified, httpServletResponse);
+                    return null;
+                }
+                if (leaderFlight != null) {
+                    leaderFlight.publishHead(head);
+                }
+                String contentCoding = selectContentCoding(head, httpServletRequest);
+                if (!sendResponseHead(head, httpServletRequest, httpServletResponse, contentCoding)) {
+                    if (leaderFlight != null) {
+                        leaderFlight.complete();
+                    }
+                    return null;
+                }
+
+                CacheBody replay = null;
+                if (cacheExchange != null) {
+                    replay = cacheExchange.getReplayBody();
+                    httpServletResponse.setHeader(X_CACHE_HEADER, cacheExchange.getStatus());
+                }
+                if (replay != null) {
+                    if (leaderFlight != null) {
+                        for (ByteBuffer buffer : replay.buffers()) {
+                            leaderFlight.publish(buffer);
+                        }
+                        leaderFlight.complete();
+                    }
+                    writeBody(replay, httpServletResponse, contentCoding);
+                    return null;
                 }
 
                 // ///////////////////////////////////
                 // Send the content to the client
                 // ///////////////////////////////////
 
-                try (InputStream inputStreamServerResponse = response.getEntity().getContent()) {
+                HttpEntity entity = response.getEntity();
+                try (InputStream inputStreamServerResponse = taggedBody != null
+                        ? new ByteArrayInputStream(taggedBody) : entity != null ? entity.getContent() : null) {
                     if (inputStreamServerResponse != null) {
-                        byte[] b = new byte[proxyConfig.getDefaultStreamByteSize()];
-
-                        int read;
-                        ServletOutputStream out = httpServletResponse.getOutputStream();
-                        while ((read = inputStreamServerResponse.read(b)) > 0) {
-                            out.write(b, 0, read);
+                        // large known bodies get large buffers, which the container
+                        // writes straight to the socket without aggregating them
+                        ProxyConfig current = configLoader.getConfig();
+                        byte[] b = bufferPool.acquire(BufferPool.bufferSize(entity.getContentLength(),
+                                current.getDefaultStreamByteSize(), current.getMaxStreamByteSize()));
+                        DeflaterOutputStream encoder = null;
+                        try {
+                            int read;
+                            OutputStream out = httpServletResponse.getOutputStream();
+                            if (contentCoding != null) {
+                                encoder = ResponseCompression.wrap(out, contentCoding,
+                                        current.getCompressionLevel(), b.length);
+                                out = encoder;
+                            }
+                            while ((read = inputStreamServerResponse.read(b)) > 0) {
+                                out.write(b, 0, read);
+                                if (cacheExchange != null) {
+                                    cacheExchange.write(b, 0, read);
+                                }
+                                if (leaderFlight != null) {
+                                    leaderFlight.publish(b, 0, read);
+                                }
+                            }
+                            if (encoder != null) {
+                                encoder.close();
+                            }
+                        } finally {
+                            ResponseCompression.end(encoder);
+                            bufferPool.release(b);
                         }
                     }
                 }
 
+                if (cacheExchange != null) {
+                    cacheExchange.complete();
+                }
+                if (leaderFlight != null) {
+                    leaderFlight.complete();
+                }
                 return null;
-            });
+            };
+
+            if (context != null) {
+                httpClient.execute(httpMethodProxyRequest, context, responseHandler);
+            } else {
+                httpClient.execute(httpMethodProxyRequest, responseHandler);
+            }
         } catch (Exception e) {
             LOGGER.error("Error executing HTTP method", e);
+            if (circuitPermit != null) {
+                circuitPermit.complete(!(e instanceof HttpErrorException));
+            }
+            if (bulkheadLease != null && !(e instanceof HttpErrorException)) {
+                bulkheadLease.complete(true);
+            }
+            recordFailure(url, negativeKey, e);
+
+            if (!httpServletResponse.isCommitted() && !(e instanceof HttpErrorException)
+                    && sendStaleIfError(cacheExchange, httpServletRequest, httpServletResponse)) {
+                return false;
+            }
+            if (httpServletResponse.isCommitted()) {
+                return false;
+            }
+            if (e instanceof HttpErrorException ex) {
+                httpServletResponse.sendError(ex.getCode(), ex.getMessage());
+            } else if (deadline.isExpired() || e instanceof InterruptedIOException) {
+                httpServletResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT,
+                        "Timeout waiting for " + url.getHost());
+            } else if (NegativeCache.isHostFailure(e)) {
+                httpServletResponse.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Cannot reach " + url.getHost());
+            }
+        } finally {
+            deadline.cancel();
+            if (circuitPermit != null) {
+                circuitPermit.cancel();
+            }
+            if (bulkheadLease != null) {
+                bulkheadLease.release();
+            }
+            if (leaderFlight != null) {
+                leaderFlight.finish();
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether the request can be served by the asynchronous client: the mode must be enabled and
+     * supported by the container, and the body, if any, must be a plain stream (parsed multipart
+     * uploads stay on the blocking client). The GET requests to the hosts given content ETags stay
+     * on the blocking client too, which reads their small bodies before relaying them.
+     *
+     * @param config the configuration snapshot
+     * @param url the URL of the proxied resource
+     * @param httpMethodProxyRequest the request to send upstream
+     * @param httpServletRequest the client request
+     * @return boolean
+     */
+    private boolean isAsyncRequest(ProxyConfig config, URL url, HttpUriRequestBase httpMethodProxyRequest,
+                                   HttpServletRequest httpServletRequest) {
+        if (!config.isAsyncEnabled() || !httpServletRequest.isAsyncSupported()) {
+            return false;
+        }
+        if (config.isContentTagging(url.getHost()) && "GET".equalsIgnoreCase(httpMethodProxyRequest.getMethod())) {
+            return false;
+        }
+        HttpEntity entity = httpMethodProxyRequest.getEntity();
+        return entity == null || entity instanceof InputStreamEntity;
+    }
+
+    /**
+     * Sends the proxy request through the asynchronous client and releases the calling thread:
+     * the request body is read with a {@link jakarta.servlet.ReadListener}, the response is
+     * relayed with a {@link jakarta.servlet.WriteListener} by the {@link AsyncProxyExchange}.
+     */
+    private void executeAsyncProxyRequest(URL url, String negativeKey, CircuitBreaker.Permit circuitPermit,
+                                          Bulkhead.Lease bulkheadLease, HttpUriRequestBase httpMethodProxyRequest,
+                                          HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+                                          HttpClientContext context, ProxyConfig config,
+                                          CacheExchange cacheExchange, RequestCoalescer.Flight flight)
+            throws IOException {
+        CloseableHttpAsyncClient client = getHttpAsyncClient();
+
+        if (context == null) {
+            context = HttpClientContext.create();
+        }
+        context.setRequestConfig(httpMethodProxyRequest.getConfig());
+
+        // the exchange is bounded by the client timeouts and the total timeout
+        AsyncContext asyncContext = httpServletRequest.startAsync(httpServletRequest, httpServletResponse);
+        asyncContext.setTimeout(0);
+
+        int bufferSize = config.getDefaultStreamByteSize();
+        AsyncProxyExchange exchange = new AsyncProxyExchange(this, url, negativeKey, circuitPermit, bulkheadLease,
+                httpMethodProxyRequest, asyncContext, bufferPool, bufferSize, Math.max(bufferSize * 8, 65536),
+                config.getCompressionLevel(), cacheExchange, flight);
+
+        ServletEntityProducer body = null;
+        HttpEntity entity = httpMethodProxyRequest.getEntity();
+        if (entity != null) {
+            long contentLength = httpServletRequest.getContentLengthLong();
+            body = new ServletEntityProducer(httpServletRequest.getInputStream(), entity.getContentType(),
+                    contentLength, bufferPool, BufferPool.bufferSize(contentLength, bufferSize,
+                    config.getMaxStreamByteSize()), exchange);
+            httpMethodProxyRequest.setEntity(null);
+        }
+
+        Future<Void> future = client.execute(new BasicRequestProducer(httpMethodProxyRequest, body),
+                exchange, context, exchange);
+        exchange.start(future, Deadline.schedule(deadlineScheduler, () -> future.cancel(true),
+                config.getTotalTimeout(url.getHost())));
+
+        if (body != null) {
+            body.start();
+        }
+    }
+
+    /**
+     * Starts the interaction of a request with the response cache.
+     *
+     * @param config the configuration snapshot
+     * @param url the URL of the proxied resource
+     * @param cacheKey the normalized URL identifying the resource
+     * @param query whether the request is a buffered POST query, identified by its body as well
+     * @param request the proxy request
+     * @param authenticated whether the request carries credentials
+     * @return the cache exchange, or null if the request is not answered by the cache
+     */
+    private CacheExchange openCacheExchange(ProxyConfig config, URL url, String cacheKey, boolean query,
+                                            HttpUriRequestBase request, boolean authenticated) {
+        if (!config.isCacheEnabled()) {
+            return null;
+        }
+        if (query) {
+            return CacheExchange.openQuery(responseCache, cacheKey, url.getHost(), request, authenticated,
+                    config.getStaleWhileRevalidate(url.getHost()), config.getStaleIfError(url.getHost()),
+                    config.getCachePostMaxAge(), config.isContentTagging(url.getHost()));
+        }
+        if (!isSafe(request)) {
+            responseCache.invalidate(cacheKey);
+            return null;
+        }
+        return CacheExchange.open(responseCache, cacheKey, url.getHost(), request, authenticated,
+                config.getStaleWhileRevalidate(url.getHost()), config.getStaleIfError(url.getHost()),
+                config.isContentTagging(url.getHost()));
+    }
+
+    /**
+     * Revalidates a stale response in the background, with a copy of the proxy request: the
+     * cache exchange of the copy stores the refreshed response. The refresh goes through the
+     * negative cache, the bulkhead and the circuit breaker like the client requests, and is
+     * skipped when they would reject it.
+     *
+     * @param url the URL of the proxied resource
+     * @param cacheKey the normalized URL identifying the resource
+     * @param negativeKey the key of the failures of the resource, can be null
+     * @param request the proxy request, already filtered and configured
+     * @param cacheExchange the exchange which served the stale response
+     */
+    private void refreshInBackground(URL url, String cacheKey, String negativeKey, HttpUriRequestBase request,
+                                     CacheExchange cacheExchange) {
+        HttpUriRequestBase refresh = new HttpUriRequestBase(request.getMethod(), URI.create(url.toExternalForm()));
+        // the body of a POST query is buffered, and can be sent again
+        refresh.setEntity(request.getEntity());
+        refresh.setConfig(request.getConfig());
+        for (Header header : request.getHeaders()) {
+            String name = header.getName();
+            if (!name.equalsIgnoreCase("If-None-Match") && !name.equalsIgnoreCase("If-Modified-Since")
+                    && !name.equalsIgnoreCase(CacheControl.HEADER_NAME) && !name.equalsIgnoreCase("Pragma")) {
+                refresh.addHeader(header);
+            }
+        }
+        CacheExchange refreshExchange = cacheExchange.forRefresh(refresh);
+
+        Runnable task = () -> {
+            ProxyConfig config = configLoader.getConfig();
+            String host = url.getHost();
+            long now = System.currentTimeMillis();
+            if (findFailure(config, url, negativeKey, now) != null) {
+                LOGGER.debug("Not refreshing the cached response of {}, failing recently", host);
+                refreshExchange.close();
+                return;
+            }
+
+            Bulkhead.Compartment compartment = bulkhead.compartment(url, config);
+            Bulkhead.Lease lease = null;
+            if (compartment != null) {
+                try {
+                    lease = compartment.acquire(config.getMaxInFlight(host), config.getBulkheadMaxQueued(host),
+                            config.getBulkheadQueueTimeout(host));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (lease == null) {
+                    LOGGER.debug("Not refreshing the cached response of {}, too many requests", host);
+                    refreshExchange.close();
+                    return;
+                }
+            }
+            final Bulkhead.Lease bulkheadLease = lease;
+
+            CircuitBreaker.Circuit circuit = circuitBreaker.circuit(url, config);
+            final CircuitBreaker.Permit circuitPermit = circuit != null
+                    ? circuit.tryAcquire(config, System.currentTimeMillis()) : null;
+            if (circuit != null && circuitPermit == null) {
+                LOGGER.debug("Not refreshing the cached response of {}, circuit open", host);
+                if (bulkheadLease != null) {
+                    bulkheadLease.release();
+                }
+                refreshExchange.close();
+                return;
+            }
+
+            refreshExchange.prepareRevalidation();
+            refreshExchange.sent();
+            try {
+                httpClient.execute(refresh, response -> {
+                    boolean failure = CircuitBreaker.isFailure(response.getCode());
+                    if (circuitPermit != null) {
+                        circuitPermit.complete(failure);
+                    }
+                    if (bulkheadLease != null) {
+                        bulkheadLease.complete(failure);
+                    }
+                    recordFailure(url, negativeKey, response.getCode());
+                    refreshExchange.onResponse(response);
+                    HttpEntity entity = response.getEntity();
+                    if (entity != null) {
+                        try (InputStream in = entity.getContent()) {
+                            byte[] b = bufferPool.acquire(configLoader.getConfig().getDefaultStreamByteSize());
+                            try {
+                                int read;
+                                while ((read = in.read(b)) > 0) {
+                                    refreshExchange.write(b, 0, read);
+                                }
+                            } finally {
+                                bufferPool.release(b);
+                            }
+                        }
+                    }
+                    refreshExchange.complete();
+                    return null;
+                });
+            } catch (IOException e) {
+                LOGGER.warn("Error refreshing the cached response of " + host, e);
+                if (circuitPermit != null) {
+                    circuitPermit.complete(true);
+                }
+                if (bulkheadLease != null) {
+                    bulkheadLease.complete(true);
+                }
+                recordFailure(url, negativeKey, e);
+            } finally {
+                if (circuitPermit != null) {
+                    circuitPermit.cancel();
+                }
+                if (bulkheadLease != null) {
+                    bulkheadLease.release();
+                }
+                refreshExchange.close();
+            }
+        };
+        String key = ResponseCache.variantKey(cacheKey, null, refresh);
+        if (!cacheRefresher.refresh(key, url.getHost(), task)) {
+            refreshExchange.close();
+        }
+    }
+
+    /**
+     * Serves the stale response of a failed request, if allowed by stale-if-error.
+     *
+     * @param cacheExchange the cache exchange of the request, can be null
+     * @param httpServletRequest the client request
+     * @param httpServletResponse the client response, not committed
+     * @return true if the stale response has been sent
+     */
+    boolean sendStaleIfError(CacheExchange cacheExchange, HttpServletRequest httpServletRequest,
+                             HttpServletResponse httpServletResponse) {
+        if (cacheExchange == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        CacheEntry entry = cacheExchange.staleIfError(now);
+        if (entry == null) {
+            return false;
+        }
+        try {
+            httpServletResponse.reset();
+            sendCachedResponse(entry, now, httpServletRequest, httpServletResponse, "STALE");
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            LOGGER.debug("Cannot send the stale response", e);
+            return false;
         }
     }
 
-    int getStatusCode(ClassicHttpResponse response) {
+    /**
+     * @param url the URL of the proxied resource
+     * @param cacheKey the normalized URL identifying the resource
+     * @param query whether the request is a buffered POST query
+     * @param request the proxy request
+     * @param authenticated whether the request carries credentials
+     * @return the key of the failures of the resource, or null if they are not remembered: only
+     *         the failures of the safe requests and the POST queries sent without credentials are
+     */
+    private static String negativeKey(URL url, String cacheKey, boolean query, HttpUriRequestBase request,
+                                      boolean authenticated) {
+        if (authenticated || request.containsHeader("Authorization") || !(query || isSafe(request))) {
+            return null;
+        }
+        return "url " + cacheKey;
+    }
+
+    /**
+     * Answers the request with the failure remembered for its host or its resource, if any. The
+     * stale response is preferred to a remembered server failure when stale-if-error allows it.
+     *
+     * @param config the configuration snapshot
+     * @param url the URL of the proxied resource
+     * @param negativeKey the key of the failures of the resource, can be null
+     * @param cacheExchange the cache exchange of the request, can be null
+     * @param httpServletRequest the client request
+     * @param httpServletResponse the client response
+     * @return true if the request has been answered
+     * @throws IOException if the response cannot be sent
+     */
+    private boolean sendNegativeResponse(ProxyConfig config, URL url, String negativeKey, CacheExchange cacheExchange,
+                                         HttpServletRequest httpServletRequest,
+                                         HttpServletResponse httpServletResponse) throws IOException {
+        long now = System.currentTimeMillis();
+        NegativeCache.Failure failure = findFailure(config, url, negativeKey, now);
+        if (failure == null) {
+            return false;
+        }
+        boolean serverError = failure.getCode() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        if (serverError && sendStaleIfError(cacheExchange, httpServletRequest, httpServletResponse)) {
+            return true;
+        }
+        httpServletResponse.setHeader(X_CACHE_HEADER, "NEGATIVE");
+        if (serverError) {
+            httpServletResponse.setHeader("Retry-After", Long.toString(failure.getRetryAfter(now)));
+        }
+        httpServletResponse.sendError(failure.getCode(), failure.getMessage());
+        return true;
+    }
+
+    /**
+     * @param config the configuration snapshot
+     * @param url the URL of the proxied resource
+     * @param negativeKey the key of the failures of the resource, can be null
+     * @param now the current time (ms)
+     * @return the failure remembered for the host or the resource, null if none
+     */
+    private NegativeCache.Failure findFailure(ProxyConfig config, URL url, String negativeKey, long now) {
+        if (config.getNegativeCacheTtl(url.getHost()) <= 0) {
+            return null;
+        }
+        NegativeCache.Failure failure = negativeCache.get(NegativeCache.hostKey(url), now);
+        if (failure == null && negativeKey != null) {
+            failure = negativeCache.get(negativeKey, now);
+        }
+        return failure;
+    }
+
+    /**
+     * Remembers an upstream response telling the resource is missing or the server is failing.
+     *
+     * @param url the URL of the proxied resource
+     * @param negativeKey the key of the failures of the resource, null if they are not remembered
+     * @param status the status code of the upstream response
+     */
+    void recordFailure(URL url, String negativeKey, int status) {
+        if (negativeKey != null && NegativeCache.isFailure(status)) {
+            negativeCache.put(negativeKey, url.getHost(), status, "Upstream server " + url.getHost()
+                    + " answered " + status, 1000L * configLoader.getConfig().getNegativeCacheTtl(url.getHost()));
+        }
+    }
+
+    /**
+     * Remembers a failed request: the denials of the proxy callbacks for the resource, the connect
+     * failures for the host.
+     *
+     * @param url the URL of the proxied resource
+     * @param negativeKey the key of the failures of the resource, null if they are not remembered
+     * @param e the cause of the failure
+     */
+    void recordFailure(URL url, String negativeKey, Exception e) {
+        long ttl = 1000L * configLoader.getConfig().getNegativeCacheTtl(url.getHost());
+        if (e instanceof HttpErrorException ex) {
+            if (negativeKey != null) {
+                negativeCache.put(negativeKey, url.getHost(), ex.getCode(), ex.getMessage(), ttl);
+            }
+        } else if (NegativeCache.isHostFailure(e)) {
+            int code = e instanceof InterruptedIOException ? HttpServletResponse.SC_GATEWAY_TIMEOUT
+                    : HttpServletResponse.SC_BAD_GATEWAY;
+            negativeCache.put(NegativeCache.hostKey(url), url.getHost(), code, "Cannot reach " + url.getHost(), ttl);
+        }
+    }
+
+    /**
+     * Builds the key identifying the requests that can share a single upstream response: the URL
+     * and the request headers influencing the response.
+     *
+     * @param config the configuration snapshot
+     * @param url the URL of the proxied resource
+     * @param cacheKey the normalized URL identifying the resource
+     * @param query whether the request is a buffered POST query
+     * @param request the proxy request
+     * @param authenticated whether the request carries credentials
+     * @return the key, or null if the request must not be coalesced
+     */
+    private String coalesceKey(ProxyConfig config, URL url, String cacheKey, boolean query,
+                               HttpUriRequestBase request, boolean authenticated) {
+        if ((!query && !"GET".equalsIgnoreCase(request.getMethod())) || !config.isCoalescing(url.getHost())
+                || authenticated || request.containsHeader("Authorization") || request.containsHeader("Cookie")
+                || request.containsHeader("Range")) {
+            return null;
+        }
+        List<String> names = new ArrayList<>(config.getCoalesceKeyHeaders());
+        names.add("if-none-match");
+        names.add("if-modified-since");
+        return ResponseCache.variantKey(cacheKey, names.toArray(new String[0]), request);
+    }
+
+    /**
+     * Serves a request from the response received by the identical request leading its flight.
+     *
+     * @param reader the view of the request on the flight
+     * @param url the URL of the proxied resource
+     * @param request the proxy request, never sent
+     * @param httpServletRequest the client request
+     * @param httpServletResponse the client response
+     * @param config the configuration snapshot
+     * @return false if the leader failed before receiving a response, the request has then to be
+     *         sent upstream
+     */
+    private boolean followFlight(RequestCoalescer.Flight.Reader reader, URL url, HttpUriRequestBase request,
+                                 HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+                                 ProxyConfig config) throws IOException {
+        String host = url.getHost();
+        int totalTimeout = config.getTotalTimeout(host);
+        long headTimeout = totalTimeout > 0 ? totalTimeout : (long) config.getConnectionRequestTimeout(host)
+                + config.getConnectionTimeout(host) + config.getSoTimeout(host);
+        try {
+            HttpResponse head = reader.awaitHead(headTimeout);
+            if (head == null) {
+                return false;
+            }
+
+            onRemoteResponse(request);
+            String contentCoding = selectContentCoding(head, httpServletRequest);
+            if (!sendResponseHead(head, httpServletRequest, httpServletResponse, contentCoding)) {
+                return true;
+            }
+
+            byte[] b = bufferPool.acquire(config.getDefaultStreamByteSize());
+            DeflaterOutputStream encoder = null;
+            try {
+                OutputStream out = httpServletResponse.getOutputStream();
+                if (contentCoding != null) {
+                    encoder = ResponseCompression.wrap(out, contentCoding, config.getCompressionLevel(), b.length);
+                    out = encoder;
+                }
+                int read;
+                while ((read = reader.read(b, config.getSoTimeout(host))) > 0) {
+                    out.write(b, 0, read);
+                }
+                if (encoder != null) {
+                    encoder.close();
+                }
+            } finally {
+                ResponseCompression.end(encoder);
+                bufferPool.release(b);
+            }
+            return true;
+        } catch (HttpErrorException e) {
+            throw e;
+        } catch (IOException e) {
+            LOGGER.error("Error following the coalesced HTTP method", e);
+            if (!httpServletResponse.isCommitted()) {
+                httpServletResponse.sendError(e instanceof InterruptedIOException
+                                ? HttpServletResponse.SC_GATEWAY_TIMEOUT : HttpServletResponse.SC_BAD_GATEWAY,
+                        "Error waiting for " + host);
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param request the proxy request
+     * @return true if the request method does not change the resource
+     */
+    private static boolean isSafe(HttpUriRequestBase request) {
+        String method = request.getMethod();
+        return "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method)
+                || "OPTIONS".equalsIgnoreCase(method) || "TRACE".equalsIgnoreCase(method);
+    }
+
+    /**
+     * Sends a response from the cache, or a 304 if it matches the validators sent by the client.
+     *
+     * @param entry the cached response
+     * @param now the current time (ms)
+     * @param httpServletRequest the client request
+     * @param httpServletResponse the client response
+     * @param cacheStatus the X-Cache value, HIT or STALE
+     */
+    private void sendCachedResponse(CacheEntry entry, long now, HttpServletRequest httpServletRequest,
+                                    HttpServletResponse httpServletResponse, String cacheStatus)
+            throws IOException {
+        HttpResponse head = entry.toResponse(now);
+        if (entry.getStatus() == HttpServletResponse.SC_OK && entry.matches(
+                httpServletRequest.getHeader("If-None-Match"), httpServletRequest.getHeader("If-Modified-Since"))) {
+            sendNotModified(head, httpServletResponse);
+            httpServletResponse.setHeader(X_CACHE_HEADER, cacheStatus);
+            return;
+        }
+
+        String contentCoding = selectContentCoding(head, httpServletRequest);
+        if (sendResponseHead(head, httpServletRequest, httpServletResponse, contentCoding)) {
+            httpServletResponse.setHeader(X_CACHE_HEADER, cacheStatus);
+            writeBody(entry.getBody(), httpServletResponse, contentCoding);
+        }
+    }
+
+    /**
+     * Sends a 304 with the headers of the given response describing it (RFC 9110, section 15.4.5).
+     */
+    private static void sendNotModified(HttpResponse head, HttpServletResponse httpServletResponse) {
+        httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        for (String name : CacheEntry.NOT_MODIFIED_HEADERS) {
+            if (head.containsHeader(name)) {
+                httpServletResponse.setHeader(name, head.getFirstHeader(name).getValue());
+            }
+        }
+    }
+
+    /**
+     * @param response a 200 response
+     * @return the head of the 304 answering a client which has the same response
+     */
+    private static HttpResponse notModified(HttpResponse response) {
+        BasicHttpResponse notModified = new BasicHttpResponse(HttpServletResponse.SC_NOT_MODIFIED);
+        for (String name : CacheEntry.NOT_MODIFIED_HEADERS) {
+            if (response.containsHeader(name)) {
+                notModified.setHeader(response.getFirstHeader(name));
+            }
+        }
+        return notModified;
+    }
+
+    /**
+     * Reads the body of an upstream response sent without validator to a GET request, when the
+     * host is given content ETags and the body is small enough, and tags the response with its
+     * hash. A body of unknown length found larger than the limit is put back in front of the rest
+     * of the entity, which is then relayed as a stream.
+     *
+     * @param url the URL of the proxied resource
+     * @param request the proxy request
+     * @param response the upstream response
+     * @return the body, or null if the response is relayed as a stream
+     * @throws IOException if the body cannot be read
+     */
+    private byte[] readTaggedBody(URL url, HttpUriRequestBase request, ClassicHttpResponse response)
+            throws IOException {
+        ProxyConfig config = configLoader.getConfig();
+        HttpEntity entity = response.getEntity();
+        int maxSize = config.getContentEtagMaxSize();
+        if (!config.isContentTagging(url.getHost()) || !"GET".equalsIgnoreCase(request.getMethod())
+                || !ContentTag.applies(response) || entity == null || entity.getContentLength() > maxSize) {
+            return null;
+        }
+        InputStream in = entity.getContent();
+        byte[] body = in.readNBytes(entity.getContentLength() >= 0 ? (int) entity.getContentLength() : maxSize + 1);
+        if (body.length > maxSize) {
+            response.setEntity(new InputStreamEntity(new SequenceInputStream(new ByteArrayInputStream(body), in),
+                    -1, entity.getContentType() != null ? ContentType.parse(entity.getContentType()) : null));
+            return null;
+        }
+        in.close();
+        response.setHeader("ETag", ContentTag.of(body));
+        return body;
+    }
+
+    /**
+     * Writes a whole body to the client, compressed with the given coding.
+     */
+    private void writeBody(CacheBody body, HttpServletResponse httpServletResponse, String contentCoding)
+            throws IOException {
+        ProxyConfig config = configLoader.getConfig();
+        byte[] scratch = bufferPool.acquire(config.getDefaultStreamByteSize());
+        try {
+            OutputStream out = httpServletResponse.getOutputStream();
+            if (contentCoding == null) {
+                body.writeTo(out, scratch);
+                return;
+            }
+            try (DeflaterOutputStream encoder = ResponseCompression.wrap(out, contentCoding,
+                    config.getCompressionLevel(), scratch.length)) {
+                body.writeTo(encoder, scratch);
+            }
+        } finally {
+            bufferPool.release(scratch);
+        }
+    }
+
+    /**
+     * Picks the content coding the proxy applies to the body of the given upstream response.
+     *
+     * @param response the upstream response
+     * @param httpServletRequest the client request
+     * @return the content coding, or null if the body is relayed as is
+     */
+    String selectContentCoding(HttpResponse response, HttpServletRequest httpServletRequest) {
+        return ResponseCompression.select(response, httpServletRequest, configLoader.getConfig());
+    }
+
+    /**
+     * Sends the status and the headers of the upstream response to the client, rewriting the
+     * redirects to go through this proxy. Shared by the blocking and the asynchronous modes.
+     *
+     * @param response the upstream response
+     * @param httpServletRequest the client request
+     * @param httpServletResponse the client response
+     * @param contentCoding the content coding applied by the proxy to the body, can be null
+     * @return true if the response body has to be relayed to the client
+     * @throws IOException if a redirect misses its location
+     */
+    boolean sendResponseHead(HttpResponse response, HttpServletRequest httpServletRequest,
+                             HttpServletResponse httpServletResponse, String contentCoding) throws IOException {
+
+        // ////////////////////////////////////////////////////////////////////////////////
+        // Check if the proxy response is a redirect
+        // The following code is adapted from
+        // org.tigris.noodle.filters.CheckForRedirect
+        // Hooray for open source software
+        // ////////////////////////////////////////////////////////////////////////////////
+
+        int statusCode = getStatusCode(response);
+        if ((statusCode >= HttpServletResponse.SC_MULTIPLE_CHOICES /* 300 */
+                && statusCode <= HttpServletResponse.SC_SEE_OTHER /* 303 */)
+                || statusCode == HttpServletResponse.SC_TEMPORARY_REDIRECT /* 307 */
+                || statusCode == 308 /* Permanent Redirect (no servlet-api constant) */) {
+
+            String stringStatusCode = Integer.toString(statusCode);
+            var locationHeader = response.getFirstHeader(Utils.LOCATION_HEADER);
+            String stringLocation = locationHeader != null ? locationHeader.getValue() : null;
+
+            if (stringLocation == null) {
+                throw new IOException("Received status code: " + stringStatusCode
+                        + " but no " + Utils.LOCATION_HEADER
+                        + " header was found in the response");
+            }
+
+            // /////////////////////////////////////////////
+            // Modify the redirect to go to this proxy
+            // servlet rather that the proxied host
+            // /////////////////////////////////////////////
+
+            String redirectURL = httpServletRequest.getRequestURL() + "?url=" + URLEncoder.encode(stringLocation, StandardCharsets.UTF_8);
+            httpServletResponse.sendRedirect(redirectURL);
+            LOGGER.info("redirected to: {}", redirectURL);
+            return false;
+
+        } else if (statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
+
+            // ///////////////////////////////////////////////////////////////
+            // 304 needs special handling. See:
+            // http://www.ics.uci.edu/pub/ietf/http/rfc1945.html#Code304
+            // We get a 304 whenever passed an 'If-Modified-Since'
+            // header and the data on disk has not changed; server
+            // responds w/ a 304 saying I'm not going to send the
+            // body because the file has not changed.
+            // ///////////////////////////////////////////////////////////////
+
+            httpServletResponse.setIntHeader(Utils.CONTENT_LENGTH_HEADER_NAME, 0);
+            httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return false;
+        }
+
+        // /////////////////////////////////////////////
+        // Pass the response code back to the client
+        // /////////////////////////////////////////////
+
+        httpServletResponse.setStatus(statusCode);
+
+        // /////////////////////////////////////////////
+        // Pass response headers back to the client
+        // /////////////////////////////////////////////
+
+        boolean passThrough = configLoader.getConfig().isCompressionPassThrough();
+        var headerIt = response.headerIterator();
+        while (headerIt.hasNext()) {
+            var header = headerIt.next();
+
+            // //////////////////////////////////////////////
+            // Skip GZIP Responses, unless relayed as they are
+            // //////////////////////////////////////////////
+
+            if (header.getName().equalsIgnoreCase(Utils.HTTP_HEADER_ACCEPT_ENCODING)
+                    && header.getValue().toLowerCase().contains("gzip"))
+                continue;
+            else if (!passThrough && header.getName().equalsIgnoreCase(Utils.HTTP_HEADER_CONTENT_ENCODING)
+                    && header.getValue().toLowerCase().contains("gzip"))
+                continue;
+            else if (header.getName().equalsIgnoreCase(Utils.HTTP_HEADER_TRANSFER_ENCODING))
+                continue;
+            else if (contentCoding != null
+                    && header.getName().equalsIgnoreCase(Utils.CONTENT_LENGTH_HEADER_NAME))
+                continue;
+            else if (contentCoding != null && header.getName().equalsIgnoreCase("ETag")
+                    && !header.getValue().startsWith("W/"))
+                // the compressed body is a different representation
+                httpServletResponse.setHeader(header.getName(), "W/" + header.getValue());
+            else
+                httpServletResponse.setHeader(header.getName(), header.getValue());
+        }
+
+        if (contentCoding != null) {
+            httpServletResponse.setHeader(Utils.HTTP_HEADER_CONTENT_ENCODING, contentCoding);
+            httpServletResponse.addHeader("Vary", "Accept-Encoding");
+        }
+
+        return true;
+    }
+
+    /**
+     * Creates an execution context carrying the given credentials for the target host.
+     *
+     * @param url the URL of the proxied resource
+     * @param user the user name
+     * @param password the password
+     * @return HttpClientContext
+     */
+    HttpClientContext createAuthenticationContext(URL url, String user, String password) {
+        Credentials credentials = new UsernamePasswordCredentials(user, password.toCharArray());
+        BasicCredentialsProvider credsProvider = new BasicCredentialsProvider();
+        credsProvider.setCredentials(new AuthScope(url.getHost(), url.getPort()), credentials);
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setCredentialsProvider(credsProvider);
+        return context;
+    }
+
+    int getStatusCode(HttpResponse response) {
         if (response != null) {
             return response.getCode();
         } else {
@@ -830,6 +2230,7 @@ public class HTTPProxy extends HttpServlet {
         // filtering forwarded request headers.
         // ////////////////////////////////////////
 
+        ProxyConfig proxyConfig = configLoader.getConfig();
         Set<String> headerWhitelist = proxyConfig.getRequestHeaderWhitelist();
         Set<String> headerBlacklist = proxyConfig.getRequestHeaderBlacklist();
 
@@ -879,19 +2280,25 @@ public class HTTPProxy extends HttpServlet {
                     stringHeaderValue = Utils.getProxyHostAndPort(proxyInfo);
                 }
 
-                // ////////////////////////
-                // Skip GZIP Responses
-                // ////////////////////////
+                // /////////////////////////////////////////////
+                // Skip GZIP Responses, unless relayed as they are
+                // /////////////////////////////////////////////
 
-                if (stringHeaderName.equalsIgnoreCase(Utils.HTTP_HEADER_ACCEPT_ENCODING)
-                        && stringHeaderValue.toLowerCase().contains("gzip"))
-                    continue;
-                if (stringHeaderName.equalsIgnoreCase(Utils.HTTP_HEADER_CONTENT_ENCODING)
-                        && stringHeaderValue.toLowerCase().contains("gzip"))
-                    continue;
+                if (!proxyConfig.isCompressionPassThrough()) {
+                    if (stringHeaderName.equalsIgnoreCase(Utils.HTTP_HEADER_ACCEPT_ENCODING)
+                            && stringHeaderValue.toLowerCase().contains("gzip"))
+                        continue;
+                    if (stringHeaderName.equalsIgnoreCase(Utils.HTTP_HEADER_CONTENT_ENCODING)
+                            && stringHeaderValue.toLowerCase().contains("gzip"))
+                        continue;
+                }
                 if (stringHeaderName.equalsIgnoreCase(Utils.HTTP_HEADER_TRANSFER_ENCODING))
                     continue;
 
+                // the content ETags of the proxy are unknown to the upstream server
+                if (stringHeaderName.equalsIgnoreCase("If-None-Match") && ContentTag.isContentTag(stringHeaderValue))
+                    continue;
+
                 // /////////////////////////////////////////////
                 // Set the same header on the proxy request
                 // /////////////////////////////////////////////
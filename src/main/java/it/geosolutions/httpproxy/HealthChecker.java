@@ -0,0 +1,321 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.io.ConnectionEndpoint;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.client5.http.routing.HttpRoutePlanner;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Probes the upstream servers of the <code>healthCheck.&lt;name&gt;</code> URLs every
+ * <code>healthCheckInterval</code> ms, on a background thread, through the blocking client.
+ * <p>
+ * When the host of a URL is an upstream pool each of its backends is probed, and the backends
+ * found down are left out by the {@link UpstreamPools} until they are found up again. A server is
+ * up while its probes get a 2xx or 3xx response. The connection pool keeps
+ * <code>healthCheckMinIdleConnections</code> idle connections open to each server up, so that the
+ * first requests after a quiet period, or after a server is back, do not wait for the connection
+ * and TLS handshakes.
+ */
+final class HealthChecker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HealthChecker.class);
+
+    /**
+     * Delay (ms) before looking at the configuration again while the health checks are disabled
+     */
+    private static final long IDLE_DELAY = 5000;
+
+    private final ProxyConfigLoader configLoader;
+
+    private final UpstreamPools upstreamPools;
+
+    private final CloseableHttpClient httpClient;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private final HttpRoutePlanner routePlanner;
+
+    private final ProxyMetrics metrics;
+
+    private final Map<String, Health> states = new ConcurrentHashMap<>();
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * @param configLoader the loader providing the URLs and the settings of the health checks
+     * @param upstreamPools the pools receiving the state of their backends
+     * @param httpClient the client sending the probes
+     * @param connectionManager the connection pool of the client, kept warm
+     * @param routePlanner the route planner of the client
+     * @param metrics the metrics receiving the per server statistics
+     */
+    HealthChecker(ProxyConfigLoader configLoader, UpstreamPools upstreamPools, CloseableHttpClient httpClient,
+                  PoolingHttpClientConnectionManager connectionManager, HttpRoutePlanner routePlanner,
+                  ProxyMetrics metrics) {
+        this.configLoader = configLoader;
+        this.upstreamPools = upstreamPools;
+        this.httpClient = httpClient;
+        this.connectionManager = connectionManager;
+        this.routePlanner = routePlanner;
+        this.metrics = metrics;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "http-proxy-health-check");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts the health checks, run at once and then every interval.
+     */
+    void start() {
+        scheduler.execute(this::run);
+    }
+
+    /**
+     * Stops the health checks.
+     */
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void run() {
+        long delay = IDLE_DELAY;
+        try {
+            ProxyConfig config = configLoader.getConfig();
+            if (config.getHealthCheckInterval() > 0) {
+                delay = config.getHealthCheckInterval();
+                checkAll(config);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Health checks failed", e);
+        } finally {
+            try {
+                scheduler.schedule(this::run, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shut down
+            }
+        }
+    }
+
+    /**
+     * Runs a round of health checks, probing every configured server once.
+     *
+     * @param config the configuration snapshot
+     */
+    void checkAll(ProxyConfig config) {
+        Set<String> checked = new HashSet<>();
+        // the backends of each logical host, down as soon as one of their checks fails
+        Map<String, Map<HttpHost, Boolean>> backendsUp = new HashMap<>();
+        for (URL url : config.getHealthChecks().values()) {
+            HttpHost logical = new HttpHost(url.getProtocol(), url.getHost(), url.getPort());
+            List<HttpHost> backends = config.getUpstreamPools().get(url.getHost().toLowerCase(Locale.ROOT));
+            List<HttpHost> targets = new ArrayList<>();
+            if (backends != null) {
+                for (HttpHost backend : backends) {
+                    targets.add(UpstreamPools.target(backend, logical));
+                }
+            } else {
+                targets.add(logical);
+            }
+
+            for (int i = 0; i < targets.size(); i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                HttpHost target = targets.get(i);
+                String key = target.toURI() + url.getFile();
+                checked.add(key);
+                Health health = states.computeIfAbsent(key, k -> new Health());
+                boolean wasUp = health.isUp();
+                boolean up = health.update(probe(target, url, backends != null, config), config);
+                if (up != wasUp) {
+                    LOGGER.warn("Upstream server {} is {}", target, up ? "up" : "down");
+                }
+                metrics.set("health.up", target.toHostString(), up ? 1 : 0);
+                if (backends != null) {
+                    backendsUp.computeIfAbsent(url.getHost().toLowerCase(Locale.ROOT), k -> new HashMap<>())
+                            .merge(backends.get(i), up, Boolean::logicalAnd);
+                }
+                if (up) {
+                    warm(target, config);
+                }
+            }
+        }
+        backendsUp.forEach((host, backends) -> backends.forEach((backend, up) ->
+                upstreamPools.setUp(host, backend, up)));
+        // forget the servers no longer configured
+        states.keySet().retainAll(checked);
+    }
+
+    /**
+     * @param target the probed server
+     * @param url the health check URL
+     * @param pooled true if the server is a backend of the host of the URL
+     * @param config the configuration snapshot
+     * @return true if the server answered with a 2xx or 3xx response
+     */
+    private boolean probe(HttpHost target, URL url, boolean pooled, ProxyConfig config) {
+        HttpGet probe = new HttpGet(url.getFile().isEmpty() ? "/" : url.getFile());
+        if (pooled) {
+            // as the proxied requests, sent with the Host of the logical host
+            probe.setHeader(HttpHeaders.HOST, url.getAuthority());
+        }
+        Timeout timeout = Timeout.ofMilliseconds(config.getHealthCheckTimeout());
+        probe.setConfig(RequestConfig.custom()
+                .setConnectionRequestTimeout(timeout)
+                .setResponseTimeout(timeout)
+                .build());
+        metrics.increment("health.probe", target.toHostString());
+        try {
+            int status = httpClient.execute(target, probe, response -> {
+                EntityUtils.consume(response.getEntity());
+                return response.getCode();
+            });
+            if (status >= 200 && status < 400) {
+                return true;
+            }
+            LOGGER.debug("Health check of {} got {}", target, status);
+        } catch (IOException e) {
+            LOGGER.debug("Health check of {} failed: {}", target, e.toString());
+        }
+        metrics.increment("health.failure", target.toHostString());
+        return false;
+    }
+
+    /**
+     * Opens connections to the server until the pool keeps the configured number of idle ones.
+     *
+     * @param target the healthy server
+     * @param config the configuration snapshot
+     */
+    private void warm(HttpHost target, ProxyConfig config) {
+        int minIdle = config.getHealthCheckMinIdleConnections();
+        if (minIdle <= 0) {
+            return;
+        }
+        HttpRoute route;
+        try {
+            route = routePlanner.determineRoute(target, HttpClientContext.create());
+        } catch (HttpException e) {
+            return;
+        }
+        // the tunnels through a proxy are left to the requests
+        PoolStats stats = connectionManager.getStats(route);
+        if (route.getHopCount() > 1 || stats.getAvailable() >= minIdle
+                || stats.getLeased() + minIdle > connectionManager.getMaxPerRoute(route)) {
+            return;
+        }
+
+        // leasing them all at once, so that the idle ones are not leased again
+        Timeout timeout = Timeout.ofMilliseconds(config.getHealthCheckTimeout());
+        List<ConnectionEndpoint> endpoints = new ArrayList<>();
+        try {
+            for (int i = 0; i < minIdle; i++) {
+                endpoints.add(connectionManager.lease("health-check", route, timeout, null).get(timeout));
+            }
+            for (ConnectionEndpoint endpoint : endpoints) {
+                if (!endpoint.isConnected()) {
+                    connectionManager.connect(endpoint, timeout, HttpClientContext.create());
+                    metrics.increment("health.connection", target.toHostString());
+                }
+            }
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            LOGGER.debug("Cannot open warm connections to {}: {}", target, e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // kept until the next rounds renew them
+            TimeValue validity = TimeValue.ofMilliseconds(2L * Math.max(config.getHealthCheckInterval(), 1000));
+            for (ConnectionEndpoint endpoint : endpoints) {
+                connectionManager.release(endpoint, null, validity);
+            }
+        }
+    }
+
+    /**
+     * The state of a probed server.
+     */
+    private static final class Health {
+
+        private boolean up = true;
+
+        private int successes;
+
+        private int failures;
+
+        synchronized boolean isUp() {
+            return up;
+        }
+
+        /**
+         * @param success the outcome of the last probe
+         * @param config the configuration snapshot, providing the thresholds
+         * @return true if the server is up
+         */
+        synchronized boolean update(boolean success, ProxyConfig config) {
+            if (success) {
+                failures = 0;
+                successes++;
+                if (!up && successes >= config.getHealthCheckHealthyThreshold()) {
+                    up = true;
+                }
+            } else {
+                successes = 0;
+                failures++;
+                if (up && failures >= config.getHealthCheckUnhealthyThreshold()) {
+                    up = false;
+                }
+            }
+            return up;
+        }
+    }
+}
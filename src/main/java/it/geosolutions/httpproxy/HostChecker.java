@@ -34,13 +34,13 @@ import java.util.Set;
  */
 public class HostChecker implements ProxyCallback {
 
-    ProxyConfig config;
+    ProxyConfigLoader configLoader;
 
     /**
-     * @param config
+     * @param configLoader
      */
-    public HostChecker(ProxyConfig config) {
-        this.config = config;
+    public HostChecker(ProxyConfigLoader configLoader) {
+        this.configLoader = configLoader;
     }
 
     /*
@@ -50,7 +50,7 @@ public class HostChecker implements ProxyCallback {
      */
     public void onRequest(HttpServletRequest request, HttpServletResponse response, URL url)
             throws IOException {
-        Set<String> hosts = config.getHostsWhitelist();
+        Set<String> hosts = configLoader.getConfig().getHostsWhitelist();
 
         // ////////////////////////////////
         // Check the whitelist of hosts
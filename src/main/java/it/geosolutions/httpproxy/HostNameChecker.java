@@ -34,13 +34,13 @@ import java.util.Set;
  */
 public class HostNameChecker implements ProxyCallback {
 
-    ProxyConfig config;
+    ProxyConfigLoader configLoader;
 
     /**
-     * @param config
+     * @param configLoader
      */
-    public HostNameChecker(ProxyConfig config) {
-        this.config = config;
+    public HostNameChecker(ProxyConfigLoader configLoader) {
+        this.configLoader = configLoader;
     }
 
     /*
@@ -50,7 +50,7 @@ public class HostNameChecker implements ProxyCallback {
      */
     public void onRequest(HttpServletRequest request, HttpServletResponse response, URL url)
             throws IOException {
-        Set<String> hostNames = config.getHostnameWhitelist();
+        Set<String> hostNames = configLoader.getConfig().getHostnameWhitelist();
 
         // ////////////////////////////////
         // Check the whitelist of hosts
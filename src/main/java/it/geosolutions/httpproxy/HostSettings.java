@@ -0,0 +1,216 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Per host overrides of a setting, read from properties such as
+ * <code>route.maxConnections.&lt;host&gt;=N</code>.
+ * <p>
+ * The host part is either a literal host name or a pattern where <code>*</code> matches any
+ * sequence of characters (e.g. <code>*.geo-solutions.it</code>). Literal hosts win over patterns,
+ * and longer patterns win over shorter ones.
+ */
+final class HostSettings {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HostSettings.class);
+
+    static final HostSettings EMPTY = new HostSettings(Collections.emptyMap(), Collections.emptyList(),
+            Collections.emptyList());
+
+    private final Map<String, String> exact;
+
+    private final List<Map.Entry<Pattern, String>> patterns;
+
+    /**
+     * The host patterns, as configured, in the order of {@link #patterns}
+     */
+    private final List<String> globs;
+
+    private HostSettings(Map<String, String> exact, List<Map.Entry<Pattern, String>> patterns, List<String> globs) {
+        this.exact = exact;
+        this.patterns = patterns;
+        this.globs = globs;
+    }
+
+    /**
+     * Collects all the properties starting with the given prefix.
+     *
+     * @param props the proxy properties
+     * @param prefix the setting prefix, including the trailing dot (e.g. <code>route.maxConnections.</code>)
+     * @return HostSettings
+     */
+    static HostSettings parse(Properties props, String prefix) {
+        Map<String, String> exact = new HashMap<>();
+        List<String> globs = new ArrayList<>();
+        Map<String, String> globValues = new HashMap<>();
+
+        for (String name : props.stringPropertyNames()) {
+            if (!name.startsWith(prefix) || name.length() == prefix.length()) {
+                continue;
+            }
+            String host = name.substring(prefix.length()).trim().toLowerCase();
+            String value = props.getProperty(name).trim();
+            if (host.contains("*")) {
+                globs.add(host);
+                globValues.put(host, value);
+            } else {
+                exact.put(host, value);
+            }
+        }
+
+        if (exact.isEmpty() && globs.isEmpty()) {
+            return EMPTY;
+        }
+
+        globs.sort((a, b) -> b.length() - a.length());
+        List<Map.Entry<Pattern, String>> patterns = new ArrayList<>();
+        for (String glob : globs) {
+            patterns.add(Map.entry(toPattern(glob), globValues.get(glob)));
+        }
+
+        return new HostSettings(exact, patterns, globs);
+    }
+
+    /**
+     * Collects all the properties starting with the given prefix, whose values are numeric, logging
+     * the invalid values once.
+     *
+     * @param props the proxy properties
+     * @param prefix the setting prefix, including the trailing dot (e.g. <code>route.maxConnections.</code>)
+     * @return HostSettings
+     */
+    static HostSettings parseInt(Properties props, String prefix) {
+        HostSettings settings = parse(props, prefix);
+        for (Map.Entry<String, String> entry : settings.exact.entrySet()) {
+            checkInt(prefix + entry.getKey(), entry.getValue());
+        }
+        for (int i = 0; i < settings.globs.size(); i++) {
+            checkInt(prefix + settings.globs.get(i), settings.patterns.get(i).getValue());
+        }
+        return settings;
+    }
+
+    private static void checkInt(String name, String value) {
+        try {
+            Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            LOGGER.error("Invalid numeric value {} configured for {}, ignored", value, name);
+        }
+    }
+
+    private static Pattern toPattern(String glob) {
+        StringBuilder sb = new StringBuilder();
+        String[] parts = glob.split("\\*", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                sb.append(".*");
+            }
+            if (!parts[i].isEmpty()) {
+                sb.append(Pattern.quote(parts[i]));
+            }
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    /**
+     * @return true if no override is configured
+     */
+    boolean isEmpty() {
+        return exact.isEmpty() && patterns.isEmpty();
+    }
+
+    /**
+     * @param host the host name
+     * @return the value configured for the host, or null
+     */
+    String get(String host) {
+        if (host == null || isEmpty()) {
+            return null;
+        }
+        String key = host.toLowerCase();
+        String value = exact.get(key);
+        if (value == null) {
+            for (Map.Entry<Pattern, String> entry : patterns) {
+                if (entry.getKey().matcher(key).matches()) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @param host the host name
+     * @return the configured host, or pattern, whose value applies to the host, or null
+     */
+    String match(String host) {
+        if (host == null || isEmpty()) {
+            return null;
+        }
+        String key = host.toLowerCase();
+        if (exact.containsKey(key)) {
+            return key;
+        }
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).getKey().matcher(key).matches()) {
+                return globs.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param host the host name
+     * @param defaultValue the value to use when no valid override is configured for the host
+     * @return int
+     */
+    int getInt(String host, int defaultValue) {
+        String value = get(host);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                // logged once by parseInt
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @param host the host name
+     * @param defaultValue the value to use when no override is configured for the host
+     * @return boolean
+     */
+    boolean getBoolean(String host, boolean defaultValue) {
+        String value = get(host);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+}
@@ -23,22 +23,44 @@ import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
 import org.eclipse.jetty.ee10.servlet.ServletHolder;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Main entry point for running the HTTP Proxy with embedded Jetty.
  * Used for standalone deployment (fat JAR / Docker).
+ * <p>
+ * The server is configured through environment variables (or system properties with the same
+ * name):
+ * <ul>
+ * <li><code>PORT</code>: the listening port, 8080 by default</li>
+ * <li><code>PROXY_PROP_PATH</code>: the proxy properties files, comma separated</li>
+ * <li><code>THREAD_MODE</code>: <code>virtual</code> runs the requests on virtual threads,
+ * <code>platform</code> on the bounded pool, <code>auto</code> (default) uses virtual threads
+ * when the JDK supports them</li>
+ * <li><code>THREAD_POOL_MAX</code>, <code>THREAD_POOL_MIN</code>: the platform thread pool size,
+ * 200 and 8 by default</li>
+ * <li><code>THREAD_POOL_QUEUE</code>: the maximum number of jobs waiting for a platform thread,
+ * further jobs are rejected; 0 (default) leaves the queue unbounded, as Jetty recommends</li>
+ * <li><code>THREAD_POOL_IDLE_TIMEOUT</code>: the time (ms) after which idle threads are stopped,
+ * 60000 by default</li>
+ * <li><code>ACCEPTORS</code>, <code>SELECTORS</code>: the connector acceptor and selector threads,
+ * -1 (default) lets Jetty size them on the available cores</li>
+ * </ul>
  */
 public class Main {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
 
     public static void main(String[] args) throws Exception {
-        int port = Integer.parseInt(System.getenv().getOrDefault("PORT", "8080"));
+        int port = getInt("PORT", 8080);
 
-        Server server = new Server();
-        ServerConnector connector = new ServerConnector(server);
+        Server server = new Server(createThreadPool());
+        ServerConnector connector = new ServerConnector(server, getInt("ACCEPTORS", -1),
+                getInt("SELECTORS", -1));
         connector.setPort(port);
         server.addConnector(connector);
 
@@ -46,15 +68,82 @@ public class Main {
         context.setContextPath("/");
 
         // Set the proxyPropPath init parameter
-        String proxyPropPath = System.getenv().getOrDefault("PROXY_PROP_PATH", "/proxy.properties");
+        String proxyPropPath = getSetting("PROXY_PROP_PATH", "/proxy.properties");
         context.setInitParameter("proxyPropPath", proxyPropPath);
 
-        // Register the proxy servlet
-        context.addServlet(new ServletHolder(new HTTPProxy()), "/proxy/*");
+        // Register the proxy servlet, async support is used when asyncEnabled is set
+        ServletHolder holder = new ServletHolder(new HTTPProxy());
+        holder.setAsyncSupported(true);
+        context.addServlet(holder, "/proxy/*");
 
         server.setHandler(context);
         server.start();
         LOGGER.info("HTTP Proxy started on port {}", port);
         server.join();
     }
+
+    /**
+     * Creates the server thread pool. The platform threads run the acceptors and the selectors
+     * and, unless virtual threads are in use, the requests too. The queue of pending jobs can be
+     * bounded so that an overloaded proxy rejects connections instead of piling them up.
+     *
+     * @return QueuedThreadPool
+     */
+    static QueuedThreadPool createThreadPool() {
+        int maxThreads = getInt("THREAD_POOL_MAX", 200);
+        int minThreads = Math.min(getInt("THREAD_POOL_MIN", 8), maxThreads);
+        int queueSize = getInt("THREAD_POOL_QUEUE", 0);
+        int idleTimeout = getInt("THREAD_POOL_IDLE_TIMEOUT", 60000);
+
+        BlockingArrayQueue<Runnable> queue = queueSize > 0
+                ? new BlockingArrayQueue<>(queueSize)
+                : new BlockingArrayQueue<>();
+        QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads, idleTimeout, queue);
+        threadPool.setName("http-proxy");
+
+        String mode = getSetting("THREAD_MODE", "auto").trim().toLowerCase();
+        boolean virtual = switch (mode) {
+            case "virtual" -> {
+                if (!VirtualThreads.areSupported()) {
+                    LOGGER.warn("Virtual threads are not supported by this JDK, using platform threads");
+                }
+                yield VirtualThreads.areSupported();
+            }
+            case "auto" -> VirtualThreads.areSupported();
+            case "platform" -> false;
+            default -> {
+                LOGGER.warn("Unknown THREAD_MODE {}, using auto", mode);
+                yield VirtualThreads.areSupported();
+            }
+        };
+
+        if (virtual) {
+            threadPool.setVirtualThreadsExecutor(VirtualThreads.getNamedVirtualThreadsExecutor("http-proxy-vt"));
+            LOGGER.info("Serving the requests on virtual threads");
+        } else {
+            LOGGER.info("Serving the requests on platform threads (max {}, queue {})", maxThreads,
+                    queueSize > 0 ? queueSize : "unbounded");
+        }
+        return threadPool;
+    }
+
+    private static String getSetting(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            value = System.getenv(name);
+        }
+        return value != null && !value.isBlank() ? value : defaultValue;
+    }
+
+    private static int getInt(String name, int defaultValue) {
+        String value = getSetting(name, null);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid value {} for {}, using {}", value, name, defaultValue);
+            }
+        }
+        return defaultValue;
+    }
 }
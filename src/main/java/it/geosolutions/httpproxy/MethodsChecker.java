@@ -34,13 +34,13 @@ import java.util.Set;
  */
 public class MethodsChecker implements ProxyCallback {
 
-    ProxyConfig config;
+    ProxyConfigLoader configLoader;
 
     /**
-     * @param config
+     * @param configLoader
      */
-    public MethodsChecker(ProxyConfig config) {
-        this.config = config;
+    public MethodsChecker(ProxyConfigLoader configLoader) {
+        this.configLoader = configLoader;
     }
 
     /*
@@ -50,7 +50,7 @@ public class MethodsChecker implements ProxyCallback {
      */
     public void onRequest(HttpServletRequest request, HttpServletResponse response, URL url)
             throws IOException {
-        Set<String> methods = config.getMethodsWhitelist();
+        Set<String> methods = configLoader.getConfig().getMethodsWhitelist();
 
         // ////////////////////////////////
         // Check the whitelist of methods
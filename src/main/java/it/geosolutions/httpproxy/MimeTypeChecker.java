@@ -36,13 +36,13 @@ import java.util.Set;
  */
 public class MimeTypeChecker implements ProxyCallback {
 
-    ProxyConfig config;
+    ProxyConfigLoader configLoader;
 
     /**
-     * @param config
+     * @param configLoader
      */
-    public MimeTypeChecker(ProxyConfig config) {
-        this.config = config;
+    public MimeTypeChecker(ProxyConfigLoader configLoader) {
+        this.configLoader = configLoader;
     }
 
     /*
@@ -59,7 +59,7 @@ public class MimeTypeChecker implements ProxyCallback {
      * @see it.geosolutions.httpproxy.ProxyCallback#onRemoteResponse(org.apache.commons.httpclient.HttpMethod)
      */
     public void onRemoteResponse(HttpUriRequestBase method) throws IOException {
-        Set<String> mimeTypes = config.getMimetypeWhitelist();
+        Set<String> mimeTypes = configLoader.getConfig().getMimetypeWhitelist();
 
         if (mimeTypes != null && !mimeTypes.isEmpty()) {
             Header header = method.getFirstHeader("Content-type");
@@ -0,0 +1,195 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.client5.http.ConnectTimeoutException;
+import org.apache.hc.core5.http.HttpStatus;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the recent upstream failures for a few seconds, so that the repeated requests to a
+ * broken resource or a dead host are answered at once instead of holding a connection, or a
+ * thread waiting for the connect timeout, again and again.
+ * <p>
+ * The failures of a resource (404, 410 and 5xx responses, denials of the proxy callbacks on the
+ * response) are kept under its normalized URL, the failures of a host (connect failures, unknown
+ * host names) under its host and port. The entries expire after their time to live; when the map
+ * is full the expired entries are purged and the new failures are not recorded until room is
+ * made.
+ */
+final class NegativeCache {
+
+    private final ConcurrentMap<String, Failure> failures = new ConcurrentHashMap<>();
+
+    private final ProxyMetrics metrics;
+
+    private volatile int maxEntries;
+
+    /**
+     * @param maxEntries the maximum number of failures kept
+     * @param metrics the metrics receiving the per host statistics
+     */
+    NegativeCache(int maxEntries, ProxyMetrics metrics) {
+        this.maxEntries = maxEntries;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param maxEntries the maximum number of failures kept
+     */
+    void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param url the URL of the proxied resource
+     * @return the key of the failures of the host serving the URL
+     */
+    static String hostKey(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return "host " + url.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    /**
+     * @param status the status code of an upstream response
+     * @return true if the status tells the resource is missing or the server is failing
+     */
+    static boolean isFailure(int status) {
+        return status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_GONE
+                || status >= HttpStatus.SC_SERVER_ERROR;
+    }
+
+    /**
+     * @param e the cause of a failed request
+     * @return true if the upstream host could not be resolved or reached
+     */
+    static boolean isHostFailure(Throwable e) {
+        return e instanceof UnknownHostException || e instanceof ConnectException
+                || e instanceof ConnectTimeoutException || e instanceof NoRouteToHostException;
+    }
+
+    /**
+     * @param key the key of the resource or the host
+     * @param now the current time (ms)
+     * @return the failure recorded under the key, or null if none or expired
+     */
+    Failure get(String key, long now) {
+        Failure failure = failures.get(key);
+        if (failure == null) {
+            return null;
+        }
+        if (failure.expires <= now) {
+            failures.remove(key, failure);
+            return null;
+        }
+        metrics.increment("negative.hit", failure.host);
+        return failure;
+    }
+
+    /**
+     * Records a failure, replacing the previous one under the same key.
+     *
+     * @param key the key of the resource or the host
+     * @param host the target host, for the metrics
+     * @param code the status code answering the requests while the failure is remembered
+     * @param message the error message
+     * @param ttl the time (ms) the failure is remembered
+     */
+    void put(String key, String host, int code, String message, long ttl) {
+        if (ttl <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (failures.size() >= maxEntries && !failures.containsKey(key)) {
+            purge(now);
+            if (failures.size() >= maxEntries) {
+                return;
+            }
+        }
+        failures.put(key, new Failure(host, code, message, now + ttl));
+        metrics.increment("negative.store", host);
+    }
+
+    private void purge(long now) {
+        for (Iterator<Failure> i = failures.values().iterator(); i.hasNext();) {
+            if (i.next().expires <= now) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of failures kept, expired ones included
+     */
+    int size() {
+        return failures.size();
+    }
+
+    /**
+     * A remembered failure.
+     */
+    static final class Failure {
+
+        private final String host;
+
+        private final int code;
+
+        private final String message;
+
+        private final long expires;
+
+        Failure(String host, int code, String message, long expires) {
+            this.host = host;
+            this.code = code;
+            this.message = message;
+            this.expires = expires;
+        }
+
+        /**
+         * @return the status code answering the requests
+         */
+        int getCode() {
+            return code;
+        }
+
+        /**
+         * @return the error message
+         */
+        String getMessage() {
+            return message;
+        }
+
+        /**
+         * @param now the current time (ms)
+         * @return the seconds left before the failure expires, rounded up
+         */
+        long getRetryAfter(long now) {
+            return Math.max(1, (expires - now + 999) / 1000);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches target hosts against the <code>http.nonProxyHosts</code> system property.
+ * <p>
+ * The property is compiled only when its value changes and the decision taken for each host is
+ * cached, so routing a request does not involve any regular expression work in the common case.
+ */
+final class NonProxyHostMatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NonProxyHostMatcher.class);
+
+    static final String NON_PROXY_HOSTS_PROPERTY = "http.nonProxyHosts";
+
+    /**
+     * Upper bound of the cached decisions, the cache is cleared when reached
+     */
+    static final int MAX_CACHED_HOSTS = 1024;
+
+    private volatile State state = new State(null);
+
+    /**
+     * @param host the target host name
+     * @return true if the host must be reached directly, bypassing the outgoing proxy
+     */
+    boolean isNonProxyHost(String host) {
+        String property = System.getProperty(NON_PROXY_HOSTS_PROPERTY);
+        State current = state;
+        if (!Objects.equals(property, current.property)) {
+            current = new State(property);
+            state = current;
+        }
+        return current.isNonProxyHost(host);
+    }
+
+    /**
+     * The compiled form of a given property value, along with the decisions taken so far.
+     */
+    private static final class State {
+
+        private final String property;
+
+        private final PatternMatcher matcher;
+
+        private final Map<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+        State(String property) {
+            this.property = property;
+            this.matcher = PatternMatcher.compile(parse(property));
+        }
+
+        boolean isNonProxyHost(String host) {
+            Boolean decision = decisions.get(host);
+            if (decision == null) {
+                decision = matcher.matches(host);
+                if (decisions.size() >= MAX_CACHED_HOSTS) {
+                    decisions.clear();
+                }
+                decisions.put(host, decision);
+                if (decision) {
+                    LOGGER.debug("Non proxy host matched for: {}", host);
+                }
+            }
+            return decision;
+        }
+
+        private static List<String> parse(String nonProxyHostProp) {
+            List<String> regexes = new ArrayList<>();
+            if (nonProxyHostProp != null) {
+                if (nonProxyHostProp.startsWith("\"")) {
+                    nonProxyHostProp = nonProxyHostProp.substring(1);
+                }
+                if (nonProxyHostProp.endsWith("\"")) {
+                    nonProxyHostProp = nonProxyHostProp.substring(0, nonProxyHostProp.length() - 1);
+                }
+                LOGGER.info("http.nonProxyHosts value: {}", nonProxyHostProp);
+                for (String token : nonProxyHostProp.split("\\|")) {
+                    String str = token.trim();
+                    regexes.add(str.replace("*", "[\\w-]*"));
+                }
+            }
+            return regexes;
+        }
+    }
+}
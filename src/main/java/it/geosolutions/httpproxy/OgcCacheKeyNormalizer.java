@@ -0,0 +1,196 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.math.BigDecimal;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The default {@link CacheKeyNormalizer}, canonicalizing the OGC requests (WMS, WFS, WCS, WMTS,
+ * CSW) written in different ways by the clients.
+ * <p>
+ * The parameters listed by <code>cacheKeyIgnoredParams</code> (cache busters) are removed from any
+ * URL. The query strings with a <code>SERVICE</code> or <code>REQUEST</code> parameter are key-value
+ * pair requests whose parameter names are case insensitive: the names are upper cased and sorted,
+ * and the values of SERVICE, REQUEST, VERSION, SRS/CRS, FORMAT and BBOX are normalized. The other
+ * URLs keep the order and case of their parameters.
+ */
+public class OgcCacheKeyNormalizer implements CacheKeyNormalizer {
+
+    private static final Pattern VERSION = Pattern.compile("\\d+(\\.\\d+){0,2}");
+
+    private static final Set<String> UPPER_CASE_VALUES = Set.of("SERVICE", "SRS", "CRS");
+
+    private static final Set<String> LOWER_CASE_VALUES = Set.of("REQUEST", "FORMAT", "INFO_FORMAT",
+            "OUTPUTFORMAT");
+
+    @Override
+    public String normalize(URL url, Set<String> ignoredParams) {
+        StringBuilder key = new StringBuilder(url.getProtocol().toLowerCase(Locale.ROOT)).append("://")
+                .append(url.getHost().toLowerCase(Locale.ROOT));
+        if (url.getPort() != -1) {
+            key.append(':').append(url.getPort());
+        }
+        key.append(url.getPath());
+
+        String query = url.getQuery();
+        if (query == null) {
+            return key.toString();
+        }
+
+        List<String[]> params;
+        try {
+            params = parse(query, ignoredParams);
+        } catch (IllegalArgumentException e) {
+            // a malformed escape, the query is kept as is
+            return key.append('?').append(query).toString();
+        }
+
+        if (isOgcRequest(params)) {
+            for (String[] param : params) {
+                param[0] = param[0].toUpperCase(Locale.ROOT);
+                param[1] = normalizeValue(param[0], param[1]);
+            }
+            params.sort(Comparator.comparing((String[] param) -> param[0]).thenComparing(param -> param[1]));
+        }
+
+        char separator = '?';
+        for (String[] param : params) {
+            key.append(separator).append(encode(param[0]));
+            if (param[1] != null) {
+                key.append('=').append(encode(param[1]));
+            }
+            separator = '&';
+        }
+        return key.toString();
+    }
+
+    /**
+     * Normalizes the value of an OGC parameter.
+     *
+     * @param name the upper case parameter name
+     * @param value the decoded value, can be null
+     * @return the normalized value
+     */
+    protected String normalizeValue(String name, String value) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        if (UPPER_CASE_VALUES.contains(name)) {
+            return value.toUpperCase(Locale.ROOT);
+        }
+        if (LOWER_CASE_VALUES.contains(name)) {
+            return value.toLowerCase(Locale.ROOT);
+        }
+        if (name.equals("VERSION") || name.equals("ACCEPTVERSIONS")) {
+            return normalizeVersion(value);
+        }
+        if (name.equals("BBOX")) {
+            return normalizeNumbers(value);
+        }
+        return value;
+    }
+
+    /**
+     * Completes a version number to its three parts: 1.3 is 1.3.0.
+     */
+    static String normalizeVersion(String version) {
+        if (!VERSION.matcher(version).matches()) {
+            return version;
+        }
+        String[] parts = version.split("\\.");
+        StringBuilder normalized = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            if (i > 0) {
+                normalized.append('.');
+            }
+            normalized.append(i < parts.length ? Integer.toString(Integer.parseInt(parts[i])) : "0");
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Writes the numbers of a comma separated list in their shortest form: 10.50 and 1.05E1 are
+     * 10.5. The other items (the CRS of a WFS BBOX) are left as they are.
+     */
+    static String normalizeNumbers(String list) {
+        String[] items = list.split(",", -1);
+        StringBuilder normalized = new StringBuilder();
+        for (int i = 0; i < items.length; i++) {
+            if (i > 0) {
+                normalized.append(',');
+            }
+            String item = items[i].trim();
+            try {
+                BigDecimal number = new BigDecimal(item);
+                normalized.append(number.signum() == 0 ? "0" : number.stripTrailingZeros().toPlainString());
+            } catch (NumberFormatException e) {
+                normalized.append(item);
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static boolean isOgcRequest(List<String[]> params) {
+        for (String[] param : params) {
+            if (param[0].equalsIgnoreCase("SERVICE") || param[0].equalsIgnoreCase("REQUEST")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes the parameters of a query string, without the ignored ones.
+     *
+     * @return the name and value, null without =, of each parameter
+     */
+    private static List<String[]> parse(String query, Set<String> ignored) {
+        List<String[]> params = new ArrayList<>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals >= 0 ? pair.substring(0, equals) : pair, StandardCharsets.UTF_8);
+            if (ignored.contains(name.toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            String value = equals >= 0 ? URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8)
+                    : null;
+            params.add(new String[] {name, value});
+        }
+        return params;
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
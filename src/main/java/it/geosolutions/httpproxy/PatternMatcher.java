@@ -0,0 +1,137 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A set of regular expressions compiled once and matched as a whole: the input matches if it
+ * fully matches any of the expressions.
+ * <p>
+ * Whenever possible the expressions are combined in a single alternation, so that a check costs
+ * one pass of the regex engine instead of one per expression. Expressions using back references
+ * cannot be safely merged (the group numbers would shift) and are kept apart.
+ */
+final class PatternMatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PatternMatcher.class);
+
+    /**
+     * Detects numbered and named back references
+     */
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+
+    static final PatternMatcher EMPTY = new PatternMatcher(Collections.emptyList(), 0);
+
+    private final List<Pattern> patterns;
+
+    private final int size;
+
+    private PatternMatcher(List<Pattern> patterns, int size) {
+        this.patterns = patterns;
+        this.size = size;
+    }
+
+    /**
+     * Compiles the given regular expressions. Invalid expressions are logged and never match.
+     *
+     * @param regexes the regular expressions, can be null
+     * @return PatternMatcher
+     */
+    static PatternMatcher compile(Collection<String> regexes) {
+        if (regexes == null || regexes.isEmpty()) {
+            return EMPTY;
+        }
+
+        List<Pattern> patterns = new ArrayList<>();
+        List<String> combinable = new ArrayList<>();
+        for (String regex : regexes) {
+            Pattern pattern = compile(regex);
+            if (pattern == null) {
+                continue;
+            }
+            if (BACK_REFERENCE.matcher(regex).find()) {
+                patterns.add(pattern);
+            } else {
+                combinable.add(regex);
+            }
+        }
+
+        if (combinable.size() == 1) {
+            patterns.add(0, Pattern.compile(combinable.get(0)));
+        } else if (!combinable.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (String regex : combinable) {
+                if (sb.length() > 0) {
+                    sb.append('|');
+                }
+                sb.append("(?:").append(regex).append(')');
+            }
+            try {
+                patterns.add(0, Pattern.compile(sb.toString()));
+            } catch (PatternSyntaxException e) {
+                // e.g. the same named group used in two expressions
+                LOGGER.debug("Cannot combine the regular expressions, matching them one by one", e);
+                for (String regex : combinable) {
+                    patterns.add(Pattern.compile(regex));
+                }
+            }
+        }
+
+        return new PatternMatcher(Collections.unmodifiableList(patterns), regexes.size());
+    }
+
+    private static Pattern compile(String regex) {
+        try {
+            return Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            LOGGER.error("Invalid regular expression {} will never match", regex, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if no expression was configured
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param input the input to check
+     * @return true if the input fully matches one of the expressions
+     */
+    boolean matches(CharSequence input) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(input).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
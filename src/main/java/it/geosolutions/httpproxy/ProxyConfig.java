@@ -19,20 +19,32 @@
  */
 package it.geosolutions.httpproxy;
 
-import jakarta.servlet.ServletContext;
+import org.apache.hc.core5.http.HttpHost;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
 /**
  * ProxyConfig class to define the proxy configuration.
+ * <p>
+ * Instances are immutable snapshots of the properties files: they are built once by the
+ * {@link ProxyConfigLoader} and replaced as a whole when the files change, so that the
+ * request path never has to touch the file system.
  *
  * @author Tobia Di Pisa at tobia.dipisa@geo-solutions.it
  */
@@ -43,490 +55,1468 @@ final class ProxyConfig {
     /**
      * A list of regular expressions describing hostnames the proxy is permitted to forward to
      */
-    private Set<String> hostnameWhitelist = new HashSet<>();
+    private final Set<String> hostnameWhitelist;
+
+    /**
+     * The maximum number of requests in flight to a host, or to the hosts of a pattern
+     */
+    private final HostSettings routeMaxInFlight;
+
+    /**
+     * The maximum number of requests waiting for a host whose requests in flight are limited
+     */
+    private int bulkheadMaxQueued = 10;
+
+    private final HostSettings routeBulkheadMaxQueued;
+
+    /**
+     * The maximum time (ms) a request waits for a host whose requests in flight are limited
+     */
+    private int bulkheadQueueTimeout = 1000;
+
+    private final HostSettings routeBulkheadQueueTimeout;
+
+    /**
+     * True if the limit of the requests in flight to a host follows its latency
+     */
+    private boolean adaptiveConcurrency = false;
+
+    private final HostSettings routeAdaptiveConcurrency;
+
+    /**
+     * The bounds of the adaptive limits, and the limit before any latency is measured
+     */
+    private int adaptiveConcurrencyMinLimit = 2;
+
+    private int adaptiveConcurrencyMaxLimit = 200;
+
+    private int adaptiveConcurrencyInitialLimit = 20;
+
+    private final HostSettings routeAdaptiveConcurrencyInitialLimit;
+
+    /**
+     * The latency, in percent of its long term average, beyond which an adaptive limit shrinks
+     */
+    private int adaptiveConcurrencyTolerance = 150;
+
+    /**
+     * The adaptive limit, in percent, kept after a failure
+     */
+    private int adaptiveConcurrencyBackoff = 90;
 
     /**
      * A list of regular expressions describing MIMETypes the proxy is permitted to forward
      */
-    private Set<String> mimetypeWhitelist = new HashSet<>();
+    private final Set<String> mimetypeWhitelist;
+
+    /**
+     * A list of regular expressions describing Request Types the proxy is permitted to forward
+     */
+    private final Set<String> reqtypeWhitelist;
+
+    /**
+     * The request type white list compiled once for this snapshot
+     */
+    private final PatternMatcher reqtypeMatcher;
+
+    /**
+     * A list of regular expressions describing request METHODS the proxy is permitted to forward
+     */
+    private final Set<String> methodsWhitelist;
+
+    /**
+     * A list of regular expressions describing request HOSTS the proxy is permitted to forward
+     */
+    private final Set<String> hostsWhitelist;
+
+    /**
+     * A list of request header names (case-insensitive) that the proxy is permitted to forward.
+     * If non-empty, only headers in this set will be forwarded.
+     */
+    private final Set<String> requestHeaderWhitelist;
+
+    /**
+     * A list of request header names (case-insensitive) that the proxy must NOT forward.
+     * Headers in this set will always be removed, even if they appear in the whitelist.
+     */
+    private final Set<String> requestHeaderBlacklist;
+
+    /**
+     * The request timeout
+     */
+    private int soTimeout = 30000;
+
+    /**
+     * The connection timeout
+     */
+    private int connectionTimeout = 30000;
+
+    /**
+     * The maximum time (ms) to wait for a connection from the pool
+     */
+    private int connectionRequestTimeout = 10000;
+
+    /**
+     * The maximum time (ms) for a whole proxied exchange, response body included, 0 or negative means no limit
+     */
+    private int totalTimeout = 0;
+
+    /**
+     * The per host overrides of the request timeout
+     */
+    private final HostSettings routeSoTimeout;
+
+    /**
+     * The per host overrides of the connection timeout
+     */
+    private final HostSettings routeConnectionTimeout;
+
+    /**
+     * The per host overrides of the connection request timeout
+     */
+    private final HostSettings routeConnectionRequestTimeout;
+
+    /**
+     * The per host overrides of the total timeout
+     */
+    private final HostSettings routeTotalTimeout;
+
+    /**
+     * The maximum total connections available
+     */
+    private int maxTotalConnections = 60;
+
+    /**
+     * The maximum connections available per host
+     */
+    private int defaultMaxConnectionsPerHost = 6;
+
+    /**
+     * The maximum connections available for specific hosts
+     */
+    private final HostSettings routeMaxConnections;
+
+    /**
+     * The maximum life time (ms) of a pooled connection, 0 or negative means no limit
+     */
+    private int connectionTimeToLive = 0;
+
+    /**
+     * The time (ms) after which idle pooled connections are closed, 0 or negative disables the eviction
+     */
+    private int idleConnectionTimeout = 60000;
+
+    /**
+     * The inactivity period (ms) after which a pooled connection is checked before being reused
+     */
+    private int validateAfterInactivity = 2000;
+
+    /**
+     * The time (s) the addresses of an upstream host are cached, 0 disables the cache
+     */
+    private int dnsCacheTtl = 60;
+
+    /**
+     * The time (s) an unknown upstream host is cached
+     */
+    private int dnsNegativeTtl = 5;
+
+    /**
+     * The time (s) before their expiry during which the cached addresses in use are refreshed
+     * in the background
+     */
+    private int dnsRefreshBefore = 10;
+
+    /**
+     * The hosts file giving static addresses, null if none
+     */
+    private Path dnsHostsFile;
+
+    /**
+     * The addresses of the hosts resolved without lookup, by lower case host name
+     */
+    private final Map<String, InetAddress[]> dnsStaticAddresses;
+
+    /**
+     * The backends of the logical upstream hosts, by lower case host name
+     */
+    private final Map<String, List<HttpHost>> upstreamPools;
+
+    /**
+     * How a backend is picked: leastOutstanding or peakEwma
+     */
+    private String upstreamPoolBalancer = "peakEwma";
+
+    /**
+     * The number of failures in a row ejecting a backend, 0 to never eject
+     */
+    private int upstreamPoolEjectFailures = 5;
+
+    /**
+     * The time (ms) an ejected backend is left out
+     */
+    private int upstreamPoolEjectDuration = 30000;
+
+    /**
+     * The maximum percentage of the backends of a pool ejected at once
+     */
+    private int upstreamPoolMaxEjectedPercent = 50;
+
+    /**
+     * The URLs probed by the health checks, by name
+     */
+    private final Map<String, URL> healthChecks;
+
+    /**
+     * The interval (ms) between two rounds of health checks
+     */
+    private int healthCheckInterval = 10000;
+
+    /**
+     * The maximum time (ms) for a health check
+     */
+    private int healthCheckTimeout = 2000;
+
+    /**
+     * The number of failed, and of successful, health checks in a row marking an upstream server down,
+     * and up again
+     */
+    private int healthCheckUnhealthyThreshold = 2;
+
+    private int healthCheckHealthyThreshold = 2;
+
+    /**
+     * The number of idle connections kept open to each healthy upstream server
+     */
+    private int healthCheckMinIdleConnections = 2;
+
+    /**
+     * The size of the buffers streaming the bodies, used as is when the length of the body is unknown
+     */
+    private int defaultStreamByteSize = 8192;
+
+    /**
+     * The maximum size of the buffers streaming the bodies, picked for large bodies of known length
+     */
+    private int maxStreamByteSize = 65536;
+
+    /**
+     * The maximum amount of memory (bytes) retained by the pool of stream buffers
+     */
+    private int bufferPoolSize = 16 * 1024 * 1024;
+
+    /**
+     * Whether the multipart uploads are streamed as they are instead of being parsed and rebuilt
+     */
+    private boolean multipartStreaming = true;
+
+    /**
+     * Whether the requests are served asynchronously, without holding a container thread while waiting for the upstream server
+     */
+    private boolean asyncEnabled = false;
+
+    /**
+     * Whether the Accept-Encoding of the client is forwarded and the compressed responses relayed as they are
+     */
+    private boolean compressionPassThrough = false;
+
+    /**
+     * Whether the proxy compresses the textual responses sent uncompressed by the upstream server
+     */
+    private boolean compressionEnabled = false;
+
+    /**
+     * The minimum length (bytes) of the responses compressed by the proxy
+     */
+    private int compressionMinSize = 1024;
+
+    /**
+     * The deflate level (1-9) of the responses compressed by the proxy
+     */
+    private int compressionLevel = 6;
+
+    /**
+     * Whether the cacheable upstream responses to GET requests are stored and served by the proxy
+     */
+    private boolean cacheEnabled = false;
+
+    /**
+     * The maximum memory (bytes) taken by the cached responses
+     */
+    private long cacheMaxSize = 64 * 1024 * 1024;
+
+    /**
+     * The maximum length (bytes) of a cached response body, larger ones are only relayed
+     */
+    private int cacheMaxEntrySize = 1024 * 1024;
+
+    /**
+     * The class name of the {@link CacheKeyNormalizer}
+     */
+    private String cacheKeyNormalizer = OgcCacheKeyNormalizer.class.getName();
+
+    /**
+     * The query parameters, lower case, left out of the cache keys
+     */
+    private Set<String> cacheKeyIgnoredParams = Collections.emptySet();
+
+    /**
+     * Whether the cached bodies are kept in direct memory, off the Java heap
+     */
+    private boolean cacheOffHeap = false;
+
+    /**
+     * The directory of the disk tier of the response cache, null to keep the responses in memory only
+     */
+    private String cacheDiskPath;
+
+    /**
+     * The maximum disk space (bytes) taken by the cached responses
+     */
+    private long cacheDiskMaxSize = 1024L * 1024 * 1024;
+
+    /**
+     * The size (bytes) of the segment files of the disk tier
+     */
+    private int cacheDiskSegmentSize = 64 * 1024 * 1024;
+
+    /**
+     * The maximum length (bytes) of a response body cached on the disk
+     */
+    private int cacheDiskMaxEntrySize = 32 * 1024 * 1024;
+
+    /**
+     * Whether the responses read recently are kept when the oldest segment is dropped
+     */
+    private boolean cacheDiskLru = true;
+
+    /**
+     * The time (s) a stale response is served while it is refreshed in the background, when the
+     * upstream server does not send a stale-while-revalidate
+     */
+    private int staleWhileRevalidate = 0;
+
+    private final HostSettings routeStaleWhileRevalidate;
+
+    /**
+     * The time (s) a stale response is served when the upstream server fails, when it does not
+     * send a stale-if-error
+     */
+    private int staleIfError = 0;
+
+    private final HostSettings routeStaleIfError;
+
+    /**
+     * The number of threads refreshing the stale responses in the background
+     */
+    private int cacheRefreshThreads = 2;
+
+    /**
+     * The maximum number of background refreshes waiting for a thread
+     */
+    private int cacheRefreshQueueSize = 64;
+
+    /**
+     * The hosts whose small POST queries are buffered, to be cached and coalesced
+     */
+    private final HostSettings routeCachePost;
+
+    /**
+     * The maximum length (bytes) of a buffered POST query
+     */
+    private int cachePostMaxBodySize = 64 * 1024;
+
+    /**
+     * The max-age (s) given to the responses to POST queries without explicit freshness
+     */
+    private int cachePostMaxAge = 0;
+
+    /**
+     * The hosts whose responses without validators are given a content hash ETag
+     */
+    private final HostSettings routeContentEtag;
+
+    /**
+     * The maximum length (bytes) of a response buffered to be tagged before it is relayed
+     */
+    private int contentEtagMaxSize = 1024 * 1024;
+
+    /**
+     * The hosts whose identical GET requests in flight are coalesced
+     */
+    private final HostSettings routeCoalesce;
+
+    /**
+     * The maximum number of requests following a coalesced one
+     */
+    private int coalesceMaxFollowers = 64;
+
+    /**
+     * The maximum amount (bytes) of a coalesced response buffered for its followers
+     */
+    private long coalesceMaxBufferSize = 4 * 1024 * 1024;
+
+    /**
+     * The request headers, lower case, that must be equal for two requests to be coalesced
+     */
+    private List<String> coalesceKeyHeaders = List.of("accept", "accept-encoding", "accept-language");
+
+    /**
+     * The time (s) an upstream failure is remembered and answered without contacting the
+     * upstream server, 0 disables the negative cache
+     */
+    private int negativeCacheTtl = 0;
+
+    private final HostSettings routeNegativeCacheTtl;
+
+    /**
+     * The maximum number of upstream failures remembered
+     */
+    private int negativeCacheMaxEntries = 10000;
+
+    /**
+     * Whether the upstream servers are given a circuit breaker, unless set per host
+     */
+    private boolean circuitBreaker = false;
+
+    private final HostSettings routeCircuitBreaker;
+
+    /**
+     * The number of calls in the sliding window of a closed circuit
+     */
+    private int circuitBreakerWindow = 20;
+
+    /**
+     * The minimum number of calls in the window before the circuit can open
+     */
+    private int circuitBreakerMinCalls = 10;
+
+    /**
+     * The percentage of failed calls in the window opening the circuit
+     */
+    private int circuitBreakerFailureRate = 50;
+
+    /**
+     * The time (ms) to the response head beyond which a call is slow
+     */
+    private int circuitBreakerSlowCallDuration = 10000;
+
+    /**
+     * The percentage of slow calls in the window opening the circuit
+     */
+    private int circuitBreakerSlowCallRate = 100;
+
+    /**
+     * The time (ms) an open circuit rejects the calls before letting trial calls through
+     */
+    private int circuitBreakerOpenDuration = 30000;
+
+    /**
+     * The number of trial calls of a half open circuit
+     */
+    private int circuitBreakerHalfOpenCalls = 3;
+
+    /**
+     * The interval (ms) between two checks of the properties files for changes, 0 disables the reload
+     */
+    private int configReloadInterval = 5000;
+
+    /**
+     * Builds a configuration snapshot out of the given properties.
+     *
+     * @param props the merged content of the proxy properties files
+     */
+    ProxyConfig(Properties props) {
+        // ////////////////////////////////////////////////////////////
+        // Load proxy configuration white lists from properties file
+        // ////////////////////////////////////////////////////////////
+
+        this.hostnameWhitelist = whiteList(Utils.parseWhiteList(props.getProperty("hostnameWhitelist")));
+        this.routeMaxInFlight = HostSettings.parseInt(props, "route.maxInFlight.");
+        this.bulkheadMaxQueued = getInt(props, "bulkheadMaxQueued", this.bulkheadMaxQueued);
+        this.routeBulkheadMaxQueued = HostSettings.parseInt(props, "route.bulkheadMaxQueued.");
+        this.bulkheadQueueTimeout = getInt(props, "bulkheadQueueTimeout", this.bulkheadQueueTimeout);
+        this.routeBulkheadQueueTimeout = HostSettings.parseInt(props, "route.bulkheadQueueTimeout.");
+        this.adaptiveConcurrency = getBoolean(props, "adaptiveConcurrency", this.adaptiveConcurrency);
+        this.routeAdaptiveConcurrency = HostSettings.parse(props, "route.adaptiveConcurrency.");
+        this.adaptiveConcurrencyMinLimit = getInt(props, "adaptiveConcurrencyMinLimit",
+                this.adaptiveConcurrencyMinLimit);
+        this.adaptiveConcurrencyMaxLimit = getInt(props, "adaptiveConcurrencyMaxLimit",
+                this.adaptiveConcurrencyMaxLimit);
+        this.adaptiveConcurrencyInitialLimit = getInt(props, "adaptiveConcurrencyInitialLimit",
+                this.adaptiveConcurrencyInitialLimit);
+        this.routeAdaptiveConcurrencyInitialLimit = HostSettings.parseInt(props,
+                "route.adaptiveConcurrencyInitialLimit.");
+        this.adaptiveConcurrencyTolerance = getInt(props, "adaptiveConcurrencyTolerance",
+                this.adaptiveConcurrencyTolerance);
+        this.adaptiveConcurrencyBackoff = getInt(props, "adaptiveConcurrencyBackoff", this.adaptiveConcurrencyBackoff);
+        this.mimetypeWhitelist = whiteList(Utils.parseWhiteList(props.getProperty("mimetypeWhitelist")));
+        this.methodsWhitelist = whiteList(Utils.parseWhiteList(props.getProperty("methodsWhitelist")));
+        this.hostsWhitelist = whiteList(Utils.parseWhiteList(props.getProperty("hostsWhitelist")));
+        this.requestHeaderWhitelist = whiteList(Utils.toLowerCaseSet(
+                Utils.parseWhiteList(props.getProperty("requestHeaderWhitelist"))));
+        this.requestHeaderBlacklist = whiteList(Utils.toLowerCaseSet(
+                Utils.parseWhiteList(props.getProperty("requestHeaderBlacklist"))));
+
+        // ////////////////////////////////////////
+        // Read various request type properties
+        // ////////////////////////////////////////
+
+        Set<String> rt = new HashSet<>();
+        String s = props.getProperty("reqtypeWhitelist.capabilities");
+        if (s != null)
+            rt.add(s);
+
+        s = props.getProperty("reqtypeWhitelist.geostore");
+        if (s != null)
+            rt.add(s);
+
+        s = props.getProperty("reqtypeWhitelist.csw");
+        if (s != null)
+            rt.add(s);
+
+        s = props.getProperty("reqtypeWhitelist.featureinfo");
+        if (s != null)
+            rt.add(s);
+
+        s = props.getProperty("reqtypeWhitelist.generic");
+        if (s != null)
+            rt.add(s);
+
+        this.reqtypeWhitelist = Collections.unmodifiableSet(rt);
+        this.reqtypeMatcher = PatternMatcher.compile(rt);
+
+        this.routeMaxConnections = HostSettings.parseInt(props, "route.maxConnections.");
+        this.routeSoTimeout = HostSettings.parseInt(props, "route.timeout.");
+        this.routeConnectionTimeout = HostSettings.parseInt(props, "route.connectionTimeout.");
+        this.routeConnectionRequestTimeout = HostSettings.parseInt(props, "route.connectionRequestTimeout.");
+        this.routeTotalTimeout = HostSettings.parseInt(props, "route.totalTimeout.");
+
+        // /////////////////////////////////////////////////
+        // Load byte size configuration from
+        // properties file.
+        // /////////////////////////////////////////////////
+
+        this.defaultStreamByteSize = getInt(props, "defaultStreamByteSize", this.defaultStreamByteSize);
+        this.maxStreamByteSize = getInt(props, "maxStreamByteSize", this.maxStreamByteSize);
+        this.bufferPoolSize = getInt(props, "bufferPoolSize", this.bufferPoolSize);
+
+        // /////////////////////////////////////////////////
+        // Load connection manager configuration from
+        // properties file.
+        // /////////////////////////////////////////////////
+
+        this.soTimeout = getInt(props, "timeout", this.soTimeout);
+        this.connectionTimeout = getInt(props, "connection_timeout", this.connectionTimeout);
+        this.connectionRequestTimeout = getInt(props, "connection_request_timeout",
+                this.connectionRequestTimeout);
+        this.totalTimeout = getInt(props, "total_timeout", this.totalTimeout);
+        this.maxTotalConnections = getInt(props, "max_total_connections", this.maxTotalConnections);
+        this.defaultMaxConnectionsPerHost = getInt(props, "default_max_connections_per_host",
+                this.defaultMaxConnectionsPerHost);
+        this.connectionTimeToLive = getInt(props, "connection_time_to_live", this.connectionTimeToLive);
+        this.idleConnectionTimeout = getInt(props, "idle_connection_timeout", this.idleConnectionTimeout);
+        this.validateAfterInactivity = getInt(props, "validate_after_inactivity",
+                this.validateAfterInactivity);
+
+        // /////////////////////////////////////////////////
+        // Load the name resolution
+        // /////////////////////////////////////////////////
+
+        this.dnsCacheTtl = getInt(props, "dnsCacheTtl", this.dnsCacheTtl);
+        this.dnsNegativeTtl = getInt(props, "dnsNegativeTtl", this.dnsNegativeTtl);
+        this.dnsRefreshBefore = getInt(props, "dnsRefreshBefore", this.dnsRefreshBefore);
+        Map<String, InetAddress[]> staticAddresses = new HashMap<>();
+        String hostsFile = props.getProperty("dnsHostsFile");
+        if (hostsFile != null && !hostsFile.isBlank()) {
+            this.dnsHostsFile = Paths.get(hostsFile.trim());
+            CachingDnsResolver.parseHostsFile(this.dnsHostsFile, staticAddresses);
+        }
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith("dnsAddress.") && name.length() > "dnsAddress.".length()) {
+                String host = name.substring("dnsAddress.".length()).toLowerCase(Locale.ROOT);
+                InetAddress[] addresses = CachingDnsResolver.parseAddresses(host,
+                        Arrays.asList(props.getProperty(name).split(",")));
+                if (addresses != null) {
+                    staticAddresses.put(host, addresses);
+                }
+            }
+        }
+        this.dnsStaticAddresses = Collections.unmodifiableMap(staticAddresses);
+
+        // /////////////////////////////////////////////////
+        // Load the upstream pools
+        // /////////////////////////////////////////////////
+
+        Map<String, List<HttpHost>> pools = new HashMap<>();
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith("upstreamPool.") && name.length() > "upstreamPool.".length()) {
+                String host = name.substring("upstreamPool.".length()).toLowerCase(Locale.ROOT);
+                List<HttpHost> backends = UpstreamPools.parseBackends(host,
+                        Arrays.asList(props.getProperty(name).split(",")));
+                if (backends != null) {
+                    pools.put(host, Collections.unmodifiableList(backends));
+                }
+            }
+        }
+        this.upstreamPools = Collections.unmodifiableMap(pools);
+        this.upstreamPoolBalancer = props.getProperty("upstreamPoolBalancer", this.upstreamPoolBalancer).trim();
+        this.upstreamPoolEjectFailures = getInt(props, "upstreamPoolEjectFailures", this.upstreamPoolEjectFailures);
+        this.upstreamPoolEjectDuration = getInt(props, "upstreamPoolEjectDuration", this.upstreamPoolEjectDuration);
+        this.upstreamPoolMaxEjectedPercent = getInt(props, "upstreamPoolMaxEjectedPercent",
+                this.upstreamPoolMaxEjectedPercent);
+
+        // /////////////////////////////////////////////////
+        // Load the health checks
+        // /////////////////////////////////////////////////
+
+        Map<String, URL> checks = new HashMap<>();
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith("healthCheck.") && name.length() > "healthCheck.".length()) {
+                String value = props.getProperty(name).trim();
+                try {
+                    checks.put(name.substring("healthCheck.".length()), Utils.buildURL(value));
+                } catch (MalformedURLException e) {
+                    LOGGER.warn("Invalid health check URL {} for {}", value, name);
+                }
+            }
+        }
+        this.healthChecks = Collections.unmodifiableMap(checks);
+        this.healthCheckInterval = getInt(props, "healthCheckInterval", this.healthCheckInterval);
+        this.healthCheckTimeout = getInt(props, "healthCheckTimeout", this.healthCheckTimeout);
+        this.healthCheckUnhealthyThreshold = getInt(props, "healthCheckUnhealthyThreshold",
+                this.healthCheckUnhealthyThreshold);
+        this.healthCheckHealthyThreshold = getInt(props, "healthCheckHealthyThreshold",
+                this.healthCheckHealthyThreshold);
+        this.healthCheckMinIdleConnections = getInt(props, "healthCheckMinIdleConnections",
+                this.healthCheckMinIdleConnections);
+
+        // /////////////////////////////////////////////////
+        // Load the servlet mode
+        // /////////////////////////////////////////////////
+
+        this.asyncEnabled = getBoolean(props, "asyncEnabled", this.asyncEnabled);
+        this.multipartStreaming = getBoolean(props, "multipartStreaming", this.multipartStreaming);
+
+        // /////////////////////////////////////////////////
+        // Load the response compression
+        // /////////////////////////////////////////////////
+
+        this.compressionPassThrough = getBoolean(props, "compressionPassThrough", this.compressionPassThrough);
+        this.compressionEnabled = getBoolean(props, "compressionEnabled", this.compressionEnabled);
+        this.compressionMinSize = getInt(props, "compressionMinSize", this.compressionMinSize);
+        this.compressionLevel = Math.max(1, Math.min(9, getInt(props, "compressionLevel", this.compressionLevel)));
+
+        // /////////////////////////////////////////////////
+        // Load the response cache
+        // /////////////////////////////////////////////////
+
+        this.cacheEnabled = getBoolean(props, "cacheEnabled", this.cacheEnabled);
+        this.cacheMaxSize = getLong(props, "cacheMaxSize", this.cacheMaxSize);
+        this.cacheMaxEntrySize = getInt(props, "cacheMaxEntrySize", this.cacheMaxEntrySize);
+        this.cacheOffHeap = getBoolean(props, "cacheOffHeap", this.cacheOffHeap);
+        String normalizer = props.getProperty("cacheKeyNormalizer");
+        if (normalizer != null && !normalizer.isBlank()) {
+            this.cacheKeyNormalizer = normalizer.trim();
+        }
+        Set<String> ignoredParams = Utils.toLowerCaseSet(
+                Utils.parseWhiteList(props.getProperty("cacheKeyIgnoredParams")));
+        if (ignoredParams != null) {
+            ignoredParams.remove("");
+            this.cacheKeyIgnoredParams = whiteList(ignoredParams);
+        }
+        String diskPath = props.getProperty("cacheDiskPath");
+        this.cacheDiskPath = diskPath != null && !diskPath.isBlank() ? diskPath.trim() : null;
+        this.cacheDiskMaxSize = getLong(props, "cacheDiskMaxSize", this.cacheDiskMaxSize);
+        this.cacheDiskSegmentSize = Math.max(1024 * 1024,
+                getInt(props, "cacheDiskSegmentSize", this.cacheDiskSegmentSize));
+        this.cacheDiskMaxEntrySize = getInt(props, "cacheDiskMaxEntrySize", this.cacheDiskMaxEntrySize);
+        this.cacheDiskLru = !"fifo".equalsIgnoreCase(props.getProperty("cacheDiskEviction", "lru").trim());
+        this.staleWhileRevalidate = getInt(props, "staleWhileRevalidate", this.staleWhileRevalidate);
+        this.routeStaleWhileRevalidate = HostSettings.parseInt(props, "route.staleWhileRevalidate.");
+        this.staleIfError = getInt(props, "staleIfError", this.staleIfError);
+        this.routeStaleIfError = HostSettings.parseInt(props, "route.staleIfError.");
+        this.cacheRefreshThreads = Math.max(1, getInt(props, "cacheRefreshThreads", this.cacheRefreshThreads));
+        this.cacheRefreshQueueSize = getInt(props, "cacheRefreshQueueSize", this.cacheRefreshQueueSize);
+        this.routeCachePost = HostSettings.parse(props, "route.cachePost.");
+        this.cachePostMaxBodySize = getInt(props, "cachePostMaxBodySize", this.cachePostMaxBodySize);
+        this.cachePostMaxAge = getInt(props, "cachePostMaxAge", this.cachePostMaxAge);
+
+        // /////////////////////////////////////////////////
+        // Load the content ETags
+        // /////////////////////////////////////////////////
+
+        this.routeContentEtag = HostSettings.parse(props, "route.contentEtag.");
+        this.contentEtagMaxSize = getInt(props, "contentEtagMaxSize", this.contentEtagMaxSize);
+
+        // /////////////////////////////////////////////////
+        // Load the request coalescing
+        // /////////////////////////////////////////////////
+
+        this.routeCoalesce = HostSettings.parse(props, "route.coalesce.");
+        this.coalesceMaxFollowers = getInt(props, "coalesceMaxFollowers", this.coalesceMaxFollowers);
+        this.coalesceMaxBufferSize = getLong(props, "coalesceMaxBufferSize", this.coalesceMaxBufferSize);
+        String keyHeaders = props.getProperty("coalesceKeyHeaders");
+        if (keyHeaders != null) {
+            List<String> names = new ArrayList<>();
+            for (String name : keyHeaders.split(",")) {
+                if (!name.isBlank()) {
+                    names.add(name.trim().toLowerCase());
+                }
+            }
+            this.coalesceKeyHeaders = Collections.unmodifiableList(names);
+        }
+
+        // /////////////////////////////////////////////////
+        // Load the negative cache
+        // /////////////////////////////////////////////////
+
+        this.negativeCacheTtl = getInt(props, "negativeCacheTtl", this.negativeCacheTtl);
+        this.routeNegativeCacheTtl = HostSettings.parseInt(props, "route.negativeCacheTtl.");
+        this.negativeCacheMaxEntries = getInt(props, "negativeCacheMaxEntries", this.negativeCacheMaxEntries);
+
+        // /////////////////////////////////////////////////
+        // Load the circuit breakers
+        // /////////////////////////////////////////////////
+
+        this.circuitBreaker = getBoolean(props, "circuitBreaker", this.circuitBreaker);
+        this.routeCircuitBreaker = HostSettings.parse(props, "route.circuitBreaker.");
+        this.circuitBreakerWindow = Math.max(1, getInt(props, "circuitBreakerWindow", this.circuitBreakerWindow));
+        this.circuitBreakerMinCalls = getInt(props, "circuitBreakerMinCalls", this.circuitBreakerMinCalls);
+        this.circuitBreakerFailureRate = getInt(props, "circuitBreakerFailureRate", this.circuitBreakerFailureRate);
+        this.circuitBreakerSlowCallDuration = getInt(props, "circuitBreakerSlowCallDuration",
+                this.circuitBreakerSlowCallDuration);
+        this.circuitBreakerSlowCallRate = getInt(props, "circuitBreakerSlowCallRate",
+                this.circuitBreakerSlowCallRate);
+        this.circuitBreakerOpenDuration = getInt(props, "circuitBreakerOpenDuration",
+                this.circuitBreakerOpenDuration);
+        this.circuitBreakerHalfOpenCalls = Math.max(1, getInt(props, "circuitBreakerHalfOpenCalls",
+                this.circuitBreakerHalfOpenCalls));
+
+        // /////////////////////////////////////////////////
+        // Load the configuration reload interval
+        // /////////////////////////////////////////////////
+
+        this.configReloadInterval = getInt(props, "configReloadInterval", this.configReloadInterval);
+    }
+
+    /**
+     * @param props the proxy properties
+     * @param name the property name
+     * @param defaultValue the value to use if the property is missing or invalid
+     * @return int
+     */
+    private static int getInt(Properties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.error("Error parsing proxy configuration: {}", e.getMessage(), e);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @param props the proxy properties
+     * @param name the property name
+     * @param defaultValue the value to use if the property is missing or invalid
+     * @return long
+     */
+    private static long getLong(Properties props, String name, long defaultValue) {
+        String value = props.getProperty(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.error("Error parsing proxy configuration: {}", e.getMessage(), e);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @param props the proxy properties
+     * @param name the property name
+     * @param defaultValue the value to use if the property is missing
+     * @return boolean
+     */
+    private static boolean getBoolean(Properties props, String name, boolean defaultValue) {
+        String value = props.getProperty(name);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+
+    /**
+     * @param set the parsed white list, can be null
+     * @return an unmodifiable view of the white list, empty if it was not configured
+     */
+    private static Set<String> whiteList(Set<String> set) {
+        return set != null ? Collections.unmodifiableSet(set) : Collections.emptySet();
+    }
+
+    /**
+     * @return the soTimeout
+     */
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    /**
+     * @return the connectionTimeout
+     */
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * @param host the target host
+     * @return the request timeout for the host
+     */
+    public int getSoTimeout(String host) {
+        return routeSoTimeout.getInt(host, soTimeout);
+    }
+
+    /**
+     * @param host the target host
+     * @return the connection timeout for the host
+     */
+    public int getConnectionTimeout(String host) {
+        return routeConnectionTimeout.getInt(host, connectionTimeout);
+    }
 
     /**
-     * A list of regular expressions describing Request Types the proxy is permitted to forward
+     * @return the connectionRequestTimeout
      */
-    private Set<String> reqtypeWhitelist = new HashSet<>();
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
 
     /**
-     * A list of regular expressions describing request METHODS the proxy is permitted to forward
+     * @param host the target host
+     * @return the connection request timeout for the host
      */
-    private Set<String> methodsWhitelist = new HashSet<>();
+    public int getConnectionRequestTimeout(String host) {
+        return routeConnectionRequestTimeout.getInt(host, connectionRequestTimeout);
+    }
 
     /**
-     * A list of regular expressions describing request HOSTS the proxy is permitted to forward
+     * @return the totalTimeout
      */
-    private Set<String> hostsWhitelist = new HashSet<>();
+    public int getTotalTimeout() {
+        return totalTimeout;
+    }
 
     /**
-     * A list of request header names (case-insensitive) that the proxy is permitted to forward.
-     * If non-empty, only headers in this set will be forwarded.
+     * @param host the target host
+     * @return the total timeout for the host
      */
-    private Set<String> requestHeaderWhitelist = new HashSet<>();
+    public int getTotalTimeout(String host) {
+        return routeTotalTimeout.getInt(host, totalTimeout);
+    }
 
     /**
-     * A list of request header names (case-insensitive) that the proxy must NOT forward.
-     * Headers in this set will always be removed, even if they appear in the whitelist.
+     * @return the maxTotalConnections
      */
-    private Set<String> requestHeaderBlacklist = new HashSet<>();
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
 
     /**
-     * The servlet context
+     * @return the defaultMaxConnectionsPerHost
      */
-    private ServletContext context;
+    public int getDefaultMaxConnectionsPerHost() {
+        return defaultMaxConnectionsPerHost;
+    }
 
     /**
-     * The path of the properties file
+     * @param host the target host
+     * @return the maximum connections available for the host
      */
-    private String propertiesFilePath;
+    public int getMaxConnectionsPerHost(String host) {
+        return routeMaxConnections.getInt(host, defaultMaxConnectionsPerHost);
+    }
 
     /**
-     * The request timeout
+     * @return the connectionTimeToLive
      */
-    private int soTimeout = 30000;
+    public int getConnectionTimeToLive() {
+        return connectionTimeToLive;
+    }
 
     /**
-     * The connection timeout
+     * @return the idleConnectionTimeout
      */
-    private int connectionTimeout = 30000;
+    public int getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
 
     /**
-     * The maximum total connections available
+     * @return the validateAfterInactivity
      */
-    private int maxTotalConnections = 60;
+    public int getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
 
     /**
-     * The maximum connections available per host
+     * @return the dnsCacheTtl in seconds
      */
-    private int defaultMaxConnectionsPerHost = 6;
+    public int getDnsCacheTtl() {
+        return dnsCacheTtl;
+    }
 
-    private int defaultStreamByteSize = 1024;
+    /**
+     * @return the dnsNegativeTtl in seconds
+     */
+    public int getDnsNegativeTtl() {
+        return dnsNegativeTtl;
+    }
 
     /**
-     * @param context
-     * @param propertiesFilePath
+     * @return the dnsRefreshBefore in seconds
      */
-    public ProxyConfig(ServletContext context, String propertiesFilePath) {
-        this.context = context;
-        this.propertiesFilePath = propertiesFilePath;
+    public int getDnsRefreshBefore() {
+        return dnsRefreshBefore;
+    }
 
-        configProxy();
+    /**
+     * @return the hosts file giving static addresses, null if none
+     */
+    public Path getDnsHostsFile() {
+        return dnsHostsFile;
     }
 
     /**
-     * Provide the proxy configuration
+     * @return the addresses of the hosts resolved without lookup, by lower case host name
      */
-    private void configProxy() {
-        Properties props = propertiesLoader();
+    public Map<String, InetAddress[]> getDnsStaticAddresses() {
+        return dnsStaticAddresses;
+    }
 
-        // ////////////////////////////////////////////////////////////
-        // Load proxy configuration white lists from properties file
-        // ////////////////////////////////////////////////////////////
+    /**
+     * @return the backends of the logical upstream hosts, by lower case host name
+     */
+    public Map<String, List<HttpHost>> getUpstreamPools() {
+        return upstreamPools;
+    }
 
-        if (props != null) {
-            Set<String> p = Utils.parseWhiteList(props.getProperty("hostnameWhitelist"));
-            if (p != null)
-                this.setHostnameWhitelist(p);
+    /**
+     * @return how a backend is picked: leastOutstanding or peakEwma
+     */
+    public String getUpstreamPoolBalancer() {
+        return upstreamPoolBalancer;
+    }
 
-            p = Utils.parseWhiteList(props.getProperty("mimetypeWhitelist"));
-            if (p != null)
-                this.setMimetypeWhitelist(p);
+    /**
+     * @return the number of failures in a row ejecting a backend, 0 to never eject
+     */
+    public int getUpstreamPoolEjectFailures() {
+        return upstreamPoolEjectFailures;
+    }
 
-            p = Utils.parseWhiteList(props.getProperty("methodsWhitelist"));
-            if (p != null)
-                this.setMethodsWhitelist(p);
+    /**
+     * @return the time (ms) an ejected backend is left out
+     */
+    public int getUpstreamPoolEjectDuration() {
+        return upstreamPoolEjectDuration;
+    }
 
-            p = Utils.parseWhiteList(props.getProperty("hostsWhitelist"));
-            if (p != null)
-                this.setHostsWhitelist(p);
+    /**
+     * @return the maximum percentage of the backends of a pool ejected at once
+     */
+    public int getUpstreamPoolMaxEjectedPercent() {
+        return upstreamPoolMaxEjectedPercent;
+    }
 
-            p = Utils.parseWhiteList(props.getProperty("requestHeaderWhitelist"));
-            if (p != null)
-                this.setRequestHeaderWhitelist(Utils.toLowerCaseSet(p));
+    /**
+     * @return the URLs probed by the health checks, by name
+     */
+    public Map<String, URL> getHealthChecks() {
+        return healthChecks;
+    }
 
-            p = Utils.parseWhiteList(props.getProperty("requestHeaderBlacklist"));
-            if (p != null)
-                this.setRequestHeaderBlacklist(Utils.toLowerCaseSet(p));
+    /**
+     * @return the interval (ms) between two rounds of health checks
+     */
+    public int getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
 
-            // ////////////////////////////////////////
-            // Read various request type properties
-            // ////////////////////////////////////////
+    /**
+     * @return the maximum time (ms) for a health check
+     */
+    public int getHealthCheckTimeout() {
+        return healthCheckTimeout;
+    }
 
-            Set<String> rt = new HashSet<>();
-            String s = props.getProperty("reqtypeWhitelist.capabilities");
-            if (s != null)
-                rt.add(s);
+    /**
+     * @return the number of failed health checks in a row marking an upstream server down
+     */
+    public int getHealthCheckUnhealthyThreshold() {
+        return healthCheckUnhealthyThreshold;
+    }
 
-            s = props.getProperty("reqtypeWhitelist.geostore");
-            if (s != null)
-                rt.add(s);
+    /**
+     * @return the number of successful health checks in a row marking an upstream server up again
+     */
+    public int getHealthCheckHealthyThreshold() {
+        return healthCheckHealthyThreshold;
+    }
 
-            s = props.getProperty("reqtypeWhitelist.csw");
-            if (s != null)
-                rt.add(s);
+    /**
+     * @return the number of idle connections kept open to each healthy upstream server
+     */
+    public int getHealthCheckMinIdleConnections() {
+        return healthCheckMinIdleConnections;
+    }
 
-            s = props.getProperty("reqtypeWhitelist.featureinfo");
-            if (s != null)
-                rt.add(s);
+    /**
+     * @return the hostnameWhitelist
+     */
+    public Set<String> getHostnameWhitelist() {
+        return hostnameWhitelist;
+    }
 
-            s = props.getProperty("reqtypeWhitelist.generic");
-            if (s != null)
-                rt.add(s);
+    /**
+     * @param host the target host
+     * @return the configured host, or host pattern, whose requests in flight limit applies to the
+     *         host, null if its requests are not limited
+     */
+    public String getMaxInFlightKey(String host) {
+        return routeMaxInFlight.match(host);
+    }
 
-            this.setReqtypeWhitelist(rt);
+    /**
+     * @param host the target host
+     * @return the maximum number of requests in flight to the host, or to the hosts of its
+     *         pattern, 0 if not limited
+     */
+    public int getMaxInFlight(String host) {
+        return routeMaxInFlight.getInt(host, 0);
+    }
 
-            try {
-                // /////////////////////////////////////////////////
-                // Load byte size configuration from
-                // properties file.
-                // /////////////////////////////////////////////////
+    /**
+     * @param host the target host
+     * @return the maximum number of requests waiting for the host
+     */
+    public int getBulkheadMaxQueued(String host) {
+        return routeBulkheadMaxQueued.getInt(host, bulkheadMaxQueued);
+    }
 
-                String bytesSize = props.getProperty("defaultStreamByteSize");
-                this.setDefaultStreamByteSize(bytesSize != null ? Integer.parseInt(bytesSize) :
-                        this.defaultStreamByteSize);
+    /**
+     * @param host the target host
+     * @return the maximum time (ms) a request waits for the host
+     */
+    public int getBulkheadQueueTimeout(String host) {
+        return routeBulkheadQueueTimeout.getInt(host, bulkheadQueueTimeout);
+    }
 
-                // /////////////////////////////////////////////////
-                // Load connection manager configuration from
-                // properties file.
-                // /////////////////////////////////////////////////
+    /**
+     * @param host the target host
+     * @return true if the limit of the requests in flight to the host follows its latency
+     */
+    public boolean isAdaptiveConcurrency(String host) {
+        return routeAdaptiveConcurrency.getBoolean(host, adaptiveConcurrency);
+    }
 
-                String timeout = props.getProperty("timeout");
-                this.setSoTimeout(timeout != null ? Integer.parseInt(timeout) : this.soTimeout);
+    /**
+     * @return the lowest adaptive limit
+     */
+    public int getAdaptiveConcurrencyMinLimit() {
+        return adaptiveConcurrencyMinLimit;
+    }
 
-                String conn_timeout = props.getProperty("connection_timeout");
-                this.setConnectionTimeout(conn_timeout != null ? Integer.parseInt(conn_timeout)
-                        : this.connectionTimeout);
+    /**
+     * @return the highest adaptive limit
+     */
+    public int getAdaptiveConcurrencyMaxLimit() {
+        return adaptiveConcurrencyMaxLimit;
+    }
 
-                String max_conn = props.getProperty("max_total_connections");
-                this.setMaxTotalConnections(max_conn != null ? Integer.parseInt(max_conn)
-                        : this.maxTotalConnections);
+    /**
+     * @param host the target host
+     * @return the adaptive limit of the host before its latency is measured
+     */
+    public int getAdaptiveConcurrencyInitialLimit(String host) {
+        return routeAdaptiveConcurrencyInitialLimit.getInt(host, adaptiveConcurrencyInitialLimit);
+    }
 
-                String def_conn_host = props.getProperty("default_max_connections_per_host");
-                this.setMaxTotalConnections(def_conn_host != null ? Integer.parseInt(def_conn_host)
-                        : this.defaultMaxConnectionsPerHost);
+    /**
+     * @return the latency, in percent of its long term average, beyond which an adaptive limit shrinks
+     */
+    public int getAdaptiveConcurrencyTolerance() {
+        return adaptiveConcurrencyTolerance;
+    }
 
-            } catch (NumberFormatException e) {
-                LOGGER.error("Error parsing proxy configuration: {}", e.getMessage(), e);
+    /**
+     * @return the adaptive limit, in percent, kept after a failure
+     */
+    public int getAdaptiveConcurrencyBackoff() {
+        return adaptiveConcurrencyBackoff;
+    }
 
-                this.setSoTimeout(this.soTimeout);
-                this.setConnectionTimeout(this.connectionTimeout);
-                this.setMaxTotalConnections(this.maxTotalConnections);
-                this.setMaxTotalConnections(this.defaultMaxConnectionsPerHost);
-                this.setDefaultStreamByteSize(this.defaultStreamByteSize);
-            }
-        }
+    /**
+     * @return the mimetypeWhitelist
+     */
+    public Set<String> getMimetypeWhitelist() {
+        return mimetypeWhitelist;
     }
 
     /**
-     * Read the proxy properties file.
-     *
-     * @return Properties
+     * @return the reqtypeWhitelist
      */
-    public Properties propertiesLoader() {
-        Properties props = new Properties();
-        // can specify more paths, comma separated, all are read, if they exist
-        for (String path : propertiesFilePath.split(",")) {
-            mergePropertiesConfig(path, props);
-        }
-        return props;
+    public Set<String> getReqtypeWhitelist() {
+        return reqtypeWhitelist;
     }
 
-    private void mergePropertiesConfig(String path, Properties properties) {
-        InputStream inputStream = ProxyConfig.class.getResourceAsStream(path);
-        if (inputStream == null) {
-            try {
-                inputStream = new FileInputStream(path);
-            } catch (FileNotFoundException e) {
-                LOGGER.warn("The properties file {} cannot be found", path);
-            }
-        }
-        if (inputStream != null) {
-            try (InputStream is = inputStream) {
-                Properties props = new Properties();
-                props.load(is);
-                properties.putAll(props);
-            } catch (IOException e) {
-                LOGGER.error("Error loading the proxy properties file from {}", path, e);
-            }
-        }
+    /**
+     * @return the reqtypeWhitelist compiled in a single matcher
+     */
+    public PatternMatcher getReqtypeMatcher() {
+        return reqtypeMatcher;
     }
 
     /**
-     * @return the soTimeout
+     * @return the methodsWhitelist
      */
-    public int getSoTimeout() {
-        return soTimeout;
+    public Set<String> getMethodsWhitelist() {
+        return methodsWhitelist;
     }
 
     /**
-     * @param soTimeout the soTimeout to set
+     * @return the hostsWhitelist
      */
-    public void setSoTimeout(int soTimeout) {
-        this.soTimeout = soTimeout;
+    public Set<String> getHostsWhitelist() {
+        return hostsWhitelist;
     }
 
     /**
-     * @return the connectionTimeout
+     * @return the requestHeaderWhitelist
      */
-    public int getConnectionTimeout() {
-        return connectionTimeout;
+    public Set<String> getRequestHeaderWhitelist() {
+        return requestHeaderWhitelist;
     }
 
     /**
-     * @param connectionTimeout the connectionTimeout to set
+     * @return the requestHeaderBlacklist
      */
-    public void setConnectionTimeout(int connectionTimeout) {
-        this.connectionTimeout = connectionTimeout;
+    public Set<String> getRequestHeaderBlacklist() {
+        return requestHeaderBlacklist;
     }
 
     /**
-     * @return the maxTotalConnections
+     * @return the defaultStreamByteSize
      */
-    public int getMaxTotalConnections() {
-        return maxTotalConnections;
+    public int getDefaultStreamByteSize() {
+        return defaultStreamByteSize;
     }
 
     /**
-     * @param maxTotalConnections the maxTotalConnections to set
+     * @return the maxStreamByteSize
      */
-    public void setMaxTotalConnections(int maxTotalConnections) {
-        this.maxTotalConnections = maxTotalConnections;
+    public int getMaxStreamByteSize() {
+        return maxStreamByteSize;
     }
 
     /**
-     * @return the defaultMaxConnectionsPerHost
+     * @return the bufferPoolSize
      */
-    public int getDefaultMaxConnectionsPerHost() {
-        return defaultMaxConnectionsPerHost;
+    public int getBufferPoolSize() {
+        return bufferPoolSize;
     }
 
     /**
-     * @param defaultMaxConnectionsPerHost the defaultMaxConnectionsPerHost to set
+     * @return true if the multipart uploads are streamed as they are
      */
-    public void setDefaultMaxConnectionsPerHost(int defaultMaxConnectionsPerHost) {
-        this.defaultMaxConnectionsPerHost = defaultMaxConnectionsPerHost;
+    public boolean isMultipartStreaming() {
+        return multipartStreaming;
     }
 
     /**
-     * @return the hostnameWhitelist
+     * @return true if the requests are served asynchronously
      */
-    public Set<String> getHostnameWhitelist() {
-        Properties props = propertiesLoader();
+    public boolean isAsyncEnabled() {
+        return asyncEnabled;
+    }
 
-        if (props != null) {
-            Set<String> set = Utils.parseWhiteList(props.getProperty("hostnameWhitelist"));
-            if (set != null)
-                this.setHostnameWhitelist(set);
-        }
+    /**
+     * @return true if the compressed responses are relayed as they are
+     */
+    public boolean isCompressionPassThrough() {
+        return compressionPassThrough;
+    }
 
-        return hostnameWhitelist;
+    /**
+     * @return true if the proxy compresses the uncompressed textual responses
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
     }
 
     /**
-     * @param hostnameWhitelist the hostnameWhitelist to set
+     * @return the compressionMinSize in bytes
      */
-    public void setHostnameWhitelist(Set<String> hostnameWhitelist) {
-        this.hostnameWhitelist = hostnameWhitelist;
+    public int getCompressionMinSize() {
+        return compressionMinSize;
     }
 
     /**
-     * @return the mimetypeWhitelist
+     * @return the compressionLevel
      */
-    public Set<String> getMimetypeWhitelist() {
-        Properties props = propertiesLoader();
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
 
-        if (props != null) {
-            Set<String> set = Utils.parseWhiteList(props.getProperty("mimetypeWhitelist"));
-            if (set != null)
-                this.setMimetypeWhitelist(set);
-        }
+    /**
+     * @param host the host name
+     * @return true if the responses without validators of the host are given a content hash ETag
+     */
+    public boolean isContentTagging(String host) {
+        return routeContentEtag.getBoolean(host, false);
+    }
 
-        return mimetypeWhitelist;
+    /**
+     * @return the contentEtagMaxSize in bytes
+     */
+    public int getContentEtagMaxSize() {
+        return contentEtagMaxSize;
     }
 
     /**
-     * @param mimetypeWhitelist the mimetypeWhitelist to set
+     * @param host the host name
+     * @return true if the identical GET requests in flight to the host are coalesced
      */
-    public void setMimetypeWhitelist(Set<String> mimetypeWhitelist) {
-        this.mimetypeWhitelist = mimetypeWhitelist;
+    public boolean isCoalescing(String host) {
+        return routeCoalesce.getBoolean(host, false);
     }
 
     /**
-     * @return the reqtypeWhitelist
+     * @return the coalesceMaxFollowers
      */
-    public Set<String> getReqtypeWhitelist() {
-        Properties props = propertiesLoader();
+    public int getCoalesceMaxFollowers() {
+        return coalesceMaxFollowers;
+    }
+
+    /**
+     * @return the coalesceMaxBufferSize in bytes
+     */
+    public long getCoalesceMaxBufferSize() {
+        return coalesceMaxBufferSize;
+    }
 
-        if (props != null) {
-            Set<String> rt = new HashSet<>();
-            String s = props.getProperty("reqtypeWhitelist.capabilities");
-            if (s != null)
-                rt.add(s);
+    /**
+     * @return the request headers, lower case, that must be equal for two requests to be coalesced
+     */
+    public List<String> getCoalesceKeyHeaders() {
+        return coalesceKeyHeaders;
+    }
 
-            s = props.getProperty("reqtypeWhitelist.geostore");
-            if (s != null)
-                rt.add(s);
+    /**
+     * @param host the target host
+     * @return the time (s) the upstream failures of the host are remembered, 0 if they are not
+     */
+    public int getNegativeCacheTtl(String host) {
+        return routeNegativeCacheTtl.getInt(host, negativeCacheTtl);
+    }
 
-            s = props.getProperty("reqtypeWhitelist.csw");
-            if (s != null)
-                rt.add(s);
+    /**
+     * @return the negativeCacheMaxEntries
+     */
+    public int getNegativeCacheMaxEntries() {
+        return negativeCacheMaxEntries;
+    }
 
-            s = props.getProperty("reqtypeWhitelist.featureinfo");
-            if (s != null)
-                rt.add(s);
+    /**
+     * @param host the target host
+     * @return true if the upstream servers of the host are given a circuit breaker
+     */
+    public boolean isCircuitBreaking(String host) {
+        return routeCircuitBreaker.getBoolean(host, circuitBreaker);
+    }
 
-            s = props.getProperty("reqtypeWhitelist.generic");
-            if (s != null)
-                rt.add(s);
+    /**
+     * @return the circuitBreakerWindow
+     */
+    public int getCircuitBreakerWindow() {
+        return circuitBreakerWindow;
+    }
 
-            this.setReqtypeWhitelist(rt);
-        }
+    /**
+     * @return the circuitBreakerMinCalls
+     */
+    public int getCircuitBreakerMinCalls() {
+        return circuitBreakerMinCalls;
+    }
 
-        return reqtypeWhitelist;
+    /**
+     * @return the circuitBreakerFailureRate in percent
+     */
+    public int getCircuitBreakerFailureRate() {
+        return circuitBreakerFailureRate;
     }
 
     /**
-     * @param reqtypeWhitelist the reqtypeWhitelist to set
+     * @return the circuitBreakerSlowCallDuration in ms
      */
-    public void setReqtypeWhitelist(Set<String> reqtypeWhitelist) {
-        this.reqtypeWhitelist = reqtypeWhitelist;
+    public int getCircuitBreakerSlowCallDuration() {
+        return circuitBreakerSlowCallDuration;
     }
 
     /**
-     * @return the methodsWhitelist
+     * @return the circuitBreakerSlowCallRate in percent
      */
-    public Set<String> getMethodsWhitelist() {
-        Properties props = propertiesLoader();
+    public int getCircuitBreakerSlowCallRate() {
+        return circuitBreakerSlowCallRate;
+    }
 
-        if (props != null) {
-            Set<String> set = Utils.parseWhiteList(props.getProperty("methodsWhitelist"));
-            if (set != null)
-                this.setMethodsWhitelist(set);
-        }
+    /**
+     * @return the circuitBreakerOpenDuration in ms
+     */
+    public int getCircuitBreakerOpenDuration() {
+        return circuitBreakerOpenDuration;
+    }
 
-        return methodsWhitelist;
+    /**
+     * @return the circuitBreakerHalfOpenCalls
+     */
+    public int getCircuitBreakerHalfOpenCalls() {
+        return circuitBreakerHalfOpenCalls;
     }
 
     /**
-     * @param methodsWhitelist the methodsWhitelist to set
+     * @return true if the cacheable responses are stored and served by the proxy
      */
-    public void setMethodsWhitelist(Set<String> methodsWhitelist) {
-        this.methodsWhitelist = methodsWhitelist;
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
     }
 
     /**
-     * @return the hostsWhitelist
+     * @return the cacheMaxSize in bytes
      */
-    public Set<String> getHostsWhitelist() {
-        Properties props = propertiesLoader();
+    public long getCacheMaxSize() {
+        return cacheMaxSize;
+    }
 
-        if (props != null) {
-            Set<String> set = Utils.parseWhiteList(props.getProperty("hostsWhitelist"));
-            if (set != null)
-                this.setHostsWhitelist(set);
-        }
+    /**
+     * @return the cacheMaxEntrySize in bytes
+     */
+    public int getCacheMaxEntrySize() {
+        return cacheMaxEntrySize;
+    }
 
-        return hostsWhitelist;
+    /**
+     * @return the class name of the {@link CacheKeyNormalizer}
+     */
+    public String getCacheKeyNormalizer() {
+        return cacheKeyNormalizer;
     }
 
     /**
-     * @param hostsWhitelist the hostsWhitelist to set
+     * @return the query parameters, lower case, left out of the cache keys
      */
-    public void setHostsWhitelist(Set<String> hostsWhitelist) {
-        this.hostsWhitelist = hostsWhitelist;
+    public Set<String> getCacheKeyIgnoredParams() {
+        return cacheKeyIgnoredParams;
     }
 
     /**
-     * @return the requestHeaderWhitelist
+     * @return true if the cached bodies are kept off the Java heap
      */
-    public Set<String> getRequestHeaderWhitelist() {
-        Properties props = propertiesLoader();
+    public boolean isCacheOffHeap() {
+        return cacheOffHeap;
+    }
 
-        if (props != null) {
-            Set<String> set = Utils.parseWhiteList(props.getProperty("requestHeaderWhitelist"));
-            if (set != null)
-                this.setRequestHeaderWhitelist(Utils.toLowerCaseSet(set));
-        }
+    /**
+     * @return the directory of the disk tier of the response cache, null if disabled
+     */
+    public String getCacheDiskPath() {
+        return cacheDiskPath;
+    }
 
-        return requestHeaderWhitelist;
+    /**
+     * @return the cacheDiskMaxSize in bytes
+     */
+    public long getCacheDiskMaxSize() {
+        return cacheDiskMaxSize;
     }
 
     /**
-     * @param requestHeaderWhitelist the requestHeaderWhitelist to set
+     * @return the cacheDiskSegmentSize in bytes
      */
-    public void setRequestHeaderWhitelist(Set<String> requestHeaderWhitelist) {
-        this.requestHeaderWhitelist = requestHeaderWhitelist;
+    public int getCacheDiskSegmentSize() {
+        return cacheDiskSegmentSize;
     }
 
     /**
-     * @return the requestHeaderBlacklist
+     * @return the cacheDiskMaxEntrySize in bytes
      */
-    public Set<String> getRequestHeaderBlacklist() {
-        Properties props = propertiesLoader();
+    public int getCacheDiskMaxEntrySize() {
+        return cacheDiskMaxEntrySize;
+    }
 
-        if (props != null) {
-            Set<String> set = Utils.parseWhiteList(props.getProperty("requestHeaderBlacklist"));
-            if (set != null)
-                this.setRequestHeaderBlacklist(Utils.toLowerCaseSet(set));
-        }
+    /**
+     * @return true if the disk tier keeps the responses read recently, false to drop the oldest ones
+     */
+    public boolean isCacheDiskLru() {
+        return cacheDiskLru;
+    }
 
-        return requestHeaderBlacklist;
+    /**
+     * @param host the target host
+     * @return the default stale-while-revalidate (s) of the responses of the host
+     */
+    public int getStaleWhileRevalidate(String host) {
+        return routeStaleWhileRevalidate.getInt(host, staleWhileRevalidate);
     }
 
     /**
-     * @param requestHeaderBlacklist the requestHeaderBlacklist to set
+     * @param host the target host
+     * @return the default stale-if-error (s) of the responses of the host
      */
-    public void setRequestHeaderBlacklist(Set<String> requestHeaderBlacklist) {
-        this.requestHeaderBlacklist = requestHeaderBlacklist;
+    public int getStaleIfError(String host) {
+        return routeStaleIfError.getInt(host, staleIfError);
     }
 
     /**
-     * @return the context
+     * @return the cacheRefreshThreads
      */
-    public ServletContext getContext() {
-        return context;
+    public int getCacheRefreshThreads() {
+        return cacheRefreshThreads;
     }
 
     /**
-     * @param context the context to set
+     * @return the cacheRefreshQueueSize
      */
-    public void setContext(ServletContext context) {
-        this.context = context;
+    public int getCacheRefreshQueueSize() {
+        return cacheRefreshQueueSize;
     }
 
     /**
-     * @return the propertiesFilePath
+     * @param host the host name
+     * @return true if the small POST queries to the host are buffered, to be cached and coalesced
      */
-    public String getPropertiesFilePath() {
-        return propertiesFilePath;
+    public boolean isCachingPost(String host) {
+        return routeCachePost.getBoolean(host, false);
     }
 
     /**
-     * @param propertiesFilePath the propertiesFilePath to set
+     * @return the cachePostMaxBodySize in bytes
      */
-    public void setPropertiesFilePath(String propertiesFilePath) {
-        this.propertiesFilePath = propertiesFilePath;
+    public int getCachePostMaxBodySize() {
+        return cachePostMaxBodySize;
     }
 
     /**
-     * @return the defaultStreamByteSize
+     * @return the max-age (s) given to the responses to POST queries without explicit freshness
      */
-    public int getDefaultStreamByteSize() {
-        return defaultStreamByteSize;
+    public int getCachePostMaxAge() {
+        return cachePostMaxAge;
     }
 
     /**
-     * @param defaultStreamByteSize the defaultStreamByteSize to set
+     * @return the configReloadInterval in milliseconds
      */
-    public void setDefaultStreamByteSize(int defaultStreamByteSize) {
-        this.defaultStreamByteSize = defaultStreamByteSize;
+    public int getConfigReloadInterval() {
+        return configReloadInterval;
     }
 
 }
@@ -0,0 +1,240 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Loads the proxy properties files into {@link ProxyConfig} snapshots and keeps the current one
+ * up to date.
+ * <p>
+ * The files are parsed once at startup; afterwards a background task polls their modification
+ * time every {@link ProxyConfig#getConfigReloadInterval()} milliseconds and atomically swaps in
+ * a new snapshot only when something changed.
+ */
+final class ProxyConfigLoader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProxyConfigLoader.class);
+
+    /**
+     * The path of the properties files, comma separated
+     */
+    private final String propertiesFilePath;
+
+    /**
+     * The listeners notified when a new snapshot is swapped in
+     */
+    private final List<Consumer<ProxyConfig>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The current configuration snapshot
+     */
+    private volatile ProxyConfig config;
+
+    /**
+     * The modification stamp of the files the current snapshot was built from
+     */
+    private volatile String stamp;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param propertiesFilePath the path of the properties files, comma separated
+     */
+    ProxyConfigLoader(String propertiesFilePath) {
+        this.propertiesFilePath = propertiesFilePath;
+        this.config = new ProxyConfig(propertiesLoader());
+        this.stamp = computeStamp(config);
+    }
+
+    /**
+     * @return the current configuration snapshot
+     */
+    ProxyConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the propertiesFilePath
+     */
+    String getPropertiesFilePath() {
+        return propertiesFilePath;
+    }
+
+    /**
+     * Registers a listener to be called every time a new configuration snapshot is loaded.
+     *
+     * @param listener the listener
+     */
+    void addListener(Consumer<ProxyConfig> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts the background polling of the properties files, if enabled by the configuration.
+     */
+    synchronized void start() {
+        int interval = config.getConfigReloadInterval();
+        if (scheduler != null || interval <= 0) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "http-proxy-config-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                reload();
+            } catch (RuntimeException e) {
+                LOGGER.error("Error reloading the proxy configuration", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background polling of the properties files.
+     */
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Reloads the configuration if the properties files, or the hosts file they refer to, changed
+     * since the last load.
+     *
+     * @return true if a new snapshot has been swapped in
+     */
+    boolean reload() {
+        String current = computeStamp(config);
+        if (current.equals(stamp)) {
+            return false;
+        }
+
+        ProxyConfig reloaded = new ProxyConfig(propertiesLoader());
+        this.stamp = Objects.equals(reloaded.getDnsHostsFile(), config.getDnsHostsFile())
+                ? current : computeStamp(reloaded);
+        this.config = reloaded;
+        LOGGER.info("Proxy configuration reloaded from {}", propertiesFilePath);
+
+        for (Consumer<ProxyConfig> listener : listeners) {
+            listener.accept(reloaded);
+        }
+        return true;
+    }
+
+    /**
+     * Read the proxy properties file.
+     *
+     * @return Properties
+     */
+    Properties propertiesLoader() {
+        Properties props = new Properties();
+        // can specify more paths, comma separated, all are read, if they exist
+        for (String path : propertiesFilePath.split(",")) {
+            mergePropertiesConfig(path, props);
+        }
+        return props;
+    }
+
+    private void mergePropertiesConfig(String path, Properties properties) {
+        InputStream inputStream = ProxyConfig.class.getResourceAsStream(path);
+        if (inputStream == null) {
+            try {
+                inputStream = new FileInputStream(path);
+            } catch (FileNotFoundException e) {
+                LOGGER.warn("The properties file {} cannot be found", path);
+            }
+        }
+        if (inputStream != null) {
+            try (InputStream is = inputStream) {
+                Properties props = new Properties();
+                props.load(is);
+                properties.putAll(props);
+            } catch (IOException e) {
+                LOGGER.error("Error loading the proxy properties file from {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * Builds a cheap fingerprint (modification time and size) of all the properties files,
+     * resolving them the same way {@link #mergePropertiesConfig(String, Properties)} does, and of
+     * the hosts file of the given snapshot.
+     *
+     * @param snapshot the snapshot giving the hosts file
+     * @return String
+     */
+    private String computeStamp(ProxyConfig snapshot) {
+        StringBuilder sb = new StringBuilder();
+        for (String path : propertiesFilePath.split(",")) {
+            File file = resolveFile(path);
+            if (file != null) {
+                sb.append(file.lastModified()).append(':').append(file.length());
+            }
+            sb.append(';');
+        }
+        if (snapshot.getDnsHostsFile() != null) {
+            File file = snapshot.getDnsHostsFile().toFile();
+            sb.append(file.lastModified()).append(':').append(file.length());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param path the configured path
+     * @return the file backing the path, or null if it cannot change at runtime (e.g. packed in a jar)
+     */
+    private File resolveFile(String path) {
+        URL resource = ProxyConfig.class.getResource(path);
+        if (resource == null) {
+            return new File(path);
+        }
+        if ("file".equals(resource.getProtocol())) {
+            try {
+                return new File(resource.toURI());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                LOGGER.debug("Cannot resolve {} to a file", resource, e);
+            }
+        }
+        return null;
+    }
+}
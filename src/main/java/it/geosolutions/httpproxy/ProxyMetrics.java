@@ -0,0 +1,128 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of the proxy, most of them kept per upstream host, published through JMX under
+ * <code>it.geosolutions.httpproxy:type=ProxyMetrics,name=&lt;servlet name&gt;</code>.
+ */
+final class ProxyMetrics implements ProxyMetricsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProxyMetrics.class);
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private ObjectName objectName;
+
+    /**
+     * @param name the metric name
+     * @param host the upstream host
+     */
+    void increment(String name, String host) {
+        add(name, host, 1);
+    }
+
+    /**
+     * @param name the metric name
+     * @param host the upstream host, null for the global metrics
+     * @param value the amount to add
+     */
+    void add(String name, String host, long value) {
+        String key = host != null ? name + "[" + host + "]" : name;
+        counters.computeIfAbsent(key, k -> new LongAdder()).add(value);
+    }
+
+    /**
+     * Sets a gauge, a metric telling a current state rather than counting events.
+     *
+     * @param name the metric name
+     * @param host the upstream host, null for the global metrics
+     * @param value the current value
+     */
+    void set(String name, String host, long value) {
+        String key = host != null ? name + "[" + host + "]" : name;
+        LongAdder gauge = counters.computeIfAbsent(key, k -> new LongAdder());
+        synchronized (gauge) {
+            gauge.add(value - gauge.sum());
+        }
+    }
+
+    /**
+     * @param name the metric name
+     * @param host the upstream host, null for the global metrics
+     * @return the current value of the metric
+     */
+    long get(String name, String host) {
+        LongAdder counter = counters.get(host != null ? name + "[" + host + "]" : name);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    @Override
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new TreeMap<>();
+        counters.forEach((name, counter) -> metrics.put(name, counter.sum()));
+        return metrics;
+    }
+
+    /**
+     * Publishes the metrics in the platform MBean server, failures are only logged.
+     *
+     * @param servletName the name of the proxy servlet
+     */
+    void register(String servletName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("it.geosolutions.httpproxy:type=ProxyMetrics,name="
+                    + ObjectName.quote(servletName));
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException | SecurityException e) {
+            LOGGER.warn("Cannot publish the proxy metrics: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     */
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException | SecurityException e) {
+            LOGGER.warn("Cannot unpublish the proxy metrics: {}", e.getMessage());
+        }
+        objectName = null;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * The body of a POST query (WFS GetFeature, CSW GetRecords...) small enough to be buffered, and
+ * identified by a hash of its canonical form so that its response can be cached and shared.
+ * <p>
+ * Only the XML and JSON bodies are queries, canonicalized by ignoring the whitespace between their
+ * elements or tokens. The XML bodies whose root element is not a read operation (<code>Get*</code>,
+ * <code>Describe*</code>) are never cached: a WFS or CSW transaction must reach the upstream server
+ * every time.
+ */
+final class QueryBody {
+
+    private static final String KEY_PREFIX = "\npost:";
+
+    private QueryBody() {
+    }
+
+    /**
+     * @param contentType the content type of the body, can be null
+     * @param body the body
+     * @return the suffix identifying the body in the cache keys, or null if it must not be cached
+     */
+    static String key(String contentType, byte[] body) {
+        String mimeType = contentType != null ? contentType.split(";")[0].trim().toLowerCase(Locale.ROOT) : "";
+        byte[] canonical;
+        if (mimeType.endsWith("/xml") || mimeType.endsWith("+xml")) {
+            String xml = new String(body, charset(contentType));
+            if (!isReadOperation(xml)) {
+                return null;
+            }
+            canonical = canonicalXml(xml).getBytes(StandardCharsets.UTF_8);
+        } else if (mimeType.endsWith("/json") || mimeType.endsWith("+json")) {
+            canonical = canonicalJson(new String(body, charset(contentType))).getBytes(StandardCharsets.UTF_8);
+        } else {
+            return null;
+        }
+        return KEY_PREFIX + mimeType + ":" + DigestUtils.sha256Hex(canonical);
+    }
+
+    /**
+     * @param cacheKey a cache key
+     * @return the key of the URL the query is posted to, or null if the key is not a query
+     */
+    static String urlKey(String cacheKey) {
+        int index = cacheKey.indexOf(KEY_PREFIX);
+        return index >= 0 ? cacheKey.substring(0, index) : null;
+    }
+
+    /**
+     * Removes the whitespace between the tags and collapses the other runs of whitespace.
+     */
+    static String canonicalXml(String xml) {
+        StringBuilder canonical = new StringBuilder(xml.length());
+        boolean space = false;
+        for (int i = 0; i < xml.length(); i++) {
+            char c = xml.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && canonical.length() > 0 && c != '<' && c != '>' && c != '/'
+                    && canonical.charAt(canonical.length() - 1) != '>') {
+                canonical.append(' ');
+            }
+            space = false;
+            canonical.append(c);
+        }
+        return canonical.toString();
+    }
+
+    /**
+     * Removes the whitespace outside of the string literals.
+     */
+    static String canonicalJson(String json) {
+        StringBuilder canonical = new StringBuilder(json.length());
+        boolean string = false;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (string) {
+                canonical.append(c);
+                if (c == '\\' && i + 1 < json.length()) {
+                    canonical.append(json.charAt(++i));
+                } else if (c == '"') {
+                    string = false;
+                }
+            } else if (!Character.isWhitespace(c)) {
+                string = c == '"';
+                canonical.append(c);
+            }
+        }
+        return canonical.toString();
+    }
+
+    /**
+     * Whether the root element of an XML document names an OGC read operation.
+     */
+    static boolean isReadOperation(String xml) {
+        int start = 0;
+        while ((start = xml.indexOf('<', start)) >= 0) {
+            if (start + 1 < xml.length() && xml.charAt(start + 1) != '?' && xml.charAt(start + 1) != '!') {
+                break;
+            }
+            start++;
+        }
+        if (start < 0) {
+            return false;
+        }
+        int end = start + 1;
+        while (end < xml.length() && !Character.isWhitespace(xml.charAt(end)) && xml.charAt(end) != '>'
+                && xml.charAt(end) != '/') {
+            end++;
+        }
+        String name = xml.substring(start + 1, end);
+        name = name.substring(name.indexOf(':') + 1);
+        return name.startsWith("Get") || name.startsWith("Describe");
+    }
+
+    private static Charset charset(String contentType) {
+        for (String parameter : contentType.split(";")) {
+            String[] pair = parameter.trim().split("=", 2);
+            if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+                try {
+                    return Charset.forName(pair[1].trim().replace("\"", ""));
+                } catch (IllegalArgumentException e) {
+                    break;
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+}
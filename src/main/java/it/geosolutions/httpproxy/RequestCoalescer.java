@@ -0,0 +1,419 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalesces the identical GET requests in flight (single-flight): the first one, the leader, is
+ * sent upstream, the following ones wait for its response and stream the same body while it
+ * arrives, instead of fetching the same bytes over their own connection.
+ * <p>
+ * A flight accepts followers as long as it holds the whole body received so far: once it
+ * buffered more than its limit, or received body bytes while no follower had joined (the bytes
+ * are only copied for the followers), it is closed to newcomers, which start their own flight,
+ * and only keeps the bytes not yet read by its followers. A follower lagging so much that the
+ * limit would be exceeded is detached and fails.
+ */
+final class RequestCoalescer {
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final ProxyMetrics metrics;
+
+    /**
+     * @param metrics the metrics receiving the per host statistics
+     */
+    RequestCoalescer(ProxyMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Joins the flight in progress for the same key, or registers the given one.
+     *
+     * @param candidate a new flight, led by the caller if no other one can be joined
+     * @return a reader of the flight joined as follower, or null if the caller leads the candidate
+     */
+    Flight.Reader join(Flight candidate) {
+        Flight.Reader[] reader = new Flight.Reader[1];
+        flights.compute(candidate.key, (key, existing) -> {
+            if (existing != null) {
+                reader[0] = existing.follow();
+                if (reader[0] != null) {
+                    return existing;
+                }
+            }
+            return candidate;
+        });
+        metrics.increment(reader[0] != null ? "coalesce.follower" : "coalesce.leader", candidate.host);
+        return reader[0];
+    }
+
+    /**
+     * @param key the key of the coalesced requests
+     * @param host the upstream host, for the statistics
+     * @param maxFollowers the maximum number of followers
+     * @param maxBufferSize the maximum amount of body bytes buffered
+     * @return a new flight, to be passed to {@link #join(Flight)}
+     */
+    Flight newFlight(String key, String host, int maxFollowers, long maxBufferSize) {
+        return new Flight(key, host, maxFollowers, maxBufferSize);
+    }
+
+    /**
+     * @return the number of flights in progress
+     */
+    int size() {
+        return flights.size();
+    }
+
+    /**
+     * The response of a leader request, shared with its followers.
+     */
+    final class Flight {
+
+        private final String key;
+
+        private final String host;
+
+        private final int maxFollowers;
+
+        private final long maxBufferSize;
+
+        private final Deque<byte[]> chunks = new ArrayDeque<>();
+
+        private final List<Reader> readers = new ArrayList<>();
+
+        /**
+         * Guards the flight state, a lock rather than a monitor so that the waiting followers do
+         * not pin their carrier when running on virtual threads
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition changed = lock.newCondition();
+
+        /**
+         * The absolute offset of the first buffered chunk
+         */
+        private long base;
+
+        private long length;
+
+        private HttpResponse head;
+
+        private boolean joinable = true;
+
+        private boolean completed;
+
+        private boolean failed;
+
+        /**
+         * @param key the key of the coalesced requests
+         * @param host the upstream host, for the statistics
+         * @param maxFollowers the maximum number of followers
+         * @param maxBufferSize the maximum amount of body bytes buffered
+         */
+        private Flight(String key, String host, int maxFollowers, long maxBufferSize) {
+            this.key = key;
+            this.host = host;
+            this.maxFollowers = maxFollowers;
+            this.maxBufferSize = maxBufferSize;
+        }
+
+        private Reader follow() {
+            lock.lock();
+            try {
+                if (!joinable || readers.size() >= maxFollowers) {
+                    return null;
+                }
+                Reader reader = new Reader();
+                readers.add(reader);
+                return reader;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // ////////////////////////////////////////////
+        // Leader side
+        // ////////////////////////////////////////////
+
+        /**
+         * Publishes the head of the response sent to the leader client.
+         *
+         * @param response the response head, copied
+         */
+        void publishHead(HttpResponse response) {
+            lock.lock();
+            try {
+                BasicHttpResponse copy = new BasicHttpResponse(response.getCode(), response.getReasonPhrase());
+                copy.setHeaders(response.getHeaders());
+                head = copy;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Publishes a part of the body, copied if followers joined.
+         */
+        void publish(byte[] b, int off, int len) {
+            publish(ByteBuffer.wrap(b, off, len));
+        }
+
+        /**
+         * Publishes a part of the body, copied if followers joined, leaving the buffer position
+         * unchanged.
+         */
+        void publish(ByteBuffer src) {
+            int len = src.remaining();
+            boolean closed = false;
+            lock.lock();
+            try {
+                if (failed || len <= 0) {
+                    return;
+                }
+                if (readers.isEmpty()) {
+                    // nobody reads the bytes, they are not copied for the followers to come
+                    chunks.clear();
+                    closed = joinable;
+                    joinable = false;
+                } else {
+                    byte[] chunk = new byte[len];
+                    src.duplicate().get(chunk);
+                    chunks.add(chunk);
+                    length += len;
+
+                    if (length - base > maxBufferSize && joinable) {
+                        joinable = false;
+                        closed = true;
+                    }
+                    if (!joinable) {
+                        trim();
+                    }
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (closed) {
+                unregister();
+            }
+        }
+
+        /**
+         * Marks the body as complete.
+         */
+        void complete() {
+            lock.lock();
+            try {
+                if (!failed) {
+                    completed = true;
+                }
+                joinable = false;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            unregister();
+        }
+
+        /**
+         * Fails the flight unless it completed: the followers still waiting for the head send
+         * their own request, the other ones fail.
+         */
+        void finish() {
+            lock.lock();
+            try {
+                if (!completed) {
+                    failed = true;
+                    chunks.clear();
+                }
+                joinable = false;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            unregister();
+        }
+
+        /**
+         * Removes the flight from the joinable ones, outside of its lock since {@link #join}
+         * takes it while holding the map entry.
+         */
+        private void unregister() {
+            flights.remove(key, this);
+        }
+
+        /**
+         * Drops the bytes read by all the followers, then detaches the slowest followers while the
+         * buffer exceeds its limit.
+         */
+        private void trim() {
+            while (true) {
+                long min = length;
+                Reader slowest = null;
+                for (Reader reader : readers) {
+                    if (reader.position < min) {
+                        min = reader.position;
+                        slowest = reader;
+                    }
+                }
+                while (!chunks.isEmpty() && base + chunks.peekFirst().length <= min) {
+                    base += chunks.pollFirst().length;
+                }
+                if (length - base <= maxBufferSize || slowest == null) {
+                    return;
+                }
+                slowest.detached = true;
+                readers.remove(slowest);
+                metrics.increment("coalesce.detached", host);
+            }
+        }
+
+        // ////////////////////////////////////////////
+        // Follower side
+        // ////////////////////////////////////////////
+
+        /**
+         * The view of a follower on the flight.
+         */
+        final class Reader {
+
+            private long position;
+
+            private boolean detached;
+
+            /**
+             * Waits for the head of the leader response.
+             *
+             * @param timeout the maximum wait (ms)
+             * @return the head, or null if the leader failed before receiving it
+             * @throws InterruptedIOException if the wait times out
+             */
+            HttpResponse awaitHead(long timeout) throws InterruptedIOException {
+                lock.lock();
+                try {
+                    long deadline = System.currentTimeMillis() + timeout;
+                    while (head == null && !failed) {
+                        await(deadline);
+                    }
+                    if (head == null) {
+                        readers.remove(this);
+                        return null;
+                    }
+                    return head;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /**
+             * Reads the next bytes of the body, waiting for the leader to receive them.
+             *
+             * @param b the buffer
+             * @param timeout the maximum wait (ms) for new bytes
+             * @return the number of bytes read, -1 at the end of the body
+             * @throws IOException if the leader failed or the follower was detached
+             */
+            int read(byte[] b, long timeout) throws IOException {
+                lock.lock();
+                try {
+                    long deadline = System.currentTimeMillis() + timeout;
+                    while (!detached && !failed && position == length && !completed) {
+                        await(deadline);
+                    }
+                    if (detached) {
+                        throw new IOException("Too far behind the coalesced response of " + host);
+                    }
+                    if (failed) {
+                        throw new IOException("The coalesced response of " + host + " failed");
+                    }
+                    if (position == length) {
+                        return -1;
+                    }
+
+                    long offset = base;
+                    for (byte[] chunk : chunks) {
+                        if (position < offset + chunk.length) {
+                            int start = (int) (position - offset);
+                            int read = Math.min(b.length, chunk.length - start);
+                            System.arraycopy(chunk, start, b, 0, read);
+                            position += read;
+                            if (!joinable) {
+                                trim();
+                            }
+                            return read;
+                        }
+                        offset += chunk.length;
+                    }
+                    throw new IllegalStateException("Missing coalesced bytes");
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /**
+             * Leaves the flight.
+             */
+            void close() {
+                lock.lock();
+                try {
+                    readers.remove(this);
+                    if (!joinable) {
+                        trim();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            private void await(long deadline) throws InterruptedIOException {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    readers.remove(this);
+                    throw new InterruptedIOException("Timeout waiting for the coalesced response of " + host);
+                }
+                try {
+                    changed.await(wait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    readers.remove(this);
+                    throw new InterruptedIOException("Interrupted waiting for the coalesced response of " + host);
+                }
+            }
+        }
+    }
+}
@@ -25,9 +25,6 @@ import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
 
 import java.io.IOException;
 import java.net.URL;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * RequestTypeChecker class for request type check.
@@ -36,13 +33,13 @@ import java.util.regex.Pattern;
  */
 public class RequestTypeChecker implements ProxyCallback {
 
-    ProxyConfig config;
+    ProxyConfigLoader configLoader;
 
     /**
-     * @param config
+     * @param configLoader
      */
-    public RequestTypeChecker(ProxyConfig config) {
-        this.config = config;
+    public RequestTypeChecker(ProxyConfigLoader configLoader) {
+        this.configLoader = configLoader;
     }
 
     /*
@@ -52,28 +49,17 @@ public class RequestTypeChecker implements ProxyCallback {
      */
     public void onRequest(HttpServletRequest request, HttpServletResponse response, URL url)
             throws IOException {
-        Set<String> reqTypes = config.getReqtypeWhitelist();
+        PatternMatcher reqTypes = configLoader.getConfig().getReqtypeMatcher();
 
         // //////////////////////////////////////
         // Check off the request type
         // provided vs. permitted request types
         // //////////////////////////////////////
 
-        if (reqTypes != null && !reqTypes.isEmpty()) {
+        if (!reqTypes.isEmpty()) {
             String urlExtForm = url.toExternalForm();
 
-            boolean check = false;
-            for (String regex : reqTypes) {
-                Pattern pattern = Pattern.compile(regex);
-                Matcher matcher = pattern.matcher(urlExtForm);
-
-                if (matcher.matches()) {
-                    check = true;
-                    break;
-                }
-            }
-
-            if (!check)
+            if (!reqTypes.matches(urlExtForm))
                 throw new HttpErrorException(403, "Request Type"
                                                   + " is not among the ones allowed for this proxy");
         }
@@ -0,0 +1,518 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.MessageHeaders;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A shared HTTP cache of the upstream responses (RFC 9111), bounded by the memory taken by its
+ * entries.
+ * <p>
+ * The entries are kept by URL and, for the responses with a <code>Vary</code> header, by the values
+ * of the listed request headers. The eviction follows W-TinyLFU: new entries enter a small LRU
+ * window, then they are admitted in the main segmented LRU only if they are more frequently
+ * requested than the entry they would evict, so that a burst of one shot requests (a client
+ * panning over new tiles) does not flush the popular responses (capabilities, legends).
+ * <p>
+ * The bodies can be kept off heap by a {@link SlabStore}: the cache then evicts entries until the
+ * store can hold a new body, and the entries returned by {@link #get} hold a reference to their
+ * body, to be released by the caller.
+ * <p>
+ * A {@link DiskCache} can be added as a second tier: the responses are then written through to
+ * the disk, the ones too large for the memory being kept on the disk only, and the responses found
+ * on the disk only are promoted back to the memory when they fit.
+ */
+final class ResponseCache {
+
+    private static final int WINDOW = 0;
+
+    private static final int PROBATION = 1;
+
+    private static final int PROTECTED = 2;
+
+    /**
+     * The stored entries, by variant key
+     */
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    /**
+     * The variants of each URL and the request headers selecting them
+     */
+    private final Map<String, Variants> variants = new HashMap<>();
+
+    /**
+     * The POST queries of each URL, invalidated with it
+     */
+    private final Map<String, Set<String>> queries = new HashMap<>();
+
+    private final LinkedHashMap<String, Node> window = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<String, Node> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<String, Node> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ProxyMetrics metrics;
+
+    private final SlabStore store;
+
+    private final DiskCache disk;
+
+    private FrequencySketch sketch;
+
+    private long maxSize;
+
+    private int maxEntrySize;
+
+    private long windowSize;
+
+    private long windowWeight;
+
+    private long mainWeight;
+
+    private long protectedWeight;
+
+    /**
+     * @param maxSize the maximum memory (bytes) taken by the entries
+     * @param maxEntrySize the maximum length (bytes) of a stored body
+     * @param metrics the metrics receiving the per host statistics
+     */
+    ResponseCache(long maxSize, int maxEntrySize, ProxyMetrics metrics) {
+        this(maxSize, maxEntrySize, null, metrics);
+    }
+
+    /**
+     * @param maxSize the maximum memory (bytes) taken by the entries
+     * @param maxEntrySize the maximum length (bytes) of a stored body
+     * @param store the off heap storage of the bodies, null to keep them on the heap
+     * @param metrics the metrics receiving the per host statistics
+     */
+    ResponseCache(long maxSize, int maxEntrySize, SlabStore store, ProxyMetrics metrics) {
+        this(maxSize, maxEntrySize, store, null, metrics);
+    }
+
+    /**
+     * @param maxSize the maximum memory (bytes) taken by the entries
+     * @param maxEntrySize the maximum length (bytes) of a body stored in memory
+     * @param store the off heap storage of the bodies, null to keep them on the heap
+     * @param disk the disk tier, can be null
+     * @param metrics the metrics receiving the per host statistics
+     */
+    ResponseCache(long maxSize, int maxEntrySize, SlabStore store, DiskCache disk, ProxyMetrics metrics) {
+        this.metrics = metrics;
+        this.store = store;
+        this.disk = disk;
+        setLimits(maxSize, maxEntrySize);
+    }
+
+    /**
+     * Applies new limits, evicting entries if the cache shrinks.
+     *
+     * @param maxSize the maximum memory (bytes) taken by the entries
+     * @param maxEntrySize the maximum length (bytes) of a stored body
+     */
+    synchronized void setLimits(long maxSize, int maxEntrySize) {
+        if (sketch == null || maxSize != this.maxSize) {
+            // sized for entries of 8 KB on average, a typical tile or capabilities document
+            sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(0, maxSize) / 8192));
+        }
+        this.maxSize = Math.max(0, maxSize);
+        this.maxEntrySize = maxEntrySize;
+        this.windowSize = this.maxSize / 100;
+        if (store != null) {
+            store.setCapacity(this.maxSize);
+        }
+        evict();
+    }
+
+    /**
+     * @return the maximum length (bytes) of a stored body
+     */
+    synchronized int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * @return the maximum length (bytes) of a body stored in any tier
+     */
+    synchronized int getMaxRecordSize() {
+        return disk != null ? Math.max(maxEntrySize, disk.getMaxEntrySize()) : maxEntrySize;
+    }
+
+    /**
+     * @return the directory of the disk tier, null if there is none
+     */
+    Path getDiskDirectory() {
+        return disk != null ? disk.getDirectory() : null;
+    }
+
+    ProxyMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Looks up the variant of a URL selected by the given request, recording the access.
+     *
+     * @param url the normalized URL
+     * @param request the request sent upstream, providing the headers listed by Vary
+     * @return the stored entry, holding a reference to its body, or null
+     */
+    CacheEntry get(String url, MessageHeaders request) {
+        CacheEntry entry = getFromMemory(url, request);
+        if (entry != null || disk == null) {
+            return entry;
+        }
+
+        // the disk is read outside of the lock
+        entry = disk.get(url, request);
+        if (entry == null) {
+            return null;
+        }
+        metrics.increment("cache.disk.hit", entry.getHost());
+        if (entry.getBody().length() <= getMaxEntrySize()) {
+            putInMemory(url, disk.getVaryNames(url), entry);
+        }
+        return entry;
+    }
+
+    private synchronized CacheEntry getFromMemory(String url, MessageHeaders request) {
+        Variants urlVariants = variants.get(url);
+        String key = variantKey(url, urlVariants != null ? urlVariants.varyNames : null, request);
+        sketch.increment(key.hashCode());
+
+        Node node = nodes.get(key);
+        if (node == null) {
+            return null;
+        }
+
+        switch (node.segment) {
+            case WINDOW -> window.get(key);
+            case PROBATION -> {
+                // a second access makes the entry worth protecting
+                probation.remove(key);
+                node.segment = PROTECTED;
+                protectedSegment.put(key, node);
+                protectedWeight += node.weight;
+                while (protectedWeight > (maxSize - windowSize) * 4 / 5) {
+                    Node demoted = eldest(protectedSegment);
+                    protectedSegment.remove(demoted.key);
+                    protectedWeight -= demoted.weight;
+                    demoted.segment = PROBATION;
+                    probation.put(demoted.key, demoted);
+                }
+            }
+            default -> protectedSegment.get(key);
+        }
+        return node.entry.retain() ? node.entry : null;
+    }
+
+    /**
+     * Stores a response, replacing the previous one of the same variant. The cache takes its own
+     * reference to the body, moved off heap if a store is configured.
+     *
+     * @param url the normalized URL
+     * @param varyNames the request headers listed by the Vary header of the response, lower case
+     * @param entry the entry, built with the key returned by {@link #variantKey}
+     */
+    void put(String url, String[] varyNames, CacheEntry entry) {
+        putInMemory(url, varyNames, entry);
+        if (disk != null) {
+            // copied outside of the lock, the disk tier orders the concurrent writes itself
+            disk.put(url, varyNames, entry);
+        }
+    }
+
+    private synchronized void putInMemory(String url, String[] varyNames, CacheEntry entry) {
+        Variants urlVariants = variants.get(url);
+        if (urlVariants != null && !Arrays.equals(urlVariants.varyNames, varyNames)) {
+            // the selecting headers changed, the previous variants cannot be matched anymore
+            removeVariants(url);
+        }
+
+        remove(entry.getKey());
+        if (entry.getBody().length() > maxEntrySize) {
+            // kept by the disk tier only
+            return;
+        }
+        entry = share(entry);
+        if (entry == null) {
+            return;
+        }
+        int weight = entry.weight();
+        if (weight > maxSize) {
+            entry.release();
+            return;
+        }
+
+        urlVariants = variants.get(url);
+        if (urlVariants == null) {
+            urlVariants = new Variants(varyNames);
+            variants.put(url, urlVariants);
+            String urlKey = QueryBody.urlKey(url);
+            if (urlKey != null) {
+                queries.computeIfAbsent(urlKey, k -> new HashSet<>()).add(url);
+            }
+        }
+        urlVariants.keys.add(entry.getKey());
+
+        Node node = new Node(entry.getKey(), url, entry, weight);
+        nodes.put(node.key, node);
+        window.put(node.key, node);
+        windowWeight += weight;
+        metrics.increment("cache.store", entry.getHost());
+        evict();
+    }
+
+    /**
+     * Removes all the variants of a URL and the POST queries to it, after an unsafe request changed
+     * the resource.
+     *
+     * @param url the normalized URL
+     */
+    void invalidate(String url) {
+        synchronized (this) {
+            removeVariants(url);
+            Set<String> urlQueries = queries.remove(url);
+            if (urlQueries != null) {
+                for (String query : urlQueries) {
+                    removeVariants(query);
+                }
+            }
+        }
+        if (disk != null) {
+            disk.invalidate(url);
+        }
+    }
+
+    private synchronized void removeVariants(String url) {
+        Variants urlVariants = variants.remove(url);
+        if (urlVariants != null) {
+            unindexQuery(url);
+            for (String key : urlVariants.keys) {
+                remove(key);
+            }
+        }
+    }
+
+    private void unindexQuery(String url) {
+        String urlKey = QueryBody.urlKey(url);
+        Set<String> urlQueries = urlKey != null ? queries.get(urlKey) : null;
+        if (urlQueries != null) {
+            urlQueries.remove(url);
+            if (urlQueries.isEmpty()) {
+                queries.remove(urlKey);
+            }
+        }
+    }
+
+    /**
+     * @return the number of stored entries
+     */
+    synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return the memory (bytes) taken by the stored entries
+     */
+    synchronized long weight() {
+        return windowWeight + mainWeight;
+    }
+
+    /**
+     * @param url the normalized URL
+     * @param varyNames the request headers selecting the variant, can be null
+     * @param request the request providing the header values
+     * @return the key of the variant selected by the request
+     */
+    static String variantKey(String url, String[] varyNames, MessageHeaders request) {
+        if (varyNames == null || varyNames.length == 0) {
+            return url;
+        }
+        StringBuilder key = new StringBuilder(url);
+        for (String name : varyNames) {
+            key.append('\n').append(name).append(':');
+            Iterator<Header> it = request.headerIterator(name);
+            while (it.hasNext()) {
+                // the values are compared once normalized as the RFC allows
+                key.append(it.next().getValue().replace(" ", "").toLowerCase()).append(',');
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Acquires the reference of the cache to the body of an entry, copying it to the store, if
+     * any, and evicting entries until it fits. A body read from the disk tier is copied as well,
+     * so that the memory tier never keeps a segment file mapped.
+     *
+     * @return the entry to store, or null if it cannot be stored
+     */
+    private CacheEntry share(CacheEntry entry) {
+        CacheBody body = entry.getBody();
+        if (store == null) {
+            if (body instanceof CacheBody.HeapBody) {
+                return entry.retain() ? entry : null;
+            }
+            return entry.withBody(CacheBody.of(body.toByteArray()));
+        }
+        if (store.owns(body)) {
+            return entry.retain() ? entry : null;
+        }
+        CacheBody stored = store.store(body);
+        while (stored == null && !nodes.isEmpty()) {
+            evict(!probation.isEmpty() ? eldest(probation)
+                    : !window.isEmpty() ? eldest(window) : eldest(protectedSegment));
+            stored = store.store(body);
+        }
+        if (stored == null) {
+            metrics.increment("cache.store.full", entry.getHost());
+            return null;
+        }
+        return entry.withBody(stored);
+    }
+
+    // ////////////////////////////////////////////
+    // W-TinyLFU
+    // ////////////////////////////////////////////
+
+    private void evict() {
+        // the window entries move to the main segments, if popular enough
+        while (windowWeight > windowSize && !window.isEmpty()) {
+            Node candidate = eldest(window);
+            window.remove(candidate.key);
+            windowWeight -= candidate.weight;
+            admit(candidate);
+        }
+
+        // shrinking limits
+        while (windowWeight + mainWeight > maxSize) {
+            evict(!probation.isEmpty() ? eldest(probation)
+                    : !protectedSegment.isEmpty() ? eldest(protectedSegment) : eldest(window));
+        }
+    }
+
+    private void admit(Node candidate) {
+        candidate.segment = PROBATION;
+        probation.put(candidate.key, candidate);
+        mainWeight += candidate.weight;
+
+        int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+        while (mainWeight > maxSize - windowSize) {
+            Node victim = null;
+            for (Node node : probation.values()) {
+                if (node != candidate) {
+                    victim = node;
+                    break;
+                }
+            }
+            if (victim == null && !protectedSegment.isEmpty()) {
+                victim = eldest(protectedSegment);
+            }
+            if (victim == null || sketch.frequency(victim.key.hashCode()) >= candidateFrequency) {
+                evict(candidate);
+                return;
+            }
+            evict(victim);
+        }
+    }
+
+    private void evict(Node node) {
+        remove(node.key);
+        metrics.increment("cache.eviction", node.entry.getHost());
+    }
+
+    private void remove(String key) {
+        Node node = nodes.remove(key);
+        if (node == null) {
+            return;
+        }
+        switch (node.segment) {
+            case WINDOW -> {
+                window.remove(key);
+                windowWeight -= node.weight;
+            }
+            case PROBATION -> {
+                probation.remove(key);
+                mainWeight -= node.weight;
+            }
+            default -> {
+                protectedSegment.remove(key);
+                protectedWeight -= node.weight;
+                mainWeight -= node.weight;
+            }
+        }
+        Variants urlVariants = variants.get(node.url);
+        if (urlVariants != null) {
+            urlVariants.keys.remove(key);
+            if (urlVariants.keys.isEmpty()) {
+                variants.remove(node.url);
+                unindexQuery(node.url);
+            }
+        }
+        // the memory is reused once the requests being served release it too
+        node.entry.release();
+    }
+
+    private static Node eldest(LinkedHashMap<String, Node> segment) {
+        return segment.values().iterator().next();
+    }
+
+    private static final class Node {
+
+        final String key;
+
+        final String url;
+
+        final CacheEntry entry;
+
+        final int weight;
+
+        int segment = WINDOW;
+
+        Node(String key, String url, CacheEntry entry, int weight) {
+            this.key = key;
+            this.url = url;
+            this.entry = entry;
+            this.weight = weight;
+        }
+    }
+
+    private static final class Variants {
+
+        final String[] varyNames;
+
+        final Set<String> keys = new LinkedHashSet<>();
+
+        Variants(String[] varyNames) {
+            this.varyNames = varyNames;
+        }
+    }
+}
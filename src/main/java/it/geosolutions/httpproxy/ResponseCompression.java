@@ -0,0 +1,221 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Proxy side compression of the upstream responses sent uncompressed, for the clients accepting
+ * it and the textual content types (XML, GML, JSON, HTML...).
+ */
+final class ResponseCompression {
+
+    static final String GZIP = "gzip";
+
+    static final String DEFLATE = "deflate";
+
+    private ResponseCompression() {
+    }
+
+    /**
+     * Picks the content coding the proxy should apply to the given upstream response.
+     *
+     * @param response the upstream response
+     * @param httpServletRequest the client request
+     * @param config the configuration snapshot
+     * @return {@link #GZIP}, {@link #DEFLATE} or null if the response is relayed as is
+     */
+    static String select(HttpResponse response, HttpServletRequest httpServletRequest, ProxyConfig config) {
+        if (!config.isCompressionEnabled() || "HEAD".equalsIgnoreCase(httpServletRequest.getMethod())) {
+            return null;
+        }
+
+        int status = response.getCode();
+        if (status < 200 || status >= 300 || status == 204 || status == 206) {
+            return null;
+        }
+
+        Header contentEncoding = response.getFirstHeader(Utils.HTTP_HEADER_CONTENT_ENCODING);
+        if (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding.getValue().trim())) {
+            return null;
+        }
+
+        Header contentLength = response.getFirstHeader(Utils.CONTENT_LENGTH_HEADER_NAME);
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.getValue().trim()) < config.getCompressionMinSize()) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                // unknown length, compress anyway
+            }
+        }
+
+        Header contentType = response.getFirstHeader("Content-Type");
+        if (contentType == null || !isCompressible(contentType.getValue(), config.getMimetypeWhitelist())) {
+            return null;
+        }
+
+        return negotiate(Collections.list(httpServletRequest.getHeaders(Utils.HTTP_HEADER_ACCEPT_ENCODING)));
+    }
+
+    /**
+     * @param contentType the response content type, parameters included
+     * @param mimetypeWhitelist the allowed mime types, all allowed if empty
+     * @return true if the content type is textual and allowed
+     */
+    static boolean isCompressible(String contentType, Set<String> mimetypeWhitelist) {
+        String mimeType = contentType.split(";")[0].trim().toLowerCase();
+        if (mimetypeWhitelist != null && !mimetypeWhitelist.isEmpty() && !mimetypeWhitelist.contains(mimeType)) {
+            return false;
+        }
+        return mimeType.startsWith("text/")
+                || mimeType.endsWith("/xml") || mimeType.endsWith("+xml") || mimeType.endsWith("_xml")
+                || mimeType.endsWith("/json") || mimeType.endsWith("+json")
+                || mimeType.equals("application/javascript")
+                || mimeType.equals("application/vnd.ogc.gml")
+                || mimeType.equals("application/x-www-form-urlencoded");
+    }
+
+    /**
+     * @param acceptEncodings the Accept-Encoding header values of the client request
+     * @return the preferred supported coding, or null if none is accepted
+     */
+    static String negotiate(Iterable<String> acceptEncodings) {
+        boolean gzip = false;
+        boolean deflate = false;
+        boolean any = false;
+        // the codings refused with q=0 are not covered by "*"
+        boolean gzipRefused = false;
+        boolean deflateRefused = false;
+        for (String value : acceptEncodings) {
+            for (String token : value.split(",")) {
+                String[] parts = token.split(";");
+                String coding = parts[0].trim().toLowerCase();
+                boolean refused = isRefused(parts);
+                if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                    gzip |= !refused;
+                    gzipRefused |= refused;
+                } else if (coding.equals(DEFLATE)) {
+                    deflate |= !refused;
+                    deflateRefused |= refused;
+                } else if (coding.equals("*")) {
+                    any |= !refused;
+                }
+            }
+        }
+        if (gzip || any && !gzipRefused) {
+            return GZIP;
+        }
+        return deflate || any && !deflateRefused ? DEFLATE : null;
+    }
+
+    private static boolean isRefused(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2)) <= 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param out the stream receiving the compressed bytes, closed along with the returned one
+     * @param coding the content coding
+     * @param level the compression level
+     * @param bufferSize the compression buffer size
+     * @return the stream compressing the bytes written to it
+     * @throws IOException on failure writing the gzip header
+     */
+    static DeflaterOutputStream wrap(OutputStream out, String coding, int level, int bufferSize)
+            throws IOException {
+        if (GZIP.equals(coding)) {
+            return new GzipEncoder(out, level, bufferSize);
+        }
+        return new DeflateEncoder(out, level, bufferSize);
+    }
+
+    /**
+     * Releases the compressor of a stream returned by {@link #wrap}, once closed or abandoned after a
+     * failure. An abandoned stream is not finished, so the client cannot mistake the truncated body
+     * for a complete one.
+     *
+     * @param encoder the stream, can be null
+     */
+    static void end(DeflaterOutputStream encoder) {
+        if (encoder instanceof Encoder ended) {
+            ended.end();
+        }
+    }
+
+    private interface Encoder {
+
+        void end();
+    }
+
+    private static final class GzipEncoder extends GZIPOutputStream implements Encoder {
+
+        GzipEncoder(OutputStream out, int level, int bufferSize) throws IOException {
+            super(out, bufferSize);
+            def.setLevel(level);
+        }
+
+        @Override
+        public void end() {
+            def.end();
+        }
+    }
+
+    private static final class DeflateEncoder extends DeflaterOutputStream implements Encoder {
+
+        DeflateEncoder(OutputStream out, int level, int bufferSize) {
+            super(out, new Deflater(level), bufferSize);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+
+        @Override
+        public void end() {
+            def.end();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * Streams the body of the client request to the upstream server without blocking: the servlet
+ * input is read only when the container reports data as available, and only as fast as the
+ * upstream connection accepts it.
+ */
+final class ServletEntityProducer implements AsyncEntityProducer, ReadListener {
+
+    private final ServletInputStream in;
+
+    private final String contentType;
+
+    private final long contentLength;
+
+    private final AsyncProxyExchange exchange;
+
+    private final BufferPool bufferPool;
+
+    private byte[] buffer;
+
+    /**
+     * The bytes read from the client and not yet accepted by the upstream connection
+     */
+    private ByteBuffer pending;
+
+    private volatile DataStreamChannel channel;
+
+    private volatile boolean dataAvailable = true;
+
+    private volatile boolean ended;
+
+    /**
+     * @param in the input stream of the client request, switched to non blocking mode by {@link #start()}
+     * @param contentType the content type of the body, can be null
+     * @param contentLength the length of the body, negative if unknown
+     * @param bufferPool the pool providing the read buffer
+     * @param bufferSize the read buffer size
+     * @param exchange the exchange notified of the read failures
+     */
+    ServletEntityProducer(ServletInputStream in, String contentType, long contentLength, BufferPool bufferPool,
+                          int bufferSize, AsyncProxyExchange exchange) {
+        this.in = in;
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+        this.exchange = exchange;
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire(bufferSize);
+    }
+
+    /**
+     * Registers the producer as the read listener of the client request, to be called after the
+     * request has been put in asynchronous mode.
+     */
+    void start() {
+        in.setReadListener(this);
+    }
+
+    @Override
+    public int available() {
+        if (ended || buffer == null) {
+            return 0;
+        }
+        return (pending != null && pending.hasRemaining()) || dataAvailable ? buffer.length : 0;
+    }
+
+    @Override
+    public void produce(DataStreamChannel channel) throws IOException {
+        this.channel = channel;
+        if (buffer == null) {
+            return;
+        }
+
+        if (pending != null && pending.hasRemaining()) {
+            channel.write(pending);
+            if (pending.hasRemaining()) {
+                return;
+            }
+        }
+
+        // cleared before checking the input, so that a concurrent onDataAvailable is never lost
+        dataAvailable = false;
+        while (!ended && (in.isFinished() || in.isReady())) {
+            int read = in.isFinished() ? -1 : in.read(buffer);
+            if (read < 0) {
+                ended = true;
+                channel.endStream();
+                return;
+            }
+            pending = ByteBuffer.wrap(buffer, 0, read);
+            channel.write(pending);
+            if (pending.hasRemaining()) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onDataAvailable() {
+        signal();
+    }
+
+    @Override
+    public void onAllDataRead() {
+        signal();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        exchange.failed(t instanceof Exception e ? e : new IOException(t));
+    }
+
+    private void signal() {
+        dataAvailable = true;
+        DataStreamChannel current = channel;
+        if (current != null) {
+            current.requestOutput();
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public void failed(Exception cause) {
+        ended = true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return null;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return contentLength < 0;
+    }
+
+    @Override
+    public Set<String> getTrailerNames() {
+        return null;
+    }
+
+    @Override
+    public void releaseResources() {
+        pending = null;
+        bufferPool.release(buffer);
+        buffer = null;
+    }
+}
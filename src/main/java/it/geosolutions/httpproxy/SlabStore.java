@@ -0,0 +1,347 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the cached bodies off the Java heap, in slabs of direct memory, so that a large cache
+ * neither grows the heap nor the garbage collection pauses.
+ * <p>
+ * Each slab of {@link #SLAB_SIZE} is split in pages of a single power of two size class, from
+ * {@link #MIN_PAGE} to {@link #MAX_PAGE}: a body takes as many {@link #MAX_PAGE} pages as it
+ * fills, plus a page of the smallest class holding its tail. Slabs emptied by the releases go back
+ * to a common pool, so that the memory moves to the size classes in use. The store only allocates,
+ * the {@link ResponseCache} picks the bodies to evict when it is full.
+ * <p>
+ * The direct memory is limited by the <code>-XX:MaxDirectMemorySize</code> JVM option, which
+ * defaults to the maximum heap size.
+ */
+final class SlabStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlabStore.class);
+
+    static final int SLAB_SIZE = 1024 * 1024;
+
+    static final int MIN_PAGE = 1024;
+
+    static final int MAX_PAGE = 64 * 1024;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_PAGE / MIN_PAGE) + 1;
+
+    /**
+     * The slabs of each size class with free pages
+     */
+    private final ArrayDeque<Slab>[] partial;
+
+    /**
+     * The allocated slabs without a size class
+     */
+    private final ArrayDeque<Slab> free = new ArrayDeque<>();
+
+    private int slabCount;
+
+    private int maxSlabs;
+
+    private long usedBytes;
+
+    /**
+     * @param capacity the maximum memory (bytes) allocated
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SlabStore(long capacity) {
+        this.partial = new ArrayDeque[CLASSES];
+        for (int c = 0; c < CLASSES; c++) {
+            partial[c] = new ArrayDeque<>();
+        }
+        setCapacity(capacity);
+    }
+
+    /**
+     * Applies a new capacity, the slabs beyond it are freed once empty.
+     *
+     * @param capacity the maximum memory (bytes) allocated
+     */
+    synchronized void setCapacity(long capacity) {
+        this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, Math.max(0, capacity) / SLAB_SIZE);
+        while (slabCount > maxSlabs && !free.isEmpty()) {
+            free.poll();
+            slabCount--;
+        }
+    }
+
+    /**
+     * @return the memory (bytes) allocated by the store
+     */
+    synchronized long getAllocatedBytes() {
+        return (long) slabCount * SLAB_SIZE;
+    }
+
+    /**
+     * @return the memory (bytes) of the pages in use
+     */
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @param length a body length
+     * @return the memory (bytes) taken by a body of the given length
+     */
+    static int allocationSize(int length) {
+        int tail = length % MAX_PAGE;
+        return length - tail + (tail > 0 ? MIN_PAGE << sizeClass(tail) : 0);
+    }
+
+    /**
+     * @param body a body
+     * @return true if the body is kept by this store
+     */
+    boolean owns(CacheBody body) {
+        return body instanceof SlabBody slabBody && slabBody.store() == this;
+    }
+
+    /**
+     * Copies a body off heap.
+     *
+     * @param content the body
+     * @return the stored body, holding a reference for the caller, or null if the store is full
+     */
+    CacheBody store(CacheBody content) {
+        int length = content.length();
+        int full = length / MAX_PAGE;
+        int tail = length % MAX_PAGE;
+        int count = full + (tail > 0 ? 1 : 0);
+        Slab[] slabs = new Slab[count];
+        int[] pages = new int[count];
+
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                int sizeClass = i < full ? CLASSES - 1 : sizeClass(tail);
+                Slab slab = allocate(sizeClass);
+                if (slab == null) {
+                    for (int j = 0; j < i; j++) {
+                        free(slabs[j], pages[j]);
+                    }
+                    return null;
+                }
+                slabs[i] = slab;
+                pages[i] = slab.free[--slab.freeCount];
+                if (slab.freeCount == 0) {
+                    partial[sizeClass].remove(slab);
+                }
+                usedBytes += slab.pageSize;
+            }
+        }
+
+        // the pages are not shared, they are filled outside of the lock
+        SlabBody body = new SlabBody(slabs, pages, length);
+        ByteBuffer[] targets = body.pages();
+        int target = 0;
+        for (ByteBuffer source : content.buffers()) {
+            while (source.hasRemaining()) {
+                if (!targets[target].hasRemaining()) {
+                    target++;
+                    continue;
+                }
+                int chunk = Math.min(source.remaining(), targets[target].remaining());
+                int limit = source.limit();
+                source.limit(source.position() + chunk);
+                targets[target].put(source);
+                source.limit(limit);
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Returns a slab of the size class with a free page, guarded by this.
+     */
+    private Slab allocate(int sizeClass) {
+        Slab slab = partial[sizeClass].peekFirst();
+        if (slab != null) {
+            return slab;
+        }
+
+        slab = free.poll();
+        if (slab == null) {
+            if (slabCount >= maxSlabs) {
+                return null;
+            }
+            try {
+                slab = new Slab(ByteBuffer.allocateDirect(SLAB_SIZE));
+            } catch (OutOfMemoryError e) {
+                LOGGER.warn("Cannot allocate the cache memory, -XX:MaxDirectMemorySize may be too low: {}",
+                        e.getMessage());
+                return null;
+            }
+            slabCount++;
+        }
+        slab.assign(sizeClass);
+        partial[sizeClass].addFirst(slab);
+        return slab;
+    }
+
+    /**
+     * Gives a page back, guarded by this.
+     */
+    private void free(Slab slab, int page) {
+        boolean wasFull = slab.freeCount == 0;
+        slab.free[slab.freeCount++] = page;
+        usedBytes -= slab.pageSize;
+        if (slab.freeCount == slab.free.length) {
+            if (!wasFull) {
+                partial[slab.sizeClass].remove(slab);
+            }
+            slab.sizeClass = -1;
+            if (slabCount > maxSlabs) {
+                slabCount--;
+            } else {
+                free.add(slab);
+            }
+        } else if (wasFull) {
+            partial[slab.sizeClass].addLast(slab);
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_PAGE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_PAGE);
+    }
+
+    /**
+     * A slab of direct memory and its free pages.
+     */
+    private static final class Slab {
+
+        final ByteBuffer memory;
+
+        int sizeClass = -1;
+
+        int pageSize;
+
+        int[] free;
+
+        int freeCount;
+
+        Slab(ByteBuffer memory) {
+            this.memory = memory;
+        }
+
+        void assign(int sizeClass) {
+            this.sizeClass = sizeClass;
+            this.pageSize = MIN_PAGE << sizeClass;
+            this.free = new int[SLAB_SIZE / pageSize];
+            // the pages are handed out in order
+            for (int i = 0; i < free.length; i++) {
+                free[i] = free.length - 1 - i;
+            }
+            this.freeCount = free.length;
+        }
+
+        ByteBuffer page(int page) {
+            return memory.duplicate().position(page * pageSize).limit((page + 1) * pageSize).slice();
+        }
+    }
+
+    /**
+     * A body stored in the pages of the slabs, released once its last reference is.
+     */
+    private final class SlabBody implements CacheBody {
+
+        private final Slab[] slabs;
+
+        private final int[] pages;
+
+        private final int length;
+
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        SlabBody(Slab[] slabs, int[] pages, int length) {
+            this.slabs = slabs;
+            this.pages = pages;
+            this.length = length;
+        }
+
+        SlabStore store() {
+            return SlabStore.this;
+        }
+
+        ByteBuffer[] pages() {
+            ByteBuffer[] buffers = new ByteBuffer[pages.length];
+            for (int i = 0; i < pages.length; i++) {
+                buffers[i] = slabs[i].page(pages[i]);
+            }
+            return buffers;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public int allocatedSize() {
+            return allocationSize(length);
+        }
+
+        @Override
+        public ByteBuffer[] buffers() {
+            ByteBuffer[] buffers = pages();
+            int remaining = length;
+            for (int i = 0; i < buffers.length; i++) {
+                int chunk = Math.min(buffers[i].capacity(), remaining);
+                buffers[i] = buffers[i].limit(chunk).asReadOnlyBuffer();
+                remaining -= chunk;
+            }
+            return buffers;
+        }
+
+        @Override
+        public boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        @Override
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                synchronized (SlabStore.this) {
+                    for (int i = 0; i < pages.length; i++) {
+                        free(slabs[i], pages[i]);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.client5.http.async.AsyncExecCallback;
+import org.apache.hc.client5.http.async.AsyncExecChain;
+import org.apache.hc.client5.http.async.AsyncExecChainHandler;
+import org.apache.hc.client5.http.classic.ExecChain;
+import org.apache.hc.client5.http.classic.ExecChainHandler;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.AsyncDataConsumer;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the requests to a logical upstream host, configured by
+ * <code>upstreamPool.&lt;host&gt;</code>, over its backends. The requests keep the URL of the
+ * logical host, which the cache, the coalescing and the per host settings use, while the route
+ * planner sends them to the backend picked here, each backend having its own connections.
+ * <p>
+ * The backend is the one with the least requests in flight, or with <code>peakEwma</code> the one
+ * with the lowest latency average weighted by its requests in flight, the average following the
+ * latency peaks at once and their decrease slowly. A backend failing several requests in a row is
+ * left out for a while (passive outlier ejection), as long as enough backends are left, and so are
+ * the backends found down by the {@link HealthChecker}.
+ * <p>
+ * The outcomes of the requests are observed by the class itself, added to the execution chains of
+ * the clients.
+ */
+final class UpstreamPools implements ExecChainHandler, AsyncExecChainHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpstreamPools.class);
+
+    /**
+     * The name of the execution chain handler
+     */
+    static final String NAME = "upstream-pools";
+
+    /**
+     * The context attribute holding the backend picked for a request
+     */
+    private static final String BACKEND_ATTRIBUTE = "it.geosolutions.httpproxy.backend";
+
+    /**
+     * Time constant (ns) of the latency averages
+     */
+    private static final double DECAY_NANOS = 10_000_000_000d;
+
+    private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<>();
+
+    private final ProxyConfigLoader configLoader;
+
+    private final ProxyMetrics metrics;
+
+    /**
+     * @param configLoader the loader providing the pools and the balancing settings
+     * @param metrics the metrics receiving the per backend statistics
+     */
+    UpstreamPools(ProxyConfigLoader configLoader, ProxyMetrics metrics) {
+        this.configLoader = configLoader;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Parses the backends of a logical host.
+     *
+     * @param host the logical host
+     * @param values the backends, <code>host[:port]</code>
+     * @return the backends, without scheme and with port -1 if not given, or null if none is valid
+     */
+    static List<HttpHost> parseBackends(String host, List<String> values) {
+        List<HttpHost> backends = new ArrayList<>();
+        for (String value : values) {
+            String backend = value.trim();
+            if (backend.isEmpty()) {
+                continue;
+            }
+            try {
+                backends.add(HttpHost.create(backend));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                LOGGER.warn("Invalid backend {} for the upstream pool {}", backend, host);
+            }
+        }
+        return backends.isEmpty() ? null : backends;
+    }
+
+    /**
+     * Picks the backend of a request to a pooled host, remembering it in the context for the
+     * execution chain.
+     *
+     * @param target the target host of the request
+     * @param context the context of the request
+     * @return the picked backend, with the scheme of the target and its port if the backend has
+     *         none, or the target itself if it is not a pooled host
+     */
+    HttpHost select(HttpHost target, HttpContext context) {
+        ProxyConfig config = configLoader.getConfig();
+        Pool pool = pool(target.getHostName(), config);
+        if (pool == null) {
+            return target;
+        }
+        Backend backend = pool.select(config, System.nanoTime());
+        context.setAttribute(BACKEND_ATTRIBUTE, backend);
+        return target(backend.host, target);
+    }
+
+    /**
+     * Marks a backend up or down, as found by the health checks.
+     *
+     * @param host the logical host
+     * @param backend the configured backend
+     * @param up false to leave the backend out, as long as other backends are up
+     */
+    void setUp(String host, HttpHost backend, boolean up) {
+        Pool pool = pool(host, configLoader.getConfig());
+        if (pool != null) {
+            for (Backend candidate : pool.backends) {
+                if (candidate.host.equals(backend)) {
+                    candidate.setUp(up);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param backend a configured backend
+     * @param target the logical target host
+     * @return the backend with the scheme of the target, and its port if the backend has none
+     */
+    static HttpHost target(HttpHost backend, HttpHost target) {
+        return new HttpHost(target.getSchemeName(), backend.getHostName(),
+                backend.getPort() > 0 ? backend.getPort() : target.getPort());
+    }
+
+    private Pool pool(String host, ProxyConfig config) {
+        String name = host.toLowerCase(Locale.ROOT);
+        List<HttpHost> hosts = config.getUpstreamPools().get(name);
+        if (hosts == null) {
+            return null;
+        }
+        Pool pool = pools.get(name);
+        if (pool == null || !pool.hosts.equals(hosts)) {
+            // created, or rebuilt after a reload changing its backends
+            pool = pools.compute(name, (k, current) -> current != null && current.hosts.equals(hosts)
+                    ? current : new Pool(hosts, current, metrics));
+        }
+        return pool;
+    }
+
+    @Override
+    public ClassicHttpResponse execute(ClassicHttpRequest request, ExecChain.Scope scope, ExecChain chain)
+            throws IOException, HttpException {
+        Backend backend = (Backend) scope.clientContext.removeAttribute(BACKEND_ATTRIBUTE);
+        if (backend == null) {
+            return chain.proceed(request, scope);
+        }
+        Call call = backend.start();
+        try {
+            ClassicHttpResponse response = chain.proceed(request, scope);
+            call.complete(CircuitBreaker.isFailure(response.getCode()), configLoader.getConfig());
+            return response;
+        } catch (IOException | HttpException | RuntimeException e) {
+            call.complete(true, configLoader.getConfig());
+            throw e;
+        }
+    }
+
+    @Override
+    public void execute(HttpRequest request, AsyncEntityProducer entityProducer, AsyncExecChain.Scope scope,
+                        AsyncExecChain chain, AsyncExecCallback asyncExecCallback)
+            throws HttpException, IOException {
+        Backend backend = (Backend) scope.clientContext.removeAttribute(BACKEND_ATTRIBUTE);
+        if (backend == null) {
+            chain.proceed(request, entityProducer, scope, asyncExecCallback);
+            return;
+        }
+        Call call = backend.start();
+        try {
+            chain.proceed(request, entityProducer, scope, new AsyncExecCallback() {
+
+                @Override
+                public AsyncDataConsumer handleResponse(HttpResponse response, EntityDetails entityDetails)
+                        throws HttpException, IOException {
+                    call.complete(CircuitBreaker.isFailure(response.getCode()), configLoader.getConfig());
+                    return asyncExecCallback.handleResponse(response, entityDetails);
+                }
+
+                @Override
+                public void handleInformationResponse(HttpResponse response) throws HttpException, IOException {
+                    asyncExecCallback.handleInformationResponse(response);
+                }
+
+                @Override
+                public void completed() {
+                    asyncExecCallback.completed();
+                }
+
+                @Override
+                public void failed(Exception cause) {
+                    call.complete(true, configLoader.getConfig());
+                    asyncExecCallback.failed(cause);
+                }
+            });
+        } catch (IOException | HttpException | RuntimeException e) {
+            call.complete(true, configLoader.getConfig());
+            throw e;
+        }
+    }
+
+    /**
+     * The backends of a logical host.
+     */
+    static final class Pool {
+
+        private final List<HttpHost> hosts;
+
+        private final Backend[] backends;
+
+        /**
+         * @param hosts the configured backends
+         * @param previous the pool replaced after a reload, whose backends still configured are
+         *        kept with their statistics, can be null
+         * @param metrics the metrics receiving the per backend statistics
+         */
+        Pool(List<HttpHost> hosts, Pool previous, ProxyMetrics metrics) {
+            this.hosts = hosts;
+            this.backends = new Backend[hosts.size()];
+            for (int i = 0; i < backends.length; i++) {
+                Backend backend = null;
+                if (previous != null) {
+                    for (Backend candidate : previous.backends) {
+                        if (candidate.host.equals(hosts.get(i))) {
+                            backend = candidate;
+                        }
+                    }
+                }
+                if (backend == null) {
+                    backend = new Backend(hosts.get(i), metrics);
+                }
+                backend.pool = this;
+                backends[i] = backend;
+            }
+        }
+
+        /**
+         * @param config the configuration snapshot, providing the balancing settings
+         * @param now the current time (ns)
+         * @return the backend with the lowest cost among the ones up and not ejected, or among
+         *         all of them if none is
+         */
+        Backend select(ProxyConfig config, long now) {
+            boolean peakEwma = "peakEwma".equalsIgnoreCase(config.getUpstreamPoolBalancer());
+            // ties are broken at random, not to send every request to the first backend
+            int offset = ThreadLocalRandom.current().nextInt(backends.length);
+            Backend selected = null;
+            double lowest = Double.MAX_VALUE;
+            for (boolean any : new boolean[] {false, true}) {
+                for (int i = 0; i < backends.length; i++) {
+                    Backend backend = backends[(offset + i) % backends.length];
+                    if (!any && (!backend.isUp() || backend.isEjected(now))) {
+                        continue;
+                    }
+                    double cost = peakEwma ? backend.getCost() : backend.outstanding.get();
+                    if (cost < lowest) {
+                        lowest = cost;
+                        selected = backend;
+                    }
+                }
+                if (selected != null) {
+                    break;
+                }
+            }
+            return selected;
+        }
+
+        private int countEjected(long now) {
+            int ejected = 0;
+            for (Backend backend : backends) {
+                if (backend.isEjected(now)) {
+                    ejected++;
+                }
+            }
+            return ejected;
+        }
+    }
+
+    /**
+     * A backend of a pool, with its requests in flight, its latency average and its failures.
+     */
+    static final class Backend {
+
+        private final HttpHost host;
+
+        private final String key;
+
+        private final ProxyMetrics metrics;
+
+        /**
+         * The pool of the backend, replaced on reloads
+         */
+        private volatile Pool pool;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private double ewma;
+
+        private long lastSample;
+
+        private int consecutiveFailures;
+
+        private long ejectedUntil;
+
+        private boolean ejected;
+
+        /**
+         * False while the health checks find the backend down
+         */
+        private volatile boolean up = true;
+
+        Backend(HttpHost host, ProxyMetrics metrics) {
+            this.host = host;
+            this.key = host.toHostString().toLowerCase(Locale.ROOT);
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return the configured backend
+         */
+        HttpHost getHost() {
+            return host;
+        }
+
+        /**
+         * @return false while the health checks find the backend down
+         */
+        boolean isUp() {
+            return up;
+        }
+
+        /**
+         * @param up false while the health checks find the backend down
+         */
+        void setUp(boolean up) {
+            this.up = up;
+        }
+
+        /**
+         * @return the number of requests waiting for the response of the backend
+         */
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @param now the current time (ns)
+         * @return true if the backend is left out after its failures
+         */
+        synchronized boolean isEjected(long now) {
+            if (ejected && now - ejectedUntil >= 0) {
+                ejected = false;
+                // back with no history, so that it is tried at once
+                ewma = 0;
+                metrics.set("pool.ejected", key, 0);
+            }
+            return ejected;
+        }
+
+        /**
+         * @return the latency average (ns) weighted by the requests in flight, 0 while unknown
+         */
+        synchronized double getCost() {
+            return ewma * (outstanding.get() + 1);
+        }
+
+        /**
+         * Counts a request sent to the backend.
+         *
+         * @return the call, whose outcome is to be reported
+         */
+        Call start() {
+            metrics.increment("pool.request", key);
+            metrics.set("pool.outstanding", key, outstanding.incrementAndGet());
+            return new Call(this, System.nanoTime());
+        }
+
+        /**
+         * Updates the latency average and the failures with the outcome of a request.
+         *
+         * @param rttNanos the time (ns) to the response head or to the failure
+         * @param failed true if the request failed (I/O errors, 502, 503, 504)
+         * @param config the configuration snapshot, providing the ejection settings
+         * @param now the current time (ns)
+         */
+        void sample(long rttNanos, boolean failed, ProxyConfig config, long now) {
+            metrics.set("pool.outstanding", key, outstanding.decrementAndGet());
+            boolean eject;
+            synchronized (this) {
+                // the peaks are taken at once, then forgotten over the decay time
+                double weight = lastSample == 0 ? 0 : Math.exp(-(now - lastSample) / DECAY_NANOS);
+                ewma = rttNanos > ewma ? rttNanos : ewma * weight + rttNanos * (1 - weight);
+                lastSample = now;
+                if (!failed) {
+                    consecutiveFailures = 0;
+                    return;
+                }
+                metrics.increment("pool.failure", key);
+                consecutiveFailures++;
+                eject = !ejected && config.getUpstreamPoolEjectFailures() > 0
+                        && consecutiveFailures >= config.getUpstreamPoolEjectFailures();
+            }
+            // outside of the lock of the backend, which the count takes
+            Pool current = pool;
+            if (eject && (current.countEjected(now) + 1) * 100
+                    <= config.getUpstreamPoolMaxEjectedPercent() * current.backends.length) {
+                synchronized (this) {
+                    ejected = true;
+                    ejectedUntil = now + config.getUpstreamPoolEjectDuration() * 1_000_000L;
+                    consecutiveFailures = 0;
+                }
+                metrics.set("pool.ejected", key, 1);
+                metrics.increment("pool.ejection", key);
+                LOGGER.warn("Backend {} ejected for {} ms after its failures", key,
+                        config.getUpstreamPoolEjectDuration());
+            }
+        }
+    }
+
+    /**
+     * A request sent to a backend, whose outcome is reported once.
+     */
+    static final class Call {
+
+        private final Backend backend;
+
+        private final long start;
+
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private Call(Backend backend, long start) {
+            this.backend = backend;
+            this.start = start;
+        }
+
+        /**
+         * @param failed true if the request failed
+         * @param config the configuration snapshot
+         */
+        void complete(boolean failed, ProxyConfig config) {
+            if (completed.compareAndSet(false, true)) {
+                long now = System.nanoTime();
+                backend.sample(now - start, failed, config, now);
+            }
+        }
+    }
+}
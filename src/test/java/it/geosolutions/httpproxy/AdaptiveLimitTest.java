@@ -0,0 +1,76 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the adaptive concurrency limits.
+ */
+class AdaptiveLimitTest {
+
+    private static final long MS = 1_000_000;
+
+    @Test
+    void testFollowsLatency() {
+        AdaptiveLimit limit = new AdaptiveLimit(10, 2, 100, 1.5, 0.9);
+
+        // steady latency with the limit in use
+        for (int i = 0; i < 50; i++) {
+            limit.sample(100 * MS, limit.get(), false);
+        }
+        int grown = limit.get();
+        assertTrue(grown > 10, Integer.toString(grown));
+
+        // the requests queue on the server
+        for (int i = 0; i < 20; i++) {
+            limit.sample(400 * MS, limit.get(), false);
+        }
+        assertTrue(limit.get() < grown, Integer.toString(limit.get()));
+
+        // the new latency becomes the norm, the limit grows again up to its bound
+        for (int i = 0; i < 500; i++) {
+            limit.sample(400 * MS, limit.get(), false);
+        }
+        assertEquals(100, limit.get());
+    }
+
+    @Test
+    void testIdleAndFailures() {
+        AdaptiveLimit limit = new AdaptiveLimit(20, 2, 100, 1.5, 0.5);
+
+        // a few requests in flight say nothing about a higher limit
+        for (int i = 0; i < 50; i++) {
+            assertFalse(limit.sample(100 * MS, 1, false));
+        }
+        assertEquals(20, limit.get());
+
+        limit.sample(100 * MS, 20, true);
+        assertEquals(10, limit.get());
+        limit.sample(100 * MS, 10, true);
+        limit.sample(100 * MS, 5, true);
+        limit.sample(100 * MS, 2, true);
+        assertEquals(2, limit.get());
+    }
+}
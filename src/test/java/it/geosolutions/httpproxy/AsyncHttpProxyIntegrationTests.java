@@ -0,0 +1,320 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee10.servlet.ServletHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the proxy in asynchronous mode against a mocked upstream server.
+ */
+class AsyncHttpProxyIntegrationTests {
+
+    @RegisterExtension
+    static WireMockExtension upstream = WireMockExtension.newInstance()
+            .options(WireMockConfiguration.options().dynamicPort())
+            .build();
+
+    @TempDir
+    static Path tempDir;
+
+    static Server jettyServer;
+
+    static String proxyURL;
+
+    @BeforeAll
+    static void startHttpProxyServer() throws Exception {
+        Path properties = tempDir.resolve("async-proxy.properties");
+        Files.writeString(properties, "asyncEnabled = true\nconfigReloadInterval = 0\n"
+                + "compressionEnabled = true\ncompressionPassThrough = true\ncacheEnabled = true\ncacheOffHeap = true\n"
+                + "route.coalesce.localhost = true\n");
+
+        jettyServer = new Server();
+        ServerConnector connector = new ServerConnector(jettyServer);
+        connector.setPort(0);
+        jettyServer.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/http_proxy");
+        context.setInitParameter("proxyPropPath", properties.toString());
+        ServletHolder holder = new ServletHolder(new HTTPProxy());
+        holder.setAsyncSupported(true);
+        context.addServlet(holder, "/proxy/*");
+        jettyServer.setHandler(context);
+        jettyServer.start();
+
+        proxyURL = "http://localhost:" + connector.getLocalPort() + "/http_proxy/proxy?url=";
+    }
+
+    @AfterAll
+    static void stopHttpProxyServer() throws Exception {
+        if (jettyServer != null) {
+            jettyServer.stop();
+        }
+    }
+
+    /**
+     * Validates that a body larger than the buffering window is relayed unchanged
+     */
+    @Test
+    void testGETLargeBody() throws IOException {
+        byte[] body = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(body);
+        upstream.stubFor(get(urlEqualTo("/geoserver/tile.png"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "image/png")
+                        .withBody(body)));
+
+        HttpGet httpGet = new HttpGet(proxyURL + "http://localhost:" + upstream.getPort() + "/geoserver/tile.png");
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            httpClient.execute(httpGet, response -> {
+                assertEquals(200, response.getCode());
+                assertEquals("image/png", response.getFirstHeader("Content-Type").getValue());
+                assertArrayEquals(body, EntityUtils.toByteArray(response.getEntity()));
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Validates that the redirects are followed as in the blocking mode
+     */
+    @Test
+    void testRedirect() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/old"))
+                .willReturn(aResponse()
+                        .withStatus(302)
+                        .withHeader("Location", "http://localhost:" + upstream.getPort() + "/geoserver/new")
+                        .withBody("moved")));
+        upstream.stubFor(get(urlEqualTo("/geoserver/new"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody("new")));
+
+        HttpGet httpGet = new HttpGet(proxyURL + "http://localhost:" + upstream.getPort() + "/geoserver/old");
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            httpClient.execute(httpGet, response -> {
+                assertEquals(200, response.getCode());
+                assertEquals("new", EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Validates that the 304 responses are relayed without a body
+     */
+    @Test
+    void testNotModified() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/cached"))
+                .willReturn(aResponse().withStatus(304)));
+
+        HttpGet httpGet = new HttpGet(proxyURL + "http://localhost:" + upstream.getPort() + "/geoserver/cached");
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            httpClient.execute(httpGet, response -> {
+                assertEquals(304, response.getCode());
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Validates that the request body is streamed to the upstream server
+     */
+    @Test
+    void testPOSTBody() throws IOException {
+        String requestBody = "<user><userId>5</userId><userName>Jane Doe</userName></user>";
+        upstream.stubFor(post(urlEqualTo("/geostore/users/create"))
+                .withRequestBody(equalToXml(requestBody))
+                .willReturn(aResponse()
+                        .withStatus(201)
+                        .withHeader("Content-Type", "text/xml")
+                        .withBody("<response>5</response>")));
+
+        HttpPost httpPost = new HttpPost(proxyURL + "http://localhost:" + upstream.getPort() + "/geostore/users/create");
+        httpPost.setEntity(new StringEntity(requestBody));
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            httpClient.execute(httpPost, response -> {
+                assertEquals(201, response.getCode());
+                assertEquals("<response>5</response>",
+                        EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+                return null;
+            });
+            upstream.verify(postRequestedFor(urlEqualTo("/geostore/users/create")));
+        }
+    }
+
+    /**
+     * Validates that the uncompressed textual responses are compressed by the proxy, the upstream
+     * server only applying gzip
+     */
+    @Test
+    void testProxySideCompression() throws IOException {
+        String features = "<gml:featureMember><topp:states/></gml:featureMember>".repeat(2000);
+        upstream.stubFor(get(urlEqualTo("/geoserver/wfs"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/vnd.ogc.gml")
+                        .withHeader("ETag", "\"features\"")
+                        .withBody(features)));
+
+        HttpGet httpGet = new HttpGet(proxyURL + "http://localhost:" + upstream.getPort() + "/geoserver/wfs");
+        httpGet.setHeader("Accept-Encoding", "deflate");
+        try (CloseableHttpClient httpClient = HttpClients.custom().disableContentCompression().build()) {
+            httpClient.execute(httpGet, response -> {
+                assertEquals(200, response.getCode());
+                assertEquals("deflate", response.getFirstHeader("Content-Encoding").getValue());
+                assertEquals("Accept-Encoding", response.getFirstHeader("Vary").getValue());
+                assertEquals("W/\"features\"", response.getFirstHeader("ETag").getValue());
+                byte[] compressed = EntityUtils.toByteArray(response.getEntity());
+                assertTrue(compressed.length < features.length() / 10);
+                try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+                    assertEquals(features, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Validates that the compressed responses are relayed as they are
+     */
+    @Test
+    void testCompressionPassThrough() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write("{\"type\":\"FeatureCollection\"}".repeat(500).getBytes(StandardCharsets.UTF_8));
+        }
+        upstream.stubFor(get(urlEqualTo("/geoserver/wfs.json"))
+                .withHeader("Accept-Encoding", equalTo("gzip"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Content-Encoding", "gzip")
+                        .withBody(compressed.toByteArray())));
+
+        HttpGet httpGet = new HttpGet(proxyURL + "http://localhost:" + upstream.getPort() + "/geoserver/wfs.json");
+        httpGet.setHeader("Accept-Encoding", "gzip");
+        try (CloseableHttpClient httpClient = HttpClients.custom().disableContentCompression().build()) {
+            httpClient.execute(httpGet, response -> {
+                assertEquals(200, response.getCode());
+                assertEquals("gzip", response.getFirstHeader("Content-Encoding").getValue());
+                assertArrayEquals(compressed.toByteArray(), EntityUtils.toByteArray(response.getEntity()));
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Validates that the responses relayed asynchronously are cached
+     */
+    @Test
+    void testCachedResponse() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/gwc/tile.png"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "image/png")
+                        .withHeader("Cache-Control", "max-age=60")
+                        .withBody("tile")));
+
+        HttpGet httpGet = new HttpGet(proxyURL + "http://localhost:" + upstream.getPort() + "/geoserver/gwc/tile.png");
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            for (String expected : new String[] {"MISS", "HIT"}) {
+                httpClient.execute(httpGet, response -> {
+                    assertEquals(200, response.getCode());
+                    assertEquals(expected, response.getFirstHeader(HTTPProxy.X_CACHE_HEADER).getValue());
+                    assertEquals("tile", EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+                    return null;
+                });
+            }
+        }
+        upstream.verify(1, getRequestedFor(urlEqualTo("/geoserver/gwc/tile.png")));
+    }
+
+    /**
+     * Validates that the identical requests in flight are sent upstream once
+     */
+    @Test
+    void testCoalescedRequests() throws Exception {
+        byte[] body = new byte[256 * 1024];
+        new Random(7).nextBytes(body);
+        upstream.stubFor(get(urlEqualTo("/geoserver/wms?request=GetMap"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "image/png")
+                        .withFixedDelay(1000)
+                        .withBody(body)));
+
+        String url = proxyURL + "http://localhost:" + upstream.getPort() + "/geoserver/wms?request=GetMap";
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            List<Future<byte[]>> responses = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                responses.add(executor.submit(() -> httpClient.execute(new HttpGet(url), response -> {
+                    assertEquals(200, response.getCode());
+                    return EntityUtils.toByteArray(response.getEntity());
+                })));
+                Thread.sleep(100);
+            }
+            for (Future<byte[]> response : responses) {
+                assertArrayEquals(body, response.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        upstream.verify(1, getRequestedFor(urlEqualTo("/geoserver/wms?request=GetMap")));
+    }
+}
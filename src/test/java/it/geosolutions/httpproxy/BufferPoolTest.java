@@ -0,0 +1,74 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Tests for the pool of stream buffers.
+ */
+class BufferPoolTest {
+
+    @Test
+    void testBuffersAreReusedBySizeClass() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+
+        byte[] buffer = pool.acquire(5000);
+        assertEquals(8192, buffer.length);
+        pool.release(buffer);
+        assertEquals(8192, pool.getPooledBytes());
+
+        assertSame(buffer, pool.acquire(8192));
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(1024, pool.acquire(10).length);
+        assertEquals(BufferPool.MAX_SIZE + 1, pool.acquire(BufferPool.MAX_SIZE + 1).length);
+    }
+
+    @Test
+    void testRetainedMemoryIsBounded() {
+        BufferPool pool = new BufferPool(16384);
+
+        byte[] first = pool.acquire(8192);
+        byte[] second = pool.acquire(8192);
+        byte[] third = pool.acquire(8192);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        pool.release(new byte[3000]);
+        assertEquals(16384, pool.getPooledBytes());
+
+        pool.acquire(8192);
+        pool.acquire(8192);
+        assertNotSame(third, pool.acquire(8192));
+    }
+
+    @Test
+    void testAdaptiveBufferSize() {
+        assertEquals(8192, BufferPool.bufferSize(-1, 8192, 65536));
+        assertEquals(8192, BufferPool.bufferSize(100, 8192, 65536));
+        assertEquals(20000, BufferPool.bufferSize(20000, 8192, 65536));
+        assertEquals(65536, BufferPool.bufferSize(50_000_000, 8192, 65536));
+        assertEquals(8192, BufferPool.bufferSize(50_000_000, 8192, 4096));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static it.geosolutions.httpproxy.ProxyTestServer.execute;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the proxy with a bulkhead against a slow mocked upstream server.
+ */
+class BulkheadIntegrationTests {
+
+    @RegisterExtension
+    static WireMockExtension upstream = WireMockExtension.newInstance()
+            .options(WireMockConfiguration.options().dynamicPort())
+            .build();
+
+    @TempDir
+    static Path tempDir;
+
+    static ProxyTestServer proxy;
+
+    static String proxyURL;
+
+    @BeforeAll
+    static void startHttpProxyServer() throws Exception {
+        proxy = ProxyTestServer.start(tempDir, "dnsAddress.bulkhead.test = 127.0.0.1\n"
+                + "route.maxInFlight.bulkhead.test = 1\nroute.bulkheadMaxQueued.bulkhead.test = 0\n");
+        proxyURL = proxy.getProxyURL();
+    }
+
+    @AfterAll
+    static void stopHttpProxyServer() throws Exception {
+        if (proxy != null) {
+            proxy.stop();
+        }
+    }
+
+    /**
+     * Validates that the requests beyond the limit of a host, and beyond its queue, are rejected
+     */
+    @Test
+    void testBulkhead() throws Exception {
+        upstream.stubFor(get(urlEqualTo("/geoserver/wms?layers=slow"))
+                .willReturn(aResponse().withStatus(200).withBody("slow").withFixedDelay(2000)));
+
+        String url = proxyURL + "http://bulkhead.test:" + upstream.getPort() + "/geoserver/wms?layers=slow";
+        CompletableFuture<String[]> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return execute(new HttpGet(url));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        while (upstream.findAll(getRequestedFor(urlEqualTo("/geoserver/wms?layers=slow"))).isEmpty()) {
+            Thread.sleep(10);
+        }
+
+        // the only place is taken and nothing may wait for it
+        String[] rejected = execute(new HttpGet(url));
+        assertEquals("503", rejected[0]);
+        assertTrue(rejected[2].contains("Too many requests to bulkhead.test"), rejected[2]);
+        assertEquals("slow", first.get(10, TimeUnit.SECONDS)[2]);
+        assertEquals("slow", execute(new HttpGet(url))[2]);
+    }
+}
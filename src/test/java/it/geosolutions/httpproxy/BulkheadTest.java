@@ -0,0 +1,128 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URL;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the limits and the queues of the bulkhead compartments.
+ */
+class BulkheadTest {
+
+    @Test
+    void testCompartments() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("route.maxInFlight.*.geo-solutions.it", "2");
+        props.setProperty("route.maxInFlight.demo.geo-solutions.it", "0");
+        ProxyConfig config = new ProxyConfig(props);
+        Bulkhead bulkhead = new Bulkhead(new ProxyMetrics());
+
+        assertNull(bulkhead.compartment(new URL("http://localhost/wms"), config));
+        assertNull(bulkhead.compartment(new URL("http://demo.geo-solutions.it/wms"), config));
+        Bulkhead.Compartment compartment = bulkhead.compartment(new URL("http://a.geo-solutions.it/wms"), config);
+        assertEquals("*.geo-solutions.it", compartment.getKey());
+        assertSame(compartment, bulkhead.compartment(new URL("http://b.geo-solutions.it/wms"), config));
+    }
+
+    @Test
+    void testQueue() throws Exception {
+        ProxyMetrics metrics = new ProxyMetrics();
+        Bulkhead.Compartment compartment = new Bulkhead.Compartment("geoserver", null, metrics);
+
+        Bulkhead.Lease first = compartment.acquire(1, 1, 0);
+        assertNotNull(first);
+        assertEquals(1, metrics.get("bulkhead.inFlight", "geoserver"));
+
+        // the queue times out, then the waiting request gets the released place
+        assertNull(compartment.acquire(1, 1, 10));
+        assertEquals(1, metrics.get("bulkhead.timeout", "geoserver"));
+        CompletableFuture<Bulkhead.Lease> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return compartment.acquire(1, 1, 10_000);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (metrics.get("bulkhead.queued", "geoserver") == 0) {
+            Thread.sleep(1);
+        }
+
+        // the queue is full
+        assertNull(compartment.acquire(1, 1, 10_000));
+        assertEquals(1, metrics.get("bulkhead.rejected", "geoserver"));
+
+        first.release();
+        first.release();
+        Bulkhead.Lease second = waiting.get(10, TimeUnit.SECONDS);
+        assertNotNull(second);
+        assertEquals(1, metrics.get("bulkhead.inFlight", "geoserver"));
+        assertEquals(0, metrics.get("bulkhead.queued", "geoserver"));
+        second.release();
+        assertEquals(0, metrics.get("bulkhead.inFlight", "geoserver"));
+    }
+
+    @Test
+    void testAdaptiveLimit() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("route.adaptiveConcurrency.GeoServer", "true");
+        props.setProperty("adaptiveConcurrencyInitialLimit", "1");
+        props.setProperty("adaptiveConcurrencyMinLimit", "1");
+        ProxyMetrics metrics = new ProxyMetrics();
+        Bulkhead bulkhead = new Bulkhead(metrics);
+        Bulkhead.Compartment compartment = bulkhead.compartment(new URL("http://GeoServer/wms"),
+                new ProxyConfig(props));
+        assertEquals("geoserver", compartment.getKey());
+        assertTrue(compartment.isAdaptive());
+
+        Bulkhead.Lease lease = compartment.acquire(0, 0, 0);
+        assertNotNull(lease);
+        assertNull(compartment.acquire(0, 0, 0));
+        lease.complete(false);
+        lease.release();
+
+        // quick responses with the limit in use raise it
+        for (int i = 0; i < 10; i++) {
+            lease = compartment.acquire(0, 0, 0);
+            lease.complete(false);
+            lease.release();
+        }
+        assertTrue(metrics.get("bulkhead.limit", "geoserver") > 1);
+        assertNotNull(compartment.acquire(0, 0, 0));
+        assertNotNull(compartment.acquire(0, 0, 0));
+
+        // a reload disabling it gives a static compartment
+        props.setProperty("route.maxInFlight.geoserver", "1");
+        props.setProperty("route.adaptiveConcurrency.GeoServer", "false");
+        Bulkhead.Compartment fixed = bulkhead.compartment(new URL("http://geoserver/wms"), new ProxyConfig(props));
+        assertFalse(fixed.isAdaptive());
+    }
+}
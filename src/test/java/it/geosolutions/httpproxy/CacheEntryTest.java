@@ -0,0 +1,132 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.client5.http.utils.DateUtils;
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the age and freshness of the cached responses.
+ */
+class CacheEntryTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+
+    private static CacheEntry entry(BasicHttpResponse response) {
+        return new CacheEntry("key", "localhost", response, new byte[0], NOW, NOW);
+    }
+
+    private static BasicHttpResponse response(String... headers) {
+        BasicHttpResponse response = new BasicHttpResponse(200);
+        response.setHeader("Date", DateUtils.formatStandardDate(Instant.ofEpochMilli(NOW)));
+        for (int i = 0; i < headers.length; i += 2) {
+            response.addHeader(headers[i], headers[i + 1]);
+        }
+        return response;
+    }
+
+    private static CacheControl request(String cacheControl) {
+        BasicHttpRequest request = new BasicHttpRequest("GET", "/");
+        if (cacheControl != null) {
+            request.setHeader("Cache-Control", cacheControl);
+        }
+        return CacheControl.parse(request);
+    }
+
+    @Test
+    void testExplicitFreshness() {
+        CacheEntry entry = entry(response("Cache-Control", "max-age=60, s-maxage=120"));
+        assertEquals(120_000, entry.getFreshnessLifetime());
+        assertTrue(entry.isFresh(NOW + 119_000, request(null)));
+        assertFalse(entry.isFresh(NOW + 121_000, request(null)));
+
+        // the client can restrict the age or accept a stale response
+        assertFalse(entry.isFresh(NOW + 30_000, request("max-age=10")));
+        assertTrue(entry.isFresh(NOW + 125_000, request("max-stale=10")));
+        assertFalse(entry.isFresh(NOW, request("no-cache")));
+
+        entry = entry(response("Expires", DateUtils.formatStandardDate(Instant.ofEpochMilli(NOW + 30_000))));
+        assertEquals(30_000, entry.getFreshnessLifetime());
+        assertEquals(0, entry(response("Expires", "0")).getFreshnessLifetime());
+    }
+
+    @Test
+    void testStaleWindows() {
+        CacheEntry entry = entry(response("Cache-Control", "max-age=60, stale-while-revalidate=30"));
+        assertTrue(entry.canServeStaleWhileRevalidate(NOW + 80_000, request(null), 0));
+        assertFalse(entry.canServeStaleWhileRevalidate(NOW + 100_000, request(null), 0));
+        assertFalse(entry.canServeStaleWhileRevalidate(NOW + 80_000, request("max-age=0"), 0));
+
+        // the proxy default applies when the server sends nothing
+        entry = entry(response("Cache-Control", "max-age=60"));
+        assertFalse(entry.canServeStaleIfError(NOW + 80_000, request(null), 0));
+        assertTrue(entry.canServeStaleIfError(NOW + 80_000, request(null), 3600));
+        assertFalse(entry.canServeStaleIfError(NOW + 80_000, request("stale-if-error=10"), 3600));
+
+        entry = entry(response("Cache-Control", "max-age=60, must-revalidate"));
+        assertFalse(entry.canServeStaleIfError(NOW + 80_000, request(null), 3600));
+        assertFalse(entry.canServeStaleWhileRevalidate(NOW + 80_000, request(null), 3600));
+    }
+
+    @Test
+    void testAgeAndHeuristicFreshness() {
+        CacheEntry entry = entry(response("Cache-Control", "max-age=60", "Age", "50"));
+        assertEquals(50_000, entry.age(NOW));
+        assertFalse(entry.isFresh(NOW + 11_000, request(null)));
+        assertEquals("61", entry.toResponse(NOW + 11_000).getFirstHeader("Age").getValue());
+
+        entry = entry(response("Last-Modified", DateUtils.formatStandardDate(Instant.ofEpochMilli(NOW - 100_000))));
+        assertEquals(10_000, entry.getFreshnessLifetime());
+
+        entry = entry(response("Cache-Control", "max-age=60, must-revalidate"));
+        assertFalse(entry.isFresh(NOW + 65_000, request("max-stale")));
+    }
+
+    @Test
+    void testConditionals() {
+        String lastModified = DateUtils.formatStandardDate(Instant.ofEpochMilli(NOW - 100_000));
+        CacheEntry entry = entry(response("ETag", "\"v1\"", "Last-Modified", lastModified));
+        assertTrue(entry.matches("\"v0\", W/\"v1\"", null));
+        assertFalse(entry.matches("\"v2\"", lastModified));
+        assertTrue(entry.matches(null, lastModified));
+        assertFalse(entry.matches(null, DateUtils.formatStandardDate(Instant.ofEpochMilli(NOW - 200_000))));
+    }
+
+    @Test
+    void testFreshen() {
+        CacheEntry entry = entry(response("Cache-Control", "max-age=10", "ETag", "\"v1\"", "Content-Length", "0"));
+        BasicHttpResponse notModified = new BasicHttpResponse(304);
+        notModified.setHeader("Cache-Control", "max-age=100");
+        notModified.setHeader("Content-Length", "0");
+
+        CacheEntry freshened = entry.freshen(notModified, NOW + 50_000, NOW + 50_000);
+        assertEquals(100_000, freshened.getFreshnessLifetime());
+        assertEquals("\"v1\"", freshened.getFirstHeader("ETag"));
+        assertTrue(freshened.isFresh(NOW + 60_000, request(null)));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.client5.http.DnsResolver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for the resolution of the upstream host names.
+ */
+class CachingDnsResolverTest {
+
+    @TempDir
+    Path tempDir;
+
+    private ProxyConfigLoader loader(String properties) throws IOException {
+        Path file = tempDir.resolve("proxy.properties");
+        Files.writeString(file, properties, StandardCharsets.UTF_8);
+        return new ProxyConfigLoader(file.toString());
+    }
+
+    private static InetAddress address(String literal) throws UnknownHostException {
+        return InetAddress.getByName(literal);
+    }
+
+    /**
+     * Resolves a.example to two addresses and the literal addresses, fails for any other host, counting the lookups
+     */
+    private static class CountingResolver implements DnsResolver {
+
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if (host.equals("a.example")) {
+                return new InetAddress[] {address("10.0.0.1"), address("10.0.0.2")};
+            }
+            if (Character.isDigit(host.charAt(0))) {
+                return new InetAddress[] {address(host)};
+            }
+            throw new UnknownHostException(host);
+        }
+
+        @Override
+        public String resolveCanonicalHostname(String host) {
+            return host;
+        }
+    }
+
+    @Test
+    void testCachedLookups() throws Exception {
+        CountingResolver delegate = new CountingResolver();
+        ProxyMetrics metrics = new ProxyMetrics();
+        CachingDnsResolver resolver = new CachingDnsResolver(
+                loader("dnsCacheTtl = 60\ndnsNegativeTtl = 60\ndnsRefreshBefore = 0\n"), delegate, metrics);
+
+        InetAddress[] first = resolver.resolve("a.example");
+        InetAddress[] second = resolver.resolve("A.example");
+        assertEquals(1, delegate.lookups.get());
+        assertEquals(first[0], second[1]);
+        assertEquals(first[1], second[0]);
+
+        assertThrows(UnknownHostException.class, () -> resolver.resolve("b.example"));
+        assertThrows(UnknownHostException.class, () -> resolver.resolve("b.example"));
+        assertEquals(2, delegate.lookups.get());
+        assertEquals(1, metrics.get("dns.failure", "b.example"));
+        assertEquals(2, metrics.get("dns.hit", "a.example") + metrics.get("dns.hit", "b.example"));
+
+        // the literal addresses are not cached
+        resolver.resolve("127.0.0.1");
+        resolver.resolve("127.0.0.1");
+        assertEquals(4, delegate.lookups.get());
+        resolver.shutdown();
+    }
+
+    @Test
+    void testRefreshBeforeExpiry() throws Exception {
+        CountingResolver delegate = new CountingResolver();
+        CachingDnsResolver resolver = new CachingDnsResolver(loader("dnsCacheTtl = 60\ndnsRefreshBefore = 60\n"),
+                delegate, new ProxyMetrics());
+
+        resolver.resolve("a.example");
+        // served from the cache, refreshed in the background
+        resolver.resolve("a.example");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delegate.lookups.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, delegate.lookups.get());
+        resolver.shutdown();
+    }
+
+    @Test
+    void testStaticAddresses() throws Exception {
+        Path hosts = tempDir.resolve("hosts");
+        Files.writeString(hosts, "# upstream servers\n10.0.0.1  tiles.example  maps.example\n"
+                + "10.0.0.2 tiles.example # second node\n", StandardCharsets.UTF_8);
+        DnsResolver offline = new CountingResolver() {
+            @Override
+            public InetAddress[] resolve(String host) {
+                throw new AssertionError("looked up " + host);
+            }
+        };
+        CachingDnsResolver resolver = new CachingDnsResolver(loader("dnsHostsFile = "
+                + hosts.toString().replace('\\', '/') + "\ndnsAddress.wms.example = 10.0.0.3, ::1\n"), offline,
+                new ProxyMetrics());
+
+        InetAddress[] tiles = resolver.resolve("Tiles.example");
+        assertEquals(2, tiles.length);
+        assertEquals("tiles.example", tiles[0].getHostName());
+        assertArrayEquals(new InetAddress[] {address("10.0.0.1")}, resolver.resolve("maps.example"));
+
+        // the addresses of the preferred family are rotated, the others kept last
+        InetAddress[] wms = resolver.resolve("wms.example");
+        assertEquals(address("10.0.0.3"), wms[0]);
+        assertEquals(address("::1"), wms[1]);
+        assertEquals("wms.example", resolver.resolveCanonicalHostname("wms.example"));
+        resolver.shutdown();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static it.geosolutions.httpproxy.ProxyTestServer.execute;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the proxy with a circuit breaker against a mocked upstream server.
+ */
+class CircuitBreakerIntegrationTests {
+
+    @RegisterExtension
+    static WireMockExtension upstream = WireMockExtension.newInstance()
+            .options(WireMockConfiguration.options().dynamicPort())
+            .build();
+
+    @TempDir
+    static Path tempDir;
+
+    static ProxyTestServer proxy;
+
+    static String proxyURL;
+
+    @BeforeAll
+    static void startHttpProxyServer() throws Exception {
+        proxy = ProxyTestServer.start(tempDir, "dnsAddress.breaker.test = 127.0.0.1\n"
+                + "route.circuitBreaker.breaker.test = true\ncircuitBreakerWindow = 2\ncircuitBreakerMinCalls = 2\n"
+                + "cacheEnabled = true\ndnsAddress.stale.test = 127.0.0.1\nroute.circuitBreaker.stale.test = true\n");
+        proxyURL = proxy.getProxyURL();
+    }
+
+    @AfterAll
+    static void stopHttpProxyServer() throws Exception {
+        if (proxy != null) {
+            proxy.stop();
+        }
+    }
+
+    /**
+     * Validates that the requests to a failing upstream server fail at once once its circuit is open
+     */
+    @Test
+    void testCircuitBreaker() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/wms?layers=overloaded"))
+                .willReturn(aResponse().withStatus(503).withBody("overloaded")));
+
+        String url = proxyURL + "http://breaker.test:" + upstream.getPort() + "/geoserver/wms?layers=overloaded";
+        // neither the proxy nor this client may retry the 503 responses
+        try (CloseableHttpClient httpClient = HttpClients.custom().disableAutomaticRetries().build()) {
+            for (int i = 0; i < 2; i++) {
+                httpClient.execute(new HttpGet(url), response -> {
+                    assertEquals("overloaded", EntityUtils.toString(response.getEntity()));
+                    assertEquals(503, response.getCode());
+                    return null;
+                });
+            }
+            httpClient.execute(new HttpGet(url), response -> {
+                EntityUtils.consume(response.getEntity());
+                assertEquals(503, response.getCode());
+                assertTrue(Integer.parseInt(response.getFirstHeader("Retry-After").getValue()) > 0);
+                return null;
+            });
+        }
+        upstream.verify(2, getRequestedFor(urlEqualTo("/geoserver/wms?layers=overloaded")));
+    }
+
+    /**
+     * Validates that the stale responses are not revalidated in the background while the circuit
+     * is open
+     */
+    @Test
+    void testNoRefreshWhileOpen() throws Exception {
+        upstream.stubFor(get(urlEqualTo("/geoserver/styles.json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Cache-Control", "max-age=0, stale-while-revalidate=60")
+                        .withBody("[]")));
+        upstream.stubFor(get(urlEqualTo("/geoserver/wms?layers=down"))
+                .willReturn(aResponse().withStatus(502).withBody("down")));
+
+        String base = proxyURL + "http://stale.test:" + upstream.getPort();
+        assertArrayEquals(new String[] {"200", "MISS", "[]"}, execute(new HttpGet(base + "/geoserver/styles.json")));
+        assertEquals("502", execute(new HttpGet(base + "/geoserver/wms?layers=down"))[0]);
+        // half of the calls failed, the circuit is open
+        assertEquals("503", execute(new HttpGet(base + "/geoserver/wms?layers=down"))[0]);
+
+        assertArrayEquals(new String[] {"200", "STALE", "[]"}, execute(new HttpGet(base + "/geoserver/styles.json")));
+        Thread.sleep(500);
+        upstream.verify(1, getRequestedFor(urlEqualTo("/geoserver/styles.json")));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URL;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the states of the circuit breakers.
+ */
+class CircuitBreakerTest {
+
+    private static ProxyConfig config(String... properties) {
+        Properties props = new Properties();
+        props.setProperty("route.circuitBreaker.geoserver", "true");
+        props.setProperty("circuitBreakerWindow", "4");
+        props.setProperty("circuitBreakerMinCalls", "4");
+        props.setProperty("circuitBreakerHalfOpenCalls", "2");
+        for (int i = 0; i < properties.length; i += 2) {
+            props.setProperty(properties[i], properties[i + 1]);
+        }
+        return new ProxyConfig(props);
+    }
+
+    @Test
+    void testOpenAndClose() throws Exception {
+        ProxyMetrics metrics = new ProxyMetrics();
+        CircuitBreaker breaker = new CircuitBreaker(metrics);
+        ProxyConfig config = config();
+        assertNull(breaker.circuit(new URL("http://demo/wms"), config));
+        CircuitBreaker.Circuit circuit = breaker.circuit(new URL("http://geoserver/wms"), config);
+        assertSame(circuit, breaker.circuit(new URL("http://GeoServer:80/wfs"), config));
+
+        // two failures out of four
+        long now = System.currentTimeMillis();
+        for (boolean failed : new boolean[] {false, true, false}) {
+            circuit.tryAcquire(config, now).complete(failed);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+        circuit.tryAcquire(config, now).complete(true);
+        assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+        assertEquals(1, metrics.get("circuit.state", "geoserver:80"));
+
+        assertNull(circuit.tryAcquire(config, now));
+        long retryAfter = circuit.getRetryAfter(now);
+        assertTrue(retryAfter >= 30 && retryAfter <= 31, Long.toString(retryAfter));
+        assertEquals(1, metrics.get("circuit.rejected", "geoserver:80"));
+
+        // half open, two trials
+        long later = now + 31_000;
+        CircuitBreaker.Permit first = circuit.tryAcquire(config, later);
+        CircuitBreaker.Permit second = circuit.tryAcquire(config, later);
+        assertNotNull(second);
+        assertNull(circuit.tryAcquire(config, later));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuit.getState());
+        first.complete(false);
+        second.cancel();
+        circuit.tryAcquire(config, later).complete(false);
+        assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+        assertEquals(0, metrics.get("circuit.state", "geoserver:80"));
+    }
+
+    @Test
+    void testSlowCalls() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(new ProxyMetrics());
+        ProxyConfig config = config("circuitBreakerSlowCallDuration", "0", "circuitBreakerOpenDuration", "0");
+        CircuitBreaker.Circuit circuit = breaker.circuit(new URL("http://geoserver/wms"), config);
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++) {
+            circuit.tryAcquire(config, now).complete(false);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+
+        // a slow trial opens the circuit again
+        circuit.tryAcquire(config, System.currentTimeMillis()).complete(false);
+        assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+    }
+}
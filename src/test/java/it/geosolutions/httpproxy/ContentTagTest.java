@@ -0,0 +1,64 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the content ETags computed by the proxy.
+ */
+class ContentTagTest {
+
+    @Test
+    void testTags() {
+        byte[] body = "{\"legend\":[]}".getBytes(StandardCharsets.UTF_8);
+        String tag = ContentTag.of(body);
+        assertTrue(ContentTag.isContentTag(tag));
+        assertFalse(ContentTag.isContentTag("\"v1\""));
+        assertNotEquals(tag, ContentTag.of("{\"legend\":[1]}".getBytes(StandardCharsets.UTF_8)));
+
+        // the tag of a body read in parts
+        ContentTag parts = new ContentTag();
+        parts.update(body, 0, 5);
+        parts.update(body, 5, body.length - 5);
+        assertEquals(tag, parts.value());
+
+        assertTrue(CacheEntry.matchesETag(tag, tag));
+        assertTrue(CacheEntry.matchesETag("\"v1\", " + tag, tag));
+        assertTrue(CacheEntry.matchesETag("*", tag));
+    }
+
+    @Test
+    void testApplies() {
+        BasicHttpResponse response = new BasicHttpResponse(200);
+        assertTrue(ContentTag.applies(response));
+        response.setHeader("Last-Modified", "Sun, 06 Nov 1994 08:49:37 GMT");
+        assertFalse(ContentTag.applies(response));
+        assertFalse(ContentTag.applies(new BasicHttpResponse(404)));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the disk tier of the response cache.
+ */
+class DiskCacheTest {
+
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private static final BasicHttpRequest REQUEST = new BasicHttpRequest("GET", "/");
+
+    @TempDir
+    Path directory;
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    private static CacheEntry entry(String key, byte[] body) {
+        BasicHttpResponse response = new BasicHttpResponse(200);
+        response.setHeader("Content-Type", "image/png");
+        response.setHeader("Cache-Control", "max-age=600");
+        response.setHeader("Age", "30");
+        return new CacheEntry(key, "localhost", response, body, 0, System.currentTimeMillis());
+    }
+
+    private DiskCache open(boolean lru, ProxyMetrics metrics) throws IOException {
+        return DiskCache.open(directory, 2L * SEGMENT_SIZE, SEGMENT_SIZE, SEGMENT_SIZE, lru, metrics);
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void testEntriesSurviveARestart() throws IOException {
+        String[] vary = {"accept"};
+        BasicHttpRequest xml = new BasicHttpRequest("GET", "/");
+        xml.setHeader("Accept", "text/xml");
+        BasicHttpRequest json = new BasicHttpRequest("GET", "/");
+        json.setHeader("Accept", "application/json");
+
+        DiskCache cache = open(true, new ProxyMetrics());
+        cache.put("tile", null, entry("tile", content(1000)));
+        cache.put("capabilities", vary, entry(ResponseCache.variantKey("capabilities", vary, xml), content(10)));
+        cache.put("capabilities", vary, entry(ResponseCache.variantKey("capabilities", vary, json), content(20)));
+        cache.put("legend", null, entry("legend", content(30)));
+        cache.invalidate("legend");
+        // the latest response wins
+        cache.put("tile", null, entry("tile", content(2000)));
+        cache.close();
+
+        cache = open(true, new ProxyMetrics());
+        assertEquals(3, cache.size());
+        assertNull(cache.get("legend", REQUEST));
+
+        CacheEntry tile = cache.get("tile", REQUEST);
+        assertNotNull(tile);
+        assertArrayEquals(content(2000), tile.getBody().toByteArray());
+        assertEquals("image/png", tile.getFirstHeader("Content-Type"));
+        assertEquals(200, tile.getStatus());
+        assertTrue(tile.getCorrectedInitialAge() >= 30000);
+        tile.release();
+
+        assertEquals(10, cache.get("capabilities", xml).getBody().length());
+        assertEquals(20, cache.get("capabilities", json).getBody().length());
+        cache.close();
+    }
+
+    @Test
+    void testQueriesAreInvalidatedWithTheirURL() throws IOException {
+        String getRecords = "csw" + QueryBody.key("application/xml", "<csw:GetRecords/>".getBytes());
+        String getDomain = "csw" + QueryBody.key("application/xml", "<csw:GetDomain/>".getBytes());
+
+        DiskCache cache = open(true, new ProxyMetrics());
+        cache.put(getRecords, null, entry(getRecords, content(10)));
+        cache.put(getDomain, null, entry(getDomain, content(20)));
+        cache.close();
+
+        cache = open(true, new ProxyMetrics());
+        assertEquals(2, cache.size());
+        cache.invalidate("csw");
+        assertEquals(0, cache.size());
+        cache.close();
+
+        // the tombstone of the URL removes its queries when loaded again
+        cache = open(true, new ProxyMetrics());
+        assertNull(cache.get(getRecords, REQUEST));
+        assertNull(cache.get(getDomain, REQUEST));
+        cache.close();
+    }
+
+    @Test
+    void testOldestSegmentIsDropped() throws IOException {
+        ProxyMetrics metrics = new ProxyMetrics();
+        DiskCache cache = open(false, metrics);
+        for (int i = 0; i < 10; i++) {
+            cache.put("tile" + i, null, entry("tile" + i, content(300 * 1024)));
+        }
+        assertNull(cache.get("tile0", REQUEST));
+        CacheEntry last = cache.get("tile9", REQUEST);
+        assertNotNull(last);
+        last.release();
+        assertTrue(metrics.get("cache.disk.eviction", "localhost") > 0);
+        assertTrue(segmentFiles() <= 3);
+        cache.close();
+    }
+
+    @Test
+    void testRecentlyReadEntriesAreKept() throws IOException {
+        DiskCache cache = open(true, new ProxyMetrics());
+        for (int i = 0; i < 3; i++) {
+            cache.put("tile" + i, null, entry("tile" + i, content(300 * 1024 + i)));
+        }
+        cache.get("tile0", REQUEST).release();
+        // a body being served survives the deletion of its segment
+        CacheEntry served = cache.get("tile1", REQUEST);
+
+        for (int i = 3; i < 9; i++) {
+            cache.put("tile" + i, null, entry("tile" + i, content(300 * 1024 + i)));
+        }
+        CacheEntry kept = cache.get("tile0", REQUEST);
+        assertNotNull(kept);
+        assertArrayEquals(content(300 * 1024), kept.getBody().toByteArray());
+        kept.release();
+        assertNull(cache.get("tile2", REQUEST));
+        assertNull(cache.get("tile3", REQUEST));
+
+        assertArrayEquals(content(300 * 1024 + 1), served.getBody().toByteArray());
+        long files = segmentFiles();
+        served.release();
+        assertEquals(files - 1, segmentFiles());
+        cache.close();
+    }
+}
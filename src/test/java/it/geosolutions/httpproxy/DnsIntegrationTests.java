@@ -0,0 +1,82 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static it.geosolutions.httpproxy.ProxyTestServer.execute;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the proxy with static host addresses against a mocked upstream server.
+ */
+class DnsIntegrationTests {
+
+    @RegisterExtension
+    static WireMockExtension upstream = WireMockExtension.newInstance()
+            .options(WireMockConfiguration.options().dynamicPort())
+            .build();
+
+    @TempDir
+    static Path tempDir;
+
+    static ProxyTestServer proxy;
+
+    static String proxyURL;
+
+    @BeforeAll
+    static void startHttpProxyServer() throws Exception {
+        proxy = ProxyTestServer.start(tempDir, "dnsAddress.upstream.test = 127.0.0.1\n");
+        proxyURL = proxy.getProxyURL();
+    }
+
+    @AfterAll
+    static void stopHttpProxyServer() throws Exception {
+        if (proxy != null) {
+            proxy.stop();
+        }
+    }
+
+    /**
+     * Validates that the hosts given a static address are resolved without lookup
+     */
+    @Test
+    void testStaticHostAddress() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/ows?service=WPS"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/xml")
+                        .withBody("<wps:Capabilities/>")));
+
+        String url = proxyURL + "http://upstream.test:" + upstream.getPort() + "/geoserver/ows?service=WPS";
+        assertEquals("<wps:Capabilities/>", execute(new HttpGet(url))[2]);
+    }
+}
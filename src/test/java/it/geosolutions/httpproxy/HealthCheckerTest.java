@@ -0,0 +1,144 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.routing.DefaultRoutePlanner;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.HttpHost;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the health checks of the upstream servers.
+ */
+class HealthCheckerTest {
+
+    @RegisterExtension
+    static WireMockExtension upstream = WireMockExtension.newInstance()
+            .options(WireMockConfiguration.options().dynamicPort())
+            .build();
+
+    @RegisterExtension
+    static WireMockExtension other = WireMockExtension.newInstance()
+            .options(WireMockConfiguration.options().dynamicPort())
+            .build();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testPoolBackends() throws Exception {
+        upstream.stubFor(get(urlEqualTo("/geoserver/ows?service=WMS&request=GetCapabilities"))
+                .willReturn(aResponse().withStatus(200).withBody("<WMS_Capabilities/>")));
+        int deadPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            deadPort = socket.getLocalPort();
+        }
+        Path file = tempDir.resolve("proxy.properties");
+        Files.writeString(file, "upstreamPool.tiles.pool = 127.0.0.1:" + upstream.getPort() + ", 127.0.0.1:"
+                + deadPort + "\n"
+                + "healthCheck.tiles = http://tiles.pool/geoserver/ows?service=WMS&request=GetCapabilities\n"
+                + "healthCheckUnhealthyThreshold = 1\nhealthCheckMinIdleConnections = 3\n", StandardCharsets.UTF_8);
+        ProxyConfigLoader configLoader = new ProxyConfigLoader(file.toString());
+        ProxyMetrics metrics = new ProxyMetrics();
+        UpstreamPools pools = new UpstreamPools(configLoader, metrics);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        DefaultRoutePlanner routePlanner = new DefaultRoutePlanner(null);
+
+        try (CloseableHttpClient httpClient = HttpClients.custom().setConnectionManager(connectionManager)
+                .setRoutePlanner(routePlanner).build()) {
+            HealthChecker checker = new HealthChecker(configLoader, pools, httpClient, connectionManager,
+                    routePlanner, metrics);
+            checker.checkAll(configLoader.getConfig());
+
+            String live = "127.0.0.1:" + upstream.getPort();
+            assertEquals(1, metrics.get("health.up", live));
+            assertEquals(0, metrics.get("health.up", "127.0.0.1:" + deadPort));
+            upstream.verify(getRequestedFor(urlEqualTo("/geoserver/ows?service=WMS&request=GetCapabilities"))
+                    .withHeader("Host", equalTo("tiles.pool:80")));
+
+            // the probe connection and two more are kept open
+            HttpRoute route = routePlanner.determineRoute(new HttpHost("http", "127.0.0.1", upstream.getPort()),
+                    HttpClientContext.create());
+            assertEquals(3, connectionManager.getStats(route).getAvailable());
+            assertEquals(2, metrics.get("health.connection", live));
+
+            // the backend down is left out
+            for (int i = 0; i < 10; i++) {
+                HttpHost backend = pools.select(new HttpHost("http", "tiles.pool", 80), HttpClientContext.create());
+                assertEquals(upstream.getPort(), backend.getPort());
+            }
+
+            // the pool is already warm
+            checker.checkAll(configLoader.getConfig());
+            assertEquals(2, metrics.get("health.connection", live));
+            assertTrue(connectionManager.getStats(route).getAvailable() >= 3);
+        }
+    }
+
+    @Test
+    void testSeveralChecksPerPool() throws Exception {
+        for (WireMockExtension server : new WireMockExtension[] {upstream, other}) {
+            server.stubFor(get(urlEqualTo("/geoserver/wms")).willReturn(aResponse().withStatus(200)));
+        }
+        upstream.stubFor(get(urlEqualTo("/geoserver/wfs")).willReturn(aResponse().withStatus(200)));
+        other.stubFor(get(urlEqualTo("/geoserver/wfs")).willReturn(aResponse().withStatus(500)));
+        Path file = tempDir.resolve("proxy.properties");
+        Files.writeString(file, "upstreamPool.tiles.pool = 127.0.0.1:" + upstream.getPort() + ", 127.0.0.1:"
+                + other.getPort() + "\n"
+                + "healthCheck.wfs = http://tiles.pool/geoserver/wfs\n"
+                + "healthCheck.wms = http://tiles.pool/geoserver/wms\n"
+                + "healthCheckUnhealthyThreshold = 1\nhealthCheckMinIdleConnections = 0\n", StandardCharsets.UTF_8);
+        ProxyConfigLoader configLoader = new ProxyConfigLoader(file.toString());
+        ProxyMetrics metrics = new ProxyMetrics();
+        UpstreamPools pools = new UpstreamPools(configLoader, metrics);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        DefaultRoutePlanner routePlanner = new DefaultRoutePlanner(null);
+
+        try (CloseableHttpClient httpClient = HttpClients.custom().setConnectionManager(connectionManager)
+                .setRoutePlanner(routePlanner).build()) {
+            HealthChecker checker = new HealthChecker(configLoader, pools, httpClient, connectionManager,
+                    routePlanner, metrics);
+            checker.checkAll(configLoader.getConfig());
+
+            // the backend failing one of the checks is left out, whatever the order of the checks
+            for (int i = 0; i < 10; i++) {
+                HttpHost backend = pools.select(new HttpHost("http", "tiles.pool", 80), HttpClientContext.create());
+                assertEquals(upstream.getPort(), backend.getPort());
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the per host settings overrides.
+ */
+class HostSettingsTest {
+
+    @Test
+    void testExactHostsWinOverPatterns() {
+        Properties props = new Properties();
+        props.setProperty("route.maxConnections.demo.geo-solutions.it", "20");
+        props.setProperty("route.maxConnections.*.geo-solutions.it", "10");
+        props.setProperty("route.maxConnections.*", "8");
+        props.setProperty("route.maxConnections.broken.host", "many");
+        props.setProperty("route.other.demo.geo-solutions.it", "1");
+
+        HostSettings settings = HostSettings.parseInt(props, "route.maxConnections.");
+        assertEquals(20, settings.getInt("demo.geo-solutions.it", 6));
+        assertEquals(20, settings.getInt("DEMO.geo-solutions.it", 6));
+        assertEquals(10, settings.getInt("maps.geo-solutions.it", 6));
+        assertEquals(8, settings.getInt("example.com", 6));
+        assertEquals(6, settings.getInt("broken.host", 6));
+
+        assertEquals("demo.geo-solutions.it", settings.match("DEMO.geo-solutions.it"));
+        assertEquals("*.geo-solutions.it", settings.match("maps.geo-solutions.it"));
+        assertEquals("*", settings.match("example.com"));
+        assertNull(HostSettings.EMPTY.match("example.com"));
+    }
+
+    @Test
+    void testConnectionPoolConfiguration() {
+        Properties props = new Properties();
+        props.setProperty("max_total_connections", "100");
+        props.setProperty("default_max_connections_per_host", "12");
+        props.setProperty("route.maxConnections.localhost", "30");
+
+        ProxyConfig config = new ProxyConfig(props);
+        assertEquals(100, config.getMaxTotalConnections());
+        assertEquals(12, config.getDefaultMaxConnectionsPerHost());
+        assertEquals(30, config.getMaxConnectionsPerHost("localhost"));
+        assertEquals(12, config.getMaxConnectionsPerHost("example.com"));
+        assertTrue(HostSettings.parse(new Properties(), "route.maxConnections.").isEmpty());
+    }
+}
@@ -9,6 +9,8 @@ import org.eclipse.jetty.server.ServerConnector;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.classic.methods.HttpPut;
+import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
+import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.io.entity.StringEntity;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
@@ -19,6 +21,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -189,6 +192,42 @@ class HttpProxyIntegrationTests {
         }
     }
 
+    /**
+     * Validates that a multipart upload is forwarded as is, keeping its original boundary
+     */
+    @Test
+    void testMultipartPOSTIsStreamed() throws IOException {
+
+        wireMockRule1.stubFor(
+                post(urlEqualTo("/geostore/upload"))
+                        .withHeader("Content-Type", containing("boundary=proxy-test-boundary"))
+                        .withRequestBody(containing("shapefile content"))
+                        .willReturn(
+                                aResponse()
+                                        .withStatus(201)
+                                        .withHeader("Content-Type", "text/plain")
+                                        .withBody("uploaded")));
+
+        String url = "http://localhost:" + wireMockRule1.getPort() + "/geostore/upload";
+        String proxyURL = "http://localhost:" + localPort + "/http_proxy/proxy?url=" + url;
+        HttpPost httpPost = new HttpPost(proxyURL);
+        httpPost.setEntity(MultipartEntityBuilder.create()
+                .setBoundary("proxy-test-boundary")
+                .addTextBody("name", "roads")
+                .addBinaryBody("file", "shapefile content".getBytes(StandardCharsets.UTF_8),
+                        ContentType.APPLICATION_OCTET_STREAM, "roads.shp")
+                .build());
+
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            httpClient.execute(httpPost, response -> {
+                assertEquals(201, response.getCode());
+                return null;
+            });
+            wireMockRule1.verify(postRequestedFor(urlEqualTo("/geostore/upload"))
+                    .withHeader("Content-Length", matching("[0-9]+")));
+        }
+    }
+
     /**
      * Validates that HTTP PUT request is correctly handled by the HTTP Proxy
      */
@@ -24,14 +24,18 @@ import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletInputStream;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.apache.hc.client5.http.auth.AuthScope;
+import org.apache.hc.client5.http.auth.Credentials;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
 import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.io.HttpClientResponseHandler;
 import org.apache.hc.core5.http.io.entity.StringEntity;
 import org.apache.hc.core5.http.message.BasicHeader;
+import org.apache.hc.core5.http.protocol.HttpContext;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -48,6 +52,7 @@ import java.util.Map;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.eq;
@@ -230,4 +235,52 @@ class HttpProxyTest {
         assertNotNull(data);
         assertNotEquals(0, data.length);
     }
+
+    @Test
+    void testCredentialsArePassedPerRequest() throws Exception {
+
+        final HttpGet mockGetMethod = mock(HttpGet.class);
+        CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+        when(response.getCode()).thenReturn(200);
+        when(response.getEntity()).thenReturn(new StringEntity("secret"));
+        when(response.headerIterator()).thenReturn(Collections.<org.apache.hc.core5.http.Header>emptyList().iterator());
+
+        final List<HttpClientContext> contexts = new ArrayList<>();
+        mockHttpClient = mock(CloseableHttpClient.class);
+        doAnswer(invocation -> {
+            contexts.add(invocation.getArgument(1));
+            HttpClientResponseHandler<?> handler = invocation.getArgument(2);
+            return handler.handleResponse(response);
+        }).when(mockHttpClient).execute(eq(mockGetMethod), any(HttpContext.class), any(HttpClientResponseHandler.class));
+
+        proxy = new HTTPProxy() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public HttpGet getGetMethod(URL url) {
+                return mockGetMethod;
+            }
+        };
+        proxy.setHttpClient(mockHttpClient);
+        proxy.init(servletConfig);
+
+        parameters.put("user", new String[]{"admin"});
+        parameters.put("password", new String[]{"geoserver"});
+        HttpServletRequest getRequest = mock(HttpServletRequest.class);
+        when(getRequest.getParameterMap()).thenReturn(parameters);
+        when(getRequest.getHeaderNames()).thenReturn(Collections.enumeration(headers));
+        HttpServletResponse getResponse = mock(HttpServletResponse.class);
+        when(getResponse.getOutputStream()).thenReturn(new StubServletOutputStream());
+
+        proxy.doGet(getRequest, getResponse);
+
+        // the shared client is not replaced and the credentials travel with the request
+        assertSame(mockHttpClient, proxy.getHttpClient());
+        assertEquals(1, contexts.size());
+        Credentials credentials = contexts.get(0).getCredentialsProvider()
+                .getCredentials(new AuthScope("sample.com", 80), contexts.get(0));
+        assertNotNull(credentials);
+        assertEquals("admin", credentials.getUserPrincipal().getName());
+        verify(getResponse).setStatus(200);
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for the server thread pool settings of the standalone launcher.
+ */
+class MainTest {
+
+    private static final String[] SETTINGS = {"THREAD_MODE", "THREAD_POOL_MAX", "THREAD_POOL_MIN",
+            "THREAD_POOL_QUEUE", "THREAD_POOL_IDLE_TIMEOUT"};
+
+    @AfterEach
+    void clearSettings() {
+        for (String setting : SETTINGS) {
+            System.clearProperty(setting);
+        }
+    }
+
+    @Test
+    void testPlatformThreads() {
+        System.setProperty("THREAD_MODE", "platform");
+        System.setProperty("THREAD_POOL_MAX", "50");
+        System.setProperty("THREAD_POOL_MIN", "4");
+        System.setProperty("THREAD_POOL_IDLE_TIMEOUT", "1000");
+
+        QueuedThreadPool threadPool = Main.createThreadPool();
+        assertNull(threadPool.getVirtualThreadsExecutor());
+        assertEquals(50, threadPool.getMaxThreads());
+        assertEquals(4, threadPool.getMinThreads());
+        assertEquals(1000, threadPool.getIdleTimeout());
+    }
+
+    @Test
+    void testVirtualThreads() {
+        System.setProperty("THREAD_MODE", "virtual");
+        QueuedThreadPool threadPool = Main.createThreadPool();
+        if (VirtualThreads.areSupported()) {
+            assertNotNull(threadPool.getVirtualThreadsExecutor());
+        } else {
+            assertNull(threadPool.getVirtualThreadsExecutor());
+        }
+    }
+
+    @Test
+    void testUnknownThreadMode() {
+        System.setProperty("THREAD_MODE", "green");
+        QueuedThreadPool threadPool = Main.createThreadPool();
+        assertEquals(VirtualThreads.areSupported(), threadPool.getVirtualThreadsExecutor() != null);
+    }
+
+    @Test
+    void testMinThreadsClamped() {
+        System.setProperty("THREAD_MODE", "platform");
+        System.setProperty("THREAD_POOL_MAX", "10");
+        System.setProperty("THREAD_POOL_MIN", "50");
+
+        QueuedThreadPool threadPool = Main.createThreadPool();
+        assertEquals(10, threadPool.getMaxThreads());
+        assertEquals(10, threadPool.getMinThreads());
+    }
+
+    @Test
+    void testBoundedQueue() throws Exception {
+        System.setProperty("THREAD_MODE", "platform");
+        System.setProperty("THREAD_POOL_MAX", "1");
+        System.setProperty("THREAD_POOL_MIN", "1");
+        System.setProperty("THREAD_POOL_QUEUE", "2");
+
+        QueuedThreadPool threadPool = Main.createThreadPool();
+        threadPool.setReservedThreads(0);
+        threadPool.start();
+        CountDownLatch busy = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            threadPool.execute(() -> {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            busy.await();
+            threadPool.execute(() -> { });
+            threadPool.execute(() -> { });
+            assertThrows(RejectedExecutionException.class, () -> threadPool.execute(() -> { }));
+        } finally {
+            release.countDown();
+            threadPool.stop();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static it.geosolutions.httpproxy.ProxyTestServer.execute;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the proxy with a negative cache against a mocked upstream server.
+ */
+class NegativeCacheIntegrationTests {
+
+    @RegisterExtension
+    static WireMockExtension upstream = WireMockExtension.newInstance()
+            .options(WireMockConfiguration.options().dynamicPort())
+            .build();
+
+    @TempDir
+    static Path tempDir;
+
+    static ProxyTestServer proxy;
+
+    static String proxyURL;
+
+    @BeforeAll
+    static void startHttpProxyServer() throws Exception {
+        proxy = ProxyTestServer.start(tempDir, "route.negativeCacheTtl.127.0.0.1 = 60\n");
+        proxyURL = proxy.getProxyURL();
+    }
+
+    @AfterAll
+    static void stopHttpProxyServer() throws Exception {
+        if (proxy != null) {
+            proxy.stop();
+        }
+    }
+
+    private static String url(String path) {
+        return proxyURL + "http://localhost:" + upstream.getPort() + path;
+    }
+
+    /**
+     * Validates that the upstream failures are remembered for the hosts given a negative cache
+     */
+    @Test
+    void testNegativeCache() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/wms?layers=missing"))
+                .willReturn(aResponse().withStatus(404).withBody("no such layer")));
+        upstream.stubFor(get(urlEqualTo("/geoserver/wms?layers=failing"))
+                .willReturn(aResponse().withStatus(500).withBody("exception")));
+
+        String missing = proxyURL + "http://127.0.0.1:" + upstream.getPort() + "/geoserver/wms?layers=missing";
+        assertEquals("404", execute(new HttpGet(missing))[0]);
+        assertArrayEquals(new String[] {"404", "NEGATIVE"}, Arrays.copyOf(execute(new HttpGet(missing)), 2));
+        upstream.verify(1, getRequestedFor(urlEqualTo("/geoserver/wms?layers=missing")));
+
+        String failing = proxyURL + "http://127.0.0.1:" + upstream.getPort() + "/geoserver/wms?layers=failing";
+        assertEquals("500", execute(new HttpGet(failing))[0]);
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            httpClient.execute(new HttpGet(failing), response -> {
+                EntityUtils.consume(response.getEntity());
+                assertEquals(500, response.getCode());
+                assertNotNull(response.getFirstHeader("Retry-After"));
+                return null;
+            });
+        }
+        upstream.verify(1, getRequestedFor(urlEqualTo("/geoserver/wms?layers=failing")));
+
+        // the other hosts are not given a negative cache
+        String other = url("/geoserver/wms?layers=missing");
+        execute(new HttpGet(other));
+        assertNotEquals("NEGATIVE", execute(new HttpGet(other))[1]);
+        upstream.verify(3, getRequestedFor(urlEqualTo("/geoserver/wms?layers=missing")));
+
+        // a host refusing the connections
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String dead = proxyURL + "http://127.0.0.1:" + port + "/geoserver/wms";
+        assertEquals("502", execute(new HttpGet(dead))[0]);
+        assertArrayEquals(new String[] {"502", "NEGATIVE"}, Arrays.copyOf(execute(new HttpGet(dead + "?a=b")), 2));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.client5.http.HttpHostConnectException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the remembered upstream failures.
+ */
+class NegativeCacheTest {
+
+    @Test
+    void testExpiration() {
+        ProxyMetrics metrics = new ProxyMetrics();
+        NegativeCache cache = new NegativeCache(2, metrics);
+
+        cache.put("url a", "localhost", 404, "missing", 10_000);
+        cache.put("url b", "localhost", 503, "failing", 0);
+        // read after the put, so that the failure does not seem to last more than its ttl
+        long now = System.currentTimeMillis();
+        NegativeCache.Failure failure = cache.get("url a", now);
+        assertNotNull(failure);
+        assertEquals(404, failure.getCode());
+        assertEquals(10, failure.getRetryAfter(now));
+        assertNull(cache.get("url b", now));
+        assertNull(cache.get("url a", now + 10_000));
+        assertEquals(0, cache.size());
+
+        // full, the new failures are dropped until the old ones expire
+        cache.put("url a", "localhost", 404, "missing", 10_000);
+        cache.put("url b", "localhost", 404, "missing", 10_000);
+        cache.put("url c", "localhost", 404, "missing", 10_000);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("url c", now));
+        assertEquals(3, metrics.get("negative.store", "localhost"));
+        assertEquals(1, metrics.get("negative.hit", "localhost"));
+    }
+
+    @Test
+    void testClassification() throws IOException {
+        assertTrue(NegativeCache.isFailure(404));
+        assertTrue(NegativeCache.isFailure(502));
+        assertFalse(NegativeCache.isFailure(403));
+        assertFalse(NegativeCache.isFailure(304));
+
+        assertTrue(NegativeCache.isHostFailure(new UnknownHostException("nowhere")));
+        assertTrue(NegativeCache.isHostFailure(new HttpHostConnectException("refused")));
+        assertFalse(NegativeCache.isHostFailure(new IOException("reset")));
+
+        assertEquals("host demo.geo-solutions.it:80",
+                NegativeCache.hostKey(new URL("http://DEMO.geo-solutions.it/geoserver/wms")));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.MalformedURLException;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Tests for the normalization of the OGC requests into cache keys.
+ */
+class OgcCacheKeyNormalizerTest {
+
+    private static final OgcCacheKeyNormalizer NORMALIZER = new OgcCacheKeyNormalizer();
+
+    private static String normalize(String url, ProxyConfig config) throws MalformedURLException {
+        return NORMALIZER.normalize(Utils.buildURL(url), config.getCacheKeyIgnoredParams());
+    }
+
+    private static ProxyConfig config(String ignoredParams) {
+        Properties props = new Properties();
+        if (ignoredParams != null) {
+            props.setProperty("cacheKeyIgnoredParams", ignoredParams);
+        }
+        return new ProxyConfig(props);
+    }
+
+    @Test
+    void testOgcRequestsAreCanonical() throws MalformedURLException {
+        ProxyConfig config = config("_dc");
+        String key = normalize("http://demo.geo-solutions.it/geoserver/wms?SERVICE=WMS&VERSION=1.3.0"
+                + "&REQUEST=GetMap&LAYERS=topp:states&CRS=EPSG:4326&BBOX=-90,-180,90,180"
+                + "&WIDTH=256&HEIGHT=256&FORMAT=image/png", config);
+        assertEquals("http://demo.geo-solutions.it:80/geoserver/wms?BBOX=-90%2C-180%2C90%2C180&CRS=EPSG%3A4326"
+                + "&FORMAT=image%2Fpng&HEIGHT=256&LAYERS=topp%3Astates&REQUEST=getmap&SERVICE=WMS"
+                + "&VERSION=1.3.0&WIDTH=256", key);
+
+        assertEquals(key, normalize("http://Demo.Geo-Solutions.it:80/geoserver/wms?request=getmap&service=wms"
+                + "&version=1.3&layers=topp%3Astates&crs=epsg:4326&bbox=-90.0,-180.000,9E1,180"
+                + "&width=256&height=256&format=IMAGE/PNG&_dc=1712345678", config));
+
+        // the values of the other parameters are significant
+        assertNotEquals(key, normalize("http://demo.geo-solutions.it/geoserver/wms?SERVICE=WMS&VERSION=1.3.0"
+                + "&REQUEST=GetMap&LAYERS=TOPP:STATES&CRS=EPSG:4326&BBOX=-90,-180,90,180"
+                + "&WIDTH=256&HEIGHT=256&FORMAT=image/png", config));
+    }
+
+    @Test
+    void testOtherRequestsKeepTheirParameters() throws MalformedURLException {
+        ProxyConfig config = config("_");
+        assertEquals("http://localhost:8080/geostore/rest/resources?page=0&Entries=10",
+                normalize("http://localhost:8080/geostore/rest/resources?page=0&Entries=10&_=123", config));
+        assertNotEquals(normalize("http://localhost/a?x=1&y=2", config),
+                normalize("http://localhost/a?y=2&x=1", config));
+        assertEquals("http://localhost:80/a", normalize("http://localhost/a", config));
+    }
+
+    @Test
+    void testValues() {
+        assertEquals("1.1.0", OgcCacheKeyNormalizer.normalizeVersion("1.1"));
+        assertEquals("2.0.2", OgcCacheKeyNormalizer.normalizeVersion("2.0.2"));
+        assertEquals("1.1.1,1.3.0", OgcCacheKeyNormalizer.normalizeVersion("1.1.1,1.3.0"));
+        assertEquals("0,10.5,-3,1000,urn:ogc:def:crs:EPSG::4326",
+                OgcCacheKeyNormalizer.normalizeNumbers("-0.0, 10.50,-3.000,1E3,urn:ogc:def:crs:EPSG::4326"));
+    }
+}
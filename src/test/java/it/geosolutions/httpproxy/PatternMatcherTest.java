@@ -0,0 +1,88 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the precompiled regular expressions matchers.
+ */
+class PatternMatcherTest {
+
+    @Test
+    void testCombinedExpressionsMatchLikeSeparateOnes() {
+        PatternMatcher matcher = PatternMatcher.compile(Arrays.asList(
+                ".*[Gg]et[Cc]apabilities.*", ".*csw.*", "(?i).*getfeatureinfo.*"));
+
+        assertFalse(matcher.isEmpty());
+        assertTrue(matcher.matches("http://host/wms?request=GetCapabilities"));
+        assertTrue(matcher.matches("http://host/csw"));
+        assertTrue(matcher.matches("http://host/wms?REQUEST=GETFEATUREINFO"));
+        // the inline flag of the last expression must not leak into the others
+        assertFalse(matcher.matches("http://host/CSW"));
+        assertFalse(matcher.matches("http://host/wms?request=GetMap"));
+    }
+
+    @Test
+    void testBackReferencesAndInvalidExpressions() {
+        PatternMatcher matcher = PatternMatcher.compile(Arrays.asList(
+                "(a+)b\\1", "[invalid", ".*ows.*"));
+
+        assertFalse(matcher.isEmpty());
+        assertTrue(matcher.matches("aabaa"));
+        assertFalse(matcher.matches("aaba"));
+        assertTrue(matcher.matches("http://host/ows"));
+        assertFalse(matcher.matches("[invalid"));
+
+        // an expression that does not compile still enforces the white list
+        PatternMatcher invalidOnly = PatternMatcher.compile(Collections.singletonList("[invalid"));
+        assertFalse(invalidOnly.isEmpty());
+        assertFalse(invalidOnly.matches("anything"));
+    }
+
+    @Test
+    void testNonProxyHosts() {
+        String previous = System.getProperty(NonProxyHostMatcher.NON_PROXY_HOSTS_PROPERTY);
+        try {
+            NonProxyHostMatcher matcher = new NonProxyHostMatcher();
+            System.setProperty(NonProxyHostMatcher.NON_PROXY_HOSTS_PROPERTY, "\"localhost|*.internal\"");
+            assertTrue(matcher.isNonProxyHost("localhost"));
+            assertTrue(matcher.isNonProxyHost("geoserver.internal"));
+            assertFalse(matcher.isNonProxyHost("example.com"));
+
+            // a change of the property is picked up
+            System.setProperty(NonProxyHostMatcher.NON_PROXY_HOSTS_PROPERTY, "example.com");
+            assertTrue(matcher.isNonProxyHost("example.com"));
+            assertFalse(matcher.isNonProxyHost("localhost"));
+        } finally {
+            if (previous != null) {
+                System.setProperty(NonProxyHostMatcher.NON_PROXY_HOSTS_PROPERTY, previous);
+            } else {
+                System.clearProperty(NonProxyHostMatcher.NON_PROXY_HOSTS_PROPERTY);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the configuration snapshots and their reload.
+ */
+class ProxyConfigLoaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testSnapshotIsReusedUntilFileChanges() throws Exception {
+        File file = tempDir.resolve("proxy.properties").toFile();
+        Files.writeString(file.toPath(), "methodsWhitelist = GET\n", StandardCharsets.UTF_8);
+
+        ProxyConfigLoader loader = new ProxyConfigLoader(file.getAbsolutePath());
+        ProxyConfig first = loader.getConfig();
+        assertEquals(Set.of("GET"), first.getMethodsWhitelist());
+
+        // nothing changed, the same snapshot is kept
+        assertFalse(loader.reload());
+        assertSame(first, loader.getConfig());
+
+        AtomicReference<ProxyConfig> notified = new AtomicReference<>();
+        loader.addListener(notified::set);
+
+        Files.writeString(file.toPath(), "methodsWhitelist = GET,POST\n", StandardCharsets.UTF_8);
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+
+        assertTrue(loader.reload());
+        ProxyConfig second = loader.getConfig();
+        assertNotSame(first, second);
+        assertSame(second, notified.get());
+        assertEquals(Set.of("GET", "POST"), second.getMethodsWhitelist());
+        // the previous snapshot is left untouched
+        assertEquals(Set.of("GET"), first.getMethodsWhitelist());
+    }
+
+    @Test
+    void testHostsFileChangeReloads() throws Exception {
+        File hosts = tempDir.resolve("hosts").toFile();
+        Files.writeString(hosts.toPath(), "10.0.0.1 tiles.test\n", StandardCharsets.UTF_8);
+        File file = tempDir.resolve("dns.properties").toFile();
+        Files.writeString(file.toPath(), "dnsHostsFile = " + hosts.getAbsolutePath().replace('\\', '/') + "\n",
+                StandardCharsets.UTF_8);
+
+        ProxyConfigLoader loader = new ProxyConfigLoader(file.getAbsolutePath());
+        assertEquals("10.0.0.1", loader.getConfig().getDnsStaticAddresses().get("tiles.test")[0].getHostAddress());
+        assertFalse(loader.reload());
+
+        // only the hosts file changed
+        Files.writeString(hosts.toPath(), "10.0.0.2 tiles.test\n", StandardCharsets.UTF_8);
+        assertTrue(hosts.setLastModified(hosts.lastModified() + 2000));
+
+        assertTrue(loader.reload());
+        assertEquals("10.0.0.2", loader.getConfig().getDnsStaticAddresses().get("tiles.test")[0].getHostAddress());
+        assertFalse(loader.reload());
+    }
+
+    @Test
+    void testMissingListsAreEmpty() throws Exception {
+        File file = tempDir.resolve("empty.properties").toFile();
+        Files.writeString(file.toPath(), "timeout = 1000\n", StandardCharsets.UTF_8);
+
+        ProxyConfig config = new ProxyConfigLoader(file.getAbsolutePath()).getConfig();
+        assertTrue(config.getHostnameWhitelist().isEmpty());
+        assertTrue(config.getReqtypeWhitelist().isEmpty());
+        assertEquals(1000, config.getSoTimeout());
+    }
+}
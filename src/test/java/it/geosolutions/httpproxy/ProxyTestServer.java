@@ -0,0 +1,108 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee10.servlet.ServletHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Runs the proxy servlet in an embedded Jetty server, on a free port, for the integration tests.
+ */
+final class ProxyTestServer {
+
+    private final Server server;
+
+    private final String proxyURL;
+
+    private ProxyTestServer(Server server, String proxyURL) {
+        this.server = server;
+        this.proxyURL = proxyURL;
+    }
+
+    /**
+     * Starts the proxy with the given configuration.
+     *
+     * @param dir the directory receiving the properties file
+     * @param properties the content of the proxy properties file
+     * @return the started server
+     * @throws Exception if the server cannot be started
+     */
+    static ProxyTestServer start(Path dir, String properties) throws Exception {
+        Path file = dir.resolve("test-proxy.properties");
+        Files.writeString(file, "configReloadInterval = 0\n" + properties);
+
+        Server server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/http_proxy");
+        context.setInitParameter("proxyPropPath", file.toString());
+        ServletHolder holder = new ServletHolder(new HTTPProxy());
+        holder.setAsyncSupported(true);
+        context.addServlet(holder, "/proxy/*");
+        server.setHandler(context);
+        server.start();
+
+        return new ProxyTestServer(server, "http://localhost:" + connector.getLocalPort() + "/http_proxy/proxy?url=");
+    }
+
+    /**
+     * @return the proxy URL, to be followed by the target URL
+     */
+    String getProxyURL() {
+        return proxyURL;
+    }
+
+    void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * Sends the request with a new client, which does not retry the failed requests so that the
+     * tests see every response of the proxy.
+     *
+     * @param request the request to the proxy
+     * @return the status code, the X-Cache header and the body of the response
+     * @throws IOException if the request fails
+     */
+    static String[] execute(ClassicHttpRequest request) throws IOException {
+        try (CloseableHttpClient httpClient = HttpClients.custom().disableAutomaticRetries().build()) {
+            return httpClient.execute(request, response -> new String[] {
+                    Integer.toString(response.getCode()),
+                    response.getFirstHeader(HTTPProxy.X_CACHE_HEADER) != null
+                            ? response.getFirstHeader(HTTPProxy.X_CACHE_HEADER).getValue() : null,
+                    response.getEntity() != null
+                            ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : null});
+        }
+    }
+}
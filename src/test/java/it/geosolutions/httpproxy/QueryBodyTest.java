@@ -0,0 +1,63 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the keys of the buffered POST queries.
+ */
+class QueryBodyTest {
+
+    private static String key(String contentType, String body) {
+        return QueryBody.key(contentType, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testXmlQueries() {
+        assertEquals("<wfs:GetFeature service=\"WFS\"><wfs:Query typeName=\"topp:states\"/></wfs:GetFeature>",
+                QueryBody.canonicalXml("<wfs:GetFeature  service=\"WFS\" >\n\t<wfs:Query typeName=\"topp:states\" />"
+                        + "\n</wfs:GetFeature>\n"));
+        assertEquals(key("text/xml", "<?xml version=\"1.0\"?><GetFeature><Query/></GetFeature>"),
+                key("text/xml; charset=UTF-8", "<?xml version=\"1.0\"?>\n<GetFeature>\n  <Query/>\n</GetFeature>"));
+
+        assertTrue(QueryBody.isReadOperation("<?xml version=\"1.0\"?><!-- a query --><csw:GetRecordById/>"));
+        assertTrue(QueryBody.isReadOperation("<DescribeFeatureType service=\"WFS\"/>"));
+        assertFalse(QueryBody.isReadOperation("<wfs:Transaction service=\"WFS\"/>"));
+        assertNull(key("application/xml", "<wfs:Transaction service=\"WFS\"/>"));
+    }
+
+    @Test
+    void testJsonQueries() {
+        assertEquals("{\"filter\":\"name = 'a  b'\",\"limit\":10}",
+                QueryBody.canonicalJson("{ \"filter\" : \"name = 'a  b'\",\n  \"limit\": 10 }"));
+        assertEquals("[\"a\\\" b\"]", QueryBody.canonicalJson("[ \"a\\\" b\" ]"));
+        assertNotEquals(key("application/json", "{\"a\":1}"), key("application/json", "{\"a\":2}"));
+        assertNull(key("text/plain", "a query"));
+    }
+}
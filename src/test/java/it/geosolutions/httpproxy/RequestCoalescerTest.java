@@ -0,0 +1,127 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for the sharing of a response between the coalesced requests.
+ */
+class RequestCoalescerTest {
+
+    private static byte[] readAll(RequestCoalescer.Flight.Reader reader) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[3];
+        int read;
+        while ((read = reader.read(b, 1000)) > 0) {
+            out.write(b, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void testFollowersReceiveTheLeaderResponse() throws IOException {
+        ProxyMetrics metrics = new ProxyMetrics();
+        RequestCoalescer coalescer = new RequestCoalescer(metrics);
+        RequestCoalescer.Flight leader = coalescer.newFlight("key", "localhost", 8, 1024);
+        assertNull(coalescer.join(leader));
+
+        RequestCoalescer.Flight.Reader first = coalescer.join(coalescer.newFlight("key", "localhost", 8, 1024));
+        assertNotNull(first);
+        leader.publishHead(new BasicHttpResponse(200, "OK"));
+        leader.publish("hello ".getBytes(StandardCharsets.UTF_8), 0, 6);
+
+        // joining after the first bytes still gets the whole body
+        RequestCoalescer.Flight.Reader second = coalescer.join(coalescer.newFlight("key", "localhost", 8, 1024));
+        assertNotNull(second);
+        leader.publish("world".getBytes(StandardCharsets.UTF_8), 0, 5);
+        leader.complete();
+        leader.finish();
+
+        for (RequestCoalescer.Flight.Reader reader : new RequestCoalescer.Flight.Reader[] {first, second}) {
+            HttpResponse head = reader.awaitHead(1000);
+            assertEquals(200, head.getCode());
+            assertArrayEquals("hello world".getBytes(StandardCharsets.UTF_8), readAll(reader));
+            reader.close();
+        }
+        assertEquals(0, coalescer.size());
+        assertEquals(1, metrics.get("coalesce.leader", "localhost"));
+        assertEquals(2, metrics.get("coalesce.follower", "localhost"));
+    }
+
+    @Test
+    void testLargeResponsesDetachTheSlowFollowers() throws IOException {
+        ProxyMetrics metrics = new ProxyMetrics();
+        RequestCoalescer coalescer = new RequestCoalescer(metrics);
+        RequestCoalescer.Flight leader = coalescer.newFlight("key", "localhost", 8, 8);
+        coalescer.join(leader);
+        RequestCoalescer.Flight.Reader slow = coalescer.join(coalescer.newFlight("key", "localhost", 8, 8));
+        leader.publishHead(new BasicHttpResponse(200, "OK"));
+
+        leader.publish(new byte[6], 0, 6);
+        leader.publish(new byte[6], 0, 6);
+
+        // over the limit the flight is not joinable anymore
+        assertNull(coalescer.join(coalescer.newFlight("key", "localhost", 8, 8)));
+        assertNotNull(slow.awaitHead(1000));
+        assertThrows(IOException.class, () -> slow.read(new byte[16], 1000));
+        assertEquals(1, metrics.get("coalesce.detached", "localhost"));
+    }
+
+    @Test
+    void testBodyWithoutFollowersClosesTheFlight() {
+        RequestCoalescer coalescer = new RequestCoalescer(new ProxyMetrics());
+        RequestCoalescer.Flight leader = coalescer.newFlight("key", "localhost", 8, 1024);
+        assertNull(coalescer.join(leader));
+        leader.publishHead(new BasicHttpResponse(200, "OK"));
+        leader.publish(new byte[6], 0, 6);
+
+        // the bytes were not kept, the newcomers lead their own flight
+        assertEquals(0, coalescer.size());
+        assertNull(coalescer.join(coalescer.newFlight("key", "localhost", 8, 1024)));
+        assertEquals(1, coalescer.size());
+    }
+
+    @Test
+    void testLeaderFailureBeforeTheHead() throws IOException {
+        RequestCoalescer coalescer = new RequestCoalescer(new ProxyMetrics());
+        RequestCoalescer.Flight leader = coalescer.newFlight("key", "localhost", 8, 1024);
+        coalescer.join(leader);
+        RequestCoalescer.Flight.Reader follower = coalescer.join(coalescer.newFlight("key", "localhost", 8, 1024));
+
+        leader.finish();
+
+        // the follower has to send its own request
+        assertNull(follower.awaitHead(1000));
+        assertEquals(0, coalescer.size());
+    }
+}
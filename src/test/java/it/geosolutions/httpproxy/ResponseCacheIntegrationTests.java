@@ -0,0 +1,350 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static it.geosolutions.httpproxy.ProxyTestServer.execute;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the proxy with the response cache enabled against a mocked upstream server.
+ */
+class ResponseCacheIntegrationTests {
+
+    @RegisterExtension
+    static WireMockExtension upstream = WireMockExtension.newInstance()
+            .options(WireMockConfiguration.options().dynamicPort())
+            .build();
+
+    @TempDir
+    static Path tempDir;
+
+    static ProxyTestServer proxy;
+
+    static String proxyURL;
+
+    @BeforeAll
+    static void startHttpProxyServer() throws Exception {
+        proxy = ProxyTestServer.start(tempDir, "cacheEnabled = true\n"
+                + "route.staleIfError.localhost = 60\n"
+                + "cacheMaxEntrySize = 4096\ncacheDiskSegmentSize = 1048576\n"
+                + "route.cachePost.localhost = true\ncachePostMaxAge = 60\n"
+                + "route.contentEtag.localhost = true\n"
+                + "cacheDiskPath = " + tempDir.resolve("cache").toString().replace('\\', '/') + "\n");
+        proxyURL = proxy.getProxyURL();
+    }
+
+    @AfterAll
+    static void stopHttpProxyServer() throws Exception {
+        if (proxy != null) {
+            proxy.stop();
+        }
+    }
+
+    private static String url(String path) {
+        return proxyURL + "http://localhost:" + upstream.getPort() + path;
+    }
+
+    /**
+     * Validates that a fresh response is served without contacting the upstream server
+     */
+    @Test
+    void testFreshResponseIsServedFromCache() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/wms?request=GetCapabilities"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/vnd.ogc.wms_xml")
+                        .withHeader("Cache-Control", "max-age=60")
+                        .withBody("<WMT_MS_Capabilities/>")));
+
+        String url = url("/geoserver/wms?request=GetCapabilities");
+        assertArrayEquals(new String[] {"200", "MISS", "<WMT_MS_Capabilities/>"}, execute(new HttpGet(url)));
+        assertArrayEquals(new String[] {"200", "HIT", "<WMT_MS_Capabilities/>"}, execute(new HttpGet(url)));
+        upstream.verify(1, getRequestedFor(urlEqualTo("/geoserver/wms?request=GetCapabilities")));
+
+        // the same OGC request written differently
+        assertArrayEquals(new String[] {"200", "HIT", "<WMT_MS_Capabilities/>"},
+                execute(new HttpGet(url("/geoserver/wms?REQUEST=getcapabilities"))));
+
+        // the validators of the client are checked against the cached response
+        HttpGet conditional = new HttpGet(url);
+        conditional.setHeader("If-Modified-Since", "Sun, 06 Nov 2094 08:49:37 GMT");
+        assertEquals("200", execute(conditional)[0]);
+    }
+
+    /**
+     * Validates that a response too large for the memory is cached on the disk
+     */
+    @Test
+    void testLargeResponseIsCachedOnDisk() throws IOException {
+        String body = "<gml/>".repeat(10000);
+        upstream.stubFor(get(urlEqualTo("/geoserver/wfs?request=GetFeature"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/vnd.ogc.gml")
+                        .withHeader("Cache-Control", "max-age=60")
+                        .withBody(body)));
+
+        String url = url("/geoserver/wfs?request=GetFeature");
+        assertArrayEquals(new String[] {"200", "MISS", body}, execute(new HttpGet(url)));
+        assertArrayEquals(new String[] {"200", "HIT", body}, execute(new HttpGet(url)));
+        upstream.verify(1, getRequestedFor(urlEqualTo("/geoserver/wfs?request=GetFeature")));
+        try (Stream<Path> files = Files.list(tempDir.resolve("cache"))) {
+            // the recording spilled to the disk is deleted once stored
+            assertTrue(files.allMatch(file -> file.getFileName().toString().endsWith(".seg")));
+        }
+    }
+
+    /**
+     * Validates that a stale response is revalidated and served again on a 304
+     */
+    @Test
+    void testStaleResponseIsRevalidated() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/legend.png"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withHeader("Cache-Control", "no-cache")
+                        .withHeader("ETag", "\"legend-1\"")
+                        .withBody("legend")));
+        upstream.stubFor(get(urlEqualTo("/geoserver/legend.png"))
+                .withHeader("If-None-Match", containing("legend-1"))
+                .atPriority(1)
+                .willReturn(aResponse()
+                        .withStatus(304)
+                        .withHeader("ETag", "\"legend-1\"")));
+
+        String url = url("/geoserver/legend.png");
+        assertArrayEquals(new String[] {"200", "MISS", "legend"}, execute(new HttpGet(url)));
+        assertArrayEquals(new String[] {"200", "REVALIDATED", "legend"}, execute(new HttpGet(url)));
+        upstream.verify(1, getRequestedFor(urlEqualTo("/geoserver/legend.png"))
+                .withHeader("If-None-Match", containing("legend-1")));
+    }
+
+    /**
+     * Validates that a stale response is served at once under stale-while-revalidate, then
+     * revalidated in the background
+     */
+    @Test
+    void testStaleWhileRevalidate() throws Exception {
+        upstream.stubFor(get(urlEqualTo("/geoserver/styles.json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Cache-Control", "max-age=0, stale-while-revalidate=60")
+                        .withHeader("ETag", "\"styles-1\"")
+                        .withBody("[]")));
+        upstream.stubFor(get(urlEqualTo("/geoserver/styles.json"))
+                .withHeader("If-None-Match", containing("styles-1"))
+                .atPriority(1)
+                .willReturn(aResponse()
+                        .withStatus(304)
+                        .withHeader("Cache-Control", "max-age=60")
+                        .withHeader("ETag", "\"styles-1\"")));
+
+        String url = url("/geoserver/styles.json");
+        assertArrayEquals(new String[] {"200", "MISS", "[]"}, execute(new HttpGet(url)));
+        assertArrayEquals(new String[] {"200", "STALE", "[]"}, execute(new HttpGet(url)));
+
+        // the background revalidation makes the response fresh again
+        long deadline = System.currentTimeMillis() + 5000;
+        String[] result;
+        do {
+            Thread.sleep(50);
+            result = execute(new HttpGet(url));
+        } while (!"HIT".equals(result[1]) && System.currentTimeMillis() < deadline);
+        assertArrayEquals(new String[] {"200", "HIT", "[]"}, result);
+        upstream.verify(1, getRequestedFor(urlEqualTo("/geoserver/styles.json"))
+                .withHeader("If-None-Match", containing("styles-1")));
+    }
+
+    /**
+     * Validates that a stale response replaces a server error within the stale-if-error window
+     * configured for the host
+     */
+    @Test
+    void testStaleIfError() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/wfs?request=DescribeFeatureType"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/xml")
+                        .withHeader("Cache-Control", "max-age=0")
+                        .withBody("<schema/>")));
+
+        String url = url("/geoserver/wfs?request=DescribeFeatureType");
+        assertArrayEquals(new String[] {"200", "MISS", "<schema/>"}, execute(new HttpGet(url)));
+
+        upstream.stubFor(get(urlEqualTo("/geoserver/wfs?request=DescribeFeatureType"))
+                .willReturn(aResponse().withStatus(503).withBody("restarting")));
+        assertArrayEquals(new String[] {"200", "STALE", "<schema/>"}, execute(new HttpGet(url)));
+
+        // the server forbids it
+        upstream.stubFor(get(urlEqualTo("/geoserver/wfs?request=GetFeature"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/xml")
+                        .withHeader("Cache-Control", "max-age=0, must-revalidate")
+                        .withBody("<features/>")));
+        execute(new HttpGet(url("/geoserver/wfs?request=GetFeature")));
+        upstream.stubFor(get(urlEqualTo("/geoserver/wfs?request=GetFeature"))
+                .willReturn(aResponse().withStatus(503).withBody("restarting")));
+        assertEquals("503", execute(new HttpGet(url("/geoserver/wfs?request=GetFeature")))[0]);
+    }
+
+    /**
+     * Validates that the responses forbidding the storage are not cached and that the unsafe
+     * methods invalidate the cached URL
+     */
+    @Test
+    void testNoStoreAndInvalidation() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/private"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withHeader("Cache-Control", "no-store")
+                        .withBody("private")));
+        execute(new HttpGet(url("/geoserver/private")));
+        assertEquals("MISS", execute(new HttpGet(url("/geoserver/private")))[1]);
+        upstream.verify(2, getRequestedFor(urlEqualTo("/geoserver/private")));
+
+        upstream.stubFor(get(urlEqualTo("/geostore/users"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/xml")
+                        .withHeader("Cache-Control", "max-age=60")
+                        .withBody("<users/>")));
+        upstream.stubFor(post(urlEqualTo("/geostore/users"))
+                .willReturn(aResponse().withStatus(201).withHeader("Content-Type", "text/xml").withBody("<ok/>")));
+        execute(new HttpGet(url("/geostore/users")));
+        assertEquals("HIT", execute(new HttpGet(url("/geostore/users")))[1]);
+
+        HttpPost post = new HttpPost(url("/geostore/users"));
+        post.setEntity(new StringEntity("<user/>"));
+        execute(post);
+        assertEquals("MISS", execute(new HttpGet(url("/geostore/users")))[1]);
+    }
+
+    /**
+     * Validates that the POST queries are cached under their body, and the transactions are not but
+     * invalidate them
+     */
+    @Test
+    void testPostQueries() throws IOException {
+        upstream.stubFor(post(urlEqualTo("/geoserver/csw"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/xml")
+                        .withBody("<csw:GetRecordsResponse/>")));
+
+        String url = url("/geoserver/csw");
+        HttpPost query = new HttpPost(url);
+        query.setEntity(new StringEntity("<csw:GetRecords service=\"CSW\">\n  <csw:Query/>\n</csw:GetRecords>",
+                ContentType.APPLICATION_XML));
+        assertArrayEquals(new String[] {"200", "MISS", "<csw:GetRecordsResponse/>"}, execute(query));
+
+        HttpPost same = new HttpPost(url);
+        same.setEntity(new StringEntity("<csw:GetRecords  service=\"CSW\"><csw:Query/></csw:GetRecords>",
+                ContentType.APPLICATION_XML));
+        assertArrayEquals(new String[] {"200", "HIT", "<csw:GetRecordsResponse/>"}, execute(same));
+
+        HttpPost other = new HttpPost(url);
+        other.setEntity(new StringEntity("<csw:GetRecords service=\"CSW\"><csw:Query typeNames=\"csw:Record\"/>"
+                + "</csw:GetRecords>", ContentType.APPLICATION_XML));
+        assertEquals("MISS", execute(other)[1]);
+        upstream.verify(2, postRequestedFor(urlEqualTo("/geoserver/csw")));
+
+        for (int i = 0; i < 2; i++) {
+            HttpPost transaction = new HttpPost(url);
+            transaction.setEntity(new StringEntity("<csw:Transaction service=\"CSW\"/>",
+                    ContentType.APPLICATION_XML));
+            assertNull(execute(transaction)[1]);
+        }
+        upstream.verify(4, postRequestedFor(urlEqualTo("/geoserver/csw")));
+        upstream.verify(postRequestedFor(urlEqualTo("/geoserver/csw"))
+                .withRequestBody(equalTo("<csw:Transaction service=\"CSW\"/>")));
+
+        // the transactions changed the records, the queries are not answered from the cache anymore
+        HttpPost again = new HttpPost(url);
+        again.setEntity(new StringEntity("<csw:GetRecords service=\"CSW\"><csw:Query/></csw:GetRecords>",
+                ContentType.APPLICATION_XML));
+        assertEquals("MISS", execute(again)[1]);
+        upstream.verify(5, postRequestedFor(urlEqualTo("/geoserver/csw")));
+    }
+
+    /**
+     * Validates that the responses without validators are given a content ETag, checked by the
+     * proxy whether the response is cached or not
+     */
+    @Test
+    void testContentETags() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/www/legend.json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Cache-Control", "no-store")
+                        .withBody("{\"legend\":[]}")));
+        upstream.stubFor(get(urlEqualTo("/geoserver/www/style.json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Cache-Control", "max-age=60")
+                        .withBody("{\"style\":{}}")));
+
+        for (String path : new String[] {"/geoserver/www/legend.json", "/geoserver/www/style.json"}) {
+            String etag;
+            try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+                etag = httpClient.execute(new HttpGet(url(path)), response -> {
+                    EntityUtils.consume(response.getEntity());
+                    return response.getFirstHeader("ETag").getValue();
+                });
+            }
+            assertTrue(etag.startsWith("W/\"px-"), etag);
+
+            HttpGet conditional = new HttpGet(url(path));
+            conditional.setHeader("If-None-Match", etag);
+            String[] notModified = execute(conditional);
+            assertEquals("304", notModified[0]);
+            assertNull(notModified[2]);
+        }
+        upstream.verify(1, getRequestedFor(urlEqualTo("/geoserver/www/style.json")));
+        upstream.verify(0, getRequestedFor(urlEqualTo("/geoserver/www/legend.json"))
+                .withHeader("If-None-Match", matching(".*")));
+    }
+}
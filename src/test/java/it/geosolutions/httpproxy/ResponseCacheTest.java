@@ -0,0 +1,158 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the storage and the eviction of the response cache.
+ */
+class ResponseCacheTest {
+
+    private static final BasicHttpRequest REQUEST = new BasicHttpRequest("GET", "/");
+
+    private static CacheEntry entry(String key, int length) {
+        return new CacheEntry(key, "localhost", new BasicHttpResponse(200), new byte[length], 0, 0);
+    }
+
+    @Test
+    void testPopularEntriesSurviveAScan() {
+        ProxyMetrics metrics = new ProxyMetrics();
+        ResponseCache cache = new ResponseCache(100 * 1024, 1024, metrics);
+
+        for (int i = 0; i < 20; i++) {
+            cache.put("popular" + i, null, entry("popular" + i, 1000));
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 20; i++) {
+                assertNotNull(cache.get("popular" + i, REQUEST));
+            }
+        }
+
+        // one shot requests, many more than the cache holds
+        for (int i = 0; i < 1000; i++) {
+            cache.get("scan" + i, REQUEST);
+            cache.put("scan" + i, null, entry("scan" + i, 1000));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(cache.get("popular" + i, REQUEST), "popular" + i);
+        }
+        assertTrue(cache.weight() <= 100 * 1024);
+        assertTrue(metrics.get("cache.eviction", "localhost") > 0);
+    }
+
+    @Test
+    void testVariants() {
+        ResponseCache cache = new ResponseCache(1024 * 1024, 1024, new ProxyMetrics());
+        String[] vary = {"accept"};
+
+        BasicHttpRequest xml = new BasicHttpRequest("GET", "/");
+        xml.setHeader("Accept", "text/xml");
+        BasicHttpRequest json = new BasicHttpRequest("GET", "/");
+        json.setHeader("Accept", "application/json");
+
+        cache.put("url", vary, entry(ResponseCache.variantKey("url", vary, xml), 10));
+        assertNotNull(cache.get("url", xml));
+        assertNull(cache.get("url", json));
+
+        cache.put("url", vary, entry(ResponseCache.variantKey("url", vary, json), 20));
+        assertEquals(10, cache.get("url", xml).getBody().length());
+        assertEquals(20, cache.get("url", json).getBody().length());
+
+        cache.invalidate("url");
+        assertNull(cache.get("url", xml));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    void testShrink() {
+        ResponseCache cache = new ResponseCache(1024 * 1024, 1024, new ProxyMetrics());
+        for (int i = 0; i < 100; i++) {
+            cache.put("url" + i, null, entry("url" + i, 1000));
+        }
+        cache.setLimits(10 * 1024, 1024);
+        assertTrue(cache.weight() <= 10 * 1024);
+        assertTrue(cache.size() > 0);
+    }
+
+    @Test
+    void testOffHeapBodies() {
+        ProxyMetrics metrics = new ProxyMetrics();
+        SlabStore store = new SlabStore(2 * SlabStore.SLAB_SIZE);
+        ResponseCache cache = new ResponseCache(2 * SlabStore.SLAB_SIZE, 1024 * 1024, store, metrics);
+
+        for (int i = 0; i < 10; i++) {
+            cache.put("tile" + i, null, entry("tile" + i, 300 * 1024));
+        }
+        assertTrue(cache.size() < 10);
+        assertTrue(store.getUsedBytes() <= 2 * SlabStore.SLAB_SIZE);
+        assertTrue(metrics.get("cache.eviction", "localhost") > 0);
+
+        // a body being served survives its eviction
+        CacheEntry served = cache.get("tile9", REQUEST);
+        assertNotNull(served);
+        cache.invalidate("tile9");
+        assertEquals(300 * 1024, served.getBody().toByteArray().length);
+        long used = store.getUsedBytes();
+        served.release();
+        assertTrue(store.getUsedBytes() < used);
+    }
+
+    @Test
+    void testDiskTier(@TempDir Path directory) throws IOException {
+        ProxyMetrics metrics = new ProxyMetrics();
+        DiskCache disk = DiskCache.open(directory, 4 * 1024 * 1024, 1024 * 1024, 1024 * 1024, true, metrics);
+        ResponseCache cache = new ResponseCache(100 * 1024, 1024, null, disk, metrics);
+
+        // too large for the memory, kept on the disk only
+        cache.put("map", null, entry("map", 10 * 1024));
+        cache.put("tile", null, entry("tile", 1000));
+        assertEquals(1, cache.size());
+        CacheEntry map = cache.get("map", REQUEST);
+        assertNotNull(map);
+        assertEquals(10 * 1024, map.getBody().length());
+        map.release();
+        assertEquals(1, metrics.get("cache.disk.hit", "localhost"));
+
+        // a restarted proxy promotes the small responses found on the disk
+        cache = new ResponseCache(100 * 1024, 1024, null, disk, metrics);
+        assertNotNull(cache.get("tile", REQUEST));
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("tile", REQUEST));
+        assertEquals(2, metrics.get("cache.disk.hit", "localhost"));
+
+        cache.invalidate("map");
+        assertNull(cache.get("map", REQUEST));
+        disk.close();
+    }
+}
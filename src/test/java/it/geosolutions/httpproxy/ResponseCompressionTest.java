@@ -0,0 +1,109 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the proxy side response compression.
+ */
+class ResponseCompressionTest {
+
+    @Test
+    void testNegotiate() {
+        assertEquals("gzip", ResponseCompression.negotiate(List.of("gzip, deflate, br")));
+        assertEquals("deflate", ResponseCompression.negotiate(List.of("br", "deflate")));
+        assertEquals("gzip", ResponseCompression.negotiate(List.of("*;q=0.5")));
+        assertEquals("deflate", ResponseCompression.negotiate(List.of("gzip;q=0, deflate;q=0.8")));
+        assertEquals("deflate", ResponseCompression.negotiate(List.of("gzip;q=0, *")));
+        assertNull(ResponseCompression.negotiate(List.of("x-gzip;q=0", "deflate;q=0", "*")));
+        assertNull(ResponseCompression.negotiate(List.of("*;q=0")));
+        assertNull(ResponseCompression.negotiate(List.of("identity")));
+        assertNull(ResponseCompression.negotiate(List.of()));
+    }
+
+    @Test
+    void testIsCompressible() {
+        Set<String> whitelist = Set.of("application/xml", "application/vnd.ogc.gml", "image/png",
+                "application/json");
+        assertTrue(ResponseCompression.isCompressible("application/vnd.ogc.gml; subtype=gml/3.1.1", whitelist));
+        assertTrue(ResponseCompression.isCompressible("application/json;charset=UTF-8", whitelist));
+        assertFalse(ResponseCompression.isCompressible("image/png", whitelist));
+        assertFalse(ResponseCompression.isCompressible("text/html", whitelist));
+        assertTrue(ResponseCompression.isCompressible("text/html", Set.of()));
+    }
+
+    @Test
+    void testWrap() throws IOException {
+        byte[] body = "<wfs:FeatureCollection/>".repeat(100).getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = ResponseCompression.wrap(gzip, "gzip", 6, 1024)) {
+            out.write(body);
+        }
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.toByteArray()))) {
+            assertArrayEquals(body, in.readAllBytes());
+        }
+
+        ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = ResponseCompression.wrap(deflate, "deflate", 1, 1024)) {
+            out.write(body);
+        }
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(deflate.toByteArray()))) {
+            assertArrayEquals(body, in.readAllBytes());
+        }
+        assertTrue(deflate.size() < body.length / 10);
+    }
+
+    @Test
+    void testEndAbandonedStream() throws IOException {
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        DeflaterOutputStream out = ResponseCompression.wrap(gzip, "gzip", 6, 1024);
+        out.write("<wfs:FeatureCollection>".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        ResponseCompression.end(out);
+
+        // the compressor is released and the truncated body is not finished
+        assertThrows(NullPointerException.class, out::close);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.toByteArray()))) {
+            assertThrows(EOFException.class, in::readAllBytes);
+        }
+        ResponseCompression.end(null);
+    }
+}
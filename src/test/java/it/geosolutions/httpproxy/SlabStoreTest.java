@@ -0,0 +1,86 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the off heap storage of the cached bodies.
+ */
+class SlabStoreTest {
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    @Test
+    void testBodiesAreStoredInSizeClasses() throws IOException {
+        SlabStore store = new SlabStore(4 * SlabStore.SLAB_SIZE);
+        for (int length : new int[] {0, 1, 1000, 1025, 64 * 1024, 200 * 1024 + 3}) {
+            byte[] content = content(length);
+            CacheBody body = store.store(CacheBody.of(content));
+            assertNotNull(body);
+            assertEquals(length, body.length());
+            assertEquals(SlabStore.allocationSize(length), body.allocatedSize());
+            assertArrayEquals(content, body.toByteArray());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            body.writeTo(out, new byte[100]);
+            assertArrayEquals(content, out.toByteArray());
+        }
+        assertEquals(2048, SlabStore.allocationSize(1025));
+        assertEquals(3 * 64 * 1024 + 16 * 1024, SlabStore.allocationSize(200 * 1024 + 3));
+    }
+
+    @Test
+    void testMemoryIsReusedOnceReleased() {
+        SlabStore store = new SlabStore(SlabStore.SLAB_SIZE);
+        CacheBody first = store.store(CacheBody.of(content(SlabStore.SLAB_SIZE)));
+        assertNotNull(first);
+        assertNull(store.store(CacheBody.of(content(1))));
+
+        // a request still serving the body defers the release
+        assertTrue(first.retain());
+        first.release();
+        assertNull(store.store(CacheBody.of(content(1))));
+        first.release();
+        assertFalse(first.retain());
+        assertEquals(0, store.getUsedBytes());
+
+        // the emptied slab moves to another size class
+        CacheBody second = store.store(CacheBody.of(content(10)));
+        assertNotNull(second);
+        assertEquals(SlabStore.SLAB_SIZE, store.getAllocatedBytes());
+        assertEquals(1024, store.getUsedBytes());
+    }
+}
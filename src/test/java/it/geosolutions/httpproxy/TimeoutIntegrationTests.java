@@ -0,0 +1,198 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the proxy against a slow upstream server, checking the global and per host timeouts.
+ */
+class TimeoutIntegrationTests {
+
+    @RegisterExtension
+    static WireMockExtension upstream = WireMockExtension.newInstance()
+            .options(WireMockConfiguration.options().dynamicPort())
+            .build();
+
+    @TempDir
+    static Path tempDir;
+
+    static ProxyTestServer proxy;
+
+    static String proxyURL;
+
+    @BeforeAll
+    static void startHttpProxyServer() throws Exception {
+        proxy = ProxyTestServer.start(tempDir, "timeout = 500\nconnection_timeout = 500\n"
+                + "connection_request_timeout = 500\ntotal_timeout = 1500\n"
+                + "dnsAddress.patient.test = 127.0.0.1\nroute.timeout.patient.test = 5000\n"
+                + "dnsAddress.total.test = 127.0.0.1\nroute.timeout.total.test = 5000\n"
+                + "route.totalTimeout.total.test = 300\n"
+                + "dnsAddress.pool.test = 127.0.0.1\nroute.timeout.pool.test = 5000\n"
+                + "route.maxConnections.pool.test = 1\nroute.connectionRequestTimeout.pool.test = 200\n"
+                + "dnsAddress.unreachable.test = 127.0.0.1\nroute.connectionTimeout.unreachable.test = 200\n");
+        proxyURL = proxy.getProxyURL();
+    }
+
+    @AfterAll
+    static void stopHttpProxyServer() throws Exception {
+        if (proxy != null) {
+            proxy.stop();
+        }
+    }
+
+    private static String url(String host, int port, String path) {
+        return proxyURL + "http://" + host + ":" + port + path;
+    }
+
+    private static int execute(String url) throws IOException {
+        return Integer.parseInt(ProxyTestServer.execute(new HttpGet(url))[0]);
+    }
+
+    /**
+     * Validates that a response slower than the socket timeout ends with a 504, unless the host
+     * has a longer timeout
+     */
+    @Test
+    void testSocketTimeout() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/slow"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(1000)
+                        .withBody("slow")));
+
+        assertEquals(504, execute(url("localhost", upstream.getPort(), "/geoserver/slow")));
+        assertEquals(200, execute(url("patient.test", upstream.getPort(), "/geoserver/slow")));
+    }
+
+    /**
+     * Validates that a host with a shorter total timeout gets a 504, even when the socket timeout
+     * is not exceeded
+     */
+    @Test
+    void testTotalTimeout() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/total"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(1000)
+                        .withBody("total")));
+
+        long start = System.nanoTime();
+        assertEquals(504, execute(url("total.test", upstream.getPort(), "/geoserver/total")));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    /**
+     * Validates that the total timeout also cuts a body streamed too slowly, each chunk arriving
+     * within the socket timeout
+     */
+    @Test
+    void testTotalTimeoutWhileStreaming() {
+        upstream.stubFor(get(urlEqualTo("/geoserver/dribble"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody("x".repeat(64 * 1024))
+                        .withChunkedDribbleDelay(20, 4000)));
+
+        long start = System.nanoTime();
+        try {
+            assertEquals(504, execute(url("patient.test", upstream.getPort(), "/geoserver/dribble")));
+        } catch (IOException e) {
+            // the response was already committed, the body is truncated
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000);
+    }
+
+    /**
+     * Validates that waiting too long for a pooled connection ends with a 504
+     */
+    @Test
+    void testConnectionRequestTimeout() throws Exception {
+        upstream.stubFor(get(urlEqualTo("/geoserver/busy"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(1000)
+                        .withBody("busy")));
+
+        String url = url("pool.test", upstream.getPort(), "/geoserver/busy");
+        CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return execute(url);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(300);
+        assertEquals(504, execute(url));
+        assertEquals(200, first.get());
+    }
+
+    /**
+     * Validates that a connection not accepted within the connection timeout ends with a 504, the
+     * host with a shorter timeout failing sooner
+     */
+    @Test
+    void testConnectionTimeout() throws IOException {
+        // a server whose backlog is full does not answer to the new connections
+        try (ServerSocket server = new ServerSocket(0, 1)) {
+            List<Socket> backlog = new ArrayList<>();
+            try {
+                for (int i = 0; i < 4; i++) {
+                    Socket socket = new Socket();
+                    backlog.add(socket);
+                    try {
+                        socket.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()), 200);
+                    } catch (IOException e) {
+                        break;
+                    }
+                }
+                assertEquals(504, execute(url("127.0.0.1", server.getLocalPort(), "/geoserver/wms")));
+                long start = System.nanoTime();
+                assertEquals(504, execute(url("unreachable.test", server.getLocalPort(), "/geoserver/wms")));
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 450);
+            } finally {
+                for (Socket socket : backlog) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
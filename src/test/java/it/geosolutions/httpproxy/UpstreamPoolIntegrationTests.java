@@ -0,0 +1,99 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static it.geosolutions.httpproxy.ProxyTestServer.execute;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the proxy with a pool of upstream servers, one of them refusing the connections.
+ */
+class UpstreamPoolIntegrationTests {
+
+    @RegisterExtension
+    static WireMockExtension upstream = WireMockExtension.newInstance()
+            .options(WireMockConfiguration.options().dynamicPort())
+            .build();
+
+    @TempDir
+    static Path tempDir;
+
+    static ProxyTestServer proxy;
+
+    static String proxyURL;
+
+    @BeforeAll
+    static void startHttpProxyServer() throws Exception {
+        int deadPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            deadPort = socket.getLocalPort();
+        }
+        proxy = ProxyTestServer.start(tempDir, "upstreamPool.tiles.pool = 127.0.0.1:" + deadPort
+                + ", 127.0.0.1:" + upstream.getPort() + "\n"
+                + "upstreamPoolEjectFailures = 1\n");
+        proxyURL = proxy.getProxyURL();
+    }
+
+    @AfterAll
+    static void stopHttpProxyServer() throws Exception {
+        if (proxy != null) {
+            proxy.stop();
+        }
+    }
+
+    /**
+     * Validates that the requests to a logical host are sent to its backends, the failing
+     * backend being ejected
+     */
+    @Test
+    void testUpstreamPool() throws IOException {
+        upstream.stubFor(get(urlEqualTo("/geoserver/wms?layers=pooled"))
+                .willReturn(aResponse().withStatus(200).withBody("pooled")));
+
+        String url = proxyURL + "http://tiles.pool/geoserver/wms?layers=pooled";
+        // the refusing backend is tried once, then ejected
+        int failures = 0;
+        for (int i = 0; i < 6; i++) {
+            String[] response = execute(new HttpGet(url));
+            if (response[0].equals("502")) {
+                failures++;
+            } else {
+                assertEquals("pooled", response[2]);
+            }
+        }
+        assertEquals(1, failures);
+        upstream.verify(getRequestedFor(urlEqualTo("/geoserver/wms?layers=pooled"))
+                .withHeader("Host", equalTo("tiles.pool")));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.HttpHost;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the balancing of the upstream pools.
+ */
+class UpstreamPoolsTest {
+
+    private static final long MS = 1_000_000;
+
+    @TempDir
+    Path tempDir;
+
+    private static ProxyConfig config(String... properties) {
+        Properties props = new Properties();
+        for (int i = 0; i < properties.length; i += 2) {
+            props.setProperty(properties[i], properties[i + 1]);
+        }
+        return new ProxyConfig(props);
+    }
+
+    private static UpstreamPools.Pool pool(String... backends) {
+        return new UpstreamPools.Pool(UpstreamPools.parseBackends("geoserver", List.of(backends)), null,
+                new ProxyMetrics());
+    }
+
+    @Test
+    void testSelect() throws IOException {
+        Path file = tempDir.resolve("proxy.properties");
+        Files.writeString(file, "upstreamPool.GeoServer = gs1:8080, gs2, not a host\n", StandardCharsets.UTF_8);
+        UpstreamPools pools = new UpstreamPools(new ProxyConfigLoader(file.toString()), new ProxyMetrics());
+
+        assertEquals(2, config("upstreamPool.GeoServer", "gs1:8080, gs2, not a host").getUpstreamPools()
+                .get("geoserver").size());
+        HttpClientContext context = HttpClientContext.create();
+        HttpHost other = new HttpHost("https", "demo", 443);
+        assertSame(other, pools.select(other, context));
+        assertNull(context.getAttribute("it.geosolutions.httpproxy.backend"));
+
+        HttpHost backend = pools.select(new HttpHost("https", "geoserver", 8443), context);
+        assertEquals("https", backend.getSchemeName());
+        assertTrue(backend.toHostString().equals("gs1:8080") || backend.toHostString().equals("gs2:8443"),
+                backend.toHostString());
+    }
+
+    @Test
+    void testLeastOutstanding() {
+        ProxyConfig config = config("upstreamPoolBalancer", "leastOutstanding");
+        UpstreamPools.Pool pool = pool("gs1", "gs2", "gs3");
+
+        long now = System.nanoTime();
+        UpstreamPools.Backend first = pool.select(config, now);
+        UpstreamPools.Call call = first.start();
+        UpstreamPools.Backend second = pool.select(config, now);
+        second.start();
+        UpstreamPools.Backend third = pool.select(config, now);
+        assertEquals(3, List.of(first, second, third).stream().distinct().count());
+
+        third.start();
+        call.complete(false, config);
+        call.complete(false, config);
+        assertSame(first, pool.select(config, now));
+        assertEquals(0, first.getOutstanding());
+    }
+
+    @Test
+    void testPeakEwma() {
+        ProxyConfig config = config("upstreamPoolBalancer", "peakEwma");
+        UpstreamPools.Pool pool = pool("gs1", "gs2");
+        long now = System.nanoTime();
+        UpstreamPools.Backend slow = pool.select(config, now);
+        slow.start();
+        slow.sample(500 * MS, false, config, now);
+        UpstreamPools.Backend fast = pool.select(config, now);
+        fast.start();
+        fast.sample(50 * MS, false, config, now);
+
+        for (int i = 0; i < 5; i++) {
+            assertSame(fast, pool.select(config, now));
+        }
+        // a single peak is taken at once
+        fast.start();
+        fast.sample(1000 * MS, false, config, now + MS);
+        assertSame(slow, pool.select(config, now + MS));
+    }
+
+    @Test
+    void testOutlierEjection() {
+        ProxyConfig config = config("upstreamPoolEjectFailures", "2", "upstreamPoolEjectDuration", "1000",
+                "upstreamPoolBalancer", "leastOutstanding");
+        UpstreamPools.Pool pool = pool("gs1", "gs2");
+        long now = System.nanoTime();
+        UpstreamPools.Backend failing = pool.select(config, now);
+        for (int i = 0; i < 2; i++) {
+            failing.start();
+            failing.sample(MS, true, config, now);
+        }
+        assertTrue(failing.isEjected(now));
+        UpstreamPools.Backend healthy = pool.select(config, now);
+        assertFalse(healthy == failing);
+        for (int i = 0; i < 5; i++) {
+            // more requests in flight, still preferred to the ejected backend
+            healthy.start();
+            assertSame(healthy, pool.select(config, now));
+        }
+
+        // no more than half of the backends are ejected
+        for (int i = 0; i < 2; i++) {
+            healthy.start();
+            healthy.sample(MS, true, config, now);
+        }
+        assertFalse(healthy.isEjected(now));
+
+        long later = now + 1000 * MS;
+        assertFalse(failing.isEjected(later));
+        assertSame(failing, pool.select(config, later));
+    }
+}